@@ -45,6 +45,15 @@ public class Boot {
                 ctx.spawn(com.cloudguide.actors.LLMActor.create(), "llm-actor");
             }
 
+            if ("retrieval".equals(role)) {
+                Config cg = ctx.getSystem().settings().config();
+                Config sc = cg.getConfig("cloudguide.rag.shards");
+                int shard = Integer.parseInt(System.getProperty("SHARD", String.valueOf(sc.getInt("id"))));
+                VectorDB shardStore = vectorStore(ctx, cg, sc.getString("store"));
+                ctx.spawn(RetrievalShardActor.create(shard, shardStore, sc.getInt("catch-up-page"),
+                        sc.getDuration("catch-up-delay")), "retrieval-shard-" + shard);
+            }
+
             if ("api".equals(role)) {
 
                 Config cg = ctx.getSystem().settings().config();
@@ -52,38 +61,12 @@ public class Boot {
                 String embedModel = cg.getString("cloudguide.ollama.embed-model");
                 String storeKind = cg.getConfig("cloudguide.rag").getString("store");
 
-                EmbeddingsProvider emb = new OllamaEmbeddingsProvider(ollamaBaseUrl, embedModel);
-                VectorDB db;
-
-                if ("qdrant".equalsIgnoreCase(storeKind)) {
-                    Config qc = cg.getConfig("cloudguide.qdrant");
-                    String qHost = qc.getString("host");
-                    int qPort = qc.getInt("port");
-                    String coll = qc.getString("collection");
-                    int dim = qc.getInt("dim");
-                    String dist = qc.getString("distance"); // "Cosine"
-                    int batch = qc.getInt("upsert-batch");
-                    Duration qTimeout = Duration.ofSeconds(qc.getDuration("timeout").getSeconds());
-                    boolean allowFallback = qc.getBoolean("allow-fallback-to-memory");
-
-                    QdrantVectorDB qvs = new QdrantVectorDB(qHost, qPort, coll, dim, dist, batch, qTimeout);
-                    try {
-                        qvs.ensureCollection();
-                        db = qvs;
-                        ctx.getLog().info("VectorDB: Qdrant {}:{} collection='{}' dim={} distance={}",
-                                qHost, qPort, coll, dim, dist);
-                    } catch (Exception e) {
-                        if (allowFallback) {
-                            ctx.getLog().warn("Qdrant unavailable ({}). Falling back to InMemoryVectorDB.", e.toString());
-                            db = new InMemoryVectorDB();
-                        } else {
-                            throw e;
-                        }
-                    }
-                } else {
-                    db = new InMemoryVectorDB();
-                    ctx.getLog().info("VectorDB: InMemory");
-                }
+                Config oc = cg.getConfig("cloudguide.ollama");
+                EmbeddingsProvider emb = embeddingCache(ctx, oc, coalescing(oc, new OllamaEmbeddingsProvider(ollamaBaseUrl,
+                        embedModel, oc.getInt("embed-batch-size"), oc.getInt("embed-concurrency"), oc.getInt("embed-retries"))));
+                ctx.getLog().info("Similarity kernel: {}", VectorMath.kernelName());
+                VectorDB db = vectorStore(ctx, cg, storeKind);
+                Bm25Index lexical = lexicalIndex(ctx, cg);
 
                 ActorRef<LoggingActor.Command> logger = ctx.spawn(LoggingActor.create(), "logging-actor");
 
@@ -96,13 +79,13 @@ public class Boot {
 
                 // Retrieval
                 ActorRef<RetrievalActor.Command> retriever
-                        = ctx.spawn(RetrievalActor.create(emb, db, gateway), "retrieval-actor");
+                        = ctx.spawn(RetrievalActor.create(emb, db, lexical, gateway), "retrieval-actor");
 
                 // Router
                 ActorRef<RoutingActor.Command> router
                         = ctx.spawn(RoutingActor.create(pricing, logger, gateway, retriever), "routing-actor");
 
-                ActorRef<DocumentIngestorActor.Command> ingestor = ctx.spawn(DocumentIngestorActor.create(emb, db), "ingestor");
+                ActorRef<DocumentIngestorActor.Command> ingestor = ctx.spawn(DocumentIngestorActor.create(emb, db, lexical), "ingestor");
 
                 ActorRef<RoutingActor.FinalAnswer> sink
                         = ctx.spawnAnonymous(
@@ -168,4 +151,264 @@ public class Boot {
 
         Runtime.getRuntime().addShutdownHook(new Thread(system::terminate));
     }
+
+    // Builds the store named by storeKind ("qdrant" | "tiered" | "replica" | "hnsw" | "ivfpq" | "sharded" | "memory")
+    static VectorDB vectorStore(ActorContext<Void> ctx, Config cg, String storeKind) throws Exception {
+        VectorDB db;
+        if ("qdrant".equalsIgnoreCase(storeKind)) {
+            Config qc = cg.getConfig("cloudguide.qdrant");
+            boolean allowFallback = qc.getBoolean("allow-fallback-to-memory");
+
+            QdrantVectorDB qvs = qdrantClient(cg);
+            try {
+                qvs.ensureCollection();
+                db = qvs;
+                ctx.getLog().info("VectorDB: Qdrant {}:{} collection='{}' dim={} distance={}",
+                        qc.getString("host"), qc.getInt("port"), qc.getString("collection"),
+                        qc.getInt("dim"), qc.getString("distance"));
+            } catch (Exception e) {
+                if (allowFallback) {
+                    ctx.getLog().warn("Qdrant unavailable ({}). Falling back to InMemoryVectorDB.", e.toString());
+                    db = memoryStore(cg);
+                } else {
+                    throw e;
+                }
+            }
+        } else if ("tiered".equalsIgnoreCase(storeKind)) {
+            VectorDB remote = vectorStore(ctx, cg, "qdrant");
+            if (remote instanceof InMemoryVectorDB) {
+                return remote;  // Qdrant fell back to memory: there is no remote tier to front
+            }
+            Config tc = cg.getConfig("cloudguide.rag.tiered");
+            db = new TieredVectorDB(new InMemoryVectorDB(), remote, tc.getInt("capacity"), tc.getInt("admit-after"),
+                    TieredVectorDB.Eviction.parse(tc.getString("eviction")), (float) tc.getDouble("min-score"));
+            ctx.getLog().info("VectorDB: tiered, hot capacity={} admitAfter={} eviction={} minScore={}",
+                    tc.getInt("capacity"), tc.getInt("admit-after"), tc.getString("eviction"), tc.getDouble("min-score"));
+        } else if ("replica".equalsIgnoreCase(storeKind)) {
+            Config rc = cg.getConfig("cloudguide.rag.replica");
+            String snap = rc.getString("snapshot-dir");
+            java.nio.file.Path snapDir = snap.isBlank() ? null : java.nio.file.Path.of(snap);
+            QdrantVectorDB qvs = qdrantClient(cg);
+            try {
+                qvs.ensureCollection();
+            } catch (Exception e) {
+                ctx.getLog().warn("Qdrant unavailable ({}); replica serves what it has and keeps retrying", e.toString());
+            }
+            ReplicatedVectorDB rep = new ReplicatedVectorDB(qvs, memoryStore(cg, snapDir, false), snapDir,
+                    rc.getInt("page-size"), rc.getDuration("overlap"), rc.getInt("sweep-every"),
+                    cg.getDouble("cloudguide.rag.memory.compact-dead-ratio"));
+            scheduleReplicaSync(ctx, rep, rc.getDuration("sync-interval"));
+            db = rep;
+            ctx.getLog().info("VectorDB: local replica of Qdrant collection '{}' (ready={}, sync every {})",
+                    cg.getString("cloudguide.qdrant.collection"), rep.ready(), rc.getDuration("sync-interval"));
+        } else if ("hnsw".equalsIgnoreCase(storeKind)) {
+            Config hc = cg.getConfig("cloudguide.rag.hnsw");
+            int m = hc.getInt("m");
+            int efConstruction = hc.getInt("ef-construction");
+            int efSearch = hc.getInt("ef-search");
+            HnswVectorDB hnsw = new HnswVectorDB(m, efConstruction, efSearch);
+            scheduleRebuild(ctx, hnsw, hc);
+            db = hnsw;
+            ctx.getLog().info("VectorDB: HNSW m={} efConstruction={} efSearch={}", m, efConstruction, efSearch);
+        } else if ("ivfpq".equalsIgnoreCase(storeKind)) {
+            Config ic = cg.getConfig("cloudguide.rag.ivfpq");
+            IvfPqCodebook cb;
+            try {
+                cb = IvfPqCodebook.load(java.nio.file.Path.of(ic.getString("codebook")));
+            } catch (java.io.IOException e) {
+                throw new RuntimeException("IVF-PQ codebook not loadable (train it with tools.TrainIvfPq): " + e, e);
+            }
+            db = ic.getString("text-dir").isBlank()
+                    ? new IvfPqVectorDB(cb, ic.getInt("nprobe"))
+                    : new IvfPqVectorDB(cb, ic.getInt("nprobe"), java.nio.file.Path.of(ic.getString("text-dir")));
+            ctx.getLog().info("VectorDB: IVF-PQ nlist={} m={} nprobe={}", cb.nlist(), cb.subquantizers(), ic.getInt("nprobe"));
+        } else if ("sharded".equalsIgnoreCase(storeKind)) {
+            Config sc = cg.getConfig("cloudguide.rag.shards");
+            db = new ShardedVectorDB(ctx.getSystem(), sc.getInt("count"),
+                    sc.getDuration("timeout"), sc.getDuration("write-timeout"));
+            ctx.getLog().info("VectorDB: sharded over {} retrieval shards (timeout {})",
+                    sc.getInt("count"), sc.getDuration("timeout"));
+        } else {
+            InMemoryVectorDB mem = memoryStore(cg);
+            db = mem;
+            ctx.getLog().info("VectorDB: InMemory quantization={} restoredRows={} walReplayed={}",
+                    cg.getString("cloudguide.rag.memory.quantization"), mem.restoredRows(), mem.replayedDocs());
+        }
+        if (db instanceof InMemoryVectorDB mem) {
+            scheduleMaintenance(ctx, mem, cg);
+        }
+        return db;
+    }
+
+    static InMemoryVectorDB memoryStore(Config cg) {
+        String snapshot = cg.getString("cloudguide.rag.memory.snapshot-dir");
+        return memoryStore(cg, snapshot.isBlank() ? null : java.nio.file.Path.of(snapshot),
+                cg.getBoolean("cloudguide.rag.memory.wal"));
+    }
+
+    // Scan settings from rag.memory, persistence chosen by the caller
+    static InMemoryVectorDB memoryStore(Config cg, java.nio.file.Path snapshotDir, boolean wal) {
+        Config mc = cg.getConfig("cloudguide.rag.memory");
+        String spill = mc.getString("spill-dir");
+        return new InMemoryVectorDB(
+                InMemoryVectorDB.Quantization.parse(mc.getString("quantization")),
+                mc.getInt("rescore-candidates"),
+                spill.isBlank() ? null : java.nio.file.Path.of(spill),
+                mc.getInt("parallelism"),
+                mc.getInt("segment-rows"),
+                snapshotDir,
+                wal);
+    }
+
+    static QdrantVectorDB qdrantClient(Config cg) {
+        Config qc = cg.getConfig("cloudguide.qdrant");
+        return new QdrantVectorDB(qc.getString("host"), qc.getInt("port"), qc.getString("collection"),
+                qc.getInt("dim"), qc.getString("distance"), qc.getInt("upsert-batch"),
+                Duration.ofSeconds(qc.getDuration("timeout").getSeconds()));
+    }
+
+    // First sync right away, then at a fixed delay; the copy is persisted and released on shutdown
+    private static void scheduleReplicaSync(ActorContext<Void> ctx, ReplicatedVectorDB rep, Duration every) {
+        var blocking = ctx.getSystem().dispatchers().lookup(akka.actor.typed.DispatcherSelector.blocking());
+        ctx.getSystem().scheduler().scheduleWithFixedDelay(Duration.ZERO, every, () -> {
+            try {
+                long pulled = rep.sync();
+                if (pulled > 0) ctx.getSystem().log().info("Replica sync pulled {} points", pulled);
+            } catch (Exception e) {
+                ctx.getSystem().log().warn("Replica sync failed: {}", e.toString());
+            }
+        }, blocking);
+        akka.actor.CoordinatedShutdown.get(ctx.getSystem()).addTask(
+                akka.actor.CoordinatedShutdown.PhaseBeforeActorSystemTerminate(), "replica-snapshot", () ->
+                java.util.concurrent.CompletableFuture.supplyAsync(() -> {
+                    try {
+                        rep.close();
+                    } catch (java.io.IOException e) {
+                        ctx.getSystem().log().warn("Replica snapshot on shutdown failed: {}", e.toString());
+                    }
+                    return akka.Done.getInstance();
+                }, blocking));
+    }
+
+    // Concurrent single-text embeds (one per question) go out together; cache misses only, as the cache wraps this
+    private static EmbeddingsProvider coalescing(Config oc, EmbeddingsProvider emb) {
+        Duration wait = oc.getDuration("embed-coalesce.max-wait");
+        if (wait.isZero()) {
+            return emb;
+        }
+        return new CoalescingEmbeddingsProvider(emb, oc.getInt("embed-coalesce.max-batch"), wait);
+    }
+
+    // Wraps the provider in the persistent embedding cache when one is configured; closed on shutdown
+    private static EmbeddingsProvider embeddingCache(ActorContext<Void> ctx, Config oc, EmbeddingsProvider emb)
+            throws java.io.IOException {
+        String dir = oc.getString("embed-cache.dir");
+        if (dir.isBlank()) {
+            return emb;
+        }
+        CachingEmbeddingsProvider cached = new CachingEmbeddingsProvider(emb, java.nio.file.Path.of(dir),
+                oc.getInt("embed-cache.heap-entries"), oc.getInt("embed-cache.max-entries"));
+        ctx.getLog().info("Embedding cache: {}", dir);
+        var blocking = ctx.getSystem().dispatchers().lookup(akka.actor.typed.DispatcherSelector.blocking());
+        akka.actor.CoordinatedShutdown.get(ctx.getSystem()).addTask(
+                akka.actor.CoordinatedShutdown.PhaseBeforeActorSystemTerminate(), "embedding-cache-close", () ->
+                java.util.concurrent.CompletableFuture.supplyAsync(() -> {
+                    try {
+                        cached.close();
+                    } catch (java.io.IOException e) {
+                        ctx.getSystem().log().warn("Embedding cache close failed: {}", e.toString());
+                    }
+                    return akka.Done.getInstance();
+                }, blocking));
+        return cached;
+    }
+
+    // BM25 side index for hybrid retrieval; saved periodically and on shutdown when it has a path
+    private static Bm25Index lexicalIndex(ActorContext<Void> ctx, Config cg) {
+        Config hc = cg.getConfig("cloudguide.rag.hybrid");
+        if (!hc.getBoolean("enabled")) {
+            return null;
+        }
+        String file = hc.getString("index-path");
+        if (file.isBlank()) {
+            return new Bm25Index();
+        }
+        java.nio.file.Path path = java.nio.file.Path.of(file);
+        Bm25Index idx;
+        try {
+            idx = Bm25Index.load(path);
+        } catch (java.io.IOException e) {
+            throw new RuntimeException("BM25 index not loadable from " + path + ": " + e, e);
+        }
+        ctx.getLog().info("Lexical index: {} chunks from {}", idx.size(), path);
+
+        Duration every = hc.getDuration("save-interval");
+        var blocking = ctx.getSystem().dispatchers().lookup(akka.actor.typed.DispatcherSelector.blocking());
+        Runnable save = () -> {
+            try {
+                idx.save(path);
+            } catch (Exception e) {
+                ctx.getSystem().log().warn("Lexical index save failed: {}", e.toString());
+            }
+        };
+        ctx.getSystem().scheduler().scheduleWithFixedDelay(every, every, save, blocking);
+        akka.actor.CoordinatedShutdown.get(ctx.getSystem()).addTask(
+                akka.actor.CoordinatedShutdown.PhaseBeforeActorSystemTerminate(), "lexical-index-save", () ->
+                java.util.concurrent.CompletableFuture.supplyAsync(() -> {
+                    save.run();
+                    return akka.Done.getInstance();
+                }, blocking));
+        return idx;
+    }
+
+    // Re-inserts the live nodes once enough of the graph is retired; runs on the blocking dispatcher
+    private static void scheduleRebuild(ActorContext<Void> ctx, HnswVectorDB hnsw, Config hc) {
+        double ratio = hc.getDouble("rebuild-retired-ratio");
+        if (ratio <= 0) return;
+        var blocking = ctx.getSystem().dispatchers().lookup(akka.actor.typed.DispatcherSelector.blocking());
+        Duration check = hc.getDuration("rebuild-interval");
+        ctx.getSystem().scheduler().scheduleWithFixedDelay(check, check, () -> {
+            try {
+                if (hnsw.rebuildIfNeeded(ratio)) ctx.getSystem().log().info("HNSW graph rebuilt");
+            } catch (Exception e) {
+                ctx.getSystem().log().warn("HNSW rebuild failed: {}", e.toString());
+            }
+        }, blocking);
+    }
+
+    // Periodic snapshots run on the blocking dispatcher; the final one happens in close() on shutdown
+    private static void scheduleMaintenance(ActorContext<Void> ctx, InMemoryVectorDB mem, Config cg) {
+        var blocking = ctx.getSystem().dispatchers().lookup(akka.actor.typed.DispatcherSelector.blocking());
+        double deadRatio = cg.getDouble("cloudguide.rag.memory.compact-dead-ratio");
+        if (deadRatio > 0) {
+            Duration check = cg.getDuration("cloudguide.rag.memory.compact-interval");
+            ctx.getSystem().scheduler().scheduleWithFixedDelay(check, check, () -> {
+                try {
+                    if (mem.compactIfNeeded(deadRatio)) ctx.getSystem().log().info("Vector store compacted");
+                } catch (Exception e) {
+                    ctx.getSystem().log().warn("Vector compaction failed: {}", e.toString());
+                }
+            }, blocking);
+        }
+
+        if (cg.getString("cloudguide.rag.memory.snapshot-dir").isBlank()) return;
+        Duration every = cg.getDuration("cloudguide.rag.memory.snapshot-interval");
+        ctx.getSystem().scheduler().scheduleWithFixedDelay(every, every, () -> {
+            try {
+                if (mem.snapshot()) ctx.getSystem().log().info("Vector snapshot written");
+            } catch (Exception e) {
+                ctx.getSystem().log().warn("Vector snapshot failed: {}", e.toString());
+            }
+        }, blocking);
+        akka.actor.CoordinatedShutdown.get(ctx.getSystem()).addTask(
+                akka.actor.CoordinatedShutdown.PhaseBeforeActorSystemTerminate(), "vector-snapshot", () ->
+                java.util.concurrent.CompletableFuture.supplyAsync(() -> {
+                    try {
+                        mem.close();
+                    } catch (java.io.IOException e) {
+                        ctx.getSystem().log().warn("Vector snapshot on shutdown failed: {}", e.toString());
+                    }
+                    return akka.Done.getInstance();
+                }, blocking));
+    }
 }
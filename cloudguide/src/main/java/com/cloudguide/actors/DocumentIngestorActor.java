@@ -11,6 +11,7 @@ package com.cloudguide.actors;
 import akka.actor.typed.*;
 import akka.actor.typed.javadsl.*;
 import com.cloudguide.CborSerializable;
+import com.cloudguide.rag.Bm25Index;
 import com.cloudguide.rag.EmbeddingsProvider;
 import com.cloudguide.rag.VectorDB;
 import org.apache.pdfbox.pdmodel.PDDocument;
@@ -37,6 +38,16 @@ public class DocumentIngestorActor {
         }
     }
 
+    /** Removes every stored chunk of a document (vector store and lexical index). */
+    public static final class DeleteDocument implements Command {
+
+        public final String docId;
+
+        public DeleteDocument(String docId) {
+            this.docId = docId;
+        }
+    }
+
     private String readText(File file) throws IOException {
         String name = file.getName().toLowerCase();
         if (name.endsWith(".pdf")) {
@@ -50,12 +61,20 @@ public class DocumentIngestorActor {
     }
 
     public static Behavior<Command> create(EmbeddingsProvider embeddings, VectorDB store) {
-        return Behaviors.setup(ctx -> new DocumentIngestorActor(ctx, embeddings, store).behavior());
+        return create(embeddings, store, null);
+    }
+
+    /**
+     * @param lexical BM25 index that stored chunks are also added to; may be {@code null}
+     */
+    public static Behavior<Command> create(EmbeddingsProvider embeddings, VectorDB store, Bm25Index lexical) {
+        return Behaviors.setup(ctx -> new DocumentIngestorActor(ctx, embeddings, store, lexical).behavior());
     }
 
     private final ActorContext<Command> ctx;
     private final EmbeddingsProvider embeddings;
     private final VectorDB store;
+    private final Bm25Index lexical;
 
     private Behavior<Command> onIngest(IngestPdf msg) {
         try {
@@ -77,16 +96,19 @@ public class DocumentIngestorActor {
         return Behaviors.same();
     }
 
-    private DocumentIngestorActor(ActorContext<Command> ctx, EmbeddingsProvider e, VectorDB s) {
+    private DocumentIngestorActor(ActorContext<Command> ctx, EmbeddingsProvider e, VectorDB s, Bm25Index l) {
         this.ctx = ctx;
         this.embeddings = e;
         this.store = s;
+        this.lexical = l;
     }
 
     private Behavior<Command> behavior() {
         return Behaviors.receive(Command.class)
                 .onMessage(IngestPdf.class, this::onIngest)
+                .onMessage(DeleteDocument.class, this::onDelete)
                 .onMessage(Wrapped.class, this::onWrapped)
+                .onMessage(Stored.class, this::onStored)
                 .build();
     }
 
@@ -115,11 +137,49 @@ public class DocumentIngestorActor {
             ctx.getLog().error("Embedding size mismatch for {}", w.orig.docId);
             return Behaviors.same();
         }
+        List<VectorDB.Doc> docs = new ArrayList<>(w.chunks.size());
         for (int i = 0; i < w.chunks.size(); i++) {
             String id = w.orig.docId + "#" + i;
-            store.upsert(new com.cloudguide.rag.VectorDB.Doc(id, w.orig.docId, w.chunks.get(i), w.vecs.get(i)));
+            docs.add(new VectorDB.Doc(id, w.orig.docId, w.chunks.get(i), w.vecs.get(i)));
+        }
+        // re-ingesting may yield fewer chunks than last time, so swap the whole document
+        ctx.pipeToSelf(store.replaceDocumentAsync(w.orig.docId, docs), (ok, err) -> new Stored(w.orig.docId, docs, err));
+        return Behaviors.same();
+    }
+
+    private Behavior<Command> onDelete(DeleteDocument msg) {
+        List<VectorDB.Doc> none = List.of();
+        ctx.pipeToSelf(store.deleteByDocIdAsync(msg.docId), (ok, err) -> new Stored(msg.docId, none, err));
+        return Behaviors.same();
+    }
+
+    private static final class Stored implements Command {
+
+        final String docId;
+        final List<VectorDB.Doc> docs;
+        final Throwable err;
+
+        Stored(String id, List<VectorDB.Doc> d, Throwable e) {
+            docId = id;
+            docs = d;
+            err = e;
+        }
+    }
+
+    private Behavior<Command> onStored(Stored s) {
+        if (s.err != null) {
+            ctx.getLog().error("Storing chunks of {} failed {}", s.docId, s.err.toString());
+        } else {
+            // only once the vectors are stored, so the two indexes agree on what exists
+            if (lexical != null) {
+                lexical.replaceDocument(s.docId, s.docs);
+            }
+            if (s.docs.isEmpty()) {
+                ctx.getLog().info("Deleted document {}", s.docId);
+            } else {
+                ctx.getLog().info("Ingested {} chunks from {}", s.docs.size(), s.docId);
+            }
         }
-        ctx.getLog().info("Ingested {} chunks from {}", w.chunks.size(), w.orig.docId);
         return Behaviors.same();
     }
 
@@ -64,7 +64,8 @@ public class LLMActor {
     // Shared service key
     public static final ServiceKey<Command> SERVICE_KEY = ServiceKey.create(Command.class, "llm-service");
 
-    private static final String SYSTEM_ANSWER_PROMPT
+    // package-private: RetrievalActor counts it against the context window
+    static final String SYSTEM_ANSWER_PROMPT
             = "You are CloudGuide, focused ONLY on cloud topics (AWS, Azure, GCP, cloud pricing, "
   + "architecture, DevOps/SRE, Kubernetes, serverless, storage, networking). "
   + "Be concise and practical. If a user asks a non-cloud question, politely decline and steer them back by saying "
@@ -109,6 +110,9 @@ public class LLMActor {
             final String olModel = System.getenv().getOrDefault("OLLAMA_MODEL",
                     conf.hasPath("cloudguide.ollama.model") ? conf.getString("cloudguide.ollama.model") : "llama3");
             final String olEndpoint = olBase + "/api/chat";
+            // RetrievalActor sizes its prompts from the same two numbers
+            final int numCtx = conf.hasPath("cloudguide.ollama.num-ctx") ? conf.getInt("cloudguide.ollama.num-ctx") : 4096;
+            final int numPredict = conf.hasPath("cloudguide.ollama.num-predict") ? conf.getInt("cloudguide.ollama.num-predict") : 200;
 
             ctx.getLog().info("LLMActor backend={}", backend);
 
@@ -130,9 +134,9 @@ public class LLMActor {
 
                         payload.put("stream", false);
                         var opts = payload.putObject("options");
-                        opts.put("num_predict", 200);
+                        opts.put("num_predict", numPredict);
                         opts.put("temperature", 0.1);
-                        opts.put("num_ctx", 4096);
+                        opts.put("num_ctx", numCtx);
 
                         HttpRequest req = HttpRequest.newBuilder()
                                 .uri(URI.create(olEndpoint)) // Ollama endpoint
@@ -186,9 +190,9 @@ public class LLMActor {
 
                         payload.put("stream", false);
                         var opts = payload.putObject("options");
-                        opts.put("num_predict", 200);
+                        opts.put("num_predict", numPredict);
                         opts.put("temperature", 0.1);
-                        opts.put("num_ctx", 4096);
+                        opts.put("num_ctx", numCtx);
 
                         HttpRequest req = HttpRequest.newBuilder()
                                 .uri(URI.create(olEndpoint)) // Ollama endpoint
@@ -11,11 +11,22 @@ package com.cloudguide.actors;
 import akka.actor.typed.*;
 import akka.actor.typed.javadsl.*;
 import com.cloudguide.CborSerializable;
+import com.cloudguide.metrics.Metrics;
+import com.cloudguide.rag.Bm25Index;
+import com.cloudguide.rag.ContextPacker;
 import com.cloudguide.rag.EmbeddingsProvider;
+import com.cloudguide.rag.Mmr;
+import com.cloudguide.rag.RankFusion;
+import com.cloudguide.rag.SearchFilter;
+import com.cloudguide.rag.TinyLfuCache;
 import com.cloudguide.rag.VectorDB;
 
 import java.time.Duration;
-import java.util.stream.Collectors;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import static akka.actor.typed.javadsl.AskPattern.ask;
 
@@ -29,66 +40,367 @@ public class RetrievalActor {
         public final String userId;
         public final String question;
         public final ActorRef<RoutingActor.FinalAnswer> replyTo;
+        public final SearchFilter filter;   // null = whole corpus
 
         public AskWithContext(String userId, String question, ActorRef<RoutingActor.FinalAnswer> replyTo) {
+            this(userId, question, replyTo, null);
+        }
+
+        public AskWithContext(String userId, String question, ActorRef<RoutingActor.FinalAnswer> replyTo,
+                SearchFilter filter) {
             this.userId = userId;
             this.question = question;
             this.replyTo = replyTo;
+            this.filter = filter;
         }
     }
 
     public static Behavior<Command> create(EmbeddingsProvider emb, VectorDB store, ActorRef<LLMGateway.Command> gateway) {
-        return Behaviors.setup(ctx -> new RetrievalActor(ctx, emb, store, gateway).behavior());
+        return create(emb, store, null, gateway);
+    }
+
+    /**
+     * @param lexical BM25 index fused with the vector hits; {@code null} = vector search only
+     */
+    public static Behavior<Command> create(EmbeddingsProvider emb, VectorDB store, Bm25Index lexical,
+            ActorRef<LLMGateway.Command> gateway) {
+        return Behaviors.setup(ctx -> Behaviors.withTimers(timers
+                -> new RetrievalActor(ctx, timers, emb, store, lexical, gateway).behavior()));
     }
 
     private final ActorContext<Command> ctx;
+    private final TimerScheduler<Command> timers;
     private final EmbeddingsProvider emb;
     private final VectorDB store;
+    private final Bm25Index lexical;
     private final ActorRef<LLMGateway.Command> gateway;
 
-    private RetrievalActor(ActorContext<Command> ctx, EmbeddingsProvider e, VectorDB s, ActorRef<LLMGateway.Command> g) {
+    // Hybrid retrieval: lexicalK BM25 hits are fused with the vector hits by
+    // reciprocal rank; a short query found verbatim skips the embedding call.
+    private final int lexicalK;
+    private final int rrfK;
+    private final int exactMaxTerms;
+
+    // Diversification: the best `candidates` hits are reduced to topK by maximal
+    // marginal relevance, so overlapping neighbour chunks do not fill the prompt.
+    private final boolean diversify;
+    private final int diversityCandidates;
+    private final double mmrLambda;
+    private final double duplicateThreshold;
+
+    // Prompt budget: the chunks get whatever the model's context window (num-ctx)
+    // leaves after the system prompt, instructions, question and the reply
+    // (num-predict), optionally capped lower by max-context-tokens.
+    private final int numCtx;
+    private final int numPredict;
+    private final int maxContextTokens;
+    private static final int CHAT_TEMPLATE_TOKENS = 32;   // role markers etc. added by the chat template
+    private static final String CONTEXT_SEPARATOR = "\n---\n";
+    private static final String CONTEXT_HEADER = "You are CloudGuide answering ONLY from the provided context.\n"
+            + "Rules:\n"
+            + "1) Use ONLY the context below. Do NOT add outside knowledge.\n"
+            + "2) If the answer is not in the context, say: \"Sorry, that information is not available in our data store. I can help with other cloud related questions\" and stop.\n"
+            + "3) Stay concise. No vendor detours unless the context mentions it.\n\n";
+
+    // Embedded questions waiting to be searched together; flushed when the window
+    // opened by the first one closes or when maxBatch are waiting, whichever is first.
+    private final Duration batchWindow;
+    private final int maxBatch;
+    private final List<Wrapped> pending = new ArrayList<>();
+
+    // Recent questions (normalized text + filter) -> embedding and final hits. The
+    // embedding is reused for as long as the entry stays cached; the hits only while
+    // the store and lexical index are at the version they were searched at, and at
+    // most cacheTtl (writes by other processes do not bump our versions).
+    private final TinyLfuCache<CacheKey, CachedQuery> cache;   // null = off
+    private final long cacheTtlNanos;
+    // cache totals already added to the process-wide counters (the cache lives as long as this actor)
+    private long evictionsCounted;
+    private long rejectionsCounted;
+
+    private static final Metrics.Counter CACHE_HITS = Metrics.counter(
+            "cloudguide_query_cache_hits_total", "Questions answered from cached hits (no embedding, no search)");
+    private static final Metrics.Counter CACHE_EMBEDDING_HITS = Metrics.counter(
+            "cloudguide_query_cache_embedding_hits_total", "Questions that reused a cached embedding but searched again");
+    private static final Metrics.Counter CACHE_MISSES = Metrics.counter(
+            "cloudguide_query_cache_misses_total", "Questions embedded and searched from scratch");
+    private static final Metrics.Counter CACHE_SAVED_MS = Metrics.counter(
+            "cloudguide_query_cache_saved_milliseconds_total", "Embedding and search time the cache avoided");
+
+    private static final Metrics.Counter CACHE_EVICTIONS = Metrics.counter(
+            "cloudguide_query_cache_evictions_total", "Cached questions removed to make room for new ones");
+    private static final Metrics.Counter CACHE_REJECTIONS = Metrics.counter(
+            "cloudguide_query_cache_admission_rejections_total",
+            "New questions not kept because the cached ones were asked more often");
+
+    private record CacheKey(String question, SearchFilter filter) {
+    }
+
+    // Queries share a store call only if they share the filter and the embedding length
+    private record BatchKey(SearchFilter filter, int dim) {
+    }
+
+    private record CachedQuery(float[] embedding, long embedNanos, List<VectorDB.SearchHit> hits,
+            long storeVersion, long lexicalVersion, long searchNanos, long cachedAt) {
+    }
+
+    private RetrievalActor(ActorContext<Command> ctx, TimerScheduler<Command> timers,
+            EmbeddingsProvider e, VectorDB s, Bm25Index l, ActorRef<LLMGateway.Command> g) {
         this.ctx = ctx;
+        this.timers = timers;
         this.emb = e;
         this.store = s;
+        this.lexical = l;
         this.gateway = g;
+        var bc = ctx.getSystem().settings().config().getConfig("cloudguide.rag.batch");
+        this.batchWindow = bc.getDuration("window");
+        this.maxBatch = Math.max(1, bc.getInt("max-size"));
+        var hc = ctx.getSystem().settings().config().getConfig("cloudguide.rag.hybrid");
+        this.lexicalK = hc.getInt("lexical-k");
+        this.rrfK = hc.getInt("rrf-k");
+        this.exactMaxTerms = hc.getInt("exact-match-max-terms");
+        var dc = ctx.getSystem().settings().config().getConfig("cloudguide.rag.diversity");
+        this.diversify = dc.getBoolean("enabled");
+        this.diversityCandidates = dc.getInt("candidates");
+        this.mmrLambda = dc.getDouble("lambda");
+        this.duplicateThreshold = dc.getDouble("duplicate-threshold");
+        var oc = ctx.getSystem().settings().config().getConfig("cloudguide.ollama");
+        this.numCtx = oc.getInt("num-ctx");
+        this.numPredict = oc.getInt("num-predict");
+        this.maxContextTokens = ctx.getSystem().settings().config().getInt("cloudguide.rag.max-context-tokens");
+        var qc = ctx.getSystem().settings().config().getConfig("cloudguide.rag.query-cache");
+        int maxEntries = qc.getInt("max-entries");
+        this.cache = maxEntries > 0 ? new TinyLfuCache<>(maxEntries) : null;
+        this.cacheTtlNanos = qc.getDuration("ttl").toNanos();
+        if (cache != null) {
+            Metrics.gauge("cloudguide_query_cache_entries", "Questions currently cached", cache::size);
+            Metrics.gauge("cloudguide_query_cache_hit_ratio", "Share of questions answered from cached hits", () -> {
+                double total = CACHE_HITS.get() + CACHE_EMBEDDING_HITS.get() + CACHE_MISSES.get();
+                return total == 0 ? 0 : CACHE_HITS.get() / total;
+            });
+        }
     }
 
     private Behavior<Command> behavior() {
         return Behaviors.receive(Command.class)
                 .onMessage(AskWithContext.class, this::onAsk)
                 .onMessage(Wrapped.class, this::onWrapped)
+                .onMessage(FlushBatch.class, f -> onFlush())
+                .onMessage(Searched.class, this::onSearched)
                 .build();
     }
 
     private Behavior<Command> onAsk(AskWithContext msg) {
-        ctx.pipeToSelf(emb.embed(msg.question), (vec, err) -> new Wrapped(msg, vec, err));
+        CachedQuery cached = cache == null ? null : cache.get(cacheKey(msg));
+        if (cached != null && isCurrent(cached)) {
+            CACHE_HITS.inc();
+            CACHE_SAVED_MS.add((cached.embedNanos() + cached.searchNanos()) / 1_000_000);
+            answer(msg, cached.hits());
+            return Behaviors.same();
+        }
+        // the lexical index has no metadata, so scoped questions use the (filtered) vector store only
+        List<VectorDB.SearchHit> lex = lexical == null || (msg.filter != null && !msg.filter.isEmpty())
+                ? List.of() : lexical.search(msg.question, lexicalK);
+        if (!lex.isEmpty() && Bm25Index.isExactMatch(msg.question, lex.get(0), exactMaxTerms)) {
+            int topK = ctx.getSystem().settings().config().getInt("cloudguide.rag.topK");
+            ctx.getLog().debug("Exact lexical match for '{}', skipping embedding", msg.question);
+            answer(msg, select(lex, topK));
+            return Behaviors.same();
+        }
+        if (cached != null) {
+            CACHE_EMBEDDING_HITS.inc();
+            CACHE_SAVED_MS.add(cached.embedNanos() / 1_000_000);
+            return onWrapped(new Wrapped(msg, lex, cached.embedding(), null, cached.embedNanos()));
+        }
+        if (cache != null) {
+            CACHE_MISSES.inc();
+        }
+        long started = System.nanoTime();
+        ctx.pipeToSelf(emb.embed(msg.question), (vec, err) -> new Wrapped(msg, lex, vec, err, System.nanoTime() - started));
         return Behaviors.same();
     }
 
+    private static CacheKey cacheKey(AskWithContext msg) {
+        // "How much is Archive GRS?" and "how much is archive grs" share an entry
+        String q = msg.question == null ? "" : msg.question.toLowerCase(Locale.ROOT).replaceAll("\\s+", " ").trim();
+        int end = q.length();
+        while (end > 0 && "?!.".indexOf(q.charAt(end - 1)) >= 0) {
+            end--;
+        }
+        return new CacheKey(q.substring(0, end).trim(), msg.filter);
+    }
+
+    private boolean isCurrent(CachedQuery c) {
+        return c.hits() != null
+                && c.storeVersion() == store.version()
+                && c.lexicalVersion() == lexicalVersion()
+                && System.nanoTime() - c.cachedAt() < cacheTtlNanos;
+    }
+
+    private long lexicalVersion() {
+        return lexical == null ? 0 : lexical.version();
+    }
+
     private static final class Wrapped implements Command {
 
         final AskWithContext orig;
+        final List<VectorDB.SearchHit> lexical;
         final float[] vec;
         final Throwable err;
+        final long embedNanos;
 
-        Wrapped(AskWithContext o, float[] v, Throwable e) {
+        Wrapped(AskWithContext o, List<VectorDB.SearchHit> l, float[] v, Throwable e, long n) {
             orig = o;
+            lexical = l;
             vec = v;
             err = e;
+            embedNanos = n;
         }
     }
 
+    private enum FlushBatch implements Command {
+        INSTANCE
+    }
+
     private Behavior<Command> onWrapped(Wrapped w) {
         if (w.err != null) {
             w.orig.replyTo.tell(new RoutingActor.FinalAnswer(
                     w.orig.userId, "Embedding error", RoutingActor.Source.LLM));
             return Behaviors.same();
         }
+        // a wrong-length embedding would fail the whole batch it joined, so it is turned away alone
+        int dim = store.dimension();
+        if (w.vec == null || w.vec.length == 0 || (dim >= 0 && w.vec.length != dim)) {
+            ctx.getLog().warn("Query embedding has {} dimensions, the store expects {}; not searched",
+                    w.vec == null ? 0 : w.vec.length, dim);
+            w.orig.replyTo.tell(new RoutingActor.FinalAnswer(
+                    w.orig.userId, "Retrieval error", RoutingActor.Source.LLM));
+            return Behaviors.same();
+        }
+
+        pending.add(w);
+        if (pending.size() >= maxBatch || batchWindow.isZero()) {
+            return onFlush();
+        }
+        if (pending.size() == 1) {
+            timers.startSingleTimer(FlushBatch.INSTANCE, FlushBatch.INSTANCE, batchWindow);
+        }
+        return Behaviors.same();
+    }
+
+    private Behavior<Command> onFlush() {
+        timers.cancel(FlushBatch.INSTANCE);
+        if (pending.isEmpty()) {
+            return Behaviors.same();
+        }
+        // one store call per distinct filter (usually just the unfiltered one); split by length too,
+        // for stores that cannot tell their dimension up front
+        Map<BatchKey, List<Wrapped>> byFilter = new LinkedHashMap<>();
+        for (Wrapped w : pending) {
+            byFilter.computeIfAbsent(new BatchKey(w.orig.filter, w.vec.length), b -> new ArrayList<>()).add(w);
+        }
+        pending.clear();
+
+        int topK = ctx.getSystem().settings().config().getInt("cloudguide.rag.topK");
+        // a deeper vector list gives the fusion something to re-rank
+        int k = lexical == null ? topK : Math.max(topK, lexicalK);
+        if (diversify) {
+            k = Math.max(k, diversityCandidates);
+        }
+        for (var e : byFilter.entrySet()) {
+            List<Wrapped> batch = e.getValue();
+            List<float[]> queries = new ArrayList<>(batch.size());
+            for (Wrapped w : batch) {
+                queries.add(w.vec);
+            }
+            // versions read before the search, so a write racing it leaves the cached hits stale, not wrongly current
+            long storeVersion = store.version();
+            long lexVersion = lexicalVersion();
+            long started = System.nanoTime();
+            ctx.pipeToSelf(store.topKBatchAsync(queries, k, e.getKey().filter()), (results, err) -> new Searched(
+                    batch, results, err, storeVersion, lexVersion, System.nanoTime() - started));
+        }
+        return Behaviors.same();
+    }
+
+    private static final class Searched implements Command {
+
+        final List<Wrapped> batch;
+        final List<List<VectorDB.SearchHit>> results;
+        final Throwable err;
+        final long storeVersion;
+        final long lexicalVersion;
+        final long searchNanos;
+
+        Searched(List<Wrapped> b, List<List<VectorDB.SearchHit>> r, Throwable e, long sv, long lv, long n) {
+            batch = b;
+            results = r;
+            err = e;
+            storeVersion = sv;
+            lexicalVersion = lv;
+            searchNanos = n;
+        }
+    }
+
+    private Behavior<Command> onSearched(Searched s) {
+        if (s.err != null) {
+            ctx.getLog().warn("Batch search of {} queries failed: {}", s.batch.size(), s.err.toString());
+            for (Wrapped w : s.batch) {
+                w.orig.replyTo.tell(new RoutingActor.FinalAnswer(
+                        w.orig.userId, "Retrieval error", RoutingActor.Source.LLM));
+            }
+            return Behaviors.same();
+        }
+        int topK = ctx.getSystem().settings().config().getInt("cloudguide.rag.topK");
+        // hits from an untracked store version (< 0) or a partial scatter-gather are not reused
+        boolean reusable = s.storeVersion >= 0 && !VectorDB.isPartial(s.results);
+        for (int i = 0; i < s.batch.size(); i++) {
+            Wrapped w = s.batch.get(i);
+            List<VectorDB.SearchHit> hits = w.lexical.isEmpty()
+                    ? s.results.get(i)
+                    : RankFusion.reciprocalRank(List.of(s.results.get(i), w.lexical), rrfK,
+                            diversify ? diversityCandidates : topK);
+            List<VectorDB.SearchHit> top = List.copyOf(select(hits, topK));
+            if (cache != null) {
+                cache.put(cacheKey(w.orig), new CachedQuery(w.vec, w.embedNanos, reusable ? top : null,
+                        s.storeVersion, s.lexicalVersion, s.searchNanos, System.nanoTime()));
+            }
+            answer(w.orig, top);
+        }
+        if (cache != null) {
+            long evicted = cache.evictions();
+            long rejected = cache.rejections();
+            CACHE_EVICTIONS.add(evicted - evictionsCounted);
+            CACHE_REJECTIONS.add(rejected - rejectionsCounted);
+            evictionsCounted = evicted;
+            rejectionsCounted = rejected;
+        }
+        return Behaviors.same();
+    }
+
+    // Tokens left for retrieved chunks once everything else in the request is counted
+    private int contextBudget(String question) {
+        int fixed = ContextPacker.estimateTokens(LLMActor.SYSTEM_ANSWER_PROMPT)
+                + ContextPacker.estimateTokens(CONTEXT_HEADER + "Context:\n")
+                + ContextPacker.estimateTokens(question)
+                + CHAT_TEMPLATE_TOKENS;
+        int fits = Math.max(0, numCtx - numPredict - fixed);
+        return maxContextTokens > 0 ? Math.min(maxContextTokens, fits) : fits;
+    }
+
+    // Best topK of a ranked list, diversified when configured
+    private List<VectorDB.SearchHit> select(List<VectorDB.SearchHit> ranked, int topK) {
+        if (diversify) {
+            return Mmr.select(ranked.subList(0, Math.min(diversityCandidates, ranked.size())),
+                    topK, mmrLambda, duplicateThreshold);
+        }
+        return ranked.subList(0, Math.min(topK, ranked.size()));
+    }
+
+    private void answer(AskWithContext ask, List<VectorDB.SearchHit> hits) {
 
         // knobs from config
         var conf = ctx.getSystem().settings().config().getConfig("cloudguide");
-        int topK = conf.getConfig("rag").getInt("topK");
-        int maxChars = conf.getConfig("rag").getInt("max-context-chars");
         java.time.Duration llmTimeout;
         try {
             var d = conf.getConfig("timeouts").getDuration("router-to-llm");
@@ -97,29 +409,17 @@ public class RetrievalActor {
             llmTimeout = java.time.Duration.ofSeconds(25);
         }
 
-        java.util.List<VectorDB.SearchHit> hits = store.topK(w.vec, topK);
-        String context = hits.stream()
-                .map(h -> "- " + h.text())
-                .collect(java.util.stream.Collectors.joining("\n"));
-        if (context.length() > maxChars) {
-            int cut = context.lastIndexOf("\n---\n", maxChars);
-            context = context.substring(0, cut > 0 ? cut : maxChars);
+        String question = "\n\nQuestion: " + ask.question + "\nAnswer:";
+        List<String> packed = ContextPacker.pack(hits, contextBudget(question), CONTEXT_SEPARATOR,
+                h -> "DOC=" + h.docId() + " :: " + h.text());
+        if (packed.size() < hits.size()) {
+            ctx.getLog().debug("Context packer kept {} of {} hits", packed.size(), hits.size());
         }
+        String labeled = String.join(CONTEXT_SEPARATOR, packed);
 
-        String contextHeader = "You are CloudGuide answering ONLY from the provided context.\n"
-                + "Rules:\n"
-                + "1) Use ONLY the context below. Do NOT add outside knowledge.\n"
-                + "2) If the answer is not in the context, say: \"Sorry, that information is not available in our data store. I can help with other cloud related questions\" and stop.\n"
-                + "3) Stay concise. No vendor detours unless the context mentions it.\n\n";
-
-        String labeled = hits.stream()
-                .map(h -> "DOC=" + h.docId() + " :: " + h.text())
-                .collect(Collectors.joining("\n---\n"));
-
-        String prompt = contextHeader
-                + "Context:\n" + labeled + "\n\n"
-                + "Question: " + w.orig.question + "\n"
-                + "Answer:";
+        String prompt = CONTEXT_HEADER
+                + "Context:\n" + labeled
+                + question;
 
         var fut = akka.actor.typed.javadsl.AskPattern.ask(
                 gateway,
@@ -130,10 +430,8 @@ public class RetrievalActor {
 
         fut.whenComplete((res, err) -> {
             String out = (err != null || res == null) ? "LLM error" : res.text();
-            w.orig.replyTo.tell(new RoutingActor.FinalAnswer(
-                    w.orig.userId, out, RoutingActor.Source.LLM));
+            ask.replyTo.tell(new RoutingActor.FinalAnswer(
+                    ask.userId, out, RoutingActor.Source.LLM));
         });
-
-        return Behaviors.same();
     }
 }
@@ -0,0 +1,302 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.actors;
+
+/**
+ * One shard of the corpus, served from a node with role "retrieval". The shard
+ * registers under its own service keys (one pair per shard number, the way
+ * LLMActor.SERVICE_KEY is used), so several nodes registering the same shard
+ * are replicas of each other. Searches and writes go through the store's async
+ * API and are answered from its completion.
+ *
+ * A replica joining a shard that already has searchable replicas starts out
+ * behind them, so it only registers under {@link #writerKey} at first: it
+ * receives every new write while it copies the existing chunks from a peer,
+ * page by page in id order ({@link Export}), and registers under
+ * {@link #serviceKey} for searches once the copy is complete. Chunks written or
+ * replaced while the copy runs are taken from the live writes, never from the
+ * (older) pages. Stores that cannot list their chunks (ivfpq) cannot be copied:
+ * their replicas must be loaded from the same snapshot, and are served as they
+ * are with a warning.
+ *
+ * @author rachanakeshav
+ */
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.receptionist.Receptionist;
+import akka.actor.typed.receptionist.ServiceKey;
+import com.cloudguide.CborSerializable;
+import com.cloudguide.rag.SearchFilter;
+import com.cloudguide.rag.VectorDB;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class RetrievalShardActor {
+
+    public interface Command extends CborSerializable {
+    }
+
+    /** Top-k per query within this shard. */
+    public record Search(List<float[]> queries, int k, SearchFilter filter, ActorRef<SearchResult> replyTo)
+            implements Command {
+    }
+
+    /** {@code error} is null on success. */
+    public record SearchResult(int shard, List<List<VectorDB.SearchHit>> hits, String error)
+            implements CborSerializable {
+    }
+
+    /** Upserts {@code chunks}; with a docId, first drops every chunk stored under it. */
+    public record Write(String replaceDocId, List<VectorDB.Doc> chunks, ActorRef<WriteAck> replyTo)
+            implements Command {
+    }
+
+    public record WriteAck(int shard, String error) implements CborSerializable {
+    }
+
+    /** Up to {@code limit} stored chunks with ids after {@code after} (null = from the first), for a catching-up replica. */
+    public record Export(String after, int limit, ActorRef<ExportPage> replyTo) implements Command {
+    }
+
+    /** {@code last} is the id to continue after; null once the export is complete. {@code error} is null on success. */
+    public record ExportPage(int shard, List<VectorDB.Doc> chunks, String last, String error)
+            implements CborSerializable {
+    }
+
+    // error of an ExportPage from a store that cannot list its chunks: retrying will not help
+    private static final String NOT_COPYABLE = "store cannot be copied: ";
+    private static final Duration PAGE_TIMEOUT = Duration.ofSeconds(30);
+
+    // ---- catch-up, internal ----
+
+    private record FindPeers() implements Command {
+    }
+
+    private record Peers(Set<ActorRef<Command>> refs) implements Command {
+    }
+
+    private record PageArrived(ExportPage page, Throwable failure) implements Command {
+    }
+
+    private record PageApplied(String last, Throwable failure) implements Command {
+    }
+
+    /** Searchable replicas of the shard. */
+    public static ServiceKey<Command> serviceKey(int shard) {
+        return ServiceKey.create(Command.class, "retrieval-shard-" + shard);
+    }
+
+    /** Every replica of the shard, including ones still catching up: writes go to all of them. */
+    public static ServiceKey<Command> writerKey(int shard) {
+        return ServiceKey.create(Command.class, "retrieval-shard-writer-" + shard);
+    }
+
+    /**
+     * @param catchUpPage chunks per copied page; a page is one remote message, so it has to stay
+     *                    under the transport's frame size (about 4 KB per 768-dim chunk)
+     * @param catchUpDelay wait after registering as a writer before looking for peers, so the
+     *                     registration has reached the API nodes and no write misses this replica
+     */
+    public static Behavior<Command> create(int shard, VectorDB store, int catchUpPage, Duration catchUpDelay) {
+        return Behaviors.setup(ctx -> {
+            ctx.getSystem().receptionist().tell(Receptionist.register(writerKey(shard), ctx.getSelf()));
+            ctx.scheduleOnce(catchUpDelay, ctx.getSelf(), new FindPeers());
+            ctx.getLog().info("Retrieval shard {} registered for writes, looking for peers in {}", shard, catchUpDelay);
+            return new RetrievalShardActor(ctx, shard, store, Math.max(1, catchUpPage), catchUpDelay).behavior();
+        });
+    }
+
+    private final ActorContext<Command> ctx;
+    private final int shard;
+    private final VectorDB store;
+    private final int catchUpPage;
+    private final Duration catchUpDelay;
+
+    private boolean searchable;
+    private ActorRef<Command> peer;                        // replica being copied from
+    private String after;                                  // last chunk id copied so far
+    private final Set<String> writtenIds = new HashSet<>();   // written live during the copy
+    private final Set<String> replacedDocs = new HashSet<>(); // replaced or deleted live during the copy
+    private String[] exportIds;                            // sorted snapshot of this store's ids, while serving a copy
+
+    private RetrievalShardActor(ActorContext<Command> ctx, int shard, VectorDB store, int catchUpPage, Duration catchUpDelay) {
+        this.ctx = ctx;
+        this.shard = shard;
+        this.store = store;
+        this.catchUpPage = catchUpPage;
+        this.catchUpDelay = catchUpDelay;
+    }
+
+    private Behavior<Command> behavior() {
+        return Behaviors.receive(Command.class)
+                .onMessage(Search.class, this::onSearch)
+                .onMessage(Write.class, this::onWrite)
+                .onMessage(Export.class, this::onExport)
+                .onMessage(FindPeers.class, this::onFindPeers)
+                .onMessage(Peers.class, this::onPeers)
+                .onMessage(PageArrived.class, this::onPageArrived)
+                .onMessage(PageApplied.class, this::onPageApplied)
+                .build();
+    }
+
+    private Behavior<Command> onSearch(Search s) {
+        if (!searchable) {
+            s.replyTo().tell(new SearchResult(shard, null, "replica still catching up"));
+            return Behaviors.same();
+        }
+        store.topKBatchAsync(s.queries(), s.k(), s.filter()).whenComplete((hits, err) ->
+                s.replyTo().tell(new SearchResult(shard, hits, err == null ? null : err.toString())));
+        return Behaviors.same();
+    }
+
+    private Behavior<Command> onWrite(Write w) {
+        if (!searchable) {
+            if (w.replaceDocId() != null) {
+                replacedDocs.add(w.replaceDocId());
+            }
+            for (VectorDB.Doc d : w.chunks()) {
+                writtenIds.add(d.id());
+            }
+        }
+        CompletionStage<Void> done = w.replaceDocId() == null
+                ? store.upsertBatchAsync(w.chunks())
+                : store.replaceDocumentAsync(w.replaceDocId(), w.chunks());
+        done.whenComplete((ok, err) ->
+                w.replyTo().tell(new WriteAck(shard, err == null ? null : err.toString())));
+        return Behaviors.same();
+    }
+
+    // ---- serving a copy ----
+
+    // The id list is taken when a copy starts (or a replica switches to this peer
+    // mid-copy); chunks written after that reach the new replica as live writes.
+    private Behavior<Command> onExport(Export e) {
+        List<String> page;
+        try {
+            if (e.after() == null || exportIds == null) {
+                exportIds = store.chunkIds().toArray(new String[0]);
+                Arrays.sort(exportIds);
+            }
+            int from = 0;
+            if (e.after() != null) {
+                int i = Arrays.binarySearch(exportIds, e.after());
+                from = i >= 0 ? i + 1 : -i - 1;
+            }
+            int to = Math.min(exportIds.length, from + Math.max(1, e.limit()));
+            page = List.of(Arrays.copyOfRange(exportIds, from, to));
+            if (to == exportIds.length) {
+                exportIds = null;
+            }
+        } catch (UnsupportedOperationException err) {
+            e.replyTo().tell(new ExportPage(shard, List.of(), null, NOT_COPYABLE + err.getMessage()));
+            return Behaviors.same();
+        } catch (RuntimeException err) {
+            e.replyTo().tell(new ExportPage(shard, List.of(), null, err.toString()));
+            return Behaviors.same();
+        }
+        String last = page.isEmpty() ? null : page.get(page.size() - 1);
+        boolean more = exportIds != null;
+        store.fetchAsync(page).whenComplete((docs, err) -> e.replyTo().tell(err != null
+                ? new ExportPage(shard, List.of(), null, err.toString())
+                : new ExportPage(shard, docs, more ? last : null, null)));
+        return Behaviors.same();
+    }
+
+    // ---- catching up ----
+
+    private Behavior<Command> onFindPeers(FindPeers f) {
+        ActorRef<Receptionist.Listing> adapter = ctx.messageAdapter(Receptionist.Listing.class,
+                l -> new Peers(l.getServiceInstances(serviceKey(shard))));
+        ctx.getSystem().receptionist().tell(Receptionist.find(serviceKey(shard), adapter));
+        return Behaviors.same();
+    }
+
+    private Behavior<Command> onPeers(Peers p) {
+        List<ActorRef<Command>> peers = new ArrayList<>(p.refs());
+        peers.remove(ctx.getSelf());
+        if (peers.isEmpty()) {
+            if (after == null) {
+                becomeSearchable("no other replica to copy from");
+            } else {
+                ctx.scheduleOnce(catchUpDelay, ctx.getSelf(), new FindPeers());
+            }
+            return Behaviors.same();
+        }
+        ActorRef<Command> peer = peers.get(ThreadLocalRandom.current().nextInt(peers.size()));
+        requestPage(peer);
+        return Behaviors.same();
+    }
+
+    private void requestPage(ActorRef<Command> peer) {
+        String from = after;
+        this.peer = peer;
+        ctx.ask(ExportPage.class, peer, PAGE_TIMEOUT,
+                (ActorRef<ExportPage> r) -> new Export(from, catchUpPage, r),
+                PageArrived::new);
+    }
+
+    private Behavior<Command> onPageArrived(PageArrived a) {
+        String error = a.failure() != null ? a.failure().toString() : a.page().error();
+        if (error != null && error.startsWith(NOT_COPYABLE)) {
+            ctx.getLog().warn("Retrieval shard {}: {}; its replicas must be loaded from the same snapshot", shard, error);
+            becomeSearchable("serving the local store as is");
+            return Behaviors.same();
+        }
+        if (error != null) {
+            ctx.getLog().warn("Retrieval shard {}: copy from {} failed ({}); retrying", shard, peer, error);
+            ctx.scheduleOnce(catchUpDelay, ctx.getSelf(), new FindPeers());
+            return Behaviors.same();
+        }
+        ExportPage page = a.page();
+        // a live write already holds the current version of these chunks
+        List<VectorDB.Doc> fresh = new ArrayList<>(page.chunks().size());
+        for (VectorDB.Doc d : page.chunks()) {
+            if (!writtenIds.contains(d.id()) && !replacedDocs.contains(d.docId())) {
+                fresh.add(d);
+            }
+        }
+        CompletionStage<Void> applied = fresh.isEmpty() ? null : store.upsertBatchAsync(fresh);
+        if (applied == null) {
+            ctx.getSelf().tell(new PageApplied(page.last(), null));
+        } else {
+            ctx.pipeToSelf(applied, (ok, err) -> new PageApplied(page.last(), err));
+        }
+        return Behaviors.same();
+    }
+
+    private Behavior<Command> onPageApplied(PageApplied p) {
+        if (p.failure() != null) {
+            ctx.getLog().warn("Retrieval shard {}: storing a copied page failed ({}); retrying", shard, p.failure().toString());
+            ctx.scheduleOnce(catchUpDelay, ctx.getSelf(), new FindPeers());
+            return Behaviors.same();
+        }
+        if (p.last() == null) {
+            becomeSearchable("copied from " + peer);
+            return Behaviors.same();
+        }
+        after = p.last();
+        requestPage(peer);
+        return Behaviors.same();
+    }
+
+    private void becomeSearchable(String why) {
+        searchable = true;
+        after = null;
+        peer = null;
+        writtenIds.clear();
+        replacedDocs.clear();
+        ctx.getSystem().receptionist().tell(Receptionist.register(serviceKey(shard), ctx.getSelf()));
+        ctx.getLog().info("Retrieval shard {} registered for searches: {}", shard, why);
+    }
+}
@@ -17,6 +17,7 @@ import com.cloudguide.CborSerializable;
 import com.cloudguide.actors.LoggingActor.LogEnvelope;
 import com.cloudguide.pricing.PricingModels.PricingQuery;
 import com.cloudguide.pricing.PricingModels.PricingResult;
+import com.cloudguide.rag.SearchFilter;
 
 import java.time.Duration;
 import java.util.concurrent.CompletionStage;
@@ -80,11 +81,17 @@ public class RoutingActor {
         public final String userId;
         public final String text;
         public final ActorRef<FinalAnswer> replyTo;
+        public final SearchFilter filter;   // null = whole corpus; set = answer from the matching chunks
 
         public UserQuery(String userId, String text, ActorRef<FinalAnswer> replyTo) {
+            this(userId, text, replyTo, null);
+        }
+
+        public UserQuery(String userId, String text, ActorRef<FinalAnswer> replyTo, SearchFilter filter) {
             this.userId = userId;
             this.text = text;
             this.replyTo = replyTo;
+            this.filter = filter;
         }
     }
 
@@ -243,10 +250,11 @@ public class RoutingActor {
     private Behavior<Command> onUserQuery(UserQuery msg) {
         final String t = msg.text.trim().toLowerCase(Locale.ROOT);
 
-        // Plan selection
+        // Plan selection; a document scope (filter) only makes sense for a retrieval question
         final boolean isAsk = t.startsWith("ask:");
-        final boolean looksPricing = t.contains("price") || t.contains("cost");
-        final Plan plan = looksPricing ? Plan.PRICING : (isAsk ? Plan.RETRIEVAL_THEN_LLM : Plan.LLM_ONLY);
+        final boolean scoped = msg.filter != null && !msg.filter.isEmpty();
+        final boolean looksPricing = !scoped && (t.contains("price") || t.contains("cost"));
+        final Plan plan = looksPricing ? Plan.PRICING : (isAsk || scoped ? Plan.RETRIEVAL_THEN_LLM : Plan.LLM_ONLY);
 
         Scratchpad sp = new Scratchpad(msg.userId, msg.text, plan);
         logger.tell(new LoggingActor.LogEnvelope("plan", plan.name() + " ms=" + sp.ms()));
@@ -329,9 +337,10 @@ public class RoutingActor {
 
             case RETRIEVAL_THEN_LLM: {
                 int idx = t.indexOf("ask:");
-                String question = msg.text.substring(idx + 4).trim();
-                logger.tell(new LoggingActor.LogEnvelope("retrieval.start", ""));
-                retriever.tell(new RetrievalActor.AskWithContext(msg.userId, question, msg.replyTo));
+                String question = isAsk ? msg.text.substring(idx + 4).trim() : msg.text.trim();
+                logger.tell(new LoggingActor.LogEnvelope("retrieval.start", scoped ? msg.filter.toString() : ""));
+                retriever.tell(new RetrievalActor.AskWithContext(msg.userId, question, msg.replyTo,
+                        scoped ? msg.filter : null));
                 logger.tell(new LoggingActor.LogEnvelope("retrieval.enqueued", ""));
                 break;
             }
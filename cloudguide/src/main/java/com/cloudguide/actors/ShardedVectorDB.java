@@ -0,0 +1,283 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.actors;
+
+/**
+ * VectorDB facade over the retrieval shards of the cluster (store = "sharded").
+ * Chunks are placed by docId hash, so a document and its replacement always
+ * land on the same shard. A search is scattered to one replica of every shard
+ * and the partial top-k lists are merged by score; a shard that fails or misses
+ * its deadline is left out of the merge (the answer is partial, not an error)
+ * unless no shard answered at all. Such a merge comes back as
+ * {@link VectorDB.PartialResults}, so callers do not cache it. Writes go to
+ * every replica of the owning shard, including replicas still copying the
+ * shard from a peer (which take no searches yet), and fail if any of them does.
+ *
+ * @author rachanakeshav
+ */
+import akka.actor.typed.ActorRef;
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Behavior;
+import akka.actor.typed.Props;
+import akka.actor.typed.javadsl.AskPattern;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.receptionist.Receptionist;
+import akka.actor.typed.receptionist.ServiceKey;
+import com.cloudguide.metrics.Metrics;
+import com.cloudguide.rag.SearchFilter;
+import com.cloudguide.rag.VectorDB;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class ShardedVectorDB implements VectorDB {
+
+    private static final Metrics.Counter SEARCHES = Metrics.counter(
+            "cloudguide_shard_searches_total", "Scatter-gather searches sent to the retrieval shards");
+    private static final Metrics.Counter PARTIAL = Metrics.counter(
+            "cloudguide_shard_searches_partial_total", "Searches merged without every shard (failed, late or unregistered)");
+    private static final Metrics.Counter SHARD_MISSES = Metrics.counter(
+            "cloudguide_shard_search_misses_total", "Individual shard answers missing from a merge");
+
+    private final ActorSystem<?> system;
+    private final int shardCount;
+    private final Duration timeout;
+    private final Duration writeTimeout;
+
+    // shard -> replicas currently registered with the receptionist, swapped wholesale on each listing;
+    // writers also holds the replicas that are still catching up
+    private final AtomicReferenceArray<List<ActorRef<RetrievalShardActor.Command>>> replicas;
+    private final AtomicReferenceArray<List<ActorRef<RetrievalShardActor.Command>>> writers;
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * @param timeout per-shard search deadline; late shards are dropped from the merge
+     * @param writeTimeout per-replica deadline for upserts and replaces
+     */
+    public ShardedVectorDB(ActorSystem<?> system, int shardCount, Duration timeout, Duration writeTimeout) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shard count must be positive: " + shardCount);
+        }
+        this.system = system;
+        this.shardCount = shardCount;
+        this.timeout = timeout;
+        this.writeTimeout = writeTimeout;
+        this.replicas = new AtomicReferenceArray<>(shardCount);
+        this.writers = new AtomicReferenceArray<>(shardCount);
+        for (int s = 0; s < shardCount; s++) {
+            replicas.set(s, List.of());
+            writers.set(s, List.of());
+        }
+        system.systemActorOf(directory(), "retrieval-shard-directory", Props.empty());
+    }
+
+    // Follows every shard's service keys and keeps the replica lists current
+    private Behavior<Receptionist.Listing> directory() {
+        return Behaviors.setup(ctx -> {
+            Map<ServiceKey<RetrievalShardActor.Command>, Integer> searchKeys = new HashMap<>();
+            Map<ServiceKey<RetrievalShardActor.Command>, Integer> writerKeys = new HashMap<>();
+            for (int s = 0; s < shardCount; s++) {
+                searchKeys.put(RetrievalShardActor.serviceKey(s), s);
+                writerKeys.put(RetrievalShardActor.writerKey(s), s);
+            }
+            for (var key : searchKeys.keySet()) {
+                ctx.getSystem().receptionist().tell(Receptionist.subscribe(key, ctx.getSelf()));
+            }
+            for (var key : writerKeys.keySet()) {
+                ctx.getSystem().receptionist().tell(Receptionist.subscribe(key, ctx.getSelf()));
+            }
+            return Behaviors.receive(Receptionist.Listing.class)
+                    .onMessage(Receptionist.Listing.class, l -> {
+                        for (var e : searchKeys.entrySet()) {
+                            if (l.isForKey(e.getKey())) {
+                                List<ActorRef<RetrievalShardActor.Command>> refs
+                                        = List.copyOf(l.getServiceInstances(e.getKey()));
+                                replicas.set(e.getValue(), refs);
+                                ctx.getLog().info("Retrieval shard {}: {} searchable replica(s)", e.getValue(), refs.size());
+                            }
+                        }
+                        for (var e : writerKeys.entrySet()) {
+                            if (l.isForKey(e.getKey())) {
+                                List<ActorRef<RetrievalShardActor.Command>> refs
+                                        = List.copyOf(l.getServiceInstances(e.getKey()));
+                                writers.set(e.getValue(), refs);
+                                ctx.getLog().info("Retrieval shard {}: {} replica(s) taking writes", e.getValue(), refs.size());
+                            }
+                        }
+                        return Behaviors.same();
+                    })
+                    .build();
+        });
+    }
+
+    int shardOf(String docId) {
+        return docId == null ? 0 : Math.floorMod(docId.hashCode(), shardCount);
+    }
+
+    // ---- writes ----
+
+    @Override
+    public void upsert(Doc doc) {
+        upsertBatch(List.of(doc));
+    }
+
+    @Override
+    public void upsertBatch(List<Doc> docs) {
+        await(upsertBatchAsync(docs));
+    }
+
+    @Override
+    public CompletionStage<Void> upsertBatchAsync(List<Doc> docs) {
+        Map<Integer, List<Doc>> byShard = new TreeMap<>();
+        for (Doc d : docs) {
+            byShard.computeIfAbsent(shardOf(d.docId()), s -> new ArrayList<>()).add(d);
+        }
+        List<CompletableFuture<Void>> acks = new ArrayList<>();
+        for (var e : byShard.entrySet()) {
+            acks.add(write(e.getKey(), null, e.getValue()));
+        }
+        return CompletableFuture.allOf(acks.toArray(new CompletableFuture[0]))
+                .whenComplete((v, err) -> version.incrementAndGet());
+    }
+
+    @Override
+    public void replaceDocument(String docId, List<Doc> chunks) {
+        await(replaceDocumentAsync(docId, chunks));
+    }
+
+    /** The whole swap runs on the document's shard, which makes it atomic there. */
+    @Override
+    public CompletionStage<Void> replaceDocumentAsync(String docId, List<Doc> chunks) {
+        return write(shardOf(docId), docId, chunks).whenComplete((v, err) -> version.incrementAndGet());
+    }
+
+    private CompletableFuture<Void> write(int shard, String replaceDocId, List<Doc> chunks) {
+        List<ActorRef<RetrievalShardActor.Command>> refs = writers.get(shard);
+        if (refs.isEmpty()) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Retrieval shard " + shard + " has no replica"));
+        }
+        List<Doc> payload = List.copyOf(chunks);
+        List<CompletableFuture<Void>> acks = new ArrayList<>(refs.size());
+        for (ActorRef<RetrievalShardActor.Command> ref : refs) {
+            CompletionStage<RetrievalShardActor.WriteAck> ack = AskPattern.ask(ref,
+                    (ActorRef<RetrievalShardActor.WriteAck> r) -> new RetrievalShardActor.Write(replaceDocId, payload, r),
+                    writeTimeout, system.scheduler());
+            acks.add(ack.toCompletableFuture().thenAccept(a -> {
+                if (a.error() != null) {
+                    throw new IllegalStateException("Retrieval shard " + a.shard() + " write failed: " + a.error());
+                }
+            }));
+        }
+        return CompletableFuture.allOf(acks.toArray(new CompletableFuture[0]));
+    }
+
+    @Override
+    public long version() {
+        return version.get();
+    }
+
+    // ---- scatter-gather search ----
+
+    @Override
+    public List<SearchHit> topK(float[] queryEmbedding, int k) {
+        return await(topKAsync(queryEmbedding, k));
+    }
+
+    @Override
+    public List<List<SearchHit>> topKBatch(List<float[]> queryEmbeddings, int k) {
+        return await(topKBatchAsync(queryEmbeddings, k, null));
+    }
+
+    @Override
+    public List<List<SearchHit>> topKBatch(List<float[]> queryEmbeddings, int k, SearchFilter filter) {
+        return await(topKBatchAsync(queryEmbeddings, k, filter));
+    }
+
+    @Override
+    public CompletionStage<List<SearchHit>> topKAsync(float[] queryEmbedding, int k) {
+        return topKBatchAsync(List.of(queryEmbedding), k, null).thenApply(r -> r.get(0));
+    }
+
+    @Override
+    public CompletionStage<List<List<SearchHit>>> topKBatchAsync(List<float[]> queryEmbeddings, int k) {
+        return topKBatchAsync(queryEmbeddings, k, null);
+    }
+
+    @Override
+    public CompletionStage<List<List<SearchHit>>> topKBatchAsync(List<float[]> queryEmbeddings, int k, SearchFilter filter) {
+        SEARCHES.inc();
+        List<float[]> queries = List.copyOf(queryEmbeddings);
+        List<CompletableFuture<RetrievalShardActor.SearchResult>> parts = new ArrayList<>(shardCount);
+        for (int s = 0; s < shardCount; s++) {
+            int shard = s;
+            List<ActorRef<RetrievalShardActor.Command>> refs = replicas.get(s);
+            if (refs.isEmpty()) {
+                parts.add(CompletableFuture.completedFuture(
+                        new RetrievalShardActor.SearchResult(shard, null, "no replica registered")));
+                continue;
+            }
+            // any replica will do; spreading the choice spreads the load
+            ActorRef<RetrievalShardActor.Command> ref = refs.get(ThreadLocalRandom.current().nextInt(refs.size()));
+            CompletionStage<RetrievalShardActor.SearchResult> part = AskPattern.ask(ref,
+                    (ActorRef<RetrievalShardActor.SearchResult> r) -> new RetrievalShardActor.Search(queries, k, filter, r),
+                    timeout, system.scheduler());
+            parts.add(part.toCompletableFuture()
+                    .exceptionally(err -> new RetrievalShardActor.SearchResult(shard, null, err.toString())));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture[0]))
+                .thenApply(v -> merge(parts, queries.size(), k));
+    }
+
+    private List<List<SearchHit>> merge(List<CompletableFuture<RetrievalShardActor.SearchResult>> parts, int nq, int k) {
+        List<List<SearchHit>> merged = new ArrayList<>(nq);
+        for (int j = 0; j < nq; j++) {
+            merged.add(new ArrayList<>());
+        }
+        int answered = 0;
+        StringBuilder errors = new StringBuilder();
+        for (var f : parts) {
+            RetrievalShardActor.SearchResult r = f.join();
+            if (r.error() != null || r.hits() == null || r.hits().size() != nq) {
+                SHARD_MISSES.inc();
+                errors.append(" shard ").append(r.shard()).append(": ").append(r.error());
+                continue;
+            }
+            answered++;
+            for (int j = 0; j < nq; j++) {
+                merged.get(j).addAll(r.hits().get(j));
+            }
+        }
+        if (answered == 0) {
+            throw new IllegalStateException("No retrieval shard answered:" + errors);
+        }
+        if (answered < parts.size()) {
+            PARTIAL.inc();
+            system.log().debug("Partial search from {}/{} shards:{}", answered, parts.size(), errors);
+        }
+        for (int j = 0; j < nq; j++) {
+            List<SearchHit> hits = merged.get(j);
+            hits.sort((a, b) -> Float.compare(b.score(), a.score()));
+            if (hits.size() > k) {
+                merged.set(j, new ArrayList<>(hits.subList(0, k)));
+            }
+        }
+        return answered < parts.size() ? new PartialResults(merged) : merged;
+    }
+
+    // Blocking facade for the synchronous VectorDB methods
+    private static <T> T await(CompletionStage<T> stage) {
+        try {
+            return stage.toCompletableFuture().join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException re ? re : e;
+        }
+    }
+}
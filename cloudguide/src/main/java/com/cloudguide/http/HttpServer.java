@@ -20,11 +20,16 @@ import akka.http.javadsl.server.AllDirectives;
 import akka.http.javadsl.server.Route;
 import com.cloudguide.actors.RoutingActor;
 import com.cloudguide.actors.DocumentIngestorActor;
+import com.cloudguide.metrics.Metrics;
+import com.cloudguide.rag.SearchFilter;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.File;
 import java.time.Duration;
 import java.util.List;
 import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
 import akka.http.javadsl.unmarshalling.Unmarshaller;
 
 import static akka.actor.typed.javadsl.AskPattern.ask;
@@ -33,6 +38,8 @@ import akka.http.javadsl.model.HttpEntities;
 
 public class HttpServer extends AllDirectives {
 
+    private static final ObjectMapper JSON = new ObjectMapper();
+
     public CompletionStage<ServerBinding> start(ActorSystem<?> system,
             ActorRef<RoutingActor.Command> router,
             ActorRef<DocumentIngestorActor.Command> ingestor,
@@ -50,14 +57,22 @@ public class HttpServer extends AllDirectives {
 
         return concat(
                 path("healthz", () -> get(() -> complete("ok"))),
+                path("metrics", () -> get(() -> complete(
+                HttpEntities.create(ContentTypes.TEXT_PLAIN_UTF8, Metrics.render())))),
                 pathPrefix("api", () -> concat(
                 // /api/ask
                 path("ask", () -> concat(
-                get(() -> parameter("text", text -> {
+                get(() -> parameter("text", text -> parameterMap(params -> {
+            SearchFilter filter;
+            try {
+                filter = askFilter(params::get);
+            } catch (IllegalArgumentException e) {
+                return respondWithHeaders(corsHeaders(), () -> complete(StatusCodes.BAD_REQUEST, e.getMessage()));
+            }
             CompletionStage<RoutingActor.FinalAnswer> fut
                     = ask(router,
                             (ActorRef<RoutingActor.FinalAnswer> reply)
-                            -> new RoutingActor.UserQuery("http", text, reply),
+                            -> new RoutingActor.UserQuery("http", text, reply, filter),
                             httpToRouterTimeout,
                             system.scheduler()
                     );
@@ -79,13 +94,19 @@ public class HttpServer extends AllDirectives {
                     ),
                     () -> complete(HttpEntities.create(ContentTypes.TEXT_PLAIN_UTF8, ans.text))
             ));
-        })),
+        }))),
                 post(() -> entity(Unmarshaller.entityToString(), body -> {
             String text = extractTextField(body);
+            SearchFilter filter;
+            try {
+                filter = askFilter(jsonFields(body));
+            } catch (IllegalArgumentException e) {
+                return respondWithHeaders(corsHeaders(), () -> complete(StatusCodes.BAD_REQUEST, e.getMessage()));
+            }
             CompletionStage<RoutingActor.FinalAnswer> fut
                     = ask(router,
                             (ActorRef<RoutingActor.FinalAnswer> reply)
-                            -> new RoutingActor.UserQuery("http", text, reply),
+                            -> new RoutingActor.UserQuery("http", text, reply, filter),
                             httpToRouterTimeout,
                             system.scheduler()
                     );
@@ -136,12 +157,43 @@ public class HttpServer extends AllDirectives {
             return respondWithHeaders(corsHeaders(),
                     () -> complete(StatusCodes.ACCEPTED, "queued"));
         })),
+                delete(() -> parameter("docId", docId -> {
+                    if (docId.isBlank()) {
+                        return respondWithHeaders(corsHeaders(),
+                                () -> complete(StatusCodes.BAD_REQUEST, "missing docId"));
+                    }
+                    ingestor.tell(new DocumentIngestorActor.DeleteDocument(docId));
+                    return respondWithHeaders(corsHeaders(),
+                            () -> complete(StatusCodes.ACCEPTED, "queued"));
+                })),
                 options(() -> respondWithHeaders(corsHeaders(), () -> complete("ok")))
         ))
         ))
         );
     }
 
+    // Optional scope of an ask: docId (comma-separated), source (chunk id prefix),
+    // since / until (ingest time, epoch millis or ISO-8601). A scoped ask is always
+    // answered from the matching chunks, with or without the "ask:" prefix.
+    private static SearchFilter askFilter(Function<String, String> field) {
+        return SearchFilter.fromParams(field.apply("docId"), field.apply("source"),
+                field.apply("since"), field.apply("until"));
+    }
+
+    // Top-level fields of a JSON body as text (numbers included); absent for a body that is not a JSON object
+    private static Function<String, String> jsonFields(String body) {
+        JsonNode root;
+        try {
+            root = JSON.readTree(body);
+        } catch (Exception notJson) {
+            return key -> null;
+        }
+        return key -> {
+            JsonNode v = root == null ? null : root.get(key);
+            return v == null || v.isNull() || v.isContainerNode() ? null : v.asText();
+        };
+    }
+
     private static File fileFromPath(String p) {
         if (p == null || p.isBlank()) {
             return null;
@@ -156,7 +208,7 @@ public class HttpServer extends AllDirectives {
     private List<HttpHeader> corsHeaders() {
         return List.of(
                 akka.http.javadsl.model.headers.RawHeader.create("Access-Control-Allow-Origin", "*"),
-                akka.http.javadsl.model.headers.RawHeader.create("Access-Control-Allow-Methods", "GET,POST,OPTIONS"),
+                akka.http.javadsl.model.headers.RawHeader.create("Access-Control-Allow-Methods", "GET,POST,DELETE,OPTIONS"),
                 akka.http.javadsl.model.headers.RawHeader.create("Access-Control-Allow-Headers", "Content-Type")
         );
     }
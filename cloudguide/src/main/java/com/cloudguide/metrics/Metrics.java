@@ -0,0 +1,88 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.metrics;
+
+/**
+ * Process-wide counters and gauges, rendered in the Prometheus text format by
+ * the HTTP {@code /metrics} route. Registration is idempotent by name, so a
+ * component that is created twice (tests, restarts of an actor) keeps adding
+ * to the same series.
+ *
+ * @author rachanakeshav
+ */
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+public final class Metrics {
+
+  private Metrics() { }
+
+  private sealed interface Metric permits Counter, Gauge { }
+
+  /** Monotonic count, safe to bump from any thread. */
+  public static final class Counter implements Metric {
+    final String help;
+    private final LongAdder value = new LongAdder();
+
+    private Counter(String help) {
+      this.help = help;
+    }
+
+    public void inc() {
+      value.increment();
+    }
+
+    public void add(long n) {
+      value.add(n);
+    }
+
+    public long get() {
+      return value.sum();
+    }
+  }
+
+  private record Gauge(String help, DoubleSupplier value) implements Metric { }
+
+  private static final Map<String, Metric> REGISTRY = new ConcurrentSkipListMap<>();
+
+  public static Counter counter(String name, String help) {
+    Metric m = REGISTRY.computeIfAbsent(name, n -> new Counter(help));
+    if (m instanceof Counter c) return c;
+    throw new IllegalArgumentException(name + " is already registered as a gauge");
+  }
+
+  /** Registers (or replaces) a gauge sampled at render time. */
+  public static void gauge(String name, String help, DoubleSupplier value) {
+    REGISTRY.put(name, new Gauge(help, value));
+  }
+
+  /** All metrics in the Prometheus text exposition format (version 0.0.4). */
+  public static String render() {
+    StringBuilder sb = new StringBuilder(1024);
+    for (var e : REGISTRY.entrySet()) {
+      String name = e.getKey();
+      if (e.getValue() instanceof Counter c) {
+        line(sb, name, c.help, "counter").append(name).append(' ').append(c.get()).append('\n');
+      } else if (e.getValue() instanceof Gauge g) {
+        double v;
+        try {
+          v = g.value().getAsDouble();
+        } catch (RuntimeException ex) {
+          continue;   // a gauge whose source went away is simply not reported
+        }
+        line(sb, name, g.help(), "gauge").append(name).append(' ').append(v).append('\n');
+      }
+    }
+    return sb.toString();
+  }
+
+  private static StringBuilder line(StringBuilder sb, String name, String help, String type) {
+    sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    return sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+}
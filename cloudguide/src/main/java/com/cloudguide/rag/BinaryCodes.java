@@ -0,0 +1,80 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * One sign bit per dimension, packed 64 to a long: 32x smaller than floats, and
+ * a row is compared with XOR + popcount over dim/64 words. The Hamming distance
+ * between sign patterns tracks the angle between the vectors well enough to
+ * find a candidate pool, not to order it, so the scan should keep a few hundred
+ * rows for exact rescoring.
+ *
+ * @author rachanakeshav
+ */
+
+import java.util.Arrays;
+
+final class BinaryCodes implements RowCodes {
+
+  private final int dim;
+  private final int words;
+  private final float perBit;
+  private long[] bits = new long[0];
+
+  BinaryCodes(int dim) {
+    this.dim = dim;
+    this.words = (dim + 63) >>> 6;
+    this.perBit = 2f / dim;
+  }
+
+  @Override
+  public void ensureCapacity(int rows) {
+    long n = (long) rows * words;
+    if (n <= bits.length) return;
+    if (n > Integer.MAX_VALUE - 8) throw new IllegalStateException(rows + " rows of " + dim + " bits do not fit in one array");
+    bits = Arrays.copyOf(bits, (int) n);
+  }
+
+  @Override
+  public void set(int row, float[] v, int usedRows) {
+    pack(v, bits, row * words);
+  }
+
+  @Override
+  public void copyRow(int from, int to) {
+    System.arraycopy(bits, from * words, bits, to * words, words);
+  }
+
+  // Padding bits past dim stay 0 on both sides, so they never count as a difference
+  private void pack(float[] v, long[] out, int off) {
+    for (int w = 0; w < words; w++) {
+      long x = 0;
+      for (int i = w << 6, end = Math.min(dim, i + 64); i < end; i++) {
+        if (v[i] > 0f) x |= 1L << (i & 63);
+      }
+      out[off + w] = x;
+    }
+  }
+
+  int hamming(long[] q, int row) {
+    int off = row * words;
+    int d = 0;
+    for (int w = 0; w < words; w++) d += Long.bitCount(q[w] ^ bits[off + w]);
+    return d;
+  }
+
+  /** Scores are {@code 1 - 2 * hamming / dim}: 1 for equal sign patterns, -1 for opposite ones. */
+  @Override
+  public Scorer scorer(float[] q) {
+    long[] qb = new long[words];
+    pack(q, qb, 0);
+    return row -> 1f - perBit * hamming(qb, row);
+  }
+
+  @Override
+  public long bytes() {
+    return 8L * bits.length;
+  }
+}
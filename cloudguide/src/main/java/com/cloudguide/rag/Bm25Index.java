@@ -0,0 +1,456 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * In-process BM25 inverted index over chunk text, used next to the vector
+ * store so exact product names ("D2as v5", "Archive GRS") are found even when
+ * the embedding smears them. Postings are per-term primitive arrays of
+ * (row, term frequency); document lengths live in one int[] indexed by row.
+ * Re-adding an id tombstones its old row; document frequencies count live rows
+ * only, and once tombstones outnumber live rows the rows and postings are
+ * rewritten without them.
+ *
+ * @author rachanakeshav
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public final class Bm25Index {
+
+  private static final int MAGIC = 0x4347424D; // "CGBM"
+  private static final int VERSION = 1;
+  private static final float K1 = 1.2f;
+  private static final float B = 0.75f;
+  // compact once dead rows exceed this share of all rows (and this many, so small indexes are left alone)
+  private static final double COMPACT_DEAD_RATIO = 0.5;
+  private static final int COMPACT_MIN_DEAD = 1024;
+
+  // Words that never make a query "exact"; BM25's idf already discounts them when scoring
+  private static final Set<String> STOPWORDS = Set.of(
+      "a", "an", "and", "are", "as", "at", "be", "by", "do", "does", "for", "from", "how", "i",
+      "in", "is", "it", "me", "much", "of", "on", "or", "the", "to", "what", "which", "with");
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private final Map<String, Integer> termIds = new HashMap<>();
+  private int[][] postRows = new int[0][];
+  private int[][] postTfs = new int[0][];
+  private int[] postLen = new int[0];   // postings per term, dead rows included
+  private int[] df = new int[0];        // live rows containing the term: the idf input
+
+  private final Map<String, Integer> rowById = new HashMap<>();
+  private int rows;
+  private int[] rowLen = new int[0];
+  private String[] ids = new String[0];
+  private String[] docIds = new String[0];
+  private String[] texts = new String[0];
+  private final BitSet dead = new BitSet();
+  private int liveRows;
+  private long liveTokens;
+  private volatile boolean dirty;
+  private volatile long version;   // bumped under the write lock
+
+  public void add(VectorDB.Doc doc) {
+    addAll(List.of(doc));
+  }
+
+  /** Indexes each doc's text under its id, replacing any earlier version of that id. */
+  public void addAll(List<VectorDB.Doc> docs) {
+    lock.writeLock().lock();
+    try {
+      for (var d : docs) put(d.id(), d.docId(), d.text());
+      dirty = true;
+      version++;
+      compactIfNeeded();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Tombstones every chunk of {@code docId}, then indexes {@code docs}, as one update for readers. */
+  public void replaceDocument(String docId, List<VectorDB.Doc> docs) {
+    lock.writeLock().lock();
+    try {
+      for (int r = 0; r < rows; r++) {
+        if (!dead.get(r) && docId.equals(docIds[r])) kill(r);
+      }
+      for (var d : docs) put(d.id(), d.docId(), d.text());
+      dirty = true;
+      version++;
+      compactIfNeeded();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Changes with every {@link #addAll} / {@link #replaceDocument}; see {@link VectorDB#version()}. */
+  public long version() {
+    return version;
+  }
+
+  // The row's terms are found again from its text, which is kept anyway
+  private void kill(int row) {
+    dead.set(row);
+    rowById.remove(ids[row], row);
+    liveRows--;
+    liveTokens -= rowLen[row];
+    for (String term : new HashSet<>(tokenize(texts[row]))) {
+      Integer t = termIds.get(term);
+      if (t != null) df[t]--;
+    }
+  }
+
+  /** Dead rows still held in the postings. */
+  public int deadRows() {
+    lock.readLock().lock();
+    try {
+      return rows - liveRows;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private void compactIfNeeded() {
+    int deadNow = rows - liveRows;
+    if (deadNow >= COMPACT_MIN_DEAD && deadNow > COMPACT_DEAD_RATIO * rows) compactRows();
+  }
+
+  /** Drops tombstoned rows from the postings and row arrays, and terms no live row uses. */
+  public void compact() {
+    lock.writeLock().lock();
+    try {
+      if (rows > liveRows) {
+        compactRows();
+        dirty = true;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // Renumbers live rows densely (order kept) and rewrites the postings and the term dictionary
+  private void compactRows() {
+    int[] newRow = new int[rows];
+    int live = 0;
+    for (int r = 0; r < rows; r++) {
+      if (dead.get(r)) {
+        newRow[r] = -1;
+        continue;
+      }
+      newRow[r] = live;
+      rowLen[live] = rowLen[r];
+      ids[live] = ids[r];
+      docIds[live] = docIds[r];
+      texts[live] = texts[r];
+      live++;
+    }
+    Arrays.fill(ids, live, rows, null);
+    Arrays.fill(docIds, live, rows, null);
+    Arrays.fill(texts, live, rows, null);
+    rows = live;
+    dead.clear();
+    rowById.clear();
+    for (int r = 0; r < rows; r++) rowById.put(ids[r], r);
+
+    Map<String, Integer> oldTerms = new HashMap<>(termIds);
+    int[][] oldRows = postRows, oldTfs = postTfs;
+    int[] oldLen = postLen, oldDf = df;
+    termIds.clear();
+    int cap = Math.max(1024, oldTerms.size());
+    postRows = new int[cap][];
+    postTfs = new int[cap][];
+    postLen = new int[cap];
+    df = new int[cap];
+    for (var e : oldTerms.entrySet()) {
+      int o = e.getValue();
+      if (oldDf[o] <= 0) continue;
+      int[] pr = new int[Math.max(4, oldDf[o])];
+      int[] pt = new int[pr.length];
+      int n = 0;
+      for (int i = 0; i < oldLen[o]; i++) {
+        int r = newRow[oldRows[o][i]];
+        if (r < 0) continue;
+        pr[n] = r;
+        pt[n++] = oldTfs[o][i];
+      }
+      int t = termIds.size();
+      termIds.put(e.getKey(), t);
+      postRows[t] = pr;
+      postTfs[t] = pt;
+      postLen[t] = n;
+      df[t] = n;
+    }
+  }
+
+  private void put(String id, String docId, String text) {
+    Integer old = rowById.get(id);
+    if (old != null) kill(old);
+    int row = rows++;
+    if (row == ids.length) {
+      int cap = Math.max(1024, row + (row >> 1));
+      rowLen = Arrays.copyOf(rowLen, cap);
+      ids = Arrays.copyOf(ids, cap);
+      docIds = Arrays.copyOf(docIds, cap);
+      texts = Arrays.copyOf(texts, cap);
+    }
+    ids[row] = id;
+    docIds[row] = docId;
+    texts[row] = text;
+    rowById.put(id, row);
+
+    List<String> tokens = tokenize(text);
+    Map<String, Integer> tf = new HashMap<>();
+    for (String t : tokens) tf.merge(t, 1, Integer::sum);
+    for (var e : tf.entrySet()) addPosting(termId(e.getKey()), row, e.getValue());
+    rowLen[row] = tokens.size();
+    liveRows++;
+    liveTokens += tokens.size();
+  }
+
+  private int termId(String term) {
+    Integer id = termIds.get(term);
+    if (id != null) return id;
+    int t = termIds.size();
+    termIds.put(term, t);
+    if (t == df.length) {
+      int cap = Math.max(1024, t + (t >> 1));
+      postRows = Arrays.copyOf(postRows, cap);
+      postTfs = Arrays.copyOf(postTfs, cap);
+      postLen = Arrays.copyOf(postLen, cap);
+      df = Arrays.copyOf(df, cap);
+    }
+    postRows[t] = new int[4];
+    postTfs[t] = new int[4];
+    return t;
+  }
+
+  private void addPosting(int t, int row, int tf) {
+    int n = postLen[t];
+    if (n == postRows[t].length) {
+      postRows[t] = Arrays.copyOf(postRows[t], n * 2);
+      postTfs[t] = Arrays.copyOf(postTfs[t], n * 2);
+    }
+    postRows[t][n] = row;
+    postTfs[t][n] = tf;
+    postLen[t] = n + 1;
+    df[t]++;
+  }
+
+  /** Lower-cased runs of letters and digits. */
+  static List<String> tokenize(String text) {
+    List<String> out = new ArrayList<>();
+    if (text == null) return out;
+    int start = -1;
+    for (int i = 0, n = text.length(); i <= n; i++) {
+      boolean word = i < n && Character.isLetterOrDigit(text.charAt(i));
+      if (word && start < 0) {
+        start = i;
+      } else if (!word && start >= 0) {
+        out.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+        start = -1;
+      }
+    }
+    return out;
+  }
+
+  /** Best {@code k} live chunks for {@code query} by BM25 score, best first. */
+  public List<VectorDB.SearchHit> search(String query, int k) {
+    Set<String> terms = new LinkedHashSet<>(tokenize(query));
+    lock.readLock().lock();
+    try {
+      if (liveRows == 0 || terms.isEmpty() || k <= 0) return List.of();
+      float avgLen = (float) liveTokens / liveRows;
+      // only rows holding a query term get a score: size the accumulator by those, not by the index
+      int postings = 0;
+      for (String term : terms) {
+        Integer t = termIds.get(term);
+        if (t != null) postings += df[t];
+      }
+      if (postings == 0) return List.of();
+      RowScores acc = new RowScores(postings);
+      for (String term : terms) {
+        Integer t = termIds.get(term);
+        if (t == null || df[t] == 0) continue;
+        int d = df[t];
+        float idf = (float) Math.log(1 + (liveRows - d + 0.5) / (d + 0.5));
+        int[] pr = postRows[t], pt = postTfs[t];
+        for (int i = 0, n = postLen[t]; i < n; i++) {
+          int row = pr[i];
+          if (dead.get(row)) continue;
+          float tf = pt[i];
+          acc.add(row, idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * rowLen[row] / avgLen)));
+        }
+      }
+      TopK heap = new TopK(Math.min(k, acc.size));
+      for (int i = 0; i < acc.keys.length; i++) {
+        if (acc.keys[i] >= 0) heap.offer(acc.keys[i], acc.values[i]);
+      }
+      int[] best = new int[heap.size()];
+      float[] scores = new float[heap.size()];
+      int n = heap.drainSorted(best, scores);
+      List<VectorDB.SearchHit> hits = new ArrayList<>(n);
+      for (int i = 0; i < n; i++) {
+        int row = best[i];
+        hits.add(new VectorDB.SearchHit(ids[row], docIds[row], texts[row], scores[i]));
+      }
+      return hits;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * True when {@code query} is a short lookup (at most {@code maxTerms} non-stopword
+   * tokens) whose tokens appear as one contiguous phrase in {@code hit}'s text,
+   * e.g. "Archive GRS" against a chunk listing "Archive GRS". Such a hit is as good
+   * as retrieval gets, so the caller can answer without embedding the question.
+   */
+  public static boolean isExactMatch(String query, VectorDB.SearchHit hit, int maxTerms) {
+    List<String> q = new ArrayList<>();
+    for (String t : tokenize(query)) if (!STOPWORDS.contains(t)) q.add(t);
+    if (q.isEmpty() || q.size() > maxTerms || hit == null) return false;
+    return Collections.indexOfSubList(tokenize(hit.text()), q) >= 0;
+  }
+
+  /** Live (not superseded) chunk count. */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return liveRows;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  // ---- persistence ----
+
+  /** Writes the index to {@code path} (via a temp file and atomic rename) if it changed since load or the last save. */
+  public boolean save(Path path) throws IOException {
+    if (!dirty) return false;
+    lock.readLock().lock();
+    try {
+      Path dir = path.toAbsolutePath().getParent();
+      Files.createDirectories(dir);
+      Path tmp = Files.createTempFile(dir, path.getFileName().toString(), ".tmp");
+      try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(rows);
+        for (int r = 0; r < rows; r++) {
+          writeString(out, ids[r]);
+          writeString(out, docIds[r]);
+          writeString(out, texts[r]);
+          out.writeInt(rowLen[r]);
+          out.writeBoolean(dead.get(r));
+        }
+        out.writeInt(termIds.size());
+        for (var e : termIds.entrySet()) {
+          int t = e.getValue();
+          writeString(out, e.getKey());
+          out.writeInt(postLen[t]);
+          for (int i = 0; i < postLen[t]; i++) {
+            out.writeInt(postRows[t][i]);
+            out.writeInt(postTfs[t][i]);
+          }
+        }
+      }
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      dirty = false;
+      return true;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Loads an index written by {@link #save}; a missing file gives an empty index. */
+  public static Bm25Index load(Path path) throws IOException {
+    Bm25Index idx = new Bm25Index();
+    if (path == null || !Files.exists(path)) return idx;
+    try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+      if (in.readInt() != MAGIC) throw new IOException("not a BM25 index: " + path);
+      if (in.readInt() != VERSION) throw new IOException("unsupported BM25 index version: " + path);
+      int n = in.readInt();
+      idx.rows = n;
+      idx.rowLen = new int[n];
+      idx.ids = new String[n];
+      idx.docIds = new String[n];
+      idx.texts = new String[n];
+      for (int r = 0; r < n; r++) {
+        idx.ids[r] = readString(in);
+        idx.docIds[r] = readString(in);
+        idx.texts[r] = readString(in);
+        idx.rowLen[r] = in.readInt();
+        if (in.readBoolean()) {
+          idx.dead.set(r);
+        } else {
+          idx.rowById.put(idx.ids[r], r);
+          idx.liveRows++;
+          idx.liveTokens += idx.rowLen[r];
+        }
+      }
+      int terms = in.readInt();
+      idx.postRows = new int[terms][];
+      idx.postTfs = new int[terms][];
+      idx.postLen = new int[terms];
+      idx.df = new int[terms];
+      for (int t = 0; t < terms; t++) {
+        idx.termIds.put(readString(in), t);
+        int d = in.readInt();
+        idx.postLen[t] = d;
+        idx.postRows[t] = new int[Math.max(4, d)];
+        idx.postTfs[t] = new int[Math.max(4, d)];
+        for (int i = 0; i < d; i++) {
+          idx.postRows[t][i] = in.readInt();
+          idx.postTfs[t][i] = in.readInt();
+          if (!idx.dead.get(idx.postRows[t][i])) idx.df[t]++;
+        }
+      }
+    }
+    idx.compactIfNeeded();
+    return idx;
+  }
+
+  /** Open-addressing row -> score map for one query; sized for the postings it will see, so it never grows. */
+  private static final class RowScores {
+    final int[] keys;
+    final float[] values;
+    int size;
+
+    RowScores(int expected) {
+      int cap = Integer.highestOneBit(Math.max(4, expected) * 2 - 1) << 1;
+      keys = new int[cap];
+      values = new float[cap];
+      Arrays.fill(keys, -1);
+    }
+
+    void add(int row, float score) {
+      int mask = keys.length - 1;
+      int i = (row * 0x9E3779B9) >>> 1 & mask;
+      while (keys[i] >= 0 && keys[i] != row) i = (i + 1) & mask;
+      if (keys[i] < 0) {
+        keys[i] = row;
+        size++;
+      }
+      values[i] += score;
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] b = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+    out.writeInt(b.length);
+    out.write(b);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    return new String(in.readNBytes(in.readInt()), StandardCharsets.UTF_8);
+  }
+}
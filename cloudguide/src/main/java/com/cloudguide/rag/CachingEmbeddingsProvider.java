@@ -0,0 +1,163 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Content-addressed embedding cache in front of another provider. Vectors are
+ * keyed by SHA-256 of (provider name, text), so a changed model never serves
+ * old vectors, and kept in an on-disk EmbeddingStore that survives restarts,
+ * with a TinyLfuCache of recent vectors in heap ahead of it. Only texts found
+ * in neither are sent to the delegate; a batch sends its misses as one batch
+ * (each distinct text once) and gets the hits filled back in place. A vector
+ * the file cannot take (disk error, another dimension) is logged and skipped:
+ * the embedding itself is still returned.
+ *
+ * @author rachanakeshav
+ */
+
+import com.cloudguide.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+public class CachingEmbeddingsProvider implements EmbeddingsProvider, Closeable {
+
+  private static final Metrics.Counter HEAP_HITS = Metrics.counter(
+      "cloudguide_embed_cache_heap_hits_total", "Embeddings served from the in-heap cache");
+  private static final Metrics.Counter DISK_HITS = Metrics.counter(
+      "cloudguide_embed_cache_disk_hits_total", "Embeddings served from the on-disk cache");
+  private static final Metrics.Counter MISSES = Metrics.counter(
+      "cloudguide_embed_cache_misses_total", "Texts sent to the embedding model");
+  private static final Metrics.Counter WRITE_FAILURES = Metrics.counter(
+      "cloudguide_embed_cache_write_failures_total", "Embeddings that could not be written to the on-disk cache");
+
+  private static final Logger LOG = LoggerFactory.getLogger(CachingEmbeddingsProvider.class);
+
+  private record Key(long hi, long lo) { }
+
+  private final EmbeddingsProvider delegate;
+  private final EmbeddingStore store;   // guarded by itself
+  private final TinyLfuCache<Key, float[]> heap;
+  private final byte[] namePrefix;
+
+  /**
+   * @param dir cache directory; keep one per provider, the first vector fixes its dimension
+   * @param heapEntries vectors kept in heap in front of the file
+   * @param maxEntries vectors kept in the file; reaching it keeps half, recently read ones first. 0 = unbounded
+   */
+  public CachingEmbeddingsProvider(EmbeddingsProvider delegate, Path dir, int heapEntries, int maxEntries)
+      throws IOException {
+    this.delegate = delegate;
+    this.store = new EmbeddingStore(dir, maxEntries);
+    this.heap = new TinyLfuCache<>(heapEntries);
+    this.namePrefix = (delegate.name() + '\0').getBytes(StandardCharsets.UTF_8);
+    Metrics.gauge("cloudguide_embed_cache_disk_entries", "Embeddings in the on-disk cache", this::diskEntries);
+  }
+
+  @Override public String name() { return delegate.name(); }
+
+  @Override public CompletionStage<float[]> embed(String text) {
+    Key k = key(text);
+    float[] v = lookup(k);
+    if (v != null) return CompletableFuture.completedFuture(v);
+    MISSES.inc();
+    return delegate.embed(text).thenApply(e -> {
+      remember(k, e);
+      return e;
+    });
+  }
+
+  @Override public CompletionStage<List<float[]>> embedBatch(List<String> texts) {
+    float[][] out = new float[texts.size()][];
+    Map<Key, List<Integer>> missing = new LinkedHashMap<>();
+    List<String> missTexts = new ArrayList<>();
+    for (int i = 0; i < texts.size(); i++) {
+      Key k = key(texts.get(i));
+      out[i] = lookup(k);
+      if (out[i] != null) continue;
+      List<Integer> at = missing.get(k);
+      if (at == null) {
+        missing.put(k, at = new ArrayList<>(1));
+        missTexts.add(texts.get(i));
+      }
+      at.add(i);
+    }
+    if (missTexts.isEmpty()) return CompletableFuture.completedFuture(Arrays.asList(out));
+    MISSES.add(missTexts.size());
+    return delegate.embedBatch(missTexts).thenApply(vs -> {
+      int j = 0;
+      for (var e : missing.entrySet()) {
+        float[] v = vs.get(j++);
+        remember(e.getKey(), v);
+        for (int i : e.getValue()) out[i] = v;
+      }
+      return Arrays.asList(out);
+    });
+  }
+
+  private float[] lookup(Key k) {
+    float[] v = heap.get(k);
+    if (v != null) {
+      HEAP_HITS.inc();
+      return v;
+    }
+    synchronized (store) {
+      v = store.get(k.hi(), k.lo());
+    }
+    if (v != null) {
+      DISK_HITS.inc();
+      heap.put(k, v);
+    }
+    return v;
+  }
+
+  // The caller already has its embedding; a cache that cannot store it only costs a later miss
+  private void remember(Key k, float[] v) {
+    heap.put(k, v);
+    try {
+      synchronized (store) {
+        store.put(k.hi(), k.lo(), v);
+      }
+    } catch (RuntimeException e) {
+      WRITE_FAILURES.inc();
+      LOG.warn("Embedding cache write skipped: {}", e.toString());
+    }
+  }
+
+  private Key key(String text) {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);   // every JRE ships SHA-256
+    }
+    md.update(namePrefix);
+    ByteBuffer d = ByteBuffer.wrap(md.digest(text.getBytes(StandardCharsets.UTF_8)));
+    return new Key(d.getLong(), d.getLong());
+  }
+
+  private double diskEntries() {
+    synchronized (store) {
+      return store.size();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (store) {
+      store.close();
+    }
+  }
+}
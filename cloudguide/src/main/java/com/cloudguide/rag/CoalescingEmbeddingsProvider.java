@@ -0,0 +1,108 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Micro-batches single-text embeds. Concurrent {@link #embed} calls are held
+ * for at most {@code maxWait} after the first of them arrives (or until
+ * {@code maxBatch} are waiting) and sent to the delegate as one
+ * {@link EmbeddingsProvider#embedBatch}; each caller gets its own vector back.
+ * Under load this trades a window of latency for one request instead of
+ * {@code maxBatch}; a lone caller pays at most {@code maxWait}.
+ * embedBatch calls are already batched and pass straight through.
+ *
+ * @author rachanakeshav
+ */
+
+import com.cloudguide.metrics.Metrics;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+public class CoalescingEmbeddingsProvider implements EmbeddingsProvider {
+
+  private static final Metrics.Counter BATCHES = Metrics.counter(
+      "cloudguide_embed_coalesced_batches_total", "Batches sent for coalesced single-text embeds");
+  private static final Metrics.Counter TEXTS = Metrics.counter(
+      "cloudguide_embed_coalesced_texts_total", "Single-text embeds sent as part of a coalesced batch");
+
+  private record Waiting(String text, CompletableFuture<float[]> result) { }
+
+  private final EmbeddingsProvider delegate;
+  private final int maxBatch;
+  private final Executor timer;
+
+  private final Object lock = new Object();
+  private List<Waiting> pending = new ArrayList<>();   // guarded by lock; replaced on every flush
+
+  /**
+   * @param maxBatch flush as soon as this many texts are waiting
+   * @param maxWait how long the first text of a batch waits for company
+   */
+  public CoalescingEmbeddingsProvider(EmbeddingsProvider delegate, int maxBatch, Duration maxWait) {
+    this.delegate = delegate;
+    this.maxBatch = Math.max(1, maxBatch);
+    this.timer = CompletableFuture.delayedExecutor(Math.max(1, maxWait.toNanos()), TimeUnit.NANOSECONDS);
+  }
+
+  @Override public String name() { return delegate.name(); }
+
+  @Override public CompletionStage<float[]> embed(String text) {
+    Waiting w = new Waiting(text, new CompletableFuture<>());
+    List<Waiting> full = null;
+    synchronized (lock) {
+      List<Waiting> batch = pending;
+      batch.add(w);
+      if (batch.size() >= maxBatch) {
+        full = batch;
+        pending = new ArrayList<>();
+      } else if (batch.size() == 1) {
+        timer.execute(() -> flushIfPending(batch));
+      }
+    }
+    if (full != null) send(full);
+    return w.result();
+  }
+
+  @Override public CompletionStage<List<float[]>> embedBatch(List<String> texts) {
+    return delegate.embedBatch(texts);
+  }
+
+  // The window of this batch closed; it may already have gone out full
+  private void flushIfPending(List<Waiting> batch) {
+    synchronized (lock) {
+      if (pending != batch) return;
+      pending = new ArrayList<>();
+    }
+    send(batch);
+  }
+
+  private void send(List<Waiting> batch) {
+    BATCHES.inc();
+    TEXTS.add(batch.size());
+    List<String> texts = new ArrayList<>(batch.size());
+    for (Waiting w : batch) texts.add(w.text());
+    CompletionStage<List<float[]>> sent;
+    try {
+      sent = delegate.embedBatch(texts);
+    } catch (RuntimeException e) {
+      sent = CompletableFuture.failedFuture(e);
+    }
+    sent.whenComplete((vs, err) -> {
+      if (err == null && vs.size() != batch.size()) {
+        err = new IllegalStateException("embedding batch returned " + vs.size() + " vectors for " + batch.size() + " texts");
+      }
+      for (int i = 0; i < batch.size(); i++) {
+        if (err != null) batch.get(i).result().completeExceptionally(err);
+        else batch.get(i).result().complete(vs.get(i));
+      }
+    });
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Fits retrieved chunks into a prompt token budget. Token counts come from a
+ * one-pass approximation of a BPE vocabulary (short words are one token, long
+ * words one per ~4 letters, digits in groups of three, every other symbol on
+ * its own) scaled by a safety margin, so an estimate that is off errs towards
+ * sending less rather than having the model server silently cut the prompt.
+ *
+ * @author rachanakeshav
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+public final class ContextPacker {
+
+  private static final double SAFETY = 1.15;
+
+  private ContextPacker() { }
+
+  /** Approximate token count of {@code text}, rounded up and padded by the safety margin. */
+  public static int estimateTokens(String text) {
+    if (text == null || text.isEmpty()) return 0;
+    long tokens = 0;
+    int n = text.length();
+    int i = 0;
+    while (i < n) {
+      char c = text.charAt(i);
+      if (Character.isWhitespace(c)) {
+        i++;   // merged into the following word by BPE vocabularies
+      } else if (c < 128 && Character.isLetter(c)) {
+        int start = i;
+        while (i < n && text.charAt(i) < 128 && Character.isLetter(text.charAt(i))) i++;
+        int len = i - start;
+        tokens += len <= 6 ? 1 : 1 + (len - 6 + 3) / 4;
+      } else if (c >= '0' && c <= '9') {
+        int start = i;
+        while (i < n && text.charAt(i) >= '0' && text.charAt(i) <= '9') i++;
+        tokens += (i - start + 2) / 3;
+      } else {
+        tokens += Character.isSupplementaryCodePoint(text.codePointAt(i)) ? 2 : 1;
+        i += Character.charCount(text.codePointAt(i));
+      }
+    }
+    return (int) Math.ceil(tokens * SAFETY);
+  }
+
+  /**
+   * Renders hits in the given order (best first) and keeps each one that still
+   * fits in {@code budgetTokens}; a hit that does not fit is skipped so a smaller,
+   * lower-ranked one can use the remaining space. If not even the best hit fits,
+   * it is cut at a word boundary, so the prompt never goes out without context.
+   *
+   * @param separator text placed between rendered hits (counted against the budget)
+   */
+  public static List<String> pack(List<VectorDB.SearchHit> hits, int budgetTokens, String separator,
+      Function<VectorDB.SearchHit, String> render) {
+    List<String> out = new ArrayList<>(hits.size());
+    int used = 0;
+    int sepTokens = estimateTokens(separator);
+    for (var h : hits) {
+      String s = render.apply(h);
+      int cost = estimateTokens(s) + (out.isEmpty() ? 0 : sepTokens);
+      if (used + cost <= budgetTokens) {
+        out.add(s);
+        used += cost;
+      }
+    }
+    if (out.isEmpty() && !hits.isEmpty() && budgetTokens > 0) {
+      out.add(truncate(render.apply(hits.get(0)), budgetTokens));
+    }
+    return out;
+  }
+
+  /** Longest word-boundary prefix of {@code text} estimated at most {@code budgetTokens}. */
+  static String truncate(String text, int budgetTokens) {
+    int lo = 0, hi = text.length();
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (estimateTokens(text.substring(0, mid)) <= budgetTokens) lo = mid; else hi = mid - 1;
+    }
+    int cut = lo;
+    if (cut < text.length()) {
+      int space = text.lastIndexOf(' ', cut);
+      if (space > 0) cut = space;
+    }
+    return text.substring(0, cut);
+  }
+}
@@ -0,0 +1,279 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Append-only, memory-mapped key/value file of embeddings, keyed by a 128-bit
+ * content hash. Two files in one directory:
+ *
+ *   keys.bin     "CGEMB1", int dim, then per row: long hashHi, long hashLo, int crc32 of the vector
+ *   vectors.f32  row-major float32 vectors (a MappedRowFile)
+ *
+ * The vector is written before its key, so a key on disk always has its row;
+ * a row whose checksum does not match (torn by a power cut) reads as a miss and
+ * is simply written again. On open the keys are scanned into an open-addressing
+ * table in heap (about 50 bytes per entry); the vectors stay in the page cache.
+ *
+ * With a cap, reaching it rewrites both files with half as many entries: the
+ * ones read since the last rewrite first, then the newest. Superseded rows are
+ * dropped the same way once they make up half of the file. The new files are
+ * moved over the old ones vectors first; a crash between the two moves leaves
+ * keys whose checksums do not match their rows, which read as misses.
+ *
+ * @author rachanakeshav
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+final class EmbeddingStore implements Closeable {
+
+  private static final byte[] MAGIC = "CGEMB1".getBytes(StandardCharsets.US_ASCII);
+  private static final int HEADER = MAGIC.length + 4;
+  private static final int KEY_BYTES = 20;
+
+  private final Path dir;
+  private final int maxEntries;      // 0 = unbounded
+  private FileChannel keys;
+  private MappedRowFile vectors;   // opened once the dimension is known
+  private int dim = -1;
+  private int rows;
+  private final BitSet read = new BitSet();   // rows served since the last rewrite
+
+  // open addressing, linear probing; slot empty when row == -1
+  private long[] hi = new long[0];
+  private long[] lo = new long[0];
+  private int[] rowAt = new int[0];
+  private int[] crcs = new int[0];   // by row
+  private int used;
+
+  /** @param maxEntries distinct embeddings kept before the files are rewritten at half that; 0 = unbounded */
+  EmbeddingStore(Path dir, int maxEntries) throws IOException {
+    this.dir = dir;
+    this.maxEntries = Math.max(0, maxEntries);
+    Files.createDirectories(dir);
+    open();
+  }
+
+  private void open() throws IOException {
+    keys = FileChannel.open(dir.resolve("keys.bin"),
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    hi = new long[0];
+    lo = new long[0];
+    rowAt = new int[0];
+    crcs = new int[0];
+    used = 0;
+    rows = 0;
+    dim = -1;
+    vectors = null;
+    read.clear();
+    resize(1024);
+    load();
+  }
+
+  private void load() throws IOException {
+    long size = keys.size();
+    if (size < HEADER) {
+      keys.truncate(0);
+      return;
+    }
+    ByteBuffer head = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+    keys.read(head, 0);
+    head.flip();
+    byte[] magic = new byte[MAGIC.length];
+    head.get(magic);
+    if (!Arrays.equals(magic, MAGIC)) throw new IOException("not an embedding cache: " + dir);
+    openVectors(head.getInt());
+
+    int n = (int) ((size - HEADER) / KEY_BYTES);   // a torn trailing key is ignored and overwritten
+    ByteBuffer bb = keys.map(FileChannel.MapMode.READ_ONLY, HEADER, (long) n * KEY_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    crcs = new int[Math.max(1024, n)];
+    for (int r = 0; r < n; r++) {
+      long h = bb.getLong();
+      long l = bb.getLong();
+      crcs[r] = bb.getInt();
+      index(h, l, r);   // a later row for the same key wins
+    }
+    rows = n;
+    vectors.ensureMapped(n);
+  }
+
+  private void openVectors(int d) {
+    dim = d;
+    vectors = new MappedRowFile(dir.resolve("vectors.f32"), d, false);
+  }
+
+  int size() {
+    return used;
+  }
+
+  /** The stored vector, or null if absent or damaged. */
+  float[] get(long h, long l) {
+    int slot = find(h, l);
+    if (slot < 0) return null;
+    int row = rowAt[slot];
+    float[] v = new float[dim];
+    vectors.get(row, v);
+    if (crc(v) != crcs[row]) return null;
+    read.set(row);
+    return v;
+  }
+
+  void put(long h, long l, float[] v) {
+    try {
+      if (dim < 0) {
+        ByteBuffer head = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        head.put(MAGIC).putInt(v.length).flip();
+        keys.write(head, 0);
+        openVectors(v.length);
+      }
+      if (v.length != dim) {
+        throw new IllegalArgumentException("embedding dim " + v.length + " does not match cache dim " + dim);
+      }
+      if (maxEntries > 0 && used >= maxEntries) {
+        rewrite(maxEntries / 2);
+      } else if (rows >= 2048 && used * 2L < rows) {
+        rewrite(used);
+      }
+      int row = rows;
+      int crc = crc(v);
+      vectors.put(row, v);
+      ByteBuffer key = ByteBuffer.allocate(KEY_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      key.putLong(h).putLong(l).putInt(crc).flip();
+      keys.write(key, HEADER + (long) row * KEY_BYTES);
+      if (row == crcs.length) crcs = Arrays.copyOf(crcs, Math.max(1024, row + (row >> 1)));
+      crcs[row] = crc;
+      rows++;
+      index(h, l, row);
+    } catch (IOException e) {
+      throw new UncheckedIOException("embedding cache write in " + dir, e);
+    }
+  }
+
+  // Keeps up to `keep` current entries (read ones first, then the newest), in their old row order
+  private void rewrite(int keep) throws IOException {
+    BitSet live = new BitSet(rows);
+    for (int r : rowAt) {
+      if (r >= 0) live.set(r);
+    }
+    BitSet kept = new BitSet(rows);
+    int n = 0;
+    for (int r = live.previousSetBit(rows - 1); r >= 0 && n < keep; r = live.previousSetBit(r - 1)) {
+      if (read.get(r)) {
+        kept.set(r);
+        n++;
+      }
+    }
+    for (int r = live.previousSetBit(rows - 1); r >= 0 && n < keep; r = live.previousSetBit(r - 1)) {
+      if (!kept.get(r)) {
+        kept.set(r);
+        n++;
+      }
+    }
+
+    long[] keyOf = new long[2 * rows];
+    for (int i = 0; i < rowAt.length; i++) {
+      if (rowAt[i] >= 0) {
+        keyOf[2 * rowAt[i]] = hi[i];
+        keyOf[2 * rowAt[i] + 1] = lo[i];
+      }
+    }
+    Path keysTmp = dir.resolve("keys.bin.tmp");
+    Path vectorsTmp = dir.resolve("vectors.f32.tmp");
+    Files.deleteIfExists(vectorsTmp);
+    MappedRowFile out = new MappedRowFile(vectorsTmp, dim, false);
+    try (FileChannel kc = FileChannel.open(keysTmp, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      ByteBuffer bb = ByteBuffer.allocate(HEADER + n * KEY_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      bb.put(MAGIC).putInt(dim);
+      float[] v = new float[dim];
+      int to = 0;
+      for (int r = kept.nextSetBit(0); r >= 0; r = kept.nextSetBit(r + 1)) {
+        vectors.get(r, v);
+        out.put(to++, v);
+        bb.putLong(keyOf[2 * r]).putLong(keyOf[2 * r + 1]).putInt(crcs[r]);
+      }
+      bb.flip();
+      while (bb.hasRemaining()) kc.write(bb);
+      kc.force(false);
+    } finally {
+      out.close();
+    }
+    close();
+    Files.move(vectorsTmp, dir.resolve("vectors.f32"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    Files.move(keysTmp, dir.resolve("keys.bin"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    open();
+  }
+
+  private void index(long h, long l, int row) {
+    if ((used + 1) * 2 > rowAt.length) resize(rowAt.length * 2);
+    int mask = rowAt.length - 1;
+    for (int i = slot(h, l, mask); ; i = (i + 1) & mask) {
+      if (rowAt[i] < 0) {
+        hi[i] = h;
+        lo[i] = l;
+        rowAt[i] = row;
+        used++;
+        return;
+      }
+      if (hi[i] == h && lo[i] == l) {
+        rowAt[i] = row;
+        return;
+      }
+    }
+  }
+
+  private int find(long h, long l) {
+    int mask = rowAt.length - 1;
+    for (int i = slot(h, l, mask); rowAt[i] >= 0; i = (i + 1) & mask) {
+      if (hi[i] == h && lo[i] == l) return i;
+    }
+    return -1;
+  }
+
+  private static int slot(long h, long l, int mask) {
+    return (int) (h ^ (h >>> 32) ^ l) & mask;
+  }
+
+  private void resize(int capacity) {
+    long[] oh = hi, ol = lo;
+    int[] or = rowAt;
+    hi = new long[capacity];
+    lo = new long[capacity];
+    rowAt = new int[capacity];
+    Arrays.fill(rowAt, -1);
+    used = 0;
+    for (int i = 0; i < or.length; i++) {
+      if (or[i] >= 0) index(oh[i], ol[i], or[i]);
+    }
+  }
+
+  private static int crc(float[] v) {
+    ByteBuffer bb = ByteBuffer.allocate(4 * v.length).order(ByteOrder.LITTLE_ENDIAN);
+    bb.asFloatBuffer().put(v);
+    CRC32 c = new CRC32();
+    c.update(bb);
+    return (int) c.getValue();
+  }
+
+  @Override
+  public void close() throws IOException {
+    keys.force(false);
+    keys.close();
+    if (vectors != null) vectors.close();
+  }
+}
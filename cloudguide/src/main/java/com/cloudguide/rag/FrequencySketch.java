@@ -0,0 +1,65 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Popularity estimate shared by TinyLfuCache and TieredVectorDB: a 4-bit
+ * count-min sketch over the last ~10 x maxSize increments. All counters are
+ * halved when that sample fills, so old popularity fades. Four rows of
+ * saturating counters (one per byte, for clarity) are indexed by independent
+ * hashes. Not thread-safe; callers hold their own lock.
+ *
+ * @author rachanakeshav
+ */
+
+final class FrequencySketch {
+
+  private static final int ROWS = 4;
+  private static final int[] SEEDS = {0x97cb3127, 0xb3c4d5e7, 0x5f3759df, 0x2545f491};
+
+  private final byte[][] counts;
+  private final int mask;
+  private final int sampleSize;
+  private int additions;
+
+  FrequencySketch(int maxSize) {
+    // Four counters per cached entry and row: with one per entry, a cache full of hot
+    // keys leaves about 1 in 6 newcomers colliding with hot keys in every row
+    int width = Integer.highestOneBit((int) Math.max(16, Math.min(1 << 28, 4L * maxSize) - 1)) << 1;
+    counts = new byte[ROWS][width];
+    mask = width - 1;
+    sampleSize = 10 * Math.max(16, maxSize);
+  }
+
+  void increment(int hash) {
+    boolean added = false;
+    for (int r = 0; r < ROWS; r++) {
+      int i = index(hash, r);
+      if (counts[r][i] < 15) {
+        counts[r][i]++;
+        added = true;
+      }
+    }
+    if (added && ++additions >= sampleSize) reset();
+  }
+
+  int frequency(int hash) {
+    int min = 15;
+    for (int r = 0; r < ROWS; r++) min = Math.min(min, counts[r][index(hash, r)]);
+    return min;
+  }
+
+  private int index(int hash, int row) {
+    int h = (hash ^ SEEDS[row]) * 0x9E3779B1;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  private void reset() {
+    for (byte[] row : counts) {
+      for (int i = 0; i < row.length; i++) row[i] >>= 1;
+    }
+    additions /= 2;
+  }
+}
@@ -0,0 +1,576 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * In-process HNSW (hierarchical navigable small world) graph index.
+ *
+ * Inserts and searches may run concurrently: each node's link lists are
+ * replaced copy-on-write under that node's monitor, so readers only lock
+ * long enough to grab the current array. Re-upserting an id inserts a fresh
+ * node and retires the old one, which stays in the graph for routing but is
+ * never returned. Searches widen their candidate list by the retired share so
+ * they still fill k, and {@link #rebuild} re-inserts the live nodes into a
+ * fresh graph once retired ones pile up.
+ *
+ * @author rachanakeshav
+ */
+
+import com.cloudguide.metrics.Metrics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class HnswVectorDB implements VectorDB {
+
+  private static final int INITIAL_NODES = 1024;
+
+  private static final class Node {
+    final float[] vec;          // L2-normalized
+    final String id, docId, text;
+    final int[][] links;        // per level, replaced copy-on-write under synchronized(this)
+    volatile boolean retired;
+    volatile boolean hidden;    // inserted by a replace that has not swapped in yet
+
+
+    Node(float[] vec, String id, String docId, String text, int level) {
+      this.vec = vec;
+      this.id = id;
+      this.docId = docId;
+      this.text = text;
+      this.links = new int[level + 1][];
+      for (int l = 0; l <= level; l++) links[l] = new int[0];
+    }
+
+    int level() { return links.length - 1; }
+
+    boolean live() { return !retired && !hidden; }
+  }
+
+  private record Entry(int node, int level) { }
+
+  private final int m;
+  private final int mMax0;
+  private final int efConstruction;
+  private final int efSearch;
+  private final double levelMult;
+
+  private volatile Map<String, Integer> nodeById = new ConcurrentHashMap<>();
+  private volatile Map<String, BitSet> nodesByDocId = new ConcurrentHashMap<>();   // live nodes; sets changed only inside compute()
+  private final Object growLock = new Object();
+  private volatile Node[] nodes = new Node[INITIAL_NODES];
+  private int count;                 // guarded by growLock
+  private volatile Entry entry;
+  private volatile int dim = -1;
+  private final AtomicLong version = new AtomicLong();
+  private final AtomicInteger retired = new AtomicInteger();
+  private final AtomicInteger hiddenCount = new AtomicInteger();
+
+  // Writers share the read side (they only lock single nodes) and rebuild() holds the
+  // write side throughout; searches share the read side of graphLock, whose write side
+  // is only taken to swap a rebuilt graph or a replaced document in.
+  private final ReentrantReadWriteLock writeLock = new ReentrantReadWriteLock();
+  private final ReentrantReadWriteLock graphLock = new ReentrantReadWriteLock();
+
+  private final ThreadLocal<Visited> visited = ThreadLocal.withInitial(Visited::new);
+
+  public HnswVectorDB(int m, int efConstruction, int efSearch) {
+    this(m, efConstruction, efSearch, true);
+  }
+
+  // rebuild() fills a scratch graph that must not take over the gauge
+  private HnswVectorDB(int m, int efConstruction, int efSearch, boolean exported) {
+    this.m = Math.max(2, m);
+    this.mMax0 = this.m * 2;
+    this.efConstruction = Math.max(this.m, efConstruction);
+    this.efSearch = Math.max(1, efSearch);
+    this.levelMult = 1.0 / Math.log(this.m);
+    if (exported) {
+      Metrics.gauge("cloudguide_hnsw_retired_nodes", "Replaced or deleted nodes still held in the HNSW graph",
+          this::retiredNodes);
+    }
+  }
+
+  @Override
+  public void upsert(Doc doc) {
+    upsertBatch(List.of(doc));
+  }
+
+  @Override
+  public void upsertBatch(List<Doc> docs) {
+    writeLock.readLock().lock();
+    try {
+      for (Doc d : docs) insert(d, false);
+      version.incrementAndGet();
+    } finally {
+      writeLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public long version() {
+    return version.get();
+  }
+
+  @Override
+  public int dimension() {
+    return dim;
+  }
+
+  /**
+   * Inserts the new chunks hidden, then shows them and retires the document's
+   * older nodes in one step under the graph lock, so a concurrent reader sees
+   * either the old chunks or the new ones. Retired nodes stay in the graph as
+   * routing points.
+   */
+  @Override
+  public void replaceDocument(String docId, List<Doc> chunks) {
+    writeLock.readLock().lock();
+    try {
+      int[] fresh = new int[chunks.size()];
+      for (int i = 0; i < fresh.length; i++) fresh[i] = insert(chunks.get(i), true);
+      graphLock.writeLock().lock();
+      try {
+        BitSet old = nodesByDocId.remove(docId);
+        for (int id : fresh) {
+          show(id);
+          hiddenCount.decrementAndGet();
+        }
+        if (old != null) {
+          for (int i = old.nextSetBit(0); i >= 0; i = old.nextSetBit(i + 1)) {
+            retire(i);
+            nodeById.remove(node(i).id, i);
+          }
+        }
+      } finally {
+        graphLock.writeLock().unlock();
+      }
+      version.incrementAndGet();
+    } finally {
+      writeLock.readLock().unlock();
+    }
+  }
+
+  // Maps the node's id to it, retiring whichever node held the id before
+  private void show(int id) {
+    Node nd = node(id);
+    Integer previous = nodeById.put(nd.id, id);
+    if (previous != null) retire(previous);
+    nodesByDocId.compute(nd.docId, (k, rows) -> {
+      if (rows == null) rows = new BitSet();
+      rows.set(id);
+      return rows;
+    });
+    nd.hidden = false;
+  }
+
+  // Counted once, whichever of a re-upsert and a replace gets to the node first
+  private void retire(int id) {
+    Node nd = node(id);
+    synchronized (nd) {
+      if (nd.retired) return;
+      nd.retired = true;
+    }
+    retired.incrementAndGet();
+    nodesByDocId.computeIfPresent(nd.docId, (k, rows) -> {
+      rows.clear(id);
+      return rows.isEmpty() ? null : rows;
+    });
+  }
+
+  /** Nodes replaced or deleted but still in the graph, until the next {@link #rebuild}. */
+  public int retiredNodes() {
+    return retired.get();
+  }
+
+  /** Runs {@link #rebuild} once at least {@code retiredRatio} of the nodes are retired. */
+  public boolean rebuildIfNeeded(double retiredRatio) {
+    int total;
+    synchronized (growLock) {
+      total = count;
+    }
+    int r = retired.get();
+    if (r == 0 || r < retiredRatio * total) return false;
+    rebuild();
+    return true;
+  }
+
+  /**
+   * Re-inserts the live nodes into a fresh graph and swaps it in, dropping the
+   * retired ones. Writers wait for the whole rebuild, searches only for the
+   * swap; the stored content (and so {@link #version}) does not change.
+   */
+  public void rebuild() {
+    writeLock.writeLock().lock();
+    try {
+      HnswVectorDB fresh = new HnswVectorDB(m, efConstruction, efSearch, false);
+      int total;
+      synchronized (growLock) {
+        total = count;
+      }
+      for (int i = 0; i < total; i++) {
+        Node nd = node(i);
+        if (!nd.retired) fresh.insert(new Doc(nd.id, nd.docId, nd.text, nd.vec), false);
+      }
+      graphLock.writeLock().lock();
+      try {
+        synchronized (growLock) {
+          nodes = fresh.nodes;
+          count = fresh.count;
+          entry = fresh.entry;
+        }
+        nodeById = fresh.nodeById;
+        nodesByDocId = fresh.nodesByDocId;
+        retired.set(0);
+      } finally {
+        graphLock.writeLock().unlock();
+      }
+    } finally {
+      writeLock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public Set<String> chunkIds() {
+    return new HashSet<>(nodeById.keySet());
+  }
+
+  /** Live chunks by id; embeddings come back L2-normalized and ingest time as "now" (it is not kept here). */
+  @Override
+  public List<Doc> fetch(List<String> ids) {
+    graphLock.readLock().lock();
+    try {
+      List<Doc> out = new ArrayList<>(ids.size());
+      for (String id : ids) {
+        Integer i = nodeById.get(id);
+        if (i == null) continue;
+        Node nd = node(i);
+        if (nd.live()) out.add(new Doc(nd.id, nd.docId, nd.text, nd.vec.clone()));
+      }
+      return out;
+    } finally {
+      graphLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public List<SearchHit> topK(float[] queryEmbedding, int k) {
+    graphLock.readLock().lock();
+    try {
+      Entry ep = entry;
+      if (k <= 0 || ep == null) return List.of();
+      checkDim(queryEmbedding, "query");
+      float[] q = VectorMath.normalized(queryEmbedding);
+
+      int cur = ep.node;
+      float curScore = VectorMath.dot(q, node(cur).vec);
+      for (int l = ep.level; l > 0; l--) {
+        cur = greedy(q, cur, curScore, l);
+        curScore = VectorMath.dot(q, node(cur).vec);
+      }
+      int total;
+      synchronized (growLock) {
+        total = count;
+      }
+      // Retired and hidden nodes still take candidate slots: start from a list grown by their share,
+      // and widen it again if the beam still came back with fewer than k live nodes
+      int ef = Math.max(efSearch, k);
+      int r = retired.get() + hiddenCount.get();
+      if (r > 0) ef = (int) Math.min(total, (long) ef * total / Math.max(1, total - r) + 1);
+      List<SearchHit> hits;
+      while (true) {
+        TopK w = searchLayer(q, cur, curScore, ef, 0);
+        int[] rows = new int[w.size()];
+        float[] scores = new float[w.size()];
+        int n = w.drainSorted(rows, scores);
+        hits = new ArrayList<>(Math.min(k, n));
+        for (int i = 0; i < n && hits.size() < k; i++) {
+          Node nd = node(rows[i]);
+          if (!nd.live()) continue;
+          hits.add(new SearchHit(nd.id, nd.docId, nd.text, scores[i]));
+        }
+        if (hits.size() >= k || r == 0 || ef >= total) return hits;
+        ef = (int) Math.min(total, 2L * ef);
+      }
+    } finally {
+      graphLock.readLock().unlock();
+    }
+  }
+
+  // ---- insert ----
+
+  // A hidden node is linked into the graph but not returned until show() is called on it
+  private int insert(Doc d, boolean hidden) {
+    checkDim(d.embedding(), "id=" + d.id());
+    int level = randomLevel();
+    Node nd = new Node(VectorMath.normalized(d.embedding()), d.id(), d.docId(), d.text(), level);
+    nd.hidden = true;
+    int id = publish(nd);
+    if (hidden) hiddenCount.incrementAndGet();
+    else show(id);
+
+    Entry ep = entry;
+    if (ep == null) {
+      synchronized (growLock) {
+        if (entry == null) {
+          entry = new Entry(id, level);
+          return id;
+        }
+      }
+      ep = entry;
+    }
+
+    float[] q = nd.vec;
+    int cur = ep.node;
+    float curScore = VectorMath.dot(q, node(cur).vec);
+    for (int l = ep.level; l > level; l--) {
+      cur = greedy(q, cur, curScore, l);
+      curScore = VectorMath.dot(q, node(cur).vec);
+    }
+
+    for (int l = Math.min(level, ep.level); l >= 0; l--) {
+      TopK w = searchLayer(q, cur, curScore, efConstruction, l);
+      int[] cand = new int[w.size()];
+      float[] candScores = new float[w.size()];
+      int n = w.drainSorted(cand, candScores);
+      cur = cand[0];
+      curScore = candScores[0];
+
+      int[] selected = selectNeighbors(cand, candScores, n, m);
+      synchronized (nd) {
+        nd.links[l] = selected;
+      }
+      int cap = l == 0 ? mMax0 : m;
+      for (int nb : selected) link(node(nb), id, l, cap);
+    }
+
+    if (level > ep.level) {
+      synchronized (growLock) {
+        if (level > entry.level) entry = new Entry(id, level);
+      }
+    }
+    return id;
+  }
+
+  private int publish(Node nd) {
+    synchronized (growLock) {
+      if (count == nodes.length) nodes = Arrays.copyOf(nodes, count + (count >> 1));
+      nodes[count] = nd;
+      return count++;
+    }
+  }
+
+  /** Adds a back-link from {@code target} to {@code id}, pruning with the heuristic when over capacity. */
+  private void link(Node target, int id, int level, int cap) {
+    synchronized (target) {
+      int[] cur = target.links[level];
+      int[] next = Arrays.copyOf(cur, cur.length + 1);
+      next[cur.length] = id;
+      if (next.length > cap) {
+        float[] scores = new float[next.length];
+        for (int i = 0; i < next.length; i++) scores[i] = VectorMath.dot(target.vec, node(next[i]).vec);
+        sortByScoreDesc(next, scores);
+        next = selectNeighbors(next, scores, next.length, cap);
+      }
+      target.links[level] = next;
+    }
+  }
+
+  /**
+   * HNSW neighbour heuristic: walk candidates best-first and keep one only if it
+   * is closer to the base than to every neighbour already kept. Candidates must
+   * be sorted by score descending.
+   */
+  private int[] selectNeighbors(int[] cand, float[] scores, int n, int max) {
+    int[] out = new int[Math.min(n, max)];
+    int size = 0;
+    for (int i = 0; i < n && size < max; i++) {
+      float[] v = node(cand[i]).vec;
+      boolean keep = true;
+      for (int j = 0; j < size && keep; j++) {
+        if (VectorMath.dot(v, node(out[j]).vec) > scores[i]) keep = false;
+      }
+      if (keep) out[size++] = cand[i];
+    }
+    return size == out.length ? out : Arrays.copyOf(out, size);
+  }
+
+  // ---- search ----
+
+  private int greedy(float[] q, int cur, float curScore, int level) {
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int nb : links(node(cur), level)) {
+        float s = VectorMath.dot(q, node(nb).vec);
+        if (s > curScore) {
+          curScore = s;
+          cur = nb;
+          changed = true;
+        }
+      }
+    }
+    return cur;
+  }
+
+  private TopK searchLayer(float[] q, int ep, float epScore, int ef, int level) {
+    Visited seen = visited.get();
+    seen.reset(nodes.length);
+    seen.add(ep);
+
+    MaxHeap candidates = new MaxHeap(ef * 2);
+    TopK results = new TopK(ef);
+    candidates.push(ep, epScore);
+    results.offer(ep, epScore);
+
+    while (candidates.size() > 0) {
+      float cs = candidates.topScore();
+      int c = candidates.pop();
+      if (results.isFull() && cs < results.threshold()) break;
+      for (int nb : links(node(c), level)) {
+        if (!seen.add(nb)) continue;
+        float s = VectorMath.dot(q, node(nb).vec);
+        if (!results.isFull() || s > results.threshold()) {
+          candidates.push(nb, s);
+          results.offer(nb, s);
+        }
+      }
+    }
+    return results;
+  }
+
+  private static int[] links(Node nd, int level) {
+    if (level >= nd.links.length) return new int[0];
+    synchronized (nd) {
+      return nd.links[level];
+    }
+  }
+
+  // ---- helpers ----
+
+  private Node node(int id) {
+    return nodes[id];
+  }
+
+  private void checkDim(float[] v, String what) {
+    if (v == null || v.length == 0) {
+      throw new IllegalArgumentException("Missing embedding for " + what);
+    }
+    int d = dim;
+    if (d < 0) {
+      synchronized (growLock) {
+        if (dim < 0) dim = v.length;
+        d = dim;
+      }
+    }
+    if (v.length != d) {
+      throw new IllegalArgumentException("Embedding dim mismatch for " + what
+          + " got=" + v.length + " expected=" + d);
+    }
+  }
+
+  private int randomLevel() {
+    double u = 1.0 - ThreadLocalRandom.current().nextDouble();
+    return (int) Math.floor(-Math.log(u) * levelMult);
+  }
+
+  private static void sortByScoreDesc(int[] ids, float[] scores) {
+    // insertion sort: lists are at most mMax0 + 1 long
+    for (int i = 1; i < ids.length; i++) {
+      int id = ids[i];
+      float s = scores[i];
+      int j = i - 1;
+      while (j >= 0 && scores[j] < s) {
+        ids[j + 1] = ids[j];
+        scores[j + 1] = scores[j];
+        j--;
+      }
+      ids[j + 1] = id;
+      scores[j + 1] = s;
+    }
+  }
+
+  /** Per-thread visited marks, cleared in O(1) by bumping a generation stamp. */
+  private static final class Visited {
+    int[] marks = new int[0];
+    int gen;
+
+    void reset(int n) {
+      if (marks.length < n) {
+        marks = new int[n];
+        gen = 0;
+      }
+      if (++gen == Integer.MAX_VALUE) {
+        Arrays.fill(marks, 0);
+        gen = 1;
+      }
+    }
+
+    boolean add(int id) {
+      if (id >= marks.length) marks = Arrays.copyOf(marks, Math.max(id + 1, marks.length * 2));
+      if (marks[id] == gen) return false;
+      marks[id] = gen;
+      return true;
+    }
+  }
+
+  /** Unbounded binary max-heap of (node, score) on primitive arrays. */
+  private static final class MaxHeap {
+    int[] ids;
+    float[] scores;
+    int size;
+
+    MaxHeap(int cap) {
+      ids = new int[Math.max(4, cap)];
+      scores = new float[ids.length];
+    }
+
+    int size() { return size; }
+
+    float topScore() { return scores[0]; }
+
+    void push(int id, float s) {
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+        scores = Arrays.copyOf(scores, size * 2);
+      }
+      int i = size++;
+      while (i > 0) {
+        int p = (i - 1) >>> 1;
+        if (scores[p] >= s) break;
+        ids[i] = ids[p];
+        scores[i] = scores[p];
+        i = p;
+      }
+      ids[i] = id;
+      scores[i] = s;
+    }
+
+    int pop() {
+      int top = ids[0];
+      size--;
+      if (size > 0) {
+        int id = ids[size];
+        float s = scores[size];
+        int i = 0, half = size >>> 1;
+        while (i < half) {
+          int c = 2 * i + 1;
+          if (c + 1 < size && scores[c + 1] > scores[c]) c++;
+          if (s >= scores[c]) break;
+          ids[i] = ids[c];
+          scores[i] = scores[c];
+          i = c;
+        }
+        ids[i] = id;
+        scores[i] = s;
+      }
+      return top;
+    }
+  }
+}
@@ -9,52 +9,1027 @@ package com.cloudguide.rag;
  * @author rachanakeshav
  */
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-public class InMemoryVectorDB implements VectorDB {
+public class InMemoryVectorDB implements VectorDB, AutoCloseable {
 
-  // Store the interface's Doc record objects
-  private final Map<String, VectorDB.Doc> byId = new ConcurrentHashMap<>();
+  /**
+   * NONE scans floats; INT8 scans one byte per dimension; BINARY scans one sign
+   * bit per dimension by Hamming distance, which needs a larger rescore pool
+   * (a few hundred) but keeps 10M+ rows in heap and scans them fastest.
+   */
+  public enum Quantization {
+    NONE, INT8, BINARY;
+
+    public static Quantization parse(String s) {
+      return s == null || s.isBlank() ? NONE : valueOf(s.trim().toUpperCase(Locale.ROOT));
+    }
+  }
+
+  private static final int INITIAL_ROWS = 1024;
+  // rows scored against every query of a batch before moving on (~100-200 KB of floats at typical dims)
+  private static final int BLOCK_ROWS = 64;
+  private static final AtomicInteger POOL_SEQ = new AtomicInteger();
+
+  private final Quantization quantization;
+  private final int rescoreCandidates;
+  private final Path spillDir;
+
+  // Rows are scanned in fixed-size segments; with parallelism > 1 the segments
+  // run on a dedicated fork-join pool and their partial top-K heaps are merged.
+  private final int segmentRows;
+  private final ForkJoinPool scanPool;
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Map<String, Integer> rowById = new HashMap<>();
+  private volatile int dim = -1;
+
+  // Rows are addressed globally: [0, baseRows) live in the memory-mapped snapshot
+  // segments loaded at startup (read-only, paged in lazily), [baseRows, baseRows + size)
+  // in the heap tail. Replacing a snapshot row marks it dead and appends to the tail.
+  private final Path snapshotDir;
+  private final Object snapshotLock = new Object();
+  private List<SnapshotSegment> base = List.of();
+  private int[] baseStart = new int[0];
+  private int baseRows;
+  private long generation;
+  private long baseGeneration;   // generation the mapped segments came from
+  private volatile boolean baseIndexed = true;
+  private final BitSet dead = new BitSet();
+  private volatile boolean dirty;
+  private volatile long writes;  // applied batches: the store version, and how compaction tells a snapshot is current
+  private long snapshotWrites;
+
+  // Upserts since the last snapshot; replayed on top of it at startup. Records are
+  // queued under the write lock (so log order = apply order) and awaited outside it.
+  private final VectorWal wal;
+  private long replayedDocs;
+  // Applied writes whose record is not on disk yet, oldest first (guarded by itself).
+  // If the log fails they are taken back, so memory never holds what a restart would lose.
+  private final ArrayDeque<Undo> unlogged = new ArrayDeque<>();
+
+  // docId -> global rows, maintained with rowById; a filter turns into a bitmap of
+  // candidate rows before any vector is touched
+  private final Map<String, BitSet> rowsByDocId = new HashMap<>();
+
+  // NONE: tail embeddings live in one row-major heap arena, L2-normalized on upsert
+  // so that cosine similarity is a plain dot product at query time.
+  // INT8 / BINARY: the heap only holds compact codes for the scan; the normalized
+  // floats go to a memory-mapped spill file and are read back to rescore the candidates.
+  private int size;
+  private float[] arena = new float[0];
+  private RowCodes codes;       // indexed by global row
+  private MappedRowFile full;   // indexed by tail row
+  private String[] ids = new String[0];
+  private String[] docIds = new String[0];
+  private String[] texts = new String[0];
+  private long[] ingestedAt = new long[0];
+
+  public InMemoryVectorDB() {
+    this(Quantization.NONE, 0, null, 1, 16384, null, false);
+  }
+
+  /**
+   * @param rescoreCandidates how many scan candidates are rescored at full precision (quantized modes)
+   * @param spillDir where full-precision vectors are kept for rescoring; {@code null} = java.io.tmpdir
+   * @param parallelism scan threads; 1 scans on the caller, 0 = one per available core
+   * @param segmentRows rows per scan segment (the unit of parallel work)
+   * @param snapshotDir persistent snapshot location, opened on construction; {@code null} = heap only
+   * @param wal log every upsert to {@code snapshotDir} before acknowledging it (requires a snapshot dir)
+   */
+  public InMemoryVectorDB(Quantization quantization, int rescoreCandidates, Path spillDir,
+      int parallelism, int segmentRows, Path snapshotDir, boolean wal) {
+    this.quantization = quantization;
+    this.rescoreCandidates = Math.max(1, rescoreCandidates);
+    this.spillDir = spillDir != null ? spillDir : Path.of(System.getProperty("java.io.tmpdir"));
+    this.segmentRows = Math.max(256, segmentRows);
+    int threads = parallelism <= 0 ? Runtime.getRuntime().availableProcessors() : parallelism;
+    this.scanPool = threads <= 1 ? null : new ForkJoinPool(threads, pool -> {
+      ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+      t.setName("cloudguide-scan-" + POOL_SEQ.incrementAndGet());
+      return t;
+    }, null, false);
+    this.snapshotDir = snapshotDir;
+    if (snapshotDir != null) loadSnapshot();
+    this.wal = snapshotDir != null && wal ? openWal() : null;
+  }
+
+  private VectorWal openWal() {
+    try {
+      replayedDocs = VectorWal.replay(snapshotDir, generation, new VectorWal.Replay() {
+        @Override
+        public void upsert(List<VectorDB.Doc> docs) {
+          ensureBaseIndexed();
+          for (var d : docs) put(d, null);
+          dirty = true;
+        }
+
+        @Override
+        public void replaceDocument(String docId, List<VectorDB.Doc> docs) {
+          ensureBaseIndexed();
+          removeDocId(docId, null);
+          for (var d : docs) put(d, null);
+          dirty = true;
+        }
+      });
+      return VectorWal.open(snapshotDir, generation);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Vector WAL unreadable in " + snapshotDir, e);
+    }
+  }
+
+  private void loadSnapshot() {
+    VectorSnapshot snap;
+    try {
+      snap = VectorSnapshot.open(snapshotDir);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Vector snapshot unreadable in " + snapshotDir, e);
+    }
+    if (snap == null) return;
+    generation = snap.generation;
+    useBase(snap);
+  }
+
+  // Maps the snapshot's segments as rows [0, baseRows); the tail must be empty
+  private void useBase(VectorSnapshot snap) {
+    baseGeneration = snap.generation;
+    base = snap.segments;
+    baseStart = new int[base.size()];
+    baseRows = 0;
+    if (base.isEmpty()) return;
+
+    for (int i = 0; i < base.size(); i++) {
+      baseStart[i] = baseRows;
+      baseRows += base.get(i).rows;
+    }
+    baseIndexed = false;
+    if (dim < 0) init(snap.dim);
+    if (quantization != Quantization.NONE) {
+      // codes are not persisted; re-encode from the mapped floats (no re-embedding needed)
+      codes.ensureCapacity(baseRows);
+      float[] v = new float[dim];
+      for (int g = 0; g < baseRows; g++) {
+        vector(g, v);
+        codes.set(g, v, g);
+      }
+    }
+  }
+
+  @Override
+  public long version() {
+    return writes;
+  }
+
+  @Override
+  public int dimension() {
+    return dim;
+  }
+
+  /** Number of rows served from the mapped snapshot (restored at startup, or rebased onto by {@link #compact}). */
+  public int restoredRows() {
+    return baseRows;
+  }
+
+  /** Number of upserted documents replayed from the write-ahead log at startup. */
+  public long replayedDocs() {
+    return replayedDocs;
+  }
 
   @Override
   public void upsert(VectorDB.Doc doc) {
-    byId.put(doc.id(), doc);
+    upsertBatch(List.of(doc));
   }
 
   @Override
   public void upsertBatch(List<VectorDB.Doc> docs) {
-    for (var d : docs) byId.put(d.id(), d);
+    try {
+      apply(null, docs).join();
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException re ? re : e;
+    }
+  }
+
+  /** Applies the batch immediately; the stage completes once it is durable in the write-ahead log. */
+  @Override
+  public CompletionStage<Void> upsertBatchAsync(List<VectorDB.Doc> docs) {
+    try {
+      return apply(null, docs);
+    } catch (RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  @Override
+  public void replaceDocument(String docId, List<VectorDB.Doc> chunks) {
+    try {
+      apply(Objects.requireNonNull(docId, "docId"), chunks).join();
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException re ? re : e;
+    }
+  }
+
+  /**
+   * Tombstones every chunk of {@code docId} and adds {@code chunks} under one write
+   * lock and one log record, so readers and crash recovery see either the old
+   * document or the new one. The stage completes once the swap is durable.
+   */
+  @Override
+  public CompletionStage<Void> replaceDocumentAsync(String docId, List<VectorDB.Doc> chunks) {
+    try {
+      return apply(Objects.requireNonNull(docId, "docId"), chunks);
+    } catch (RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /** Ids of every live chunk (a copy). */
+  @Override
+  public Set<String> chunkIds() {
+    lock.writeLock().lock();
+    try {
+      ensureBaseIndexed();
+      return new HashSet<>(rowById.keySet());
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Live chunks by id, with their stored (L2-normalized) embeddings. */
+  @Override
+  public List<VectorDB.Doc> fetch(List<String> chunkIds) {
+    readLockIndexed();
+    try {
+      List<VectorDB.Doc> out = new ArrayList<>(chunkIds.size());
+      for (String id : chunkIds) {
+        Integer g = rowById.get(id);
+        if (g == null) continue;
+        float[] v = new float[dim];
+        vector(g, v);
+        out.add(new VectorDB.Doc(id, docId(g), text(g), v, ingestedAt(g)));
+      }
+      return out;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * The chunks of {@code docs} not already stored under the same id with the same
+   * ingest time: the ones an upsert would change. For a mirror re-reading chunks it
+   * may already hold, so it can leave {@link #version} alone when nothing changed.
+   */
+  public List<VectorDB.Doc> changed(List<VectorDB.Doc> docs) {
+    readLockIndexed();
+    try {
+      List<VectorDB.Doc> out = new ArrayList<>(docs.size());
+      for (VectorDB.Doc d : docs) {
+        Integer g = rowById.get(d.id());
+        if (g == null || ingestedAt(g) != d.ingestedAt()) out.add(d);
+      }
+      return out;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Drops single chunks by id. Evictions are not written to the log, so this is
+   * only for a store that mirrors another one and is told what to hold by its
+   * owner (TieredVectorDB, ReplicatedVectorDB). Rows are tombstoned and
+   * reclaimed by compact().
+   */
+  public void evict(Collection<String> chunkIds) {
+    if (wal != null) {
+      throw new IllegalStateException("evict() is not logged; not available with a write-ahead log");
+    }
+    lock.writeLock().lock();
+    try {
+      ensureBaseIndexed();
+      for (String id : chunkIds) {
+        Integer g = rowById.remove(id);
+        if (g == null) continue;
+        dead.set(g);
+        String d = docId(g);
+        BitSet rows = rowsByDocId.get(d);
+        if (rows != null) {
+          rows.clear(g);
+          if (rows.isEmpty()) rowsByDocId.remove(d);
+        }
+      }
+      dirty = true;
+      writes++;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * With a log, the write is visible to readers before its record is on disk. If
+   * the record cannot be written, this write and every later one still waiting
+   * for the disk are taken back before their stages fail, and the log refuses
+   * further writes until a restart (see {@link VectorWal}); readers may have
+   * seen the rows in between, a restart will not.
+   */
+  private CompletableFuture<Void> apply(String replaceDocId, List<VectorDB.Doc> docs) {
+    if (docs.isEmpty() && replaceDocId == null) return CompletableFuture.completedFuture(null);
+    ByteBuffer record = wal == null ? null
+        : replaceDocId == null ? VectorWal.encodeUpsert(docs) : VectorWal.encodeReplace(replaceDocId, docs);
+    CompletableFuture<Void> durable = null;
+    Undo undo = wal == null ? null : new Undo();
+    lock.writeLock().lock();
+    try {
+      int expect = dim;
+      for (var d : docs) expect = check(d, expect);
+      ensureBaseIndexed();
+      if (wal != null) durable = wal.append(record);   // throws once the log has failed, before anything is applied
+      if (replaceDocId != null) removeDocId(replaceDocId, undo);
+      for (var d : docs) put(d, undo);
+      dirty = true;
+      writes++;
+      if (undo != null) {
+        synchronized (unlogged) {
+          unlogged.addLast(undo);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    if (durable == null) return CompletableFuture.completedFuture(null);
+    // on the flusher thread, so it is off the list before any later record can fail; the
+    // caller's stage hangs off this one, so an acknowledged write is never still "unlogged"
+    CompletableFuture<Void> logged = durable.thenRun(() -> {
+      synchronized (unlogged) {
+        unlogged.remove(undo);
+      }
+    });
+    // the rollback needs the write lock, which a snapshot waiting on the flusher may hold for reading
+    return logged.exceptionallyComposeAsync(err -> {
+      Throwable cause = err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+      rollBackUnlogged();
+      return CompletableFuture.failedFuture(new UncheckedIOException("Vector WAL write failed; write taken back",
+          cause instanceof IOException io ? io : new IOException(cause)));
+    });
+  }
+
+  // Rows one logged write added and live rows it tombstoned
+  private static final class Undo {
+    final BitSet added = new BitSet();
+    final BitSet buried = new BitSet();
+  }
+
+  // Takes back every write whose record did not reach the disk, newest first
+  private void rollBackUnlogged() {
+    lock.writeLock().lock();
+    try {
+      while (true) {
+        Undo u;
+        synchronized (unlogged) {
+          u = unlogged.pollLast();
+        }
+        if (u == null) break;
+        for (int g = u.added.nextSetBit(0); g >= 0; g = u.added.nextSetBit(g + 1)) {
+          dead.set(g);
+          rowById.remove(id(g), g);
+          BitSet rows = rowsByDocId.get(docId(g));
+          if (rows != null) {
+            rows.clear(g);
+            if (rows.isEmpty()) rowsByDocId.remove(docId(g));
+          }
+        }
+        for (int g = u.buried.nextSetBit(0); g >= 0; g = u.buried.nextSetBit(g + 1)) {
+          dead.clear(g);
+          rowById.put(id(g), g);
+          rowsByDocId.computeIfAbsent(docId(g), x -> new BitSet()).set(g);
+        }
+        dirty = true;
+        writes++;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private boolean hasUnlogged() {
+    synchronized (unlogged) {
+      return !unlogged.isEmpty();
+    }
+  }
+
+  // Validates the whole batch before any row is touched, so a rejected batch is neither applied nor logged
+  private static int check(VectorDB.Doc d, int expect) {
+    float[] e = d.embedding();
+    if (e == null || e.length == 0) {
+      throw new IllegalArgumentException("Missing embedding for id=" + d.id());
+    }
+    if (expect >= 0 && e.length != expect) {
+      throw new IllegalArgumentException("Embedding dim mismatch for id=" + d.id()
+          + " got=" + e.length + " expected=" + expect);
+    }
+    return e.length;
+  }
+
+  // With an undo record, a row being replaced is tombstoned rather than overwritten, so it can be restored
+  private void put(VectorDB.Doc d, Undo undo) {
+    float[] e = d.embedding();
+    check(d, dim);
+    if (dim < 0) init(e.length);
+
+    Integer existing = rowById.get(d.id());
+    int t;
+    if (existing != null && existing >= baseRows && undo == null) {
+      t = existing - baseRows;
+      BitSet was = rowsByDocId.get(docIds[t]);
+      if (was != null) was.clear(existing);
+    } else {
+      if (existing != null) {
+        dead.set(existing);
+        BitSet was = rowsByDocId.get(docId(existing));
+        if (was != null) was.clear(existing);
+        if (undo != null && !undo.added.get(existing)) undo.buried.set(existing);
+      }
+      t = size;
+      ensureCapacity(size + 1);
+      size++;
+      rowById.put(d.id(), baseRows + t);
+      if (undo != null) undo.added.set(baseRows + t);
+    }
+    if (quantization == Quantization.NONE) {
+      VectorMath.normalizeInto(e, arena, t * dim);
+    } else {
+      float[] v = VectorMath.normalized(e);
+      full.put(t, v);   // first: widening an int8 column re-encodes the rows from these floats
+      codes.set(baseRows + t, v, baseRows + size);
+    }
+    ids[t] = d.id();
+    docIds[t] = d.docId();
+    texts[t] = d.text();
+    ingestedAt[t] = d.ingestedAt();
+    rowsByDocId.computeIfAbsent(d.docId(), x -> new BitSet()).set(baseRows + t);
+  }
+
+  // Tombstones every live row of docId; the space is reclaimed by compact()
+  private void removeDocId(String docId, Undo undo) {
+    BitSet rows = rowsByDocId.remove(docId);
+    if (rows == null) return;
+    for (int g = rows.nextSetBit(0); g >= 0; g = rows.nextSetBit(g + 1)) {
+      dead.set(g);
+      rowById.remove(id(g), g);
+    }
+    if (undo != null) undo.buried.or(rows);
+  }
+
+  private void init(int d) {
+    dim = d;
+    if (quantization != Quantization.NONE) {
+      codes = newCodes(d);
+      full = MappedRowFile.temp(spillDir, d);
+    }
+  }
+
+  private RowCodes newCodes(int d) {
+    return quantization == Quantization.BINARY ? new BinaryCodes(d) : new Int8Codes(d, this::vector);
+  }
+
+  // Takes the read lock with the snapshot rows indexed. Indexing and reading under two separate
+  // locks would let a rebase in between swap in an unindexed base, so the write lock used for
+  // indexing is downgraded instead of released.
+  private void readLockIndexed() {
+    lock.readLock().lock();
+    if (baseIndexed) return;
+    lock.readLock().unlock();
+    lock.writeLock().lock();
+    try {
+      ensureBaseIndexed();
+      lock.readLock().lock();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // Snapshot ids are only decoded once something is written or filtered on,
+  // so a read-only node serving unfiltered queries never pays for it
+  private void ensureBaseIndexed() {
+    if (baseIndexed) return;
+    for (int s = 0; s < base.size(); s++) {
+      SnapshotSegment seg = base.get(s);
+      for (int r = 0; r < seg.rows; r++) {
+        int g = baseStart[s] + r;
+        if (dead.get(g)) continue;
+        rowById.put(seg.id(r), g);
+        rowsByDocId.computeIfAbsent(seg.docId(r), x -> new BitSet()).set(g);
+      }
+    }
+    baseIndexed = true;
+  }
+
+  private void ensureCapacity(int rows) {
+    if (rows <= ids.length) return;
+    int cap = Math.max(INITIAL_ROWS, ids.length);
+    while (cap < rows) cap += cap >> 1;
+    if (quantization == Quantization.NONE) {
+      long floats = (long) cap * dim;
+      if (floats > Integer.MAX_VALUE - 8) {
+        throw new IllegalStateException(cap + " rows of " + dim + " floats do not fit in one array; use a quantized mode");
+      }
+      arena = Arrays.copyOf(arena, (int) floats);
+    } else {
+      codes.ensureCapacity(baseRows + cap);
+    }
+    ids = Arrays.copyOf(ids, cap);
+    docIds = Arrays.copyOf(docIds, cap);
+    texts = Arrays.copyOf(texts, cap);
+    ingestedAt = Arrays.copyOf(ingestedAt, cap);
   }
 
   @Override
   public List<VectorDB.SearchHit> topK(float[] queryEmbedding, int k) {
-    if (k <= 0 || byId.isEmpty()) return List.of();
+    return topKBatch(List.of(queryEmbedding), k).get(0);
+  }
+
+  @Override
+  public List<List<VectorDB.SearchHit>> topKBatch(List<float[]> queryEmbeddings, int k) {
+    return topKBatch(queryEmbeddings, k, null);
+  }
 
-    // Max-heap by negative similarity to keep top K
-    PriorityQueue<Map.Entry<String, VectorDB.Doc>> pq =
-        new PriorityQueue<>(Comparator.comparingDouble(e -> -cosine(queryEmbedding, e.getValue().embedding())));
+  /**
+   * Scores all queries in one pass: rows are visited in small blocks and every
+   * query is run against a block while it is still in cache, so a batch of Q
+   * queries streams the vectors once instead of Q times.
+   */
+  @Override
+  public List<List<VectorDB.SearchHit>> topKBatch(List<float[]> queryEmbeddings, int k, SearchFilter filter) {
+    int nq = queryEmbeddings.size();
+    if (k <= 0 || nq == 0) return emptyLists(nq);
+    boolean filtered = filter != null && !filter.isEmpty();
+    if (filtered) {
+      readLockIndexed();
+    } else {
+      lock.readLock().lock();
+    }
+    try {
+      if (baseRows + size == 0) return emptyLists(nq);
+      float[][] qs = new float[nq][];
+      for (int j = 0; j < nq; j++) {
+        float[] q = queryEmbeddings.get(j);
+        if (q == null || q.length != dim) {
+          throw new IllegalArgumentException("Query embedding dim mismatch (got "
+              + (q == null ? "null" : q.length) + ", expected " + dim + ")");
+        }
+        qs[j] = VectorMath.normalized(q);
+      }
+      BitSet allowed = filtered ? allowedRows(filter) : null;
+      if (allowed != null && allowed.isEmpty()) return emptyLists(nq);
+      TopK[] heaps = quantization == Quantization.NONE ? scanFloat(qs, k, allowed) : scanQuantized(qs, k, allowed);
+
+      List<List<VectorDB.SearchHit>> out = new ArrayList<>(nq);
+      for (TopK heap : heaps) {
+        int[] rows = new int[heap.size()];
+        float[] scores = new float[heap.size()];
+        int n = heap.drainSorted(rows, scores);
+        List<VectorDB.SearchHit> hits = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+          int g = rows[i];
+          hits.add(new VectorDB.SearchHit(id(g), docId(g), text(g), scores[i]));
+        }
+        out.add(hits);
+      }
+      return out;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private static List<List<VectorDB.SearchHit>> emptyLists(int n) {
+    return Collections.nCopies(n, List.of());
+  }
 
-    for (var e : byId.entrySet()) pq.offer(e);
+  /** Live rows passing {@code filter}: docId bitmaps first, then the cheaper-to-narrow checks on what is left. */
+  private BitSet allowedRows(SearchFilter filter) {
+    int total = baseRows + size;
+    BitSet allowed = new BitSet(total);
+    boolean byDoc = filter.docIds() != null && !filter.docIds().isEmpty();
+    if (byDoc) {
+      for (String docId : filter.docIds()) {
+        BitSet rows = rowsByDocId.get(docId);
+        if (rows != null) allowed.or(rows);
+      }
+    } else {
+      allowed.set(0, total);
+    }
+    allowed.andNot(dead);
 
-    List<VectorDB.SearchHit> hits = new ArrayList<>(Math.min(k, pq.size()));
-    for (int i = 0; i < k && !pq.isEmpty(); i++) {
-      var e = pq.poll();
-      var d = e.getValue();
-      float score = (float) cosine(queryEmbedding, d.embedding());
-      hits.add(new VectorDB.SearchHit(d.id(), d.docId(), d.text(), score));
+    if (filter.sourcePrefix() != null && !filter.sourcePrefix().isEmpty()) {
+      if (byDoc) {
+        for (int g = allowed.nextSetBit(0); g >= 0; g = allowed.nextSetBit(g + 1)) {
+          if (!filter.matchesSource(id(g))) allowed.clear(g);
+        }
+      } else {
+        // ids of snapshot rows are already decoded in rowById
+        BitSet bySource = new BitSet(total);
+        for (var e : rowById.entrySet()) {
+          if (filter.matchesSource(e.getKey())) bySource.set(e.getValue());
+        }
+        allowed.and(bySource);
+      }
+    }
+    if (filter.hasTimeRange()) {
+      for (int g = allowed.nextSetBit(0); g >= 0; g = allowed.nextSetBit(g + 1)) {
+        if (!filter.matchesTime(ingestedAt(g))) allowed.clear(g);
+      }
     }
-    return hits;
+    return allowed;
   }
 
-  private static double cosine(float[] a, float[] b) {
-    int n = Math.min(a.length, b.length);
-    double dot = 0, na = 0, nb = 0;
-    for (int i = 0; i < n; i++) {
-      dot += a[i] * b[i];
-      na  += a[i] * a[i];
-      nb  += b[i] * b[i];
+  // Single pass: one dot product per row and query, bounded heap of the best k per query
+  private TopK[] scanFloat(float[][] qs, int k, BitSet allowed) {
+    boolean skipDead = !dead.isEmpty();
+    return scan(k, qs.length, (from, to, heaps) -> {
+      for (int b = from; b < to; b += BLOCK_ROWS) {
+        int bEnd = Math.min(to, b + BLOCK_ROWS);
+        for (int j = 0; j < qs.length; j++) {
+          if (allowed == null) {
+            scanFloat(qs[j], b, bEnd, heaps[j], skipDead);
+          } else {
+            for (int g = allowed.nextSetBit(b); g >= 0 && g < bEnd; g = allowed.nextSetBit(g + 1)) {
+              heaps[j].offer(g, exact(qs[j], g));
+            }
+          }
+        }
+      }
+    });
+  }
+
+  private void scanFloat(float[] q, int from, int to, TopK heap, boolean skipDead) {
+    int g = from;
+    for (int bEnd = Math.min(to, baseRows); g < bEnd; ) {
+      int s = segmentOf(g);
+      SnapshotSegment seg = base.get(s);
+      int start = baseStart[s];
+      for (int end = Math.min(bEnd, start + seg.rows); g < end; g++) {
+        if (skipDead && dead.get(g)) continue;
+        heap.offer(g, seg.dot(q, g - start));
+      }
+    }
+    for (int off = (g - baseRows) * dim; g < to; g++, off += dim) {
+      if (skipDead && dead.get(g)) continue;
+      heap.offer(g, VectorMath.dot(q, arena, off, dim));
+    }
+  }
+
+  // Approximate scan over the codes, then exact rescoring of each query's survivors
+  private TopK[] scanQuantized(float[][] qs, int k, BitSet allowed) {
+    RowCodes.Scorer[] scorers = new RowCodes.Scorer[qs.length];
+    for (int j = 0; j < qs.length; j++) scorers[j] = codes.scorer(qs[j]);
+    boolean skipDead = !dead.isEmpty();
+    TopK[] candidates = scan(Math.max(k, rescoreCandidates), qs.length, (from, to, heaps) -> {
+      for (int b = from; b < to; b += BLOCK_ROWS) {
+        int bEnd = Math.min(to, b + BLOCK_ROWS);
+        for (int j = 0; j < qs.length; j++) {
+          RowCodes.Scorer q = scorers[j];
+          TopK heap = heaps[j];
+          if (allowed == null) {
+            for (int g = b; g < bEnd; g++) {
+              if (skipDead && dead.get(g)) continue;
+              heap.offer(g, q.score(g));
+            }
+          } else {
+            for (int g = allowed.nextSetBit(b); g >= 0 && g < bEnd; g = allowed.nextSetBit(g + 1)) {
+              heap.offer(g, q.score(g));
+            }
+          }
+        }
+      }
+    });
+
+    TopK[] out = new TopK[qs.length];
+    for (int j = 0; j < qs.length; j++) {
+      int[] rows = new int[candidates[j].size()];
+      int n = candidates[j].drainSorted(rows, new float[rows.length]);
+      out[j] = new TopK(Math.min(k, Math.max(1, n)));
+      for (int i = 0; i < n; i++) out[j].offer(rows[i], exact(qs[j], rows[i]));
+    }
+    return out;
+  }
+
+  // ---- row accessors over base + tail ----
+
+  private int segmentOf(int g) {
+    int i = Arrays.binarySearch(baseStart, g);
+    return i >= 0 ? i : -i - 2;
+  }
+
+  private float exact(float[] q, int g) {
+    if (g < baseRows) {
+      int s = segmentOf(g);
+      return base.get(s).dot(q, g - baseStart[s]);
+    }
+    int t = g - baseRows;
+    return quantization == Quantization.NONE ? VectorMath.dot(q, arena, t * dim, dim) : full.dot(q, t);
+  }
+
+  private void vector(int g, float[] out) {
+    if (g < baseRows) {
+      int s = segmentOf(g);
+      base.get(s).vector(g - baseStart[s], out);
+    } else if (quantization == Quantization.NONE) {
+      System.arraycopy(arena, (g - baseRows) * dim, out, 0, dim);
+    } else {
+      full.get(g - baseRows, out);
+    }
+  }
+
+  private String id(int g) {
+    if (g >= baseRows) return ids[g - baseRows];
+    int s = segmentOf(g);
+    return base.get(s).id(g - baseStart[s]);
+  }
+
+  private String docId(int g) {
+    if (g >= baseRows) return docIds[g - baseRows];
+    int s = segmentOf(g);
+    return base.get(s).docId(g - baseStart[s]);
+  }
+
+  private long ingestedAt(int g) {
+    if (g >= baseRows) return ingestedAt[g - baseRows];
+    int s = segmentOf(g);
+    return base.get(s).ingestedAt(g - baseStart[s]);
+  }
+
+  private String text(int g) {
+    if (g >= baseRows) return texts[g - baseRows];
+    int s = segmentOf(g);
+    return base.get(s).text(g - baseStart[s]);
+  }
+
+  // ---- parallel segmented scan ----
+
+  @FunctionalInterface
+  private interface SegmentScanner {
+    /** Scores rows {@code [from, to)} for every query, query j into {@code heaps[j]}. */
+    void scan(int from, int to, TopK[] heaps);
+  }
+
+  /** Runs {@code scanner} over all rows segment by segment and returns the merged best {@code k} per query. */
+  private TopK[] scan(int k, int queries, SegmentScanner scanner) {
+    int total = baseRows + size;
+    k = Math.min(k, total);
+    int segments = (total + segmentRows - 1) / segmentRows;
+    if (scanPool == null || segments <= 1) {
+      TopK[] heaps = newHeaps(queries, k);
+      scanner.scan(0, total, heaps);
+      return heaps;
+    }
+    return scanPool.invoke(new SegmentTask(scanner, k, queries, total, 0, segments));
+  }
+
+  private static TopK[] newHeaps(int queries, int k) {
+    TopK[] heaps = new TopK[queries];
+    for (int j = 0; j < queries; j++) heaps[j] = new TopK(k);
+    return heaps;
+  }
+
+  private final class SegmentTask extends RecursiveTask<TopK[]> {
+    private final SegmentScanner scanner;
+    private final int k, queries, total, fromSeg, toSeg;
+
+    SegmentTask(SegmentScanner scanner, int k, int queries, int total, int fromSeg, int toSeg) {
+      this.scanner = scanner;
+      this.k = k;
+      this.queries = queries;
+      this.total = total;
+      this.fromSeg = fromSeg;
+      this.toSeg = toSeg;
+    }
+
+    @Override
+    protected TopK[] compute() {
+      if (toSeg - fromSeg == 1) {
+        TopK[] heaps = newHeaps(queries, k);
+        scanner.scan(fromSeg * segmentRows, Math.min(total, (fromSeg + 1) * segmentRows), heaps);
+        return heaps;
+      }
+      int mid = (fromSeg + toSeg) >>> 1;
+      SegmentTask right = new SegmentTask(scanner, k, queries, total, mid, toSeg);
+      right.fork();
+      TopK[] left = new SegmentTask(scanner, k, queries, total, fromSeg, mid).compute();
+      TopK[] r = right.join();
+      for (int j = 0; j < queries; j++) left[j].addAll(r[j]);
+      return left;
+    }
+  }
+
+  // ---- persistence ----
+
+  /**
+   * Writes all live rows as a new snapshot generation if anything changed since
+   * the last one, then drops the write-ahead logs it covers. Writers are blocked
+   * while it runs; readers are not.
+   *
+   * @return true if a snapshot was written
+   */
+  public boolean snapshot() throws IOException {
+    if (snapshotDir == null || !dirty) return false;
+    synchronized (snapshotLock) {
+      lock.readLock().lock();
+      try {
+        if (!dirty) return false;
+        long next = generation + 1;
+        // later upserts go to the next log, which survives this snapshot; everything
+        // applied so far must be on disk first, or the snapshot could keep a write
+        // that is about to be taken back
+        if (wal != null) {
+          try {
+            wal.rotate(next).join();
+          } catch (CompletionException e) {
+            throw new IOException("Vector WAL rotation failed", e.getCause());
+          }
+        }
+        int total = baseRows + size;
+        int[] live = new int[total - dead.cardinality()];
+        for (int g = 0, n = 0; g < total; g++) if (!dead.get(g)) live[n++] = g;
+
+        VectorSnapshot.write(snapshotDir, next, new SnapshotSegment.Rows() {
+          @Override public int dim() { return dim; }
+          @Override public int count() { return live.length; }
+          @Override public void vector(int i, float[] out) { InMemoryVectorDB.this.vector(live[i], out); }
+          @Override public String id(int i) { return InMemoryVectorDB.this.id(live[i]); }
+          @Override public String docId(int i) { return InMemoryVectorDB.this.docId(live[i]); }
+          @Override public String text(int i) { return InMemoryVectorDB.this.text(live[i]); }
+          @Override public long ingestedAt(int i) { return InMemoryVectorDB.this.ingestedAt(live[i]); }
+        });
+        generation = next;
+        snapshotWrites = writes;
+        dirty = false;
+        if (wal != null) wal.truncateBefore(next);
+        return true;
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+  }
+
+  // ---- compaction ----
+
+  /** Rows tombstoned by replaces and deletes that still occupy heap or snapshot space. */
+  public int deadRows() {
+    lock.readLock().lock();
+    try {
+      return dead.cardinality();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Runs {@link #compact} once at least {@code deadRatio} of the stored rows are tombstones. */
+  public boolean compactIfNeeded(double deadRatio) throws IOException {
+    int total, deadNow;
+    lock.readLock().lock();
+    try {
+      total = baseRows + size;
+      deadNow = dead.cardinality();
+    } finally {
+      lock.readLock().unlock();
+    }
+    if (deadNow == 0 || deadNow < deadRatio * total) return false;
+    compact();
+    return true;
+  }
+
+  /**
+   * Reclaims tombstoned rows. Heap tail rows are moved down in place under the
+   * write lock. Dead rows inside the mapped snapshot can only go away with a new
+   * snapshot: one is written (readers keep running) and the store switches to it
+   * if no write landed meanwhile, otherwise the switch waits for the next call.
+   * Rows are not renumbered while a logged write still waits for the disk (it may
+   * have to be taken back by row); compaction then waits for the next call.
+   */
+  public void compact() throws IOException {
+    lock.writeLock().lock();
+    try {
+      if (hasUnlogged()) return;
+      compactTail();
+    } finally {
+      lock.writeLock().unlock();
+    }
+    if (snapshotDir == null) return;
+    synchronized (snapshotLock) {
+      lock.readLock().lock();
+      try {
+        int firstDead = dead.nextSetBit(0);
+        if (firstDead < 0 || firstDead >= baseRows) return;
+      } finally {
+        lock.readLock().unlock();
+      }
+      snapshot();
+      lock.writeLock().lock();
+      try {
+        if (writes == snapshotWrites && !dirty && generation > baseGeneration && !hasUnlogged()) rebase();
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+  }
+
+  // Moves live tail rows over dead ones and renumbers them in the indexes
+  private void compactTail() {
+    int live = 0;
+    for (int t = 0; t < size; t++) {
+      if (dead.get(baseRows + t)) continue;
+      if (live != t) moveTailRow(t, live);
+      live++;
+    }
+    if (live == size) return;
+    int oldEnd = baseRows + size;
+    for (int t = live; t < size; t++) {
+      ids[t] = null;
+      docIds[t] = null;
+      texts[t] = null;
+    }
+    size = live;
+    dead.clear(baseRows, oldEnd);
+    for (BitSet rows : rowsByDocId.values()) rows.clear(baseRows, oldEnd);
+    for (int t = 0; t < size; t++) {
+      int g = baseRows + t;
+      rowById.put(ids[t], g);
+      rowsByDocId.computeIfAbsent(docIds[t], x -> new BitSet()).set(g);
+    }
+    rowsByDocId.values().removeIf(BitSet::isEmpty);
+  }
+
+  private void moveTailRow(int from, int to) {
+    if (quantization == Quantization.NONE) {
+      System.arraycopy(arena, from * dim, arena, to * dim, dim);
+    } else {
+      codes.copyRow(baseRows + from, baseRows + to);
+      float[] v = new float[dim];
+      full.get(from, v);
+      full.put(to, v);
+    }
+    ids[to] = ids[from];
+    docIds[to] = docIds[from];
+    texts[to] = texts[from];
+    ingestedAt[to] = ingestedAt[from];
+  }
+
+  // The snapshot just written holds exactly the live rows: serve them from it and drop the heap copies
+  private void rebase() throws IOException {
+    VectorSnapshot snap = VectorSnapshot.open(snapshotDir);
+    if (snap == null || snap.generation != generation) return;
+    size = 0;
+    arena = new float[0];
+    ids = new String[0];
+    docIds = new String[0];
+    texts = new String[0];
+    ingestedAt = new long[0];
+    dead.clear();
+    rowById.clear();
+    rowsByDocId.clear();
+    baseIndexed = true;
+    if (quantization != Quantization.NONE) {
+      codes = newCodes(dim);
+      full.close();
+      full = MappedRowFile.temp(spillDir, dim);
+    }
+    useBase(snap);
+  }
+
+  /** Approximate heap bytes held for vectors (excludes ids and text). */
+  public long vectorBytes() {
+    lock.readLock().lock();
+    try {
+      return quantization == Quantization.NONE ? 4L * arena.length : codes == null ? 0 : codes.bytes();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Persists pending changes (when a snapshot directory is configured) and releases files and threads. */
+  @Override
+  public void close() throws IOException {
+    try {
+      snapshot();
+    } finally {
+      lock.writeLock().lock();
+      try {
+        if (wal != null) wal.close();
+        if (full != null) full.close();
+        if (scanPool != null) scanPool.shutdown();
+      } finally {
+        lock.writeLock().unlock();
+      }
     }
-    return (na == 0 || nb == 0) ? -1.0 : dot / (Math.sqrt(na) * Math.sqrt(nb));
   }
 }
@@ -0,0 +1,112 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Per-dimension symmetric int8 codes: {@code value ~= code * scale[dim]}.
+ *
+ * Scales calibrate themselves: when a new vector exceeds a dimension's range
+ * the scale grows (with headroom) and that column is re-encoded from the
+ * full-precision vectors (never from the old codes, which would round twice),
+ * so no training pass is needed and growth events die out once the corpus has
+ * been seen once.
+ *
+ * @author rachanakeshav
+ */
+
+import java.util.Arrays;
+
+final class Int8Codes implements RowCodes {
+
+  private static final float HEADROOM = 1.5f;
+
+  // the JVM refuses arrays of exactly Integer.MAX_VALUE elements
+  private static final long MAX_CODES = Integer.MAX_VALUE - 8;
+
+  private final int dim;
+  private final float[] scale;
+  private final Source rows;
+  private byte[] codes = new byte[0];
+
+  Int8Codes(int dim, Source rows) {
+    this.dim = dim;
+    this.scale = new float[dim];
+    this.rows = rows;
+  }
+
+  @Override
+  public void ensureCapacity(int rows) {
+    long n = (long) rows * dim;
+    if (n <= codes.length) return;
+    if (n > MAX_CODES) throw new IllegalStateException(rows + " rows of " + dim + " int8 codes do not fit in one array");
+    codes = Arrays.copyOf(codes, (int) n);
+  }
+
+  /** Encodes {@code v} into {@code row}; rows below {@code usedRows} are re-encoded in every widened column. */
+  @Override
+  public void set(int row, float[] v, int usedRows) {
+    int[] grown = null;
+    int n = 0;
+    for (int i = 0; i < dim; i++) {
+      float a = Math.abs(v[i]);
+      if (a > 127f * scale[i]) {
+        boolean coded = scale[i] != 0f;   // a column still at 0 has no codes to redo
+        scale[i] = a * HEADROOM / 127f;
+        if (coded) {
+          if (grown == null) grown = new int[dim];
+          grown[n++] = i;
+        }
+      }
+    }
+    if (n > 0) reencode(grown, n, usedRows);
+    int off = row * dim;
+    for (int i = 0; i < dim; i++) codes[off + i] = encode(v[i], scale[i]);
+  }
+
+  @Override
+  public void copyRow(int from, int to) {
+    System.arraycopy(codes, from * dim, codes, to * dim, dim);
+  }
+
+  // One pass over the rows for all columns widened by the same vector
+  private void reencode(int[] cols, int n, int usedRows) {
+    float[] v = new float[dim];
+    for (int row = 0, off = 0; row < usedRows; row++, off += dim) {
+      rows.vector(row, v);
+      for (int j = 0; j < n; j++) {
+        int c = cols[j];
+        codes[off + c] = encode(v[c], scale[c]);
+      }
+    }
+  }
+
+  private static byte encode(float v, float s) {
+    if (s == 0f) return 0;
+    int c = Math.round(v / s);
+    return (byte) Math.max(-127, Math.min(127, c));
+  }
+
+  /** Folds the per-dimension scales into the query so scoring is one multiply-add per code. */
+  float[] prepareQuery(float[] q) {
+    float[] qs = new float[dim];
+    for (int i = 0; i < dim; i++) qs[i] = q[i] * scale[i];
+    return qs;
+  }
+
+  float score(float[] qs, int row) {
+    return VectorMath.dotI8(qs, codes, row * dim, dim);
+  }
+
+  @Override
+  public Scorer scorer(float[] q) {
+    float[] qs = prepareQuery(q);
+    return row -> score(qs, row);
+  }
+
+  @Override
+  public long bytes() {
+    return codes.length + 4L * scale.length;
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Trained parameters for {@link IvfPqVectorDB}: coarse k-means centroids that
+ * partition the space into inverted lists, and per-subspace product-quantizer
+ * codebooks (up to 256 centroids each, fewer when trained on a smaller sample)
+ * for the residual of a vector from its list centroid. Trained offline from a
+ * sample of normalized embeddings and stored in a small binary file.
+ *
+ * @author rachanakeshav
+ */
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+public final class IvfPqCodebook {
+
+  private static final int MAGIC = 0x43475051; // "CGPQ"
+  private static final int VERSION = 1;
+  static final int KSUB = 256;   // most centroids a one-byte code can address
+
+  final int dim;
+  final int nlist;
+  final int m;
+  final int dsub;
+  final int ksub;            // centroids per subspace, <= KSUB
+  final float[] coarse;      // nlist x dim
+  final float[] coarseNorms; // ||c||^2 per list
+  final float[] pq;          // m x ksub x dsub
+
+  private IvfPqCodebook(int dim, int nlist, int m, int ksub, float[] coarse, float[] pq) {
+    if (dim % m != 0) throw new IllegalArgumentException("dim " + dim + " not divisible by m " + m);
+    if (ksub < 1 || ksub > KSUB) throw new IllegalArgumentException("ksub " + ksub + " not in 1.." + KSUB);
+    this.dim = dim;
+    this.nlist = nlist;
+    this.m = m;
+    this.dsub = dim / m;
+    this.ksub = ksub;
+    this.coarse = coarse;
+    this.pq = pq;
+    this.coarseNorms = new float[nlist];
+    for (int c = 0; c < nlist; c++) coarseNorms[c] = VectorMath.dot(coarse, c * dim, coarse, c * dim, dim);
+  }
+
+  public int dim() { return dim; }
+  public int nlist() { return nlist; }
+  public int subquantizers() { return m; }
+
+  /**
+   * Trains coarse centroids on the normalized sample, then PQ codebooks on the
+   * residuals. {@code m} must divide the embedding dimension.
+   */
+  public static IvfPqCodebook train(List<float[]> sample, int nlist, int m, int iters, long seed) {
+    if (sample.isEmpty()) throw new IllegalArgumentException("empty training sample");
+    int dim = sample.get(0).length;
+    int n = sample.size();
+    nlist = Math.min(nlist, n);
+    Random rnd = new Random(seed);
+
+    float[] data = new float[n * dim];
+    for (int i = 0; i < n; i++) {
+      if (sample.get(i).length != dim) throw new IllegalArgumentException("mixed dims in sample");
+      VectorMath.normalizeInto(sample.get(i), data, i * dim);
+    }
+
+    float[] coarse = kmeans(data, n, dim, 0, dim, nlist, iters, rnd);
+    int[] assign = assign(data, n, dim, 0, dim, coarse, nlist);
+
+    float[] resid = new float[n * dim];
+    for (int i = 0; i < n; i++) {
+      int c = assign[i];
+      for (int j = 0; j < dim; j++) resid[i * dim + j] = data[i * dim + j] - coarse[c * dim + j];
+    }
+
+    int dsub = dim / m;
+    if (dim % m != 0) throw new IllegalArgumentException("dim " + dim + " not divisible by m " + m);
+    // a sample smaller than KSUB cannot train KSUB distinct centroids; codes then only address the ones trained
+    int ksub = Math.min(KSUB, n);
+    float[] pq = new float[m * ksub * dsub];
+    for (int s = 0; s < m; s++) {
+      float[] cb = kmeans(resid, n, dim, s * dsub, dsub, ksub, iters, rnd);
+      System.arraycopy(cb, 0, pq, s * ksub * dsub, cb.length);
+    }
+    return new IvfPqCodebook(dim, nlist, m, ksub, coarse, pq);
+  }
+
+  /** Nearest coarse list for a normalized vector (L2). */
+  int nearestList(float[] v) {
+    int best = 0;
+    float bestD = Float.POSITIVE_INFINITY;
+    for (int c = 0; c < nlist; c++) {
+      float d = coarseNorms[c] - 2f * VectorMath.dot(v, coarse, c * dim, dim);
+      if (d < bestD) {
+        bestD = d;
+        best = c;
+      }
+    }
+    return best;
+  }
+
+  /** PQ-encodes {@code v - centroid(list)} into {@code out[off..off+m)}. */
+  void encode(float[] v, int list, byte[] out, int off) {
+    float[] r = new float[dim];
+    for (int j = 0; j < dim; j++) r[j] = v[j] - coarse[list * dim + j];
+    for (int s = 0; s < m; s++) {
+      int best = 0;
+      float bestD = Float.POSITIVE_INFINITY;
+      int base = s * ksub * dsub;
+      for (int c = 0; c < ksub; c++) {
+        float d = VectorMath.l2sq(r, s * dsub, pq, base + c * dsub, dsub);
+        if (d < bestD) {
+          bestD = d;
+          best = c;
+        }
+      }
+      out[off + s] = (byte) best;
+    }
+  }
+
+  /** Asymmetric distance table: {@code table[s * ksub + c] = q_s . pq[s][c]}. */
+  float[] distanceTable(float[] q) {
+    float[] t = new float[m * ksub];
+    for (int s = 0; s < m; s++) {
+      int base = s * ksub * dsub;
+      for (int c = 0; c < ksub; c++) {
+        t[s * ksub + c] = VectorMath.dot(q, s * dsub, pq, base + c * dsub, dsub);
+      }
+    }
+    return t;
+  }
+
+  // ---- k-means over column slice [dOff, dOff+dLen) of row-major data ----
+
+  private static float[] kmeans(float[] data, int n, int dim, int dOff, int dLen, int k, int iters, Random rnd) {
+    float[] cent = new float[k * dLen];
+    int[] perm = rnd.ints(0, n).distinct().limit(k).toArray();
+    for (int c = 0; c < k; c++) System.arraycopy(data, perm[c] * dim + dOff, cent, c * dLen, dLen);
+
+    for (int it = 0; it < iters; it++) {
+      int[] assign = assign(data, n, dim, dOff, dLen, cent, k);
+      float[] sum = new float[k * dLen];
+      int[] cnt = new int[k];
+      for (int i = 0; i < n; i++) {
+        int c = assign[i];
+        cnt[c]++;
+        for (int j = 0; j < dLen; j++) sum[c * dLen + j] += data[i * dim + dOff + j];
+      }
+      for (int c = 0; c < k; c++) {
+        if (cnt[c] == 0) {
+          // re-seed an empty cluster from a random point
+          System.arraycopy(data, rnd.nextInt(n) * dim + dOff, cent, c * dLen, dLen);
+        } else {
+          for (int j = 0; j < dLen; j++) cent[c * dLen + j] = sum[c * dLen + j] / cnt[c];
+        }
+      }
+    }
+    return cent;
+  }
+
+  private static int[] assign(float[] data, int n, int dim, int dOff, int dLen, float[] cent, int k) {
+    float[] norms = new float[k];
+    for (int c = 0; c < k; c++) norms[c] = VectorMath.dot(cent, c * dLen, cent, c * dLen, dLen);
+    int[] out = new int[n];
+    IntStream.range(0, n).parallel().forEach(i -> {
+      int best = 0;
+      float bestD = Float.POSITIVE_INFINITY;
+      for (int c = 0; c < k; c++) {
+        float d = norms[c] - 2f * VectorMath.dot(data, i * dim + dOff, cent, c * dLen, dLen);
+        if (d < bestD) {
+          bestD = d;
+          best = c;
+        }
+      }
+      out[i] = best;
+    });
+    return out;
+  }
+
+  // ---- persistence ----
+
+  public void save(Path file) throws IOException {
+    if (file.getParent() != null) Files.createDirectories(file.getParent());
+    try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(dim);
+      out.writeInt(nlist);
+      out.writeInt(m);
+      out.writeInt(ksub);
+      for (float f : coarse) out.writeFloat(f);
+      for (float f : pq) out.writeFloat(f);
+    }
+  }
+
+  public static IvfPqCodebook load(Path file) throws IOException {
+    try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != MAGIC) throw new IOException("not an IVF-PQ codebook: " + file);
+      int version = in.readInt();
+      if (version != VERSION) throw new IOException("unsupported codebook version " + version);
+      int dim = in.readInt();
+      int nlist = in.readInt();
+      int m = in.readInt();
+      int ksub = in.readInt();
+      if (ksub < 1 || ksub > KSUB) throw new IOException("unsupported ksub " + ksub);
+      float[] coarse = new float[nlist * dim];
+      for (int i = 0; i < coarse.length; i++) coarse[i] = in.readFloat();
+      float[] pq = new float[m * ksub * (dim / m)];
+      for (int i = 0; i < pq.length; i++) pq[i] = in.readFloat();
+      return new IvfPqCodebook(dim, nlist, m, ksub, coarse, pq);
+    }
+  }
+}
@@ -0,0 +1,349 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * IVF-PQ index: every vector is filed under its nearest coarse centroid and
+ * stored only as {@code m} one-byte PQ codes of its residual. A query probes
+ * the {@code nprobe} closest lists and scores each entry with a precomputed
+ * asymmetric distance table, so no full-precision vectors are kept at all.
+ *
+ * Scores approximate cosine similarity: {@code q.c + sum_s table[s][code_s]}
+ * with q and the indexed vectors L2-normalized.
+ *
+ * Chunk texts live in a memory-mapped scratch file, which is rewritten once
+ * most of it is dead. Ids map to rows through an open-addressing table over
+ * {@code ids[]}, and rows freed by a replace or delete are handed out again.
+ *
+ * @author rachanakeshav
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class IvfPqVectorDB implements VectorDB, Closeable {
+
+  private static final int INITIAL_ROWS = 1024;
+  private static final long TEXT_COMPACT_MIN_BYTES = 16L << 20;
+
+  private static final class InvList {
+    byte[] codes = new byte[0];   // size x m
+    int[] rows = new int[0];
+    int size;
+  }
+
+  private final IvfPqCodebook cb;
+  private final int nprobe;
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Map<String, BitSet> rowsByDocId = new HashMap<>();
+  private final InvList[] lists;
+  private final Path textDir;
+  private int size;                // rows handed out, free ones included
+  private volatile long version;   // bumped under the write lock
+  private String[] ids = new String[0];      // null = free row
+  private String[] docIds = new String[0];
+  private long[] textAt = new long[0];       // offset in texts
+  private int[] listOf = new int[0];
+  private int[] posInList = new int[0];
+  private int[] slots = new int[0];          // id hash table: row + 1, 0 = empty
+  private int[] freeRows = new int[0];
+  private int freeCount;
+  private MappedTextFile texts;
+  private long liveTextBytes;
+
+  /** Texts go to a scratch file in the system temp directory. */
+  public IvfPqVectorDB(IvfPqCodebook codebook, int nprobe) {
+    this(codebook, nprobe, Path.of(System.getProperty("java.io.tmpdir")));
+  }
+
+  /** @param textDir where the chunk texts are kept (a scratch file, removed on close) */
+  public IvfPqVectorDB(IvfPqCodebook codebook, int nprobe, Path textDir) {
+    this.cb = codebook;
+    this.nprobe = Math.max(1, Math.min(nprobe, codebook.nlist));
+    this.lists = new InvList[codebook.nlist];
+    for (int i = 0; i < lists.length; i++) lists[i] = new InvList();
+    this.textDir = textDir;
+    this.texts = MappedTextFile.temp(textDir);
+  }
+
+  @Override
+  public void upsert(Doc doc) {
+    upsertBatch(List.of(doc));
+  }
+
+  @Override
+  public void upsertBatch(List<Doc> docs) {
+    if (docs.isEmpty()) return;
+    int[] target = new int[docs.size()];
+    byte[] enc = encode(docs, target);
+    lock.writeLock().lock();
+    try {
+      for (int i = 0; i < docs.size(); i++) put(docs.get(i), target[i], enc, i * cb.m);
+      compactTextsIfNeeded();
+      version++;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // Encoded outside the lock: coarse assignment + PQ is the expensive part
+  private byte[] encode(List<Doc> docs, int[] target) {
+    byte[] enc = new byte[docs.size() * cb.m];
+    for (int i = 0; i < docs.size(); i++) {
+      float[] e = docs.get(i).embedding();
+      checkDim(e, "id=" + docs.get(i).id());
+      float[] v = VectorMath.normalized(e);
+      target[i] = cb.nearestList(v);
+      cb.encode(v, target[i], enc, i * cb.m);
+    }
+    return enc;
+  }
+
+  /**
+   * Drops the document's rows from their inverted lists and adds the new chunks
+   * under the same write lock; the freed rows take the new chunks first.
+   */
+  @Override
+  public void replaceDocument(String docId, List<Doc> chunks) {
+    int[] target = new int[chunks.size()];
+    byte[] enc = encode(chunks, target);
+    lock.writeLock().lock();
+    try {
+      BitSet rows = rowsByDocId.remove(docId);
+      if (rows != null) {
+        for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) free(row);
+      }
+      for (int i = 0; i < chunks.size(); i++) put(chunks.get(i), target[i], enc, i * cb.m);
+      compactTextsIfNeeded();
+      version++;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public long version() {
+    return version;
+  }
+
+  @Override
+  public int dimension() {
+    return cb.dim;
+  }
+
+  private void put(Doc d, int list, byte[] enc, int encOff) {
+    int row = find(d.id());
+    if (row >= 0) {
+      removeFromList(row);
+      BitSet was = rowsByDocId.get(docIds[row]);
+      if (was != null) {
+        was.clear(row);
+        if (was.isEmpty()) rowsByDocId.remove(docIds[row]);
+      }
+      liveTextBytes -= texts.footprint(textAt[row]);
+    } else {
+      if (freeCount > 0) {
+        row = freeRows[--freeCount];
+      } else {
+        row = size;
+        ensureCapacity(size + 1);
+        size++;
+      }
+      ids[row] = d.id();
+      index(row);
+    }
+    docIds[row] = d.docId();
+    long before = texts.size();
+    textAt[row] = texts.append(d.text());
+    liveTextBytes += texts.size() - before;
+    rowsByDocId.computeIfAbsent(d.docId(), x -> new BitSet()).set(row);
+
+    InvList l = lists[list];
+    if (l.size == l.rows.length) {
+      int cap = Math.max(16, l.size + (l.size >> 1));
+      l.rows = Arrays.copyOf(l.rows, cap);
+      l.codes = Arrays.copyOf(l.codes, cap * cb.m);
+    }
+    l.rows[l.size] = row;
+    System.arraycopy(enc, encOff, l.codes, l.size * cb.m, cb.m);
+    listOf[row] = list;
+    posInList[row] = l.size++;
+  }
+
+  private void free(int row) {
+    removeFromList(row);
+    unindex(row);
+    liveTextBytes -= texts.footprint(textAt[row]);
+    ids[row] = null;
+    docIds[row] = null;
+    if (freeCount == freeRows.length) freeRows = Arrays.copyOf(freeRows, Math.max(16, freeCount * 2));
+    freeRows[freeCount++] = row;
+  }
+
+  // Replaced and deleted texts stay in the file until it is mostly dead, then the
+  // live ones are copied into a fresh file
+  private void compactTextsIfNeeded() {
+    if (texts.size() < TEXT_COMPACT_MIN_BYTES || texts.size() < 2 * liveTextBytes) return;
+    MappedTextFile fresh = MappedTextFile.temp(textDir);
+    for (int row = 0; row < size; row++) {
+      if (ids[row] != null) textAt[row] = fresh.append(texts.read(textAt[row]));
+    }
+    MappedTextFile old = texts;
+    texts = fresh;
+    liveTextBytes = fresh.size();
+    try {
+      old.close();
+    } catch (IOException e) {
+      // only the scratch file is left behind; it is deleted on exit
+    }
+  }
+
+  // ---- id -> row: linear probing over ids[] ----
+
+  private int find(String id) {
+    if (slots.length == 0) return -1;
+    int mask = slots.length - 1;
+    for (int i = hash(id) & mask; slots[i] != 0; i = (i + 1) & mask) {
+      int row = slots[i] - 1;
+      if (id.equals(ids[row])) return row;
+    }
+    return -1;
+  }
+
+  private void index(int row) {
+    if (2 * (size - freeCount) > slots.length) {
+      rehash(Math.max(2 * INITIAL_ROWS, 4 * (size - freeCount)));   // picks up this row as well
+      return;
+    }
+    int mask = slots.length - 1;
+    int i = hash(ids[row]) & mask;
+    while (slots[i] != 0) i = (i + 1) & mask;
+    slots[i] = row + 1;
+  }
+
+  // Backward-shift delete, so lookups never need tombstones
+  private void unindex(int row) {
+    int mask = slots.length - 1;
+    int i = hash(ids[row]) & mask;
+    while (slots[i] != row + 1) i = (i + 1) & mask;
+    for (int j = (i + 1) & mask; slots[j] != 0; j = (j + 1) & mask) {
+      int home = hash(ids[slots[j] - 1]) & mask;
+      if (((j - home) & mask) >= ((j - i) & mask)) {
+        slots[i] = slots[j];
+        i = j;
+      }
+    }
+    slots[i] = 0;
+  }
+
+  private void rehash(int minSlots) {
+    int cap = Integer.highestOneBit(minSlots - 1) << 1;
+    slots = new int[cap];
+    int mask = cap - 1;
+    for (int row = 0; row < size; row++) {
+      if (ids[row] == null) continue;
+      int i = hash(ids[row]) & mask;
+      while (slots[i] != 0) i = (i + 1) & mask;
+      slots[i] = row + 1;
+    }
+  }
+
+  private static int hash(String id) {
+    int h = id.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  // swap-remove so lists stay dense
+  private void removeFromList(int row) {
+    InvList l = lists[listOf[row]];
+    int pos = posInList[row];
+    int last = --l.size;
+    if (pos != last) {
+      int moved = l.rows[last];
+      l.rows[pos] = moved;
+      System.arraycopy(l.codes, last * cb.m, l.codes, pos * cb.m, cb.m);
+      posInList[moved] = pos;
+    }
+  }
+
+  private void ensureCapacity(int rows) {
+    if (rows <= ids.length) return;
+    int cap = Math.max(INITIAL_ROWS, ids.length);
+    while (cap < rows) cap += cap >> 1;
+    ids = Arrays.copyOf(ids, cap);
+    docIds = Arrays.copyOf(docIds, cap);
+    textAt = Arrays.copyOf(textAt, cap);
+    listOf = Arrays.copyOf(listOf, cap);
+    posInList = Arrays.copyOf(posInList, cap);
+  }
+
+  @Override
+  public List<SearchHit> topK(float[] queryEmbedding, int k) {
+    if (k <= 0) return List.of();
+    checkDim(queryEmbedding, "query");
+    float[] q = VectorMath.normalized(queryEmbedding);
+    float[] table = cb.distanceTable(q);
+
+    // nprobe closest lists by L2 to the coarse centroids
+    TopK probe = new TopK(nprobe);
+    float[] base = new float[cb.nlist];
+    for (int c = 0; c < cb.nlist; c++) {
+      base[c] = VectorMath.dot(q, cb.coarse, c * cb.dim, cb.dim);
+      probe.offer(c, 2f * base[c] - cb.coarseNorms[c]);
+    }
+    int[] probed = new int[probe.size()];
+    int np = probe.drainSorted(probed, new float[probed.length]);
+
+    lock.readLock().lock();
+    try {
+      if (size == freeCount) return List.of();
+      TopK heap = new TopK(Math.min(k, size - freeCount));
+      int m = cb.m, ksub = cb.ksub;
+      for (int p = 0; p < np; p++) {
+        InvList l = lists[probed[p]];
+        float b = base[probed[p]];
+        byte[] codes = l.codes;
+        for (int i = 0, off = 0; i < l.size; i++, off += m) {
+          float s = b;
+          for (int j = 0; j < m; j++) s += table[j * ksub + (codes[off + j] & 0xFF)];
+          heap.offer(l.rows[i], s);
+        }
+      }
+
+      int[] rows = new int[heap.size()];
+      float[] scores = new float[heap.size()];
+      int n = heap.drainSorted(rows, scores);
+      List<SearchHit> hits = new ArrayList<>(n);
+      for (int i = 0; i < n; i++) {
+        int r = rows[i];
+        hits.add(new SearchHit(ids[r], docIds[r], texts.read(textAt[r]), scores[i]));
+      }
+      return hits;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.writeLock().lock();
+    try {
+      texts.close();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void checkDim(float[] v, String what) {
+    if (v == null || v.length != cb.dim) {
+      throw new IllegalArgumentException("Embedding dim mismatch for " + what
+          + " got=" + (v == null ? "null" : v.length) + " expected=" + cb.dim);
+    }
+  }
+}
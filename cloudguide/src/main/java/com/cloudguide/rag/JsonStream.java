@@ -0,0 +1,104 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Token-level JSON for vector-heavy HTTP bodies. Embedding responses and
+ * Qdrant requests are mostly numbers: going through a JsonNode tree allocates
+ * a node per element, plus the String the body passes through, only to copy
+ * everything once more at the end. Responses are instead read with a Jackson
+ * JsonParser over the raw body bytes, writing numbers straight into a float[]
+ * and skipping fields nobody reads without materializing them; requests are
+ * written with a JsonGenerator into a {@link Buffer} the HTTP client sends as is.
+ *
+ * @author rachanakeshav
+ */
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.util.Arrays;
+
+final class JsonStream {
+
+  private static final JsonFactory FACTORY = new JsonFactory();
+
+  private JsonStream() { }
+
+  /** A parser over the body, positioned inside its top-level object. */
+  static JsonParser object(byte[] body) throws IOException {
+    JsonParser p = FACTORY.createParser(body);
+    if (p.nextToken() != JsonToken.START_OBJECT) {
+      p.close();
+      throw new IOException("expected a JSON object, got " + p.currentToken());
+    }
+    return p;
+  }
+
+  /**
+   * Moves to the value of {@code name} among the remaining fields of the
+   * object the parser is in, skipping the others. False (with the parser on
+   * the object's END_OBJECT) if there is no such field.
+   */
+  static boolean seek(JsonParser p, String name) throws IOException {
+    while (p.nextToken() == JsonToken.FIELD_NAME) {
+      boolean match = name.equals(p.currentName());
+      p.nextToken();
+      if (match) return true;
+      p.skipChildren();
+    }
+    return false;
+  }
+
+  /**
+   * Reads the number array the parser is on into a float[]. Sized for
+   * {@code expected} elements (the known dimension) and trimmed or grown to
+   * the actual count, so the usual case allocates the result and nothing else.
+   */
+  static float[] floats(JsonParser p, int expected) throws IOException {
+    if (p.currentToken() != JsonToken.START_ARRAY) {
+      throw new IOException("expected a number array, got " + p.currentToken());
+    }
+    float[] out = new float[Math.max(1, expected)];
+    int n = 0;
+    for (JsonToken t = p.nextToken(); t != JsonToken.END_ARRAY; t = p.nextToken()) {
+      if (t != JsonToken.VALUE_NUMBER_FLOAT && t != JsonToken.VALUE_NUMBER_INT) {
+        throw new IOException("expected a number in a vector, got " + t);
+      }
+      if (n == out.length) out = Arrays.copyOf(out, n * 2);
+      out[n++] = p.getFloatValue();
+    }
+    return n == out.length ? out : Arrays.copyOf(out, n);
+  }
+
+  /** Writes the vector as a number array. */
+  static void floats(JsonGenerator g, float[] v) throws IOException {
+    g.writeStartArray(v, v.length);
+    for (float f : v) g.writeNumber(f);
+    g.writeEndArray();
+  }
+
+  /**
+   * Request body sink. Its array goes to the HTTP client without the copy
+   * toByteArray() makes; presize it to the expected body so it is not
+   * regrown either. Not reused: the client may still be reading it after the
+   * response future has completed (a timed out request), so it is left to the GC.
+   */
+  static final class Buffer extends ByteArrayOutputStream {
+
+    Buffer(int expectedBytes) {
+      super(Math.max(64, expectedBytes));
+    }
+
+    HttpRequest.BodyPublisher publisher() {
+      return HttpRequest.BodyPublishers.ofByteArray(buf, 0, count);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Fixed-width float rows in a memory-mapped file. The file is mapped in
+ * chunks of whole rows so no row straddles two buffers; pages are only
+ * faulted in when a row is touched, so the vectors cost page cache, not heap.
+ *
+ * @author rachanakeshav
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+final class MappedRowFile implements Closeable {
+
+  private static final long CHUNK_BYTES = 64L << 20;
+
+  private final Path path;
+  private final int dim;
+  private final int rowsPerChunk;
+  private final boolean deleteOnClose;
+  private final FileChannel ch;
+  private final List<ByteBuffer> chunks = new ArrayList<>();
+
+  MappedRowFile(Path path, int dim, boolean deleteOnClose) {
+    this.path = path;
+    this.dim = dim;
+    this.rowsPerChunk = (int) Math.max(1, CHUNK_BYTES / (4L * dim));
+    this.deleteOnClose = deleteOnClose;
+    try {
+      this.ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    } catch (IOException e) {
+      throw new UncheckedIOException("open " + path, e);
+    }
+  }
+
+  /** Scratch file in {@code dir} that is removed again on close. */
+  static MappedRowFile temp(Path dir, int dim) {
+    try {
+      Files.createDirectories(dir);
+      Path p = Files.createTempFile(dir, "cloudguide-vectors-", ".f32");
+      p.toFile().deleteOnExit();
+      return new MappedRowFile(p, dim, true);
+    } catch (IOException e) {
+      throw new UncheckedIOException("create spill file in " + dir, e);
+    }
+  }
+
+  void put(int row, float[] v) {
+    ByteBuffer bb = chunkFor(row);
+    int off = (row % rowsPerChunk) * dim * 4;
+    for (int i = 0; i < dim; i++) bb.putFloat(off + 4 * i, v[i]);
+  }
+
+  void get(int row, float[] out) {
+    ByteBuffer bb = chunks.get(row / rowsPerChunk);
+    int off = (row % rowsPerChunk) * dim * 4;
+    for (int i = 0; i < dim; i++) out[i] = bb.getFloat(off + 4 * i);
+  }
+
+  /** Maps rows already in the file (when reopening one) so they can be read. */
+  void ensureMapped(int rows) {
+    if (rows > 0) chunkFor(rows - 1);
+  }
+
+  float dot(float[] q, int row) {
+    return VectorMath.dot(q, chunks.get(row / rowsPerChunk), (row % rowsPerChunk) * dim * 4, dim);
+  }
+
+  private ByteBuffer chunkFor(int row) {
+    int c = row / rowsPerChunk;
+    while (chunks.size() <= c) {
+      long pos = (long) chunks.size() * rowsPerChunk * dim * 4L;
+      try {
+        chunks.add(ch.map(FileChannel.MapMode.READ_WRITE, pos, (long) rowsPerChunk * dim * 4L)
+            .order(ByteOrder.nativeOrder()));
+      } catch (IOException e) {
+        throw new UncheckedIOException("map " + path + " @" + pos, e);
+      }
+    }
+    return chunks.get(c);
+  }
+
+  @Override
+  public void close() throws IOException {
+    chunks.clear();
+    ch.close();
+    if (deleteOnClose) Files.deleteIfExists(path);
+  }
+}
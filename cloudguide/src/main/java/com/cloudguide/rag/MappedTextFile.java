@@ -0,0 +1,112 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Append-only UTF-8 strings in a memory-mapped file, addressed by the offset
+ * {@link #append} returned. Like {@link MappedRowFile} the file is mapped in
+ * chunks and a record never straddles two of them, so the text of a large
+ * corpus costs page cache rather than heap. Nothing is ever overwritten: the
+ * owner tracks which offsets are still live and copies them into a fresh file
+ * once enough are dead.
+ *
+ * @author rachanakeshav
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+final class MappedTextFile implements Closeable {
+
+  private static final int CHUNK_BYTES = 64 << 20;
+
+  private final Path path;
+  private final FileChannel ch;
+  private final List<ByteBuffer> chunks = new ArrayList<>();
+  private long end;                 // next append offset
+
+  private MappedTextFile(Path path) {
+    this.path = path;
+    try {
+      this.ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    } catch (IOException e) {
+      throw new UncheckedIOException("open " + path, e);
+    }
+  }
+
+  /** Scratch file in {@code dir} that is removed again on close. */
+  static MappedTextFile temp(Path dir) {
+    try {
+      Files.createDirectories(dir);
+      Path p = Files.createTempFile(dir, "cloudguide-texts-", ".utf8");
+      p.toFile().deleteOnExit();
+      return new MappedTextFile(p);
+    } catch (IOException e) {
+      throw new UncheckedIOException("create text file in " + dir, e);
+    }
+  }
+
+  /** Stores {@code s} (null as "") and returns the offset to read it back from. */
+  long append(String s) {
+    byte[] b = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+    int len = 4 + b.length;
+    if (len > CHUNK_BYTES) throw new IllegalArgumentException("text of " + b.length + " bytes does not fit a chunk");
+    if (end % CHUNK_BYTES + len > CHUNK_BYTES) end += CHUNK_BYTES - end % CHUNK_BYTES;
+    ByteBuffer bb = chunkFor(end);
+    int off = (int) (end % CHUNK_BYTES);
+    bb.putInt(off, b.length);
+    bb.put(off + 4, b);
+    long at = end;
+    end += len;
+    return at;
+  }
+
+  String read(long at) {
+    ByteBuffer bb = chunks.get((int) (at / CHUNK_BYTES));
+    int off = (int) (at % CHUNK_BYTES);
+    byte[] b = new byte[bb.getInt(off)];
+    bb.get(off + 4, b);
+    return new String(b, StandardCharsets.UTF_8);
+  }
+
+  /** Bytes taken by the string stored at {@code at}, for the owner's live/dead accounting. */
+  long footprint(long at) {
+    return 4L + chunks.get((int) (at / CHUNK_BYTES)).getInt((int) (at % CHUNK_BYTES));
+  }
+
+  /** Bytes appended so far, padding included. */
+  long size() {
+    return end;
+  }
+
+  private ByteBuffer chunkFor(long at) {
+    int c = (int) (at / CHUNK_BYTES);
+    while (chunks.size() <= c) {
+      long pos = (long) chunks.size() * CHUNK_BYTES;
+      try {
+        chunks.add(ch.map(FileChannel.MapMode.READ_WRITE, pos, CHUNK_BYTES));
+      } catch (IOException e) {
+        throw new UncheckedIOException("map " + path + " @" + pos, e);
+      }
+    }
+    return chunks.get(c);
+  }
+
+  @Override
+  public void close() throws IOException {
+    chunks.clear();
+    ch.close();
+    Files.deleteIfExists(path);
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Maximal-marginal-relevance selection over a ranked hit list: repeatedly take
+ * the candidate with the best {@code lambda * relevance - (1 - lambda) * similarity
+ * to anything already taken}. Similarity is the Jaccard overlap of word
+ * 3-shingles, which is what overlapping chunks and repeated boilerplate share;
+ * it works the same for vector and BM25 hits, neither of which has to carry
+ * its embedding. Candidates at or above {@code duplicateThreshold} similarity to
+ * a selected hit are dropped outright.
+ *
+ * @author rachanakeshav
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public final class Mmr {
+
+  private static final int SHINGLE = 3;
+
+  private Mmr() { }
+
+  /**
+   * @param candidates hits best first (scores only need to be comparable within the list)
+   * @param lambda 1 = pure relevance order, 0 = pure novelty
+   * @return at most {@code k} hits in selection order
+   */
+  public static List<VectorDB.SearchHit> select(List<VectorDB.SearchHit> candidates, int k,
+      double lambda, double duplicateThreshold) {
+    int n = candidates.size();
+    if (k <= 0 || n == 0) return List.of();
+
+    float max = Float.NEGATIVE_INFINITY, min = Float.POSITIVE_INFINITY;
+    for (var h : candidates) {
+      max = Math.max(max, h.score());
+      min = Math.min(min, h.score());
+    }
+    float range = max - min;
+    double[] relevance = new double[n];
+    long[][] shingles = new long[n][];
+    for (int i = 0; i < n; i++) {
+      relevance[i] = range > 0 ? (candidates.get(i).score() - min) / range : 1.0;
+      shingles[i] = shingles(candidates.get(i).text());
+    }
+
+    // maxSim[i] = highest similarity of candidate i to any selected hit; -1 = taken or dropped
+    double[] maxSim = new double[n];
+    List<VectorDB.SearchHit> out = new ArrayList<>(Math.min(k, n));
+    while (out.size() < k) {
+      int best = -1;
+      double bestScore = Double.NEGATIVE_INFINITY;
+      for (int i = 0; i < n; i++) {
+        if (maxSim[i] < 0) continue;
+        double s = lambda * relevance[i] - (1 - lambda) * maxSim[i];
+        if (s > bestScore) {
+          bestScore = s;
+          best = i;
+        }
+      }
+      if (best < 0) break;
+      out.add(candidates.get(best));
+      maxSim[best] = -1;
+      for (int i = 0; i < n; i++) {
+        if (maxSim[i] < 0) continue;
+        double sim = jaccard(shingles[i], shingles[best]);
+        maxSim[i] = sim >= duplicateThreshold ? -1 : Math.max(maxSim[i], sim);
+      }
+    }
+    return out;
+  }
+
+  /** Sorted, distinct hashes of consecutive word triples (single words for very short texts). */
+  static long[] shingles(String text) {
+    List<String> tokens = Bm25Index.tokenize(text);
+    int w = Math.min(SHINGLE, Math.max(1, tokens.size()));
+    int count = Math.max(0, tokens.size() - w + 1);
+    long[] out = new long[count];
+    for (int i = 0; i < count; i++) {
+      long h = 1125899906842597L;
+      for (int j = i; j < i + w; j++) h = 31 * h + tokens.get(j).hashCode();
+      out[i] = h;
+    }
+    Arrays.sort(out);
+    int d = 0;
+    for (int i = 0; i < out.length; i++) {
+      if (i == 0 || out[i] != out[i - 1]) out[d++] = out[i];
+    }
+    return Arrays.copyOf(out, d);
+  }
+
+  static double jaccard(long[] a, long[] b) {
+    if (a.length == 0 && b.length == 0) return 1.0;
+    int i = 0, j = 0, common = 0;
+    while (i < a.length && j < b.length) {
+      if (a[i] == b[j]) {
+        common++;
+        i++;
+        j++;
+      } else if (a[i] < b[j]) {
+        i++;
+      } else {
+        j++;
+      }
+    }
+    return (double) common / (a.length + b.length - common);
+  }
+}
@@ -5,97 +5,274 @@
 package com.cloudguide.rag;
 
 /**
+ * Embeddings from Ollama. Batches go to {@code /api/embed}, which takes many
+ * inputs per request; servers that predate it (404) are remembered and served
+ * one text per {@code /api/embeddings} request instead. Either way at most
+ * {@code maxInFlight} requests per provider are outstanding, across all
+ * callers, results are put back in input order, and a request that fails with
+ * an I/O error, 429 or 5xx is retried with exponential backoff.
  *
  * @author rachanakeshav
  */
 
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.http.*;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.function.Supplier;
 
 public class OllamaEmbeddingsProvider implements EmbeddingsProvider {
+  private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(60);
+  private static final long BACKOFF_MILLIS = 200;
+
   private final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
   private final ObjectMapper mapper = new ObjectMapper();
-  private final String endpoint;
+  private final String legacyEndpoint;
+  private final String batchEndpoint;
   private final String model;
+  private final int batchSize;
+  private final int retries;
+  private volatile boolean batchSupported = true;
+  private volatile int dimHint = 768;
+
+  // Async permits: a request waits for one without blocking a thread
+  private final Object permitLock = new Object();
+  private final ArrayDeque<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+  private int permits;
 
   public OllamaEmbeddingsProvider(String baseUrl, String model) {
-    this.endpoint = baseUrl.endsWith("/") ? baseUrl + "api/embeddings" : baseUrl + "/api/embeddings";
+    this(baseUrl, model, 32, 4, 2);
+  }
+
+  /**
+   * @param batchSize texts per /api/embed request
+   * @param maxInFlight concurrent requests to Ollama from this provider
+   * @param retries extra attempts for a request failing with a transient error
+   */
+  public OllamaEmbeddingsProvider(String baseUrl, String model, int batchSize, int maxInFlight, int retries) {
+    String base = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+    this.legacyEndpoint = base + "api/embeddings";
+    this.batchEndpoint = base + "api/embed";
     this.model = model;
+    this.batchSize = Math.max(1, batchSize);
+    this.permits = Math.max(1, maxInFlight);
+    this.retries = Math.max(0, retries);
   }
 
   @Override public String name() { return "ollama:" + model; }
 
   @Override public CompletionStage<float[]> embed(String text) {
-    return sendOne(text);
+    return embedChunk(List.of(text)).thenApply(v -> v.get(0));
   }
 
+  /** Splits into batches that run concurrently (bounded by the permits) and reassembles them in order. */
   @Override public CompletionStage<List<float[]>> embedBatch(List<String> texts) {
-    CompletableFuture<List<float[]>> all = new CompletableFuture<>();
-    CompletableFuture.runAsync(() -> {
-      try {
-        List<float[]> out = new ArrayList<>(texts.size());
-        for (String t : texts) {
-          float[] vec = sendOne(t).toCompletableFuture().join();
-          System.out.println("EMBED DIM=" + vec.length);
-          out.add(vec);
+    if (texts.isEmpty()) return CompletableFuture.completedFuture(List.of());
+    float[][] out = new float[texts.size()][];
+    List<CompletableFuture<Void>> parts = new ArrayList<>();
+    for (int from = 0; from < texts.size(); from += batchSize) {
+      int start = from;
+      List<String> chunk = texts.subList(from, Math.min(texts.size(), from + batchSize));
+      parts.add(embedChunk(chunk).thenAccept(vs -> {
+        for (int i = 0; i < vs.size(); i++) out[start + i] = vs.get(i);
+      }));
+    }
+    return CompletableFuture.allOf(parts.toArray(new CompletableFuture[0])).thenApply(v -> Arrays.asList(out));
+  }
+
+  private CompletableFuture<List<float[]>> embedChunk(List<String> texts) {
+    if (!batchSupported) return embedEach(texts);
+    return withRetry(() -> limited(() -> sendBatch(texts)), retries, BACKOFF_MILLIS)
+        .exceptionallyCompose(err -> {
+          if (cause(err) instanceof EndpointMissing) {
+            batchSupported = false;
+            return embedEach(texts);
+          }
+          return CompletableFuture.failedFuture(cause(err));
+        });
+  }
+
+  // Older servers: one request per text, still under the same permits
+  private CompletableFuture<List<float[]>> embedEach(List<String> texts) {
+    List<CompletableFuture<float[]>> each = new ArrayList<>(texts.size());
+    for (String t : texts) each.add(withRetry(() -> limited(() -> sendOne(t)), retries, BACKOFF_MILLIS));
+    return CompletableFuture.allOf(each.toArray(new CompletableFuture[0]))
+        .thenApply(v -> each.stream().map(CompletableFuture::join).toList());
+  }
+
+  // ---- requests ----
+
+  private CompletableFuture<List<float[]>> sendBatch(List<String> texts) {
+    try {
+      var payload = mapper.createObjectNode();
+      payload.put("model", model);
+      var input = payload.putArray("input");
+      texts.forEach(input::add);
+      return post(batchEndpoint, mapper.writeValueAsString(payload)).thenApply(resp -> {
+        // a 404 naming the model is a real error; a bare one means the route does not exist
+        if (resp.statusCode() == 404 && !text(resp.body()).contains("model")) throw new EndpointMissing();
+        try (JsonParser p = JsonStream.object(check(resp))) {
+          List<float[]> out = new ArrayList<>(texts.size());
+          if (JsonStream.seek(p, "embeddings") && p.currentToken() == JsonToken.START_ARRAY) {
+            while (p.nextToken() == JsonToken.START_ARRAY) out.add(vector(p));
+          }
+          if (out.size() != texts.size()) {
+            throw new RuntimeException("Ollama /api/embed returned " + out.size()
+                + " embeddings for " + texts.size() + " inputs");
+          }
+          return out;
+        } catch (IOException ex) {
+          throw unreadable(ex);
         }
-        all.complete(out);
-      } catch (Throwable e) {
-        all.completeExceptionally(e);
-      }
-    });
-    return all;
+      });
+    } catch (Exception ex) {
+      return CompletableFuture.failedFuture(ex);
+    }
   }
 
-  private CompletionStage<float[]> sendOne(String text) {
+  private CompletableFuture<float[]> sendOne(String text) {
     try {
       var payload = mapper.createObjectNode();
       payload.put("model", model);
       payload.put("prompt", text);
-
-      var req = HttpRequest.newBuilder()
-          .uri(URI.create(endpoint))
-          .header("Content-Type", "application/json")
-          .timeout(Duration.ofSeconds(60))
-          .POST(HttpRequest.BodyPublishers.ofString(mapper.writeValueAsString(payload)))
-          .build();
-
-      return http.sendAsync(req, HttpResponse.BodyHandlers.ofString())
-          .thenApply(resp -> {
-            if (resp.statusCode() / 100 != 2) {
-              throw new RuntimeException("Ollama embeddings HTTP " + resp.statusCode() + ": " + resp.body());
-            }
-            try {
-              JsonNode root = mapper.readTree(resp.body());
-              JsonNode emb = root.get("embedding");
-              if (emb == null || !emb.isArray()) {
-                JsonNode data = root.get("data");
-                if (data != null && data.isArray() && data.size() > 0) {
-                  JsonNode maybe = data.get(0).get("embedding");
-                  if (maybe != null && maybe.isArray()) emb = maybe;
-                }
-              }
-              if (emb == null || !emb.isArray()) {
-                throw new RuntimeException("No 'embedding' array found in Ollama response");
-              }
-              float[] f = new float[emb.size()];
-              for (int i = 0; i < emb.size(); i++) f[i] = (float) emb.get(i).asDouble();
-              return f;
-            } catch (Exception ex) {
-              throw new CompletionException(ex);
+      return post(legacyEndpoint, mapper.writeValueAsString(payload)).thenApply(resp -> {
+        try (JsonParser p = JsonStream.object(check(resp))) {
+          // {"embedding": [...]}, or the OpenAI-style {"data": [{"embedding": [...]}]}
+          while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.currentName();
+            JsonToken t = p.nextToken();
+            if (field.equals("embedding") && t == JsonToken.START_ARRAY) return vector(p);
+            if (field.equals("data") && t == JsonToken.START_ARRAY && p.nextToken() == JsonToken.START_OBJECT
+                && JsonStream.seek(p, "embedding") && p.currentToken() == JsonToken.START_ARRAY) {
+              return vector(p);
             }
-          });
+            p.skipChildren();
+          }
+          throw new RuntimeException("No 'embedding' array found in Ollama response");
+        } catch (IOException ex) {
+          throw unreadable(ex);
+        }
+      });
     } catch (Exception ex) {
-      CompletableFuture<float[]> cf = new CompletableFuture<>();
-      cf.completeExceptionally(ex);
-      return cf;
+      return CompletableFuture.failedFuture(ex);
+    }
+  }
+
+  // Bodies stay bytes: the parser reads them directly, no String is decoded unless there is an error to report
+  private CompletableFuture<HttpResponse<byte[]>> post(String endpoint, String body) {
+    var req = HttpRequest.newBuilder()
+        .uri(URI.create(endpoint))
+        .header("Content-Type", "application/json")
+        .timeout(REQUEST_TIMEOUT)
+        .POST(HttpRequest.BodyPublishers.ofString(body))
+        .build();
+    return http.sendAsync(req, HttpResponse.BodyHandlers.ofByteArray());
+  }
+
+  private static byte[] check(HttpResponse<byte[]> resp) {
+    if (resp.statusCode() / 100 != 2) {
+      throw new HttpFailure(resp.statusCode(), "Ollama embeddings HTTP " + resp.statusCode() + ": " + text(resp.body()));
+    }
+    return resp.body();
+  }
+
+  // Sized by the last vector seen, so after the first response each one is a single allocation
+  private float[] vector(JsonParser p) throws IOException {
+    float[] v = JsonStream.floats(p, dimHint);
+    dimHint = v.length;
+    return v;
+  }
+
+  private static String text(byte[] body) {
+    return new String(body, StandardCharsets.UTF_8);
+  }
+
+  private static RuntimeException unreadable(IOException ex) {
+    return new RuntimeException("Ollama response unreadable: " + ex, ex);   // not retried, unlike transport errors
+  }
+
+  // ---- concurrency and retry ----
+
+  // Holds a permit for the duration of one request (not across retry backoff)
+  private <T> CompletableFuture<T> limited(Supplier<CompletableFuture<T>> call) {
+    return acquire().thenCompose(v -> {
+      CompletableFuture<T> f;
+      try {
+        f = call.get();
+      } catch (RuntimeException e) {
+        f = CompletableFuture.failedFuture(e);
+      }
+      return f.whenComplete((r, err) -> release());
+    });
+  }
+
+  private CompletableFuture<Void> acquire() {
+    synchronized (permitLock) {
+      if (permits > 0) {
+        permits--;
+        return CompletableFuture.completedFuture(null);
+      }
+      CompletableFuture<Void> w = new CompletableFuture<>();
+      waiting.add(w);
+      return w;
+    }
+  }
+
+  private void release() {
+    CompletableFuture<Void> next;
+    synchronized (permitLock) {
+      next = waiting.poll();
+      if (next == null) permits++;
+    }
+    if (next != null) next.complete(null);   // the permit passes straight to the next waiter
+  }
+
+  private static <T> CompletableFuture<T> withRetry(Supplier<CompletableFuture<T>> attempt, int left, long backoffMillis) {
+    return attempt.get().exceptionallyCompose(err -> {
+      Throwable c = cause(err);
+      if (left <= 0 || !transientFailure(c)) return CompletableFuture.failedFuture(c);
+      Executor later = CompletableFuture.delayedExecutor(backoffMillis, TimeUnit.MILLISECONDS);
+      return CompletableFuture.runAsync(() -> { }, later)
+          .thenCompose(v -> withRetry(attempt, left - 1, backoffMillis * 2));
+    });
+  }
+
+  // Timeouts are IOExceptions too
+  private static boolean transientFailure(Throwable t) {
+    if (t instanceof HttpFailure h) return h.status == 429 || h.status / 100 == 5;
+    return t instanceof IOException;
+  }
+
+  private static Throwable cause(Throwable t) {
+    while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null) {
+      t = t.getCause();
+    }
+    return t;
+  }
+
+  private static final class HttpFailure extends RuntimeException {
+    final int status;
+
+    HttpFailure(int status, String message) {
+      super(message);
+      this.status = status;
+    }
+  }
+
+  // /api/embed answered 404: the server only has the single-text endpoint
+  private static final class EndpointMissing extends RuntimeException {
+    EndpointMissing() {
+      super("Ollama has no /api/embed", null, false, false);
     }
   }
-}
\ No newline at end of file
+}
@@ -8,19 +8,29 @@ package com.cloudguide.rag;
  *
  * @author rachanakeshav
  */
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.*;
+import java.io.IOException;
 import java.net.URI;
 import java.net.http.*;
 import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import java.nio.charset.StandardCharsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class QdrantVectorDB implements VectorDB {
 
+    private static final Logger LOG = LoggerFactory.getLogger(QdrantVectorDB.class);
+    private static final int VECTOR_CHARS = 12;   // generated JSON per float, about: "-0.012345678,"
+    private static final int BACKFILL_PAGE = 256;
+
     private final HttpClient http;
     private final ObjectMapper mapper = new ObjectMapper();
 
@@ -30,6 +40,9 @@ public class QdrantVectorDB implements VectorDB {
     private final String distance;      // "Cosine" 
     private final int upsertBatch;
     private final Duration timeout;
+    // Bumped when a write made through this instance finishes (even a failed one may
+    // have landed partially). Writes by other processes (IngestCli) are not seen.
+    private final AtomicLong version = new AtomicLong();
 
     public QdrantVectorDB(String host, int port, String collection,
             int dim, String distance, int upsertBatch, Duration timeout) {
@@ -54,33 +67,135 @@ public class QdrantVectorDB implements VectorDB {
                     .GET().build();
 
             var resp = http.send(req, HttpResponse.BodyHandlers.ofString());
-            if (resp.statusCode() == 200) {
-                return; // OK
+            if (resp.statusCode() != 200) {
+                createCollection();
             }
-            // Create
-            ObjectNode vectorsConfig = mapper.createObjectNode();
-            vectorsConfig.put("size", dim);
-            vectorsConfig.put("distance", distance);
 
-            ObjectNode vectorsCfg = mapper.createObjectNode();
-            vectorsCfg.set("default", vectorsConfig);
+            // Payload indexes so filtered searches narrow candidates inside the HNSW walk.
+            // Creating an index that already exists is a no-op, so a collection made
+            // before one of these fields was indexed gets it on the next start.
+            createPayloadIndex("docId", "keyword");
+            createPayloadIndex("sourcePrefixes", "keyword");
+            createPayloadIndex("ingestedAt", "integer");
+            backfillPayload();
+        } catch (Exception e) {
+            throw new RuntimeException("ensureCollection failed: " + e, e);
+        }
+    }
+
+    private void createCollection() throws Exception {
+        ObjectNode vectorsConfig = mapper.createObjectNode();
+        vectorsConfig.put("size", dim);
+        vectorsConfig.put("distance", distance);
+
+        ObjectNode vectorsCfg = mapper.createObjectNode();
+        vectorsCfg.set("default", vectorsConfig);
+
+        ObjectNode body = mapper.createObjectNode();
+        body.set("vectors", vectorsCfg);
+
+        var createReq = HttpRequest.newBuilder()
+                .uri(URI.create(base + "/collections/" + collection))
+                .timeout(timeout)
+                .header("Content-Type", "application/json")
+                .PUT(HttpRequest.BodyPublishers.ofString(mapper.writeValueAsString(body)))
+                .build();
+
+        var createResp = http.send(createReq, HttpResponse.BodyHandlers.ofString());
+        if (createResp.statusCode() / 100 != 2) {
+            throw new RuntimeException("Qdrant create collection HTTP " + createResp.statusCode() + ": " + createResp.body());
+        }
+    }
+
+    private void createPayloadIndex(String field, String schema) throws Exception {
+        ObjectNode body = mapper.createObjectNode();
+        body.put("field_name", field);
+        body.put("field_schema", schema);
+        var req = HttpRequest.newBuilder()
+                .uri(URI.create(base + "/collections/" + collection + "/index?wait=true"))
+                .timeout(timeout)
+                .header("Content-Type", "application/json")
+                .PUT(HttpRequest.BodyPublishers.ofString(mapper.writeValueAsString(body)))
+                .build();
+        var resp = http.send(req, HttpResponse.BodyHandlers.ofString());
+        if (resp.statusCode() / 100 != 2) {
+            throw new RuntimeException("Qdrant create index on " + field + " HTTP " + resp.statusCode() + ": " + resp.body());
+        }
+    }
 
+    /**
+     * Points upserted before {@code sourcePrefixes} and {@code ingestedAt} were
+     * written never match a filter on them. Derives both from the stored source
+     * id (ingest time unknown: 0, as for untimed WAL records) and sets them one
+     * point at a time; points without a source id cannot be repaired and are
+     * only counted. A no-op scroll once the collection is up to date.
+     */
+    private void backfillPayload() {
+        int updated = 0, unrepairable = 0;
+        String offset = null;
+        do {
             ObjectNode body = mapper.createObjectNode();
-            body.set("vectors", vectorsCfg);
+            body.put("limit", BACKFILL_PAGE);
+            if (offset != null) {
+                body.put("offset", offset);
+            }
+            body.putArray("with_payload").add("source").add("ingestedAt");
+            body.put("with_vector", false);
+            ArrayNode should = body.putObject("filter").putArray("should");
+            should.addObject().putObject("is_empty").put("key", "sourcePrefixes");
+            should.addObject().putObject("is_empty").put("key", "ingestedAt");
 
-            var createReq = HttpRequest.newBuilder()
-                    .uri(URI.create(base + "/collections/" + collection))
+            StalePage page;
+            try {
+                var req = HttpRequest.newBuilder()
+                        .uri(URI.create(base + "/collections/" + collection + "/points/scroll"))
+                        .timeout(timeout)
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString(mapper.writeValueAsString(body)))
+                        .build();
+                page = readResult(await(send(req, "backfill scroll")), this::readStalePage, new StalePage(List.of(), null));
+            } catch (IOException e) {
+                throw new RuntimeException("Qdrant backfill scroll failed: " + e, e);
+            }
+            for (Point pt : page.points()) {
+                if (pt.source == null) {
+                    unrepairable++;
+                    continue;
+                }
+                setPayload(pt);
+                updated++;
+            }
+            offset = page.nextOffset();
+        } while (offset != null);
+
+        if (updated > 0) {
+            LOG.warn("Qdrant collection {} predates the sourcePrefixes/ingestedAt payload: backfilled {} points",
+                    collection, updated);
+        }
+        if (unrepairable > 0) {
+            LOG.error("Qdrant collection {} has {} points without a source id; source-prefix and ingest-time"
+                    + " filters will never match them until they are re-ingested", collection, unrepairable);
+        }
+    }
+
+    private void setPayload(Point pt) {
+        try {
+            ObjectNode body = mapper.createObjectNode();
+            ObjectNode payload = body.putObject("payload");
+            ArrayNode prefixes = payload.putArray("sourcePrefixes");
+            SearchFilter.sourcePrefixes(pt.source).forEach(prefixes::add);
+            payload.put("ingestedAt", pt.ingestedAt);
+            body.putArray("points").add(pt.id);
+
+            var req = HttpRequest.newBuilder()
+                    .uri(URI.create(base + "/collections/" + collection + "/points/payload?wait=true"))
                     .timeout(timeout)
                     .header("Content-Type", "application/json")
-                    .PUT(HttpRequest.BodyPublishers.ofString(mapper.writeValueAsString(body)))
+                    .POST(HttpRequest.BodyPublishers.ofString(mapper.writeValueAsString(body)))
                     .build();
-
-            var createResp = http.send(createReq, HttpResponse.BodyHandlers.ofString());
-            if (createResp.statusCode() / 100 != 2) {
-                throw new RuntimeException("Qdrant create collection HTTP " + createResp.statusCode() + ": " + createResp.body());
-            }
-        } catch (Exception e) {
-            throw new RuntimeException("ensureCollection failed: " + e, e);
+            await(send(req, "set payload"));
+        } catch (IOException e) {
+            throw new RuntimeException("Qdrant set payload failed: " + e, e);
         }
     }
 
@@ -91,121 +206,560 @@ public class QdrantVectorDB implements VectorDB {
 
     @Override
     public void upsertBatch(List<Doc> docs) {
-        // Split into batches
+        await(upsertBatchAsync(docs));
+    }
+
+    @Override
+    public CompletionStage<Void> upsertBatchAsync(List<Doc> docs) {
+        // Split into batches, sent one after another so a failure stops the rest
+        CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
         for (int i = 0; i < docs.size(); i += upsertBatch) {
             List<Doc> batch = docs.subList(i, Math.min(docs.size(), i + upsertBatch));
-            doUpsert(batch);
+            chain = chain.thenCompose(v -> doUpsert(batch));
         }
+        return chain.whenComplete((v, err) -> version.incrementAndGet());
     }
 
-    private void doUpsert(List<Doc> docs) {
+    private CompletableFuture<Void> doUpsert(List<Doc> docs) {
         try {
-            ArrayNode points = mapper.createArrayNode();
+            int expected = 0;
             for (Doc d : docs) {
                 if (d.embedding() == null || d.embedding().length != dim) {
                     throw new IllegalArgumentException("Embedding dim mismatch for id=" + d.id()
                             + " got=" + (d.embedding() == null ? "null" : d.embedding().length)
                             + " expected=" + dim);
                 }
-                ObjectNode p = mapper.createObjectNode();
+                expected += VECTOR_CHARS * dim + 2 * d.text().length() + 4 * d.id().length() + 160;
+            }
 
-                // Use UUIDs (Qdrant requires UUID or unsigned int)
-                p.put("id", java.util.UUID.nameUUIDFromBytes(
-                        d.id().getBytes(java.nio.charset.StandardCharsets.UTF_8)
-                ).toString());
+            var body = json(expected, g -> {
+                g.writeStartObject();
+                g.writeArrayFieldStart("points");
+                for (Doc d : docs) {
+                    g.writeStartObject();
+                    g.writeStringField("id", pointId(d.id()));
+                    g.writeObjectFieldStart("vector");
+                    g.writeFieldName("default");
+                    JsonStream.floats(g, d.embedding());
+                    g.writeEndObject();
 
-                ArrayNode vec = mapper.createArrayNode();
-                for (float v : d.embedding()) {
-                    vec.add(v);
+                    // Payload
+                    g.writeObjectFieldStart("payload");
+                    g.writeStringField("docId", d.docId());
+                    g.writeStringField("source", d.id());
+                    g.writeStringField("text", d.text());
+                    g.writeNumberField("ingestedAt", d.ingestedAt());
+                    // Qdrant matches keywords exactly, so store every prefix a SearchFilter may ask for
+                    g.writeArrayFieldStart("sourcePrefixes");
+                    for (String prefix : SearchFilter.sourcePrefixes(d.id())) {
+                        g.writeString(prefix);
+                    }
+                    g.writeEndArray();
+                    g.writeEndObject();
+                    g.writeEndObject();
                 }
-                ObjectNode vecObj = mapper.createObjectNode();
-                vecObj.set("default", vec);
-                p.set("vector", vecObj);
+                g.writeEndArray();
+                g.writeEndObject();
+            });
 
-                // Payload
-                ObjectNode payload = mapper.createObjectNode();
-                payload.put("docId", d.docId());
-                payload.put("source", d.id());
-                payload.put("text", d.text());
-                p.set("payload", payload);
+            var req = HttpRequest.newBuilder()
+                    .uri(URI.create(base + "/collections/" + collection + "/points?wait=true"))
+                    .timeout(timeout)
+                    .header("Content-Type", "application/json")
+                    .PUT(body)
+                    .build();
 
-                points.add(p);
-            }
+            return send(req, "upsert").thenApply(b -> null);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(new RuntimeException("Qdrant upsert failed: " + e, e));
+        }
+    }
+
+    @Override
+    public long version() {
+        return version.get();
+    }
+
+    // Use UUIDs (Qdrant requires UUID or unsigned int)
+    private static String pointId(String id) {
+        return java.util.UUID.nameUUIDFromBytes(id.getBytes(java.nio.charset.StandardCharsets.UTF_8)).toString();
+    }
 
+    @Override
+    public void replaceDocument(String docId, List<Doc> chunks) {
+        await(replaceDocumentAsync(docId, chunks));
+    }
+
+    /**
+     * Qdrant has no multi-operation transaction, so the swap is ordered to never
+     * leave the document missing: the new chunks are upserted first (same ids
+     * overwrite in place), then a filter delete removes every point of the docId
+     * that is not one of them. Readers may briefly see stale extra chunks, never a gap.
+     */
+    @Override
+    public CompletionStage<Void> replaceDocumentAsync(String docId, List<Doc> chunks) {
+        return upsertBatchAsync(chunks).thenCompose(v -> deleteStale(docId, chunks))
+                .whenComplete((v, err) -> version.incrementAndGet());
+    }
+
+    private CompletableFuture<Void> deleteStale(String docId, List<Doc> keep) {
+        try {
+            ObjectNode filter = mapper.createObjectNode();
+            ObjectNode cond = filter.putArray("must").addObject();
+            cond.put("key", "docId");
+            cond.putObject("match").put("value", docId);
+            if (!keep.isEmpty()) {
+                ArrayNode ids = filter.putArray("must_not").addObject().putArray("has_id");
+                for (Doc d : keep) {
+                    ids.add(pointId(d.id()));
+                }
+            }
             ObjectNode body = mapper.createObjectNode();
-            body.set("points", points);
+            body.set("filter", filter);
 
             var req = HttpRequest.newBuilder()
-                    .uri(URI.create(base + "/collections/" + collection + "/points?wait=true"))
+                    .uri(URI.create(base + "/collections/" + collection + "/points/delete?wait=true"))
                     .timeout(timeout)
                     .header("Content-Type", "application/json")
-                    .PUT(HttpRequest.BodyPublishers.ofString(mapper.writeValueAsString(body)))
+                    .POST(HttpRequest.BodyPublishers.ofString(mapper.writeValueAsString(body)))
                     .build();
 
-            var resp = http.send(req, HttpResponse.BodyHandlers.ofString());
-            
-            if (resp.statusCode() / 100 != 2) {
-                throw new RuntimeException("Qdrant upsert HTTP " + resp.statusCode() + ": " + resp.body());
-            }
+            return send(req, "delete").thenApply(b -> null);
         } catch (Exception e) {
-            throw new RuntimeException("Qdrant upsert failed: " + e, e);
+            return CompletableFuture.failedFuture(new RuntimeException("Qdrant delete failed: " + e, e));
         }
     }
 
     @Override
-    public List<SearchHit> topK(float[] queryEmbedding, int k) {
+    public List<Doc> fetch(List<String> ids) {
+        return await(fetchAsync(ids));
+    }
+
+    /** One POST to /points with the point ids, vectors and payload included. */
+    @Override
+    public CompletionStage<List<Doc>> fetchAsync(List<String> ids) {
+        if (ids.isEmpty()) {
+            return CompletableFuture.completedFuture(List.of());
+        }
         try {
-            if (queryEmbedding == null || queryEmbedding.length != dim) {
-                throw new IllegalArgumentException("Query embedding dim mismatch (got "
-                        + (queryEmbedding == null ? "null" : queryEmbedding.length) + ", expected " + dim + ")");
+            ObjectNode body = mapper.createObjectNode();
+            ArrayNode points = body.putArray("ids");
+            for (String id : ids) {
+                points.add(pointId(id));
             }
+            body.put("with_payload", true);
+            body.put("with_vector", true);
 
-            // vector array
-            ArrayNode vec = mapper.createArrayNode();
-            for (float v : queryEmbedding) {
-                vec.add(v);
-            }
+            var req = HttpRequest.newBuilder()
+                    .uri(URI.create(base + "/collections/" + collection + "/points"))
+                    .timeout(timeout)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(mapper.writeValueAsString(body)))
+                    .build();
+
+            return send(req, "fetch").thenApply(b -> readResult(b, p -> readDocs(p, true), List.of()));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(new RuntimeException("Qdrant fetch failed: " + e, e));
+        }
+    }
+
+    /**
+     * One page of a scroll over the collection. {@code nextOffset} is null on the last page.
+     */
+    public record ScrollPage(List<Doc> docs, String nextOffset) {
 
-            ObjectNode named = mapper.createObjectNode();
-            named.put("name", "default");
-            named.set("vector", vec);
+    }
 
+    /**
+     * Reads the collection page by page in point id order (POST /points/scroll).
+     * Without vectors only ids and docIds are returned (embeddings are null, texts
+     * empty), which is enough to list what the collection holds.
+     *
+     * @param offset null for the first page, then the previous page's nextOffset
+     * @param ingestedSince only points stamped at or after this epoch millis; null = all
+     */
+    public CompletionStage<ScrollPage> scrollAsync(String offset, int limit, Long ingestedSince, boolean withVectors) {
+        try {
             ObjectNode body = mapper.createObjectNode();
-            body.set("vector", named);
-            body.put("limit", k);
-            body.put("with_payload", true);
-            body.put("with_vector", false);
+            body.put("limit", limit);
+            if (offset != null) {
+                body.put("offset", offset);
+            }
+            if (withVectors) {
+                body.put("with_payload", true);
+            } else {
+                body.putArray("with_payload").add("source").add("docId");
+            }
+            body.put("with_vector", withVectors);
+            if (ingestedSince != null) {
+                ObjectNode cond = body.putObject("filter").putArray("must").addObject();
+                cond.put("key", "ingestedAt");
+                cond.putObject("range").put("gte", ingestedSince);
+            }
 
             var req = HttpRequest.newBuilder()
-                    .uri(URI.create(base + "/collections/" + collection + "/points/search"))
+                    .uri(URI.create(base + "/collections/" + collection + "/points/scroll"))
                     .timeout(timeout)
                     .header("Content-Type", "application/json")
                     .POST(HttpRequest.BodyPublishers.ofString(mapper.writeValueAsString(body)))
                     .build();
 
-            var resp = http.send(req, HttpResponse.BodyHandlers.ofString());
-            if (resp.statusCode() / 100 != 2) {
-                throw new RuntimeException("Qdrant search HTTP " + resp.statusCode() + ": " + resp.body());
+            return send(req, "scroll").thenApply(b -> readResult(b, p -> readScrollPage(p, withVectors),
+                    new ScrollPage(List.of(), null)));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(new RuntimeException("Qdrant scroll failed: " + e, e));
+        }
+    }
+
+    @Override
+    public List<SearchHit> topK(float[] queryEmbedding, int k) {
+        return await(topKAsync(queryEmbedding, k));
+    }
+
+    @Override
+    public CompletionStage<List<SearchHit>> topKAsync(float[] queryEmbedding, int k) {
+        try {
+            var body = json(VECTOR_CHARS * dim + 128, g -> writeSearch(g, queryEmbedding, k, null));
+
+            var req = HttpRequest.newBuilder()
+                    .uri(URI.create(base + "/collections/" + collection + "/points/search"))
+                    .timeout(timeout)
+                    .header("Content-Type", "application/json")
+                    .POST(body)
+                    .build();
+
+            return send(req, "search").thenApply(b -> readResult(b, this::readHits, List.of()));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(new RuntimeException("Qdrant search failed: " + e, e));
+        }
+    }
+
+    @Override
+    public List<List<SearchHit>> topKBatch(List<float[]> queryEmbeddings, int k) {
+        return await(topKBatchAsync(queryEmbeddings, k, null));
+    }
+
+    @Override
+    public List<List<SearchHit>> topKBatch(List<float[]> queryEmbeddings, int k, SearchFilter filter) {
+        return await(topKBatchAsync(queryEmbeddings, k, filter));
+    }
+
+    @Override
+    public CompletionStage<List<List<SearchHit>>> topKBatchAsync(List<float[]> queryEmbeddings, int k) {
+        return topKBatchAsync(queryEmbeddings, k, null);
+    }
+
+    /**
+     * All queries in one POST to /points/search/batch; Qdrant answers with one
+     * result array per search, in request order.
+     */
+    @Override
+    public CompletionStage<List<List<SearchHit>>> topKBatchAsync(List<float[]> queryEmbeddings, int k, SearchFilter filter) {
+        if (queryEmbeddings.isEmpty()) {
+            return CompletableFuture.completedFuture(List.of());
+        }
+        try {
+            var body = json(queryEmbeddings.size() * (VECTOR_CHARS * dim + 256), g -> {
+                g.writeStartObject();
+                g.writeArrayFieldStart("searches");
+                for (float[] q : queryEmbeddings) {
+                    writeSearch(g, q, k, filter);
+                }
+                g.writeEndArray();
+                g.writeEndObject();
+            });
+
+            var req = HttpRequest.newBuilder()
+                    .uri(URI.create(base + "/collections/" + collection + "/points/search/batch"))
+                    .timeout(timeout)
+                    .header("Content-Type", "application/json")
+                    .POST(body)
+                    .build();
+
+            return send(req, "batch search").thenApply(b -> {
+                List<List<SearchHit>> out = readResult(b, this::readHitLists, new ArrayList<>());
+                while (out.size() < queryEmbeddings.size()) {
+                    out.add(List.of());
+                }
+                return out;
+            });
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(new RuntimeException("Qdrant batch search failed: " + e, e));
+        }
+    }
+
+    // Non-blocking round trip: the response is handled on the HttpClient's executor.
+    // The body is kept as bytes for the streaming parser; it only becomes a String in an error message.
+    private CompletableFuture<byte[]> send(HttpRequest req, String what) {
+        return http.sendAsync(req, HttpResponse.BodyHandlers.ofByteArray())
+                .handle((resp, err) -> {
+                    if (err != null) {
+                        Throwable cause = err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+                        throw new RuntimeException("Qdrant " + what + " failed: " + cause, cause);
+                    }
+                    if (resp.statusCode() / 100 != 2) {
+                        throw new RuntimeException("Qdrant " + what + " HTTP " + resp.statusCode() + ": "
+                                + new String(resp.body(), StandardCharsets.UTF_8));
+                    }
+                    return resp.body();
+                });
+    }
+
+    private interface ResultReader<T> {
+
+        T read(JsonParser p) throws IOException;
+    }
+
+    // Streams the response up to its "result" value and reads that; no tree is built
+    private static <T> T readResult(byte[] body, ResultReader<T> reader, T ifMissing) {
+        try (JsonParser p = JsonStream.object(body)) {
+            return JsonStream.seek(p, "result") ? reader.read(p) : ifMissing;
+        } catch (IOException e) {
+            throw new RuntimeException("Qdrant response unreadable: " + e, e);
+        }
+    }
+
+    // Blocking facade for the synchronous VectorDB methods
+    private static <T> T await(CompletionStage<T> stage) {
+        try {
+            return stage.toCompletableFuture().join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException re ? re : e;
+        }
+    }
+
+    private interface BodyWriter {
+
+        void write(JsonGenerator g) throws IOException;
+    }
+
+    // Vector-heavy request bodies are generated straight into bytes: no tree, no String
+    private HttpRequest.BodyPublisher json(int expectedBytes, BodyWriter writer) throws IOException {
+        JsonStream.Buffer buf = new JsonStream.Buffer(expectedBytes);
+        try (JsonGenerator g = mapper.getFactory().createGenerator(buf)) {
+            writer.write(g);
+        }
+        return buf.publisher();
+    }
+
+    private void writeSearch(JsonGenerator g, float[] queryEmbedding, int k, SearchFilter filter) throws IOException {
+        if (queryEmbedding == null || queryEmbedding.length != dim) {
+            throw new IllegalArgumentException("Query embedding dim mismatch (got "
+                    + (queryEmbedding == null ? "null" : queryEmbedding.length) + ", expected " + dim + ")");
+        }
+        g.writeStartObject();
+        g.writeObjectFieldStart("vector");
+        g.writeStringField("name", "default");
+        g.writeFieldName("vector");
+        JsonStream.floats(g, queryEmbedding);
+        g.writeEndObject();
+        g.writeNumberField("limit", k);
+        g.writeBooleanField("with_payload", true);
+        g.writeBooleanField("with_vector", false);
+        if (filter != null && !filter.isEmpty()) {
+            g.writeFieldName("filter");
+            g.writeTree(filterClause(filter));   // a handful of nodes, not worth hand-writing
+        }
+        g.writeEndObject();
+    }
+
+    // Evaluated by Qdrant during the search (using the payload indexes), not on the results
+    private ObjectNode filterClause(SearchFilter filter) {
+        ArrayNode must = mapper.createArrayNode();
+        if (filter.docIds() != null && !filter.docIds().isEmpty()) {
+            ObjectNode c = must.addObject();
+            c.put("key", "docId");
+            ArrayNode any = c.putObject("match").putArray("any");
+            filter.docIds().forEach(any::add);
+        }
+        if (filter.sourcePrefix() != null && !filter.sourcePrefix().isEmpty()) {
+            ObjectNode c = must.addObject();
+            c.put("key", "sourcePrefixes");
+            c.putObject("match").put("value", filter.sourcePrefix());
+        }
+        if (filter.ingestedFrom() != null || filter.ingestedUntil() != null) {
+            ObjectNode c = must.addObject();
+            c.put("key", "ingestedAt");
+            ObjectNode range = c.putObject("range");
+            if (filter.ingestedFrom() != null) {
+                range.put("gte", filter.ingestedFrom());
+            }
+            if (filter.ingestedUntil() != null) {
+                range.put("lt", filter.ingestedUntil());
             }
+        }
+        ObjectNode f = mapper.createObjectNode();
+        f.set("must", must);
+        return f;
+    }
+
+    // One point of a search, scroll or fetch result
+    private static final class Point {
+
+        String id = "";
+        float score;
+        String source;
+        String docId = "";
+        String text = "";
+        long ingestedAt;
+        float[] vector;
+    }
 
-            JsonNode root = mapper.readTree(resp.body());
-            JsonNode result = root.get("result");
-            if (result == null || !result.isArray()) {
-                return List.of();
+    // Parser on the point's START_OBJECT; leaves it on the matching END_OBJECT
+    private Point readPoint(JsonParser p) throws IOException {
+        Point pt = new Point();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.currentName();
+            JsonToken t = p.nextToken();
+            switch (field) {
+                case "id" -> pt.id = p.getText();
+                case "score" -> pt.score = (float) p.getValueAsDouble(0.0);
+                case "payload" -> {
+                    if (t == JsonToken.START_OBJECT) {
+                        readPayload(p, pt);
+                    }
+                }
+                case "vector" -> pt.vector = readVector(p);
+                default -> p.skipChildren();
             }
+        }
+        return pt;
+    }
 
-            List<SearchHit> hits = new ArrayList<>();
-            for (JsonNode r : result) {
-                String id = r.path("id").asText();
-                double score = r.path("score").asDouble(0.0);
-                JsonNode payload = r.path("payload");
-                String docId = payload.path("docId").asText("");
-                String text = payload.path("text").asText("");
-                hits.add(new SearchHit(id, docId, text, (float) score));
+    private static void readPayload(JsonParser p, Point pt) throws IOException {
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.currentName();
+            p.nextToken();
+            switch (field) {
+                case "source" -> pt.source = p.getValueAsString();
+                case "docId" -> pt.docId = p.getValueAsString("");
+                case "text" -> pt.text = p.getValueAsString("");
+                case "ingestedAt" -> pt.ingestedAt = p.getValueAsLong(0L);
+                default -> p.skipChildren();
+            }
+        }
+    }
+
+    // The named "default" vector, or an unnamed one; null if the point has neither
+    private float[] readVector(JsonParser p) throws IOException {
+        JsonToken t = p.currentToken();
+        if (t == JsonToken.START_OBJECT) {
+            if (!JsonStream.seek(p, "default")) {
+                return null;
+            }
+            float[] v = p.currentToken() == JsonToken.START_ARRAY ? JsonStream.floats(p, dim) : null;
+            if (v == null) {
+                p.skipChildren();
+            }
+            while (p.nextToken() == JsonToken.FIELD_NAME) {   // other named vectors
+                p.nextToken();
+                p.skipChildren();
+            }
+            return v;
+        }
+        if (t == JsonToken.START_ARRAY) {
+            return JsonStream.floats(p, dim);
+        }
+        p.skipChildren();
+        return null;
+    }
+
+    // Chunk id as upserted (the point id is only its UUID), so results line up with other indexes
+    private static String chunkId(Point pt) {
+        return pt.source != null ? pt.source : pt.id;
+    }
+
+    private List<SearchHit> readHits(JsonParser p) throws IOException {
+        if (p.currentToken() != JsonToken.START_ARRAY) {
+            p.skipChildren();
+            return List.of();
+        }
+        List<SearchHit> hits = new ArrayList<>();
+        while (p.nextToken() == JsonToken.START_OBJECT) {
+            Point pt = readPoint(p);
+            hits.add(new SearchHit(chunkId(pt), pt.docId, pt.text, pt.score));
+        }
+        return hits;
+    }
+
+    // One hit list per search of a batch, in request order
+    private List<List<SearchHit>> readHitLists(JsonParser p) throws IOException {
+        List<List<SearchHit>> out = new ArrayList<>();
+        if (p.currentToken() != JsonToken.START_ARRAY) {
+            p.skipChildren();
+            return out;
+        }
+        for (JsonToken t = p.nextToken(); t != null && t != JsonToken.END_ARRAY; t = p.nextToken()) {
+            out.add(readHits(p));
+        }
+        return out;
+    }
+
+    // Points with their payload and, if requested, the named "default" vector
+    private List<Doc> readDocs(JsonParser p, boolean withVectors) throws IOException {
+        if (p.currentToken() != JsonToken.START_ARRAY) {
+            p.skipChildren();
+            return List.of();
+        }
+        List<Doc> docs = new ArrayList<>();
+        while (p.nextToken() == JsonToken.START_OBJECT) {
+            Point pt = readPoint(p);
+            if (withVectors && pt.vector == null) {
+                continue;
+            }
+            docs.add(new Doc(chunkId(pt), pt.docId, pt.text, withVectors ? pt.vector : null, pt.ingestedAt));
+        }
+        return docs;
+    }
+
+    // Points of a backfill scroll, with their raw point id kept for set_payload
+    private record StalePage(List<Point> points, String nextOffset) {
+
+    }
+
+    private StalePage readStalePage(JsonParser p) throws IOException {
+        List<Point> points = new ArrayList<>();
+        String next = null;
+        if (p.currentToken() != JsonToken.START_OBJECT) {
+            p.skipChildren();
+            return new StalePage(points, null);
+        }
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.currentName();
+            JsonToken t = p.nextToken();
+            switch (field) {
+                case "points" -> {
+                    if (t != JsonToken.START_ARRAY) {
+                        p.skipChildren();
+                        break;
+                    }
+                    while (p.nextToken() == JsonToken.START_OBJECT) {
+                        points.add(readPoint(p));
+                    }
+                }
+                case "next_page_offset" -> next = t == JsonToken.VALUE_NULL ? null : p.getText();
+                default -> p.skipChildren();
+            }
+        }
+        return new StalePage(points, next);
+    }
+
+    private ScrollPage readScrollPage(JsonParser p, boolean withVectors) throws IOException {
+        List<Doc> docs = List.of();
+        String next = null;
+        if (p.currentToken() != JsonToken.START_OBJECT) {
+            p.skipChildren();
+            return new ScrollPage(docs, null);
+        }
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.currentName();
+            JsonToken t = p.nextToken();
+            switch (field) {
+                case "points" -> docs = readDocs(p, withVectors);
+                case "next_page_offset" -> next = t == JsonToken.VALUE_NULL ? null : p.getText();
+                default -> p.skipChildren();
             }
-            return hits;
-        } catch (Exception e) {
-            throw new RuntimeException("Qdrant search failed: " + e, e);
         }
+        return new ScrollPage(docs, next);
     }
 }
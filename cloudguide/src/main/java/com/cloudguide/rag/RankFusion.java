@@ -0,0 +1,41 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Reciprocal-rank fusion: each ranking contributes 1 / (k + rank) for every
+ * hit it contains, so lists with incomparable scores (BM25 vs cosine) can be
+ * merged using ranks alone.
+ *
+ * @author rachanakeshav
+ */
+
+import java.util.*;
+
+public final class RankFusion {
+
+  private RankFusion() { }
+
+  /**
+   * Fuses {@code rankings} (each best first) and returns the best {@code limit}
+   * hits by fused score. Hits are matched by id; the first occurrence supplies the
+   * payload and the returned score is the fused one.
+   */
+  public static List<VectorDB.SearchHit> reciprocalRank(List<List<VectorDB.SearchHit>> rankings, int k, int limit) {
+    Map<String, VectorDB.SearchHit> first = new LinkedHashMap<>();
+    Map<String, Float> fused = new HashMap<>();
+    for (List<VectorDB.SearchHit> ranking : rankings) {
+      for (int rank = 0; rank < ranking.size(); rank++) {
+        VectorDB.SearchHit h = ranking.get(rank);
+        first.putIfAbsent(h.id(), h);
+        fused.merge(h.id(), 1f / (k + rank + 1), Float::sum);
+      }
+    }
+    List<VectorDB.SearchHit> out = new ArrayList<>(first.size());
+    for (var h : first.values()) out.add(new VectorDB.SearchHit(h.id(), h.docId(), h.text(), fused.get(h.id())));
+    out.sort((a, b) -> Float.compare(b.score(), a.score()));
+    return out.size() > limit ? new ArrayList<>(out.subList(0, limit)) : out;
+  }
+}
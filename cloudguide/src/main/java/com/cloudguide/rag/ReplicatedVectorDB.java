@@ -0,0 +1,264 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Local read replica of the Qdrant collection (store = "replica"). Searches are
+ * served from an in-heap InMemoryVectorDB; Qdrant stays the source of truth and
+ * every write goes there first, then to the local copy.
+ *
+ * The copy is kept current by {@link #sync}, run periodically: the first one
+ * streams the whole collection through the scroll API, later ones only pull
+ * points whose ingestedAt is at or after the high-water mark (minus an overlap
+ * for writers with skewed clocks). Points the copy already holds with the
+ * same ingestedAt are skipped, so re-reading the overlap does not move
+ * {@link #version} and invalidate cached answers. Deletions leave nothing to
+ * pull, so every {@code sweepEvery}-th sync also lists the collection's ids
+ * and evicts local chunks that are gone. Writes racing a sync converge within
+ * one more sync.
+ *
+ * With a snapshot directory the copy and its high-water mark survive restarts,
+ * so a node comes back serving, and keeps serving, while Qdrant is down. Until
+ * a first copy exists, searches go to Qdrant.
+ *
+ * @author rachanakeshav
+ */
+
+import com.cloudguide.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+public class ReplicatedVectorDB implements VectorDB, AutoCloseable {
+
+  private static final String WATERMARK_FILE = "replica.watermark";
+  private static final int ID_PAGE_FACTOR = 8;   // id-only pages are much smaller than pages with vectors
+
+  private static final Metrics.Counter PULLED = Metrics.counter(
+      "cloudguide_replica_pulled_total", "Points copied from Qdrant into the local replica");
+  private static final Metrics.Counter SWEPT = Metrics.counter(
+      "cloudguide_replica_swept_total", "Local chunks dropped because Qdrant no longer has them");
+
+  private final QdrantVectorDB remote;
+  private final InMemoryVectorDB local;
+  private final Path snapshotDir;
+  private final int pageSize;
+  private final long overlapMillis;
+  private final int sweepEvery;
+  private final double compactDeadRatio;
+
+  // Sync state, guarded by syncLock
+  private final Object syncLock = new Object();
+  private long watermark = -1;   // highest ingestedAt copied; -1 = no complete copy yet
+  private int syncsSinceSweep;
+  private volatile boolean ready;
+  private volatile long lastSync;
+
+  /**
+   * @param local WAL-less store holding the copy, opened on {@code snapshotDir} if there is one
+   * @param snapshotDir where the copy's high-water mark is kept next to its snapshot; null = heap only
+   * @param overlap how far behind the high-water mark incremental pulls start
+   * @param compactDeadRatio reclaim rows left by updates and sweeps past this share; 0 = never
+   */
+  public ReplicatedVectorDB(QdrantVectorDB remote, InMemoryVectorDB local, Path snapshotDir, int pageSize,
+      Duration overlap, int sweepEvery, double compactDeadRatio) {
+    this.remote = remote;
+    this.local = local;
+    this.snapshotDir = snapshotDir;
+    this.pageSize = Math.max(1, pageSize);
+    this.overlapMillis = overlap.toMillis();
+    this.sweepEvery = Math.max(1, sweepEvery);
+    this.compactDeadRatio = compactDeadRatio;
+    if (snapshotDir != null && local.restoredRows() > 0) {
+      watermark = loadWatermark();
+      ready = true;   // a restored copy is served right away; a missing mark only forces a full pull
+    }
+    Metrics.gauge("cloudguide_replica_lag_seconds", "Seconds since the replica last synced with Qdrant",
+        () -> lastSync == 0 ? -1 : (System.currentTimeMillis() - lastSync) / 1000.0);
+  }
+
+  public boolean ready() {
+    return ready;
+  }
+
+  /**
+   * Pulls what changed in Qdrant since the last sync (everything, the first
+   * time) and, when due, evicts what was deleted there. Blocking; a failure
+   * leaves the copy serving as it was and the next call retries.
+   *
+   * @return points pulled
+   */
+  public long sync() throws IOException {
+    synchronized (syncLock) {
+      boolean full = watermark < 0;
+      Long since = full ? null : watermark - overlapMillis;
+      long high = Math.max(0, watermark);
+      long pulled = 0;
+      String offset = null;
+      do {
+        QdrantVectorDB.ScrollPage page = await(remote.scrollAsync(offset, pageSize, since, true));
+        List<Doc> changed = local.changed(page.docs());
+        if (!changed.isEmpty()) local.upsertBatch(changed);
+        for (Doc d : page.docs()) high = Math.max(high, d.ingestedAt());
+        pulled += page.docs().size();
+        offset = page.nextOffset();
+      } while (offset != null);
+      PULLED.add(pulled);
+
+      if (full || ++syncsSinceSweep >= sweepEvery) {
+        SWEPT.add(sweep());
+        syncsSinceSweep = 0;
+      }
+      watermark = high;
+      ready = true;
+      lastSync = System.currentTimeMillis();
+      if (compactDeadRatio > 0) local.compactIfNeeded(compactDeadRatio);
+      if (snapshotDir != null && local.snapshot()) saveWatermark();
+      return pulled;
+    }
+  }
+
+  // Evicts local chunks whose ids Qdrant no longer lists
+  private int sweep() {
+    Set<String> live = new HashSet<>();
+    String offset = null;
+    do {
+      QdrantVectorDB.ScrollPage page = await(remote.scrollAsync(offset, pageSize * ID_PAGE_FACTOR, null, false));
+      for (Doc d : page.docs()) live.add(d.id());
+      offset = page.nextOffset();
+    } while (offset != null);
+    Set<String> stale = local.chunkIds();
+    stale.removeAll(live);
+    if (!stale.isEmpty()) local.evict(stale);
+    return stale.size();
+  }
+
+  // The mark is written after the snapshot it describes, so it never runs ahead of the data
+  private void saveWatermark() throws IOException {
+    Path tmp = snapshotDir.resolve(WATERMARK_FILE + ".tmp");
+    Files.writeString(tmp, Long.toString(watermark), StandardCharsets.UTF_8);
+    Files.move(tmp, snapshotDir.resolve(WATERMARK_FILE), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private long loadWatermark() {
+    try {
+      return Long.parseLong(Files.readString(snapshotDir.resolve(WATERMARK_FILE), StandardCharsets.UTF_8).trim());
+    } catch (IOException | NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  // ---- reads: local once a copy exists ----
+
+  private VectorDB reader() {
+    return ready ? local : remote;
+  }
+
+  @Override
+  public List<SearchHit> topK(float[] queryEmbedding, int k) {
+    return reader().topK(queryEmbedding, k);
+  }
+
+  @Override
+  public List<List<SearchHit>> topKBatch(List<float[]> queryEmbeddings, int k) {
+    return reader().topKBatch(queryEmbeddings, k);
+  }
+
+  @Override
+  public List<List<SearchHit>> topKBatch(List<float[]> queryEmbeddings, int k, SearchFilter filter) {
+    return reader().topKBatch(queryEmbeddings, k, filter);
+  }
+
+  @Override
+  public CompletionStage<List<SearchHit>> topKAsync(float[] queryEmbedding, int k) {
+    return reader().topKAsync(queryEmbedding, k);
+  }
+
+  @Override
+  public CompletionStage<List<List<SearchHit>>> topKBatchAsync(List<float[]> queryEmbeddings, int k) {
+    return reader().topKBatchAsync(queryEmbeddings, k);
+  }
+
+  @Override
+  public CompletionStage<List<List<SearchHit>>> topKBatchAsync(List<float[]> queryEmbeddings, int k, SearchFilter filter) {
+    return reader().topKBatchAsync(queryEmbeddings, k, filter);
+  }
+
+  // ---- writes: Qdrant first, then the copy, so a failed write changes neither ----
+
+  @Override
+  public void upsert(Doc doc) {
+    upsertBatch(List.of(doc));
+  }
+
+  @Override
+  public void upsertBatch(List<Doc> docs) {
+    await(upsertBatchAsync(docs));
+  }
+
+  @Override
+  public CompletionStage<Void> upsertBatchAsync(List<Doc> docs) {
+    return remote.upsertBatchAsync(docs).thenCompose(v -> local.upsertBatchAsync(docs));
+  }
+
+  @Override
+  public void replaceDocument(String docId, List<Doc> chunks) {
+    await(replaceDocumentAsync(docId, chunks));
+  }
+
+  @Override
+  public CompletionStage<Void> replaceDocumentAsync(String docId, List<Doc> chunks) {
+    return remote.replaceDocumentAsync(docId, chunks).thenCompose(v -> local.replaceDocumentAsync(docId, chunks));
+  }
+
+  @Override
+  public List<Doc> fetch(List<String> ids) {
+    return remote.fetch(ids);
+  }
+
+  @Override
+  public CompletionStage<List<Doc>> fetchAsync(List<String> ids) {
+    return remote.fetchAsync(ids);
+  }
+
+  /** The local copy's version: it moves with writes through this instance and with every sync that changed it. */
+  @Override
+  public long version() {
+    return local.version();
+  }
+
+  @Override
+  public int dimension() {
+    return local.dimension();
+  }
+
+  /** Persists the copy and its high-water mark (with a snapshot directory) and releases the local store. */
+  @Override
+  public void close() throws IOException {
+    synchronized (syncLock) {
+      if (snapshotDir != null && local.snapshot() && watermark >= 0) saveWatermark();
+      local.close();
+    }
+  }
+
+  // Blocking facade for the synchronous VectorDB methods
+  private static <T> T await(CompletionStage<T> stage) {
+    try {
+      return stage.toCompletableFuture().join();
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException re ? re : e;
+    }
+  }
+}
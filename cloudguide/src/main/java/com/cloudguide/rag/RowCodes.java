@@ -0,0 +1,43 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Compressed per-row codes scanned by InMemoryVectorDB's quantized modes. The
+ * scan only ranks candidates, so a score has to order rows the way cosine would,
+ * not equal it; the survivors are rescored against the full-precision vectors.
+ *
+ * @author rachanakeshav
+ */
+
+interface RowCodes {
+
+  /** Full-precision (normalized) vector of an encoded row, for codes that re-encode rows. */
+  interface Source {
+    void vector(int row, float[] out);
+  }
+
+  /** Approximate similarity of one prepared query to a row, higher = closer. */
+  interface Scorer {
+    float score(int row);
+  }
+
+  /** @throws IllegalStateException if {@code rows} would not fit in one array */
+  void ensureCapacity(int rows);
+
+  /**
+   * Encodes the normalized {@code v} into {@code row}; {@code usedRows} = rows encoded so far,
+   * whose full-precision vectors must already be readable from the codes' {@link Source}.
+   */
+  void set(int row, float[] v, int usedRows);
+
+  /** Copies one row's codes (used when compaction moves rows down). */
+  void copyRow(int from, int to);
+
+  /** Converts a normalized query once, before it is scored against many rows. */
+  Scorer scorer(float[] q);
+
+  long bytes();
+}
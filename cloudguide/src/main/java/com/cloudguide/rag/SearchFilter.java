@@ -0,0 +1,122 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Metadata restriction evaluated inside a store, before scoring. All set
+ * conditions must hold; {@code null} / empty means "any".
+ *
+ * <ul>
+ *   <li>{@code docIds}: the chunk's docId is one of these</li>
+ *   <li>{@code sourcePrefix}: the chunk id starts with this prefix, ending at a
+ *       segment boundary ({@code : / #}), e.g. "aws-pricing" or "manual:azure/"</li>
+ *   <li>{@code ingestedFrom} / {@code ingestedUntil}: epoch millis, inclusive / exclusive</li>
+ * </ul>
+ *
+ * @author rachanakeshav
+ */
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+public record SearchFilter(Set<String> docIds, String sourcePrefix, Long ingestedFrom, Long ingestedUntil) {
+
+  public static SearchFilter docIds(Set<String> docIds) {
+    return new SearchFilter(docIds, null, null, null);
+  }
+
+  public static SearchFilter sourcePrefix(String prefix) {
+    return new SearchFilter(null, prefix, null, null);
+  }
+
+  /**
+   * From request parameters, any of which may be null or blank: comma-separated
+   * docIds, a source prefix, and ingest times as epoch millis or ISO-8601 instants
+   * ("2025-01-31T00:00:00Z"). Null if none is set.
+   *
+   * @throws IllegalArgumentException for a time that is neither
+   */
+  public static SearchFilter fromParams(String docIds, String sourcePrefix, String ingestedFrom, String ingestedUntil) {
+    Set<String> ids = new LinkedHashSet<>();
+    if (docIds != null) {
+      for (String id : docIds.split(",")) {
+        if (!id.isBlank()) ids.add(id.trim());
+      }
+    }
+    SearchFilter f = new SearchFilter(ids.isEmpty() ? null : Set.copyOf(ids),
+        sourcePrefix == null || sourcePrefix.isBlank() ? null : sourcePrefix.trim(),
+        time(ingestedFrom), time(ingestedUntil));
+    return f.isEmpty() ? null : f;
+  }
+
+  private static Long time(String s) {
+    if (s == null || s.isBlank()) return null;
+    String t = s.trim();
+    try {
+      return Long.parseLong(t);
+    } catch (NumberFormatException notMillis) {
+      try {
+        return Instant.parse(t).toEpochMilli();
+      } catch (DateTimeParseException e) {
+        throw new IllegalArgumentException("not epoch millis or an ISO-8601 instant: " + t);
+      }
+    }
+  }
+
+  /** True if no condition is set. */
+  public boolean isEmpty() {
+    return (docIds == null || docIds.isEmpty()) && (sourcePrefix == null || sourcePrefix.isEmpty())
+        && ingestedFrom == null && ingestedUntil == null;
+  }
+
+  public boolean matches(String id, String docId, long ingestedAt) {
+    return matchesDocId(docId) && matchesSource(id) && matchesTime(ingestedAt);
+  }
+
+  boolean matchesDocId(String docId) {
+    return docIds == null || docIds.isEmpty() || docIds.contains(docId);
+  }
+
+  boolean matchesSource(String id) {
+    if (sourcePrefix == null || sourcePrefix.isEmpty()) return true;
+    if (id == null || !id.startsWith(sourcePrefix)) return false;
+    int n = sourcePrefix.length();
+    return id.length() == n || isBoundary(sourcePrefix.charAt(n - 1)) || isBoundary(id.charAt(n));
+  }
+
+  boolean matchesTime(long ingestedAt) {
+    return (ingestedFrom == null || ingestedAt >= ingestedFrom)
+        && (ingestedUntil == null || ingestedAt < ingestedUntil);
+  }
+
+  boolean hasTimeRange() {
+    return ingestedFrom != null || ingestedUntil != null;
+  }
+
+  /**
+   * Every prefix of {@code id} that {@link #matchesSource} accepts, for stores that
+   * can only match exact keywords (Qdrant keeps them as a payload array).
+   */
+  public static List<String> sourcePrefixes(String id) {
+    List<String> out = new ArrayList<>();
+    if (id == null || id.isEmpty()) return out;
+    for (int i = 0; i < id.length(); i++) {
+      if (isBoundary(id.charAt(i))) {
+        if (i > 0) out.add(id.substring(0, i));
+        out.add(id.substring(0, i + 1));
+      }
+    }
+    out.add(id);
+    return out;
+  }
+
+  private static boolean isBoundary(char c) {
+    return c == ':' || c == '/' || c == '#';
+  }
+}
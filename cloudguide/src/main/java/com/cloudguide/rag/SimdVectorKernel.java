@@ -0,0 +1,94 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * {@link VectorMath.Kernel} on the JDK Vector API. Only loaded reflectively by
+ * VectorMath when {@code jdk.incubator.vector} is in the boot layer, so the
+ * rest of the code never links against the incubator module.
+ *
+ * @author rachanakeshav
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+final class SimdVectorKernel implements VectorMath.Kernel {
+
+  private static final VectorSpecies<Float> F = FloatVector.SPECIES_PREFERRED;
+  // int8 path: 8 codes widened to 8 float lanes per step
+  private static final VectorSpecies<Byte> B8 = ByteVector.SPECIES_64;
+  private static final VectorSpecies<Float> F8 = FloatVector.SPECIES_256;
+  private static final boolean WIDE_I8 = F.vectorBitSize() >= 256;
+
+  private final VectorMath.Scalar tail = new VectorMath.Scalar();
+
+  @Override
+  public float dot(float[] a, int aOff, float[] b, int bOff, int len) {
+    int step = F.length();
+    int i = 0;
+    FloatVector acc0 = FloatVector.zero(F);
+    FloatVector acc1 = FloatVector.zero(F);
+    for (int end = len - 2 * step; i <= end; i += 2 * step) {
+      acc0 = FloatVector.fromArray(F, a, aOff + i).fma(FloatVector.fromArray(F, b, bOff + i), acc0);
+      acc1 = FloatVector.fromArray(F, a, aOff + i + step).fma(FloatVector.fromArray(F, b, bOff + i + step), acc1);
+    }
+    for (int end = F.loopBound(len); i < end; i += step) {
+      acc0 = FloatVector.fromArray(F, a, aOff + i).fma(FloatVector.fromArray(F, b, bOff + i), acc0);
+    }
+    float s = acc0.add(acc1).reduceLanes(VectorOperators.ADD);
+    return i == len ? s : s + tail.dot(a, aOff + i, b, bOff + i, len - i);
+  }
+
+  @Override
+  public float dot(float[] q, ByteBuffer buf, int off, int len) {
+    ByteOrder order = buf.order();
+    int step = F.length();
+    int i = 0;
+    FloatVector acc = FloatVector.zero(F);
+    for (int end = F.loopBound(len); i < end; i += step) {
+      acc = FloatVector.fromArray(F, q, i).fma(FloatVector.fromByteBuffer(F, buf, off + 4 * i, order), acc);
+    }
+    float s = acc.reduceLanes(VectorOperators.ADD);
+    for (; i < len; i++) s += q[i] * buf.getFloat(off + 4 * i);
+    return s;
+  }
+
+  @Override
+  public float l2sq(float[] a, int aOff, float[] b, int bOff, int len) {
+    int step = F.length();
+    int i = 0;
+    FloatVector acc = FloatVector.zero(F);
+    for (int end = F.loopBound(len); i < end; i += step) {
+      FloatVector d = FloatVector.fromArray(F, a, aOff + i).sub(FloatVector.fromArray(F, b, bOff + i));
+      acc = d.fma(d, acc);
+    }
+    float s = acc.reduceLanes(VectorOperators.ADD);
+    return i == len ? s : s + tail.l2sq(a, aOff + i, b, bOff + i, len - i);
+  }
+
+  @Override
+  public float dotI8(float[] q, byte[] codes, int off, int len) {
+    if (!WIDE_I8) return tail.dotI8(q, codes, off, len);
+    int i = 0;
+    FloatVector acc = FloatVector.zero(F8);
+    for (int end = B8.loopBound(len); i < end; i += 8) {
+      FloatVector c = (FloatVector) ByteVector.fromArray(B8, codes, off + i).castShape(F8, 0);
+      acc = FloatVector.fromArray(F8, q, i).fma(c, acc);
+    }
+    float s = acc.reduceLanes(VectorOperators.ADD);
+    for (; i < len; i++) s += q[i] * codes[off + i];
+    return s;
+  }
+
+  @Override
+  public String toString() {
+    return "simd(" + F + ")";
+  }
+}
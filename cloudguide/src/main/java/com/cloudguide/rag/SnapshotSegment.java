@@ -0,0 +1,186 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * One read-only segment of a vector snapshot, opened with FileChannel.map:
+ *
+ *   NAME.vec   header(magic "CGVV", version, dim, rows) + rows*dim little-endian float32
+ *              (L2-normalized, row-major)
+ *   NAME.meta  header(magic "CGVM", version, rows, 0) + long offsets[rows+1] + records,
+ *              record = long ingestedAt (v2+), int len + UTF-8 id, int len + UTF-8 docId,
+ *                       int len + UTF-8 text
+ *
+ * Nothing is decoded up front: vectors are paged in as rows are scored and
+ * strings are only materialized for the rows that make it into a result.
+ *
+ * @author rachanakeshav
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+final class SnapshotSegment {
+
+  static final int VEC_MAGIC = 0x43475656;  // "CGVV"
+  static final int META_MAGIC = 0x4347564D; // "CGVM"
+  static final int VERSION = 2;
+  static final int HEADER = 16;
+
+  /** Row source for {@link #write}. */
+  interface Rows {
+    int dim();
+    int count();
+    void vector(int i, float[] out);
+    String id(int i);
+    String docId(int i);
+    String text(int i);
+    long ingestedAt(int i);
+  }
+
+  final String name;
+  final int dim;
+  final int rows;
+  private final ByteBuffer vec;
+  private final ByteBuffer meta;
+  private final int dataStart;
+  private final int fieldsAt;  // bytes before the strings of a record
+
+  private SnapshotSegment(String name, int dim, int rows, ByteBuffer vec, ByteBuffer meta, int version) {
+    this.name = name;
+    this.dim = dim;
+    this.rows = rows;
+    this.vec = vec;
+    this.meta = meta;
+    this.dataStart = HEADER + 8 * (rows + 1);
+    this.fieldsAt = version >= 2 ? 8 : 0;
+  }
+
+  static SnapshotSegment open(Path dir, String name) throws IOException {
+    ByteBuffer vec = map(dir.resolve(name + ".vec"));
+    ByteBuffer meta = map(dir.resolve(name + ".meta"));
+    if (vec.getInt(0) != VEC_MAGIC || meta.getInt(0) != META_MAGIC) {
+      throw new IOException("not a vector snapshot segment: " + dir.resolve(name));
+    }
+    int version = meta.getInt(4);
+    if (vec.getInt(4) < 1 || vec.getInt(4) > VERSION || version < 1 || version > VERSION) {
+      throw new IOException("unsupported snapshot segment version in " + dir.resolve(name));
+    }
+    int dim = vec.getInt(8);
+    int rows = vec.getInt(12);
+    if (meta.getInt(8) != rows) throw new IOException("segment " + name + ": vec/meta row count mismatch");
+    if (vec.capacity() < HEADER + 4L * dim * rows) throw new IOException("segment " + name + ": truncated vectors");
+    return new SnapshotSegment(name, dim, rows, vec, meta, version);
+  }
+
+  private static ByteBuffer map(Path p) throws IOException {
+    try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+      return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+  }
+
+  float dot(float[] q, int row) {
+    return VectorMath.dot(q, vec, HEADER + 4 * row * dim, dim);
+  }
+
+  void vector(int row, float[] out) {
+    int off = HEADER + 4 * row * dim;
+    for (int i = 0; i < dim; i++) out[i] = vec.getFloat(off + 4 * i);
+  }
+
+  String id(int row) { return field(row, 0); }
+  String docId(int row) { return field(row, 1); }
+  String text(int row) { return field(row, 2); }
+
+  /** Ingest time in epoch millis; 0 for segments written before it was recorded. */
+  long ingestedAt(int row) {
+    return fieldsAt == 0 ? 0L : meta.getLong(dataStart + (int) meta.getLong(HEADER + 8 * row));
+  }
+
+  private String field(int row, int which) {
+    int pos = dataStart + (int) meta.getLong(HEADER + 8 * row) + fieldsAt;
+    for (int f = 0; f < which; f++) pos += 4 + meta.getInt(pos);
+    int len = meta.getInt(pos);
+    byte[] b = new byte[len];
+    meta.get(pos + 4, b, 0, len);
+    return new String(b, StandardCharsets.UTF_8);
+  }
+
+  /** Writes rows to NAME.vec / NAME.meta in {@code dir} and fsyncs both. */
+  static void write(Path dir, String name, Rows src) throws IOException {
+    int dim = src.dim();
+    int n = src.count();
+
+    try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(dir.resolve(name + ".vec")), 1 << 16))) {
+      out.writeInt(Integer.reverseBytes(VEC_MAGIC));
+      out.writeInt(Integer.reverseBytes(VERSION));
+      out.writeInt(Integer.reverseBytes(dim));
+      out.writeInt(Integer.reverseBytes(n));
+      float[] v = new float[dim];
+      for (int i = 0; i < n; i++) {
+        src.vector(i, v);
+        for (float f : v) out.writeInt(Integer.reverseBytes(Float.floatToRawIntBits(f)));
+      }
+    }
+
+    long[] offsets = new long[n + 1];
+    Path data = Files.createTempFile(dir, name, ".records");
+    try {
+      try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(data), 1 << 16))) {
+        long pos = 0;
+        for (int i = 0; i < n; i++) {
+          offsets[i] = pos;
+          out.writeLong(Long.reverseBytes(src.ingestedAt(i)));
+          pos += 8;
+          pos += writeString(out, src.id(i));
+          pos += writeString(out, src.docId(i));
+          pos += writeString(out, src.text(i));
+        }
+        offsets[n] = pos;
+      }
+      try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(dir.resolve(name + ".meta")), 1 << 16))) {
+        out.writeInt(Integer.reverseBytes(META_MAGIC));
+        out.writeInt(Integer.reverseBytes(VERSION));
+        out.writeInt(Integer.reverseBytes(n));
+        out.writeInt(0);
+        for (long o : offsets) out.writeLong(Long.reverseBytes(o));
+        Files.copy(data, out);
+      }
+    } finally {
+      Files.deleteIfExists(data);
+    }
+    fsync(dir.resolve(name + ".vec"));
+    fsync(dir.resolve(name + ".meta"));
+  }
+
+  private static int writeString(DataOutputStream out, String s) throws IOException {
+    byte[] b = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+    out.writeInt(Integer.reverseBytes(b.length));
+    out.write(b);
+    return 4 + b.length;
+  }
+
+  static void fsync(Path p) throws IOException {
+    try (FileChannel ch = FileChannel.open(p, StandardOpenOption.WRITE)) {
+      ch.force(true);
+    }
+  }
+
+  /** Makes renames and new files in {@code dir} durable (their own fsync covers only the contents). */
+  static void fsyncDir(Path dir) throws IOException {
+    try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+      ch.force(true);
+    } catch (AccessDeniedException e) {
+      // Windows cannot open a directory; its renames need no directory sync
+    }
+  }
+}
@@ -0,0 +1,314 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Hot/cold tiering over a remote store (store = "tiered"): chunks that keep
+ * coming back from the cold store are copied into a heap-only InMemoryVectorDB,
+ * and a query is answered from that hot tier alone when every one of its top-k
+ * hits clears {@code minScore}. Anything less confident, and every query the
+ * hot tier cannot fill, goes to the cold store, which stays the source of truth.
+ *
+ * Hits from either tier are counted in a decaying frequency sketch. A chunk is
+ * admitted once it reaches {@code admitAfter} hits (its vector is fetched from
+ * the cold store in the background). At capacity the least recently hit
+ * resident is the eviction victim; with TINYLFU it only makes room for a
+ * newcomer that is hit more often, with LRU it always does.
+ *
+ * Writes go to the cold store and drop the affected chunks from the hot tier,
+ * before and after the write; promotions that were in flight across a write are
+ * discarded, so the hot tier never resurrects a replaced chunk.
+ *
+ * @author rachanakeshav
+ */
+
+import com.cloudguide.metrics.Metrics;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TieredVectorDB implements VectorDB, AutoCloseable {
+
+  public enum Eviction {
+    TINYLFU, LRU;
+
+    public static Eviction parse(String s) {
+      return s == null || s.isBlank() ? TINYLFU : valueOf(s.trim().toUpperCase(Locale.ROOT));
+    }
+  }
+
+  private static final double HOT_COMPACT_RATIO = 0.25;
+
+  private static final Metrics.Counter HOT_ANSWERS = Metrics.counter(
+      "cloudguide_tier_hot_answers_total", "Queries answered from the hot tier");
+  private static final Metrics.Counter COLD_ANSWERS = Metrics.counter(
+      "cloudguide_tier_cold_answers_total", "Queries sent to the cold store");
+  private static final Metrics.Counter PROMOTIONS = Metrics.counter(
+      "cloudguide_tier_promotions_total", "Chunks copied into the hot tier");
+  private static final Metrics.Counter EVICTIONS = Metrics.counter(
+      "cloudguide_tier_evictions_total", "Chunks dropped from the hot tier for capacity");
+
+  private final InMemoryVectorDB hot;
+  private final VectorDB cold;
+  private final int capacity;
+  private final int admitAfter;
+  private final Eviction eviction;
+  private final float minScore;
+
+  // Residency bookkeeping, guarded by this; hot-tier writes happen under it too,
+  // so the maps and the hot store's content change together
+  private final FrequencySketch sketch;
+  private final LinkedHashMap<String, String> resident = new LinkedHashMap<>(16, 0.75f, true);  // chunk id -> docId, eldest = LRU
+  private final Map<String, Set<String>> residentByDocId = new HashMap<>();
+  private final Set<String> pending = new HashSet<>();
+  private final AtomicLong version = new AtomicLong();
+
+  /**
+   * @param hot heap-only store (no write-ahead log) holding the resident chunks
+   * @param capacity chunks kept resident
+   * @param admitAfter hits before a chunk is copied in
+   * @param minScore lowest k-th hit score for which a hot answer is trusted
+   */
+  public TieredVectorDB(InMemoryVectorDB hot, VectorDB cold, int capacity, int admitAfter,
+      Eviction eviction, float minScore) {
+    this.hot = hot;
+    this.cold = cold;
+    this.capacity = Math.max(1, capacity);
+    this.admitAfter = Math.max(1, admitAfter);
+    this.eviction = eviction;
+    this.minScore = minScore;
+    this.sketch = new FrequencySketch(this.capacity);
+    Metrics.gauge("cloudguide_tier_hot_chunks", "Chunks resident in the hot tier", this::residentCount);
+  }
+
+  public synchronized int residentCount() {
+    return resident.size();
+  }
+
+  // ---- search ----
+
+  @Override
+  public List<SearchHit> topK(float[] queryEmbedding, int k) {
+    return await(topKAsync(queryEmbedding, k));
+  }
+
+  @Override
+  public List<List<SearchHit>> topKBatch(List<float[]> queryEmbeddings, int k) {
+    return await(topKBatchAsync(queryEmbeddings, k, null));
+  }
+
+  @Override
+  public List<List<SearchHit>> topKBatch(List<float[]> queryEmbeddings, int k, SearchFilter filter) {
+    return await(topKBatchAsync(queryEmbeddings, k, filter));
+  }
+
+  @Override
+  public CompletionStage<List<SearchHit>> topKAsync(float[] queryEmbedding, int k) {
+    return topKBatchAsync(List.of(queryEmbedding), k, null).thenApply(r -> r.get(0));
+  }
+
+  @Override
+  public CompletionStage<List<List<SearchHit>>> topKBatchAsync(List<float[]> queryEmbeddings, int k) {
+    return topKBatchAsync(queryEmbeddings, k, null);
+  }
+
+  /** Confident queries are answered in-process; the rest go to the cold store in one batch. */
+  @Override
+  public CompletionStage<List<List<SearchHit>>> topKBatchAsync(List<float[]> queryEmbeddings, int k, SearchFilter filter) {
+    int nq = queryEmbeddings.size();
+    if (k <= 0 || nq == 0) return CompletableFuture.completedFuture(Collections.nCopies(nq, List.of()));
+    List<List<SearchHit>> out = new ArrayList<>(Collections.nCopies(nq, List.<SearchHit>of()));
+    List<Integer> misses = new ArrayList<>(nq);
+    List<List<SearchHit>> local = null;
+    if (residentCount() >= k) {
+      try {
+        local = hot.topKBatch(queryEmbeddings, k, filter);
+      } catch (RuntimeException e) {
+        local = null;   // the cold store decides what a bad query or filter means
+      }
+    }
+    for (int j = 0; j < nq; j++) {
+      if (local != null && confident(local.get(j), k)) out.set(j, local.get(j));
+      else misses.add(j);
+    }
+    HOT_ANSWERS.add(nq - misses.size());
+    if (misses.isEmpty()) {
+      record(out);
+      return CompletableFuture.completedFuture(out);
+    }
+    COLD_ANSWERS.add(misses.size());
+    List<float[]> coldQueries = new ArrayList<>(misses.size());
+    for (int j : misses) coldQueries.add(queryEmbeddings.get(j));
+    return cold.topKBatchAsync(coldQueries, k, filter).thenApply(r -> {
+      for (int i = 0; i < misses.size(); i++) out.set(misses.get(i), r.get(i));
+      record(out);
+      return out;
+    });
+  }
+
+  private boolean confident(List<SearchHit> hits, int k) {
+    return hits.size() >= k && hits.get(hits.size() - 1).score() >= minScore;
+  }
+
+  // Counts every returned chunk and starts promoting the ones that became hot enough
+  private void record(List<List<SearchHit>> results) {
+    List<String> promote = new ArrayList<>();
+    long at;
+    synchronized (this) {
+      at = version.get();
+      for (List<SearchHit> hits : results) {
+        for (SearchHit h : hits) {
+          int hash = h.id().hashCode();
+          sketch.increment(hash);
+          if (resident.get(h.id()) != null) continue;   // get() also refreshes its LRU position
+          if (sketch.frequency(hash) >= admitAfter && pending.add(h.id())) promote.add(h.id());
+        }
+      }
+    }
+    if (promote.isEmpty()) return;
+    cold.fetchAsync(promote).whenComplete((docs, err) -> {
+      if (err != null) {
+        synchronized (this) {
+          promote.forEach(pending::remove);
+        }
+        return;
+      }
+      admit(promote, docs, at);
+    });
+  }
+
+  private synchronized void admit(List<String> requested, List<Doc> docs, long at) {
+    requested.forEach(pending::remove);
+    if (version.get() != at) return;   // a write landed meanwhile; the fetched chunks may be stale
+
+    List<Doc> accepted = new ArrayList<>(docs.size());
+    List<String> evicted = new ArrayList<>();
+    for (Doc d : docs) {
+      if (resident.containsKey(d.id())) continue;
+      if (resident.size() >= capacity) {
+        Map.Entry<String, String> victim = resident.entrySet().iterator().next();
+        if (eviction == Eviction.TINYLFU
+            && sketch.frequency(d.id().hashCode()) <= sketch.frequency(victim.getKey().hashCode())) {
+          continue;
+        }
+        forget(victim.getKey());
+        evicted.add(victim.getKey());
+      }
+      resident.put(d.id(), d.docId());
+      residentByDocId.computeIfAbsent(d.docId(), x -> new HashSet<>()).add(d.id());
+      accepted.add(d);
+    }
+    try {
+      if (!evicted.isEmpty()) hot.evict(evicted);
+      if (!accepted.isEmpty()) hot.upsertBatch(accepted);
+      if (!evicted.isEmpty()) hot.compactIfNeeded(HOT_COMPACT_RATIO);
+    } catch (Exception e) {
+      // keep the bookkeeping honest: nothing of this batch is considered resident
+      accepted.forEach(d -> forget(d.id()));
+      hot.evict(accepted.stream().map(Doc::id).toList());
+      return;
+    }
+    PROMOTIONS.add(accepted.size());
+    EVICTIONS.add(evicted.size());
+  }
+
+  private void forget(String id) {
+    String docId = resident.remove(id);
+    if (docId == null) return;
+    Set<String> ids = residentByDocId.get(docId);
+    if (ids != null && ids.remove(id) && ids.isEmpty()) residentByDocId.remove(docId);
+  }
+
+  // ---- writes: cold store first, hot copies dropped around it ----
+
+  @Override
+  public void upsert(Doc doc) {
+    upsertBatch(List.of(doc));
+  }
+
+  @Override
+  public void upsertBatch(List<Doc> docs) {
+    await(upsertBatchAsync(docs));
+  }
+
+  @Override
+  public CompletionStage<Void> upsertBatchAsync(List<Doc> docs) {
+    List<String> ids = docs.stream().map(Doc::id).toList();
+    dropChunks(ids);
+    return cold.upsertBatchAsync(docs).whenComplete((v, err) -> dropChunks(ids));
+  }
+
+  @Override
+  public void replaceDocument(String docId, List<Doc> chunks) {
+    await(replaceDocumentAsync(docId, chunks));
+  }
+
+  @Override
+  public CompletionStage<Void> replaceDocumentAsync(String docId, List<Doc> chunks) {
+    dropDocument(docId);
+    return cold.replaceDocumentAsync(docId, chunks).whenComplete((v, err) -> dropDocument(docId));
+  }
+
+  private synchronized void dropChunks(List<String> ids) {
+    version.incrementAndGet();
+    List<String> drop = new ArrayList<>();
+    for (String id : ids) {
+      if (resident.containsKey(id)) {
+        forget(id);
+        drop.add(id);
+      }
+    }
+    if (!drop.isEmpty()) hot.evict(drop);
+  }
+
+  private synchronized void dropDocument(String docId) {
+    version.incrementAndGet();
+    Set<String> ids = residentByDocId.get(docId);
+    if (ids == null) return;
+    List<String> drop = new ArrayList<>(ids);
+    drop.forEach(this::forget);
+    hot.evict(drop);
+  }
+
+  @Override
+  public List<Doc> fetch(List<String> ids) {
+    return cold.fetch(ids);
+  }
+
+  @Override
+  public CompletionStage<List<Doc>> fetchAsync(List<String> ids) {
+    return cold.fetchAsync(ids);
+  }
+
+  /** Changes on every write made through this instance; promotions do not change answers' content. */
+  @Override
+  public long version() {
+    return version.get();
+  }
+
+  @Override
+  public int dimension() {
+    int d = hot.dimension();
+    return d >= 0 ? d : cold.dimension();
+  }
+
+  @Override
+  public void close() throws Exception {
+    hot.close();
+    if (cold instanceof AutoCloseable c) c.close();
+  }
+
+  // Blocking facade for the synchronous VectorDB methods
+  private static <T> T await(CompletionStage<T> stage) {
+    try {
+      return stage.toCompletableFuture().join();
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException re ? re : e;
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Bounded W-TinyLFU cache. New entries land in a small LRU window (1% of the
+ * capacity); an entry pushed out of the window only enters the main segmented
+ * LRU (probation 20% / protected 80%) if a frequency sketch says it has been
+ * asked for more often than the main region's eviction victim. One-hit
+ * wonders therefore never displace the questions people keep asking.
+ *
+ * The sketch is a 4-bit count-min over the last ~10 x capacity accesses;
+ * all counters are halved when that sample fills, so old popularity fades.
+ * Methods are synchronized; the critical sections are a few map operations.
+ *
+ * @author rachanakeshav
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public final class TinyLfuCache<K, V> {
+
+  private final int maxSize;
+  private final int windowMax;
+  private final int protectedMax;
+
+  // access-ordered, eldest first
+  private final LinkedHashMap<K, V> window = new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<K, V> probation = new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<K, V> protectedRegion = new LinkedHashMap<>(16, 0.75f, true);
+  private final FrequencySketch sketch;
+  private long evictions;
+  private long rejections;
+
+  public TinyLfuCache(int maxSize) {
+    this.maxSize = Math.max(1, maxSize);
+    this.windowMax = Math.max(1, this.maxSize / 100);
+    int mainMax = Math.max(1, this.maxSize - windowMax);
+    this.protectedMax = Math.max(1, mainMax * 4 / 5);
+    this.sketch = new FrequencySketch(this.maxSize);
+  }
+
+  public synchronized V get(K key) {
+    sketch.increment(key.hashCode());
+    V v = window.get(key);
+    if (v != null) return v;
+    v = protectedRegion.get(key);
+    if (v != null) return v;
+    v = probation.remove(key);
+    if (v != null) {
+      // second hit while on probation: promote, demoting the coldest protected entry if full
+      protectedRegion.put(key, v);
+      if (protectedRegion.size() > protectedMax) {
+        Map.Entry<K, V> coldest = eldest(protectedRegion);
+        protectedRegion.remove(coldest.getKey());
+        probation.put(coldest.getKey(), coldest.getValue());
+      }
+    }
+    return v;
+  }
+
+  public synchronized void put(K key, V value) {
+    if (window.containsKey(key)) {
+      window.put(key, value);
+      return;
+    }
+    if (protectedRegion.containsKey(key)) {
+      protectedRegion.put(key, value);
+      return;
+    }
+    if (probation.containsKey(key)) {
+      probation.put(key, value);
+      return;
+    }
+    sketch.increment(key.hashCode());
+    window.put(key, value);
+    if (window.size() > windowMax) {
+      Map.Entry<K, V> candidate = eldest(window);
+      window.remove(candidate.getKey());
+      admit(candidate.getKey(), candidate.getValue());
+    }
+  }
+
+  // The window's evictee competes with the main region's victim on estimated frequency
+  private void admit(K key, V value) {
+    if (probation.size() + protectedRegion.size() < maxSize - windowMax) {
+      probation.put(key, value);
+      return;
+    }
+    LinkedHashMap<K, V> from = probation.isEmpty() ? protectedRegion : probation;
+    Map.Entry<K, V> victim = eldest(from);
+    if (sketch.frequency(key.hashCode()) > sketch.frequency(victim.getKey().hashCode())) {
+      from.remove(victim.getKey());
+      evictions++;
+      probation.put(key, value);
+    } else {
+      rejections++;
+    }
+  }
+
+  public synchronized void invalidate(K key) {
+    if (window.remove(key) == null && probation.remove(key) == null) protectedRegion.remove(key);
+  }
+
+  public synchronized void clear() {
+    window.clear();
+    probation.clear();
+    protectedRegion.clear();
+  }
+
+  public synchronized int size() {
+    return window.size() + probation.size() + protectedRegion.size();
+  }
+
+  /** Main-region entries removed to make room for an admitted candidate. */
+  public synchronized long evictions() {
+    return evictions;
+  }
+
+  /** Window evictees turned away because the main region's victim was asked for more often. */
+  public synchronized long rejections() {
+    return rejections;
+  }
+
+  private static <K, V> Map.Entry<K, V> eldest(LinkedHashMap<K, V> m) {
+    Iterator<Map.Entry<K, V>> it = m.entrySet().iterator();
+    Map.Entry<K, V> e = it.next();
+    return Map.entry(e.getKey(), e.getValue());
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Fixed-capacity min-heap of (row, score) pairs over primitive arrays.
+ * The root is always the weakest of the current best k, so a candidate
+ * that does not beat it is rejected with a single compare.
+ *
+ * @author rachanakeshav
+ */
+final class TopK {
+
+  private final int[] rows;
+  private final float[] scores;
+  private int size;
+
+  TopK(int k) {
+    rows = new int[Math.max(1, k)];
+    scores = new float[Math.max(1, k)];
+  }
+
+  int size() { return size; }
+
+  int capacity() { return rows.length; }
+
+  boolean isFull() { return size == rows.length; }
+
+  /** Score a candidate must beat to enter once the heap is full. */
+  float threshold() {
+    return isFull() ? scores[0] : Float.NEGATIVE_INFINITY;
+  }
+
+  void offer(int row, float score) {
+    if (size < rows.length) {
+      rows[size] = row;
+      scores[size] = score;
+      siftUp(size++);
+    } else if (score > scores[0]) {
+      rows[0] = row;
+      scores[0] = score;
+      siftDown(0);
+    }
+  }
+
+  /** Merges another heap into this one (used to combine partial results). */
+  void addAll(TopK other) {
+    for (int i = 0; i < other.size; i++) offer(other.rows[i], other.scores[i]);
+  }
+
+  /** Drains the heap into the given arrays best-first and returns the count; the heap is empty afterwards. */
+  int drainSorted(int[] outRows, float[] outScores) {
+    int n = size;
+    for (int i = n - 1; i >= 0; i--) {
+      outRows[i] = rows[0];
+      outScores[i] = scores[0];
+      size--;
+      if (size > 0) {
+        rows[0] = rows[size];
+        scores[0] = scores[size];
+        siftDown(0);
+      }
+    }
+    return n;
+  }
+
+  private void siftUp(int i) {
+    int r = rows[i];
+    float s = scores[i];
+    while (i > 0) {
+      int p = (i - 1) >>> 1;
+      if (scores[p] <= s) break;
+      rows[i] = rows[p];
+      scores[i] = scores[p];
+      i = p;
+    }
+    rows[i] = r;
+    scores[i] = s;
+  }
+
+  private void siftDown(int i) {
+    int r = rows[i];
+    float s = scores[i];
+    int half = size >>> 1;
+    while (i < half) {
+      int c = 2 * i + 1;
+      if (c + 1 < size && scores[c + 1] < scores[c]) c++;
+      if (s <= scores[c]) break;
+      rows[i] = rows[c];
+      scores[i] = scores[c];
+      i = c;
+    }
+    rows[i] = r;
+    scores[i] = s;
+  }
+}
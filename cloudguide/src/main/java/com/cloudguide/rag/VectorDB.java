@@ -8,21 +8,186 @@ package com.cloudguide.rag;
  *
  * @author rachanakeshav
  */
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
 
 public interface VectorDB {
 
-    record Doc(String id, String docId, String text, float[] embedding) {
+    /**
+     * @param ingestedAt epoch millis the chunk was stored; the 4-argument form stamps "now"
+     */
+    record Doc(String id, String docId, String text, float[] embedding, long ingestedAt) {
 
+        public Doc(String id, String docId, String text, float[] embedding) {
+            this(id, docId, text, embedding, System.currentTimeMillis());
+        }
     }
 
     record SearchHit(String id, String docId, String text, float score) {
 
     }
 
+    /**
+     * Hit lists of a search that did not see the whole corpus (a shard failed,
+     * was late or had no replica). Fine to answer from, but never to cache: the
+     * same search may be complete a moment later at the same {@link #version}.
+     */
+    final class PartialResults extends ArrayList<List<SearchHit>> {
+
+        public PartialResults(List<List<SearchHit>> results) {
+            super(results);
+        }
+    }
+
+    static boolean isPartial(List<List<SearchHit>> results) {
+        return results instanceof PartialResults;
+    }
+
     void upsert(Doc doc);
 
     void upsertBatch(List<Doc> docs);
 
     List<SearchHit> topK(float[] queryEmbedding, int k);
+
+    /**
+     * Changes whenever stored content changes (upserts, replaces, deletes made
+     * through this instance), so callers can cache search results per version.
+     * Negative means "not tracked": results from such a store must not be cached.
+     */
+    default long version() {
+        return -1;
+    }
+
+    /**
+     * Length every query embedding must have, so a caller batching queries can
+     * turn away a wrong one before it fails the whole batch. Negative when not
+     * known (nothing stored yet, or a remote store).
+     */
+    default int dimension() {
+        return -1;
+    }
+
+    /**
+     * One hit list per query, in query order. Stores that can share work across
+     * queries (a single pass over the rows, a single round trip) override this.
+     */
+    default List<List<SearchHit>> topKBatch(List<float[]> queryEmbeddings, int k) {
+        List<List<SearchHit>> out = new ArrayList<>(queryEmbeddings.size());
+        for (float[] q : queryEmbeddings) {
+            out.add(topK(q, k));
+        }
+        return out;
+    }
+
+    // ---- filtered search ----
+    // Stores that keep metadata next to the vectors evaluate the filter before
+    // scoring. The defaults are for stores that cannot: they over-fetch and
+    // post-filter on id/docId, which costs recall, and reject ingest-time ranges.
+
+    int POST_FILTER_OVERFETCH = 10;
+
+    default List<SearchHit> topK(float[] queryEmbedding, int k, SearchFilter filter) {
+        return topKBatch(List.of(queryEmbedding), k, filter).get(0);
+    }
+
+    default List<List<SearchHit>> topKBatch(List<float[]> queryEmbeddings, int k, SearchFilter filter) {
+        if (filter == null || filter.isEmpty()) {
+            return topKBatch(queryEmbeddings, k);
+        }
+        if (filter.hasTimeRange()) {
+            throw new UnsupportedOperationException(getClass().getSimpleName() + " does not record ingest time");
+        }
+        List<List<SearchHit>> out = new ArrayList<>(queryEmbeddings.size());
+        for (List<SearchHit> wide : topKBatch(queryEmbeddings, k * POST_FILTER_OVERFETCH)) {
+            List<SearchHit> hits = new ArrayList<>(k);
+            for (SearchHit h : wide) {
+                if (hits.size() < k && filter.matchesDocId(h.docId()) && filter.matchesSource(h.id())) {
+                    hits.add(h);
+                }
+            }
+            out.add(hits);
+        }
+        return out;
+    }
+
+    // ---- document replacement ----
+    // Re-ingesting a document may produce fewer chunks than before, so upserting
+    // the new ids is not enough: every chunk stored under the docId has to go.
+
+    /**
+     * Removes every chunk stored under {@code docId} and stores {@code chunks} in
+     * their place. In-process stores make the swap atomic for readers; remote
+     * stores document what a reader may observe in between.
+     */
+    default void replaceDocument(String docId, List<Doc> chunks) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot delete by docId");
+    }
+
+    default void deleteByDocId(String docId) {
+        replaceDocument(docId, List.of());
+    }
+
+    /**
+     * Stored chunks by id, embeddings included (for copying them into another
+     * store); ids that are not stored are left out.
+     */
+    default List<Doc> fetch(List<String> ids) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot fetch stored chunks");
+    }
+
+    /** Ids of every stored chunk (a copy); with {@link #fetch}, enough to copy the whole store. */
+    default Set<String> chunkIds() {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot list stored chunks");
+    }
+
+    // ---- non-blocking variants ----
+    // Remote stores override these with real async I/O. The defaults suit
+    // in-process stores: they run the call on the caller's thread and report
+    // failures through the returned stage instead of throwing.
+
+    default CompletionStage<List<SearchHit>> topKAsync(float[] queryEmbedding, int k) {
+        return attempt(() -> topK(queryEmbedding, k));
+    }
+
+    default CompletionStage<List<List<SearchHit>>> topKBatchAsync(List<float[]> queryEmbeddings, int k) {
+        return attempt(() -> topKBatch(queryEmbeddings, k));
+    }
+
+    default CompletionStage<List<List<SearchHit>>> topKBatchAsync(List<float[]> queryEmbeddings, int k, SearchFilter filter) {
+        return attempt(() -> topKBatch(queryEmbeddings, k, filter));
+    }
+
+    default CompletionStage<Void> upsertBatchAsync(List<Doc> docs) {
+        return attempt(() -> {
+            upsertBatch(docs);
+            return null;
+        });
+    }
+
+    default CompletionStage<Void> replaceDocumentAsync(String docId, List<Doc> chunks) {
+        return attempt(() -> {
+            replaceDocument(docId, chunks);
+            return null;
+        });
+    }
+
+    default CompletionStage<Void> deleteByDocIdAsync(String docId) {
+        return replaceDocumentAsync(docId, List.of());
+    }
+
+    default CompletionStage<List<Doc>> fetchAsync(List<String> ids) {
+        return attempt(() -> fetch(ids));
+    }
+
+    private static <T> CompletionStage<T> attempt(Supplier<T> call) {
+        try {
+            return CompletableFuture.completedFuture(call.get());
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 }
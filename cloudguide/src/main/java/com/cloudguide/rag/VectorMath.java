@@ -0,0 +1,176 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Similarity kernels shared by every in-process store. When the build ran with
+ * the {@code simd} profile and the JVM runs with
+ * {@code --add-modules jdk.incubator.vector}, the work goes to
+ * SimdVectorKernel; otherwise to the unrolled scalar loops below.
+ *
+ * @author rachanakeshav
+ */
+
+import java.nio.ByteBuffer;
+
+public final class VectorMath {
+
+  interface Kernel {
+    float dot(float[] a, int aOff, float[] b, int bOff, int len);
+
+    /** Dot product of {@code q} with {@code len} floats stored at byte offset {@code off} of {@code buf}. */
+    float dot(float[] q, ByteBuffer buf, int off, int len);
+
+    float l2sq(float[] a, int aOff, float[] b, int bOff, int len);
+
+    /** Dot product of float query weights with signed int8 codes. */
+    float dotI8(float[] q, byte[] codes, int off, int len);
+  }
+
+  static final Kernel KERNEL = load();
+
+  private VectorMath() { }
+
+  private static Kernel load() {
+    if (!Boolean.getBoolean("cloudguide.simd.disabled")
+        && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+      try {
+        return (Kernel) Class.forName("com.cloudguide.rag.SimdVectorKernel")
+            .getDeclaredConstructor().newInstance();
+      } catch (ReflectiveOperationException | LinkageError e) {
+        // fall through to scalar
+      }
+    }
+    return new Scalar();
+  }
+
+  /** Name of the active kernel, for startup logs. */
+  public static String kernelName() {
+    return KERNEL.toString();
+  }
+
+  /** Dot product of {@code q} against the row starting at {@code off} in a row-major arena. */
+  static float dot(float[] q, float[] arena, int off, int dim) {
+    return KERNEL.dot(q, 0, arena, off, dim);
+  }
+
+  /** Dot product of {@code a[aOff..aOff+len)} and {@code b[bOff..bOff+len)}. */
+  static float dot(float[] a, int aOff, float[] b, int bOff, int len) {
+    return KERNEL.dot(a, aOff, b, bOff, len);
+  }
+
+  public static float dot(float[] a, float[] b) {
+    return KERNEL.dot(a, 0, b, 0, Math.min(a.length, b.length));
+  }
+
+  static float dot(float[] q, ByteBuffer buf, int off, int len) {
+    return KERNEL.dot(q, buf, off, len);
+  }
+
+  static float l2sq(float[] a, int aOff, float[] b, int bOff, int len) {
+    return KERNEL.l2sq(a, aOff, b, bOff, len);
+  }
+
+  static float dotI8(float[] q, byte[] codes, int off, int len) {
+    return KERNEL.dotI8(q, codes, off, len);
+  }
+
+  /**
+   * Cosine similarity of two raw (not necessarily normalized) vectors; -1 if
+   * either is zero, so an empty embedding ranks below every real match.
+   * Accumulates in double: this is for one-off comparisons, not scans.
+   */
+  public static float cosine(float[] a, float[] b) {
+    int n = Math.min(a.length, b.length);
+    double dot = 0, na = 0, nb = 0;
+    for (int i = 0; i < n; i++) {
+      dot += (double) a[i] * b[i];
+      na += (double) a[i] * a[i];
+      nb += (double) b[i] * b[i];
+    }
+    return (na == 0 || nb == 0) ? -1f : (float) (dot / (Math.sqrt(na) * Math.sqrt(nb)));
+  }
+
+  /** Copies {@code src} into {@code dst[off..off+dim)} scaled to unit length (zero vectors stay zero). */
+  static void normalizeInto(float[] src, float[] dst, int off) {
+    // the norm is summed in double: it scales every stored row, so its rounding would bias them all
+    double ss = 0;
+    for (float v : src) ss += (double) v * v;
+    float inv = ss == 0 ? 0f : (float) (1.0 / Math.sqrt(ss));
+    for (int i = 0; i < src.length; i++) dst[off + i] = src[i] * inv;
+  }
+
+  public static float[] normalized(float[] v) {
+    float[] out = new float[v.length];
+    normalizeInto(v, out, 0);
+    return out;
+  }
+
+  /** Portable fallback: independent accumulators so the adds are not one serial dependency chain. */
+  static final class Scalar implements Kernel {
+
+    @Override
+    public float dot(float[] a, int aOff, float[] b, int bOff, int len) {
+      float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+      int i = 0;
+      for (int end = len & ~3; i < end; i += 4) {
+        s0 += a[aOff + i] * b[bOff + i];
+        s1 += a[aOff + i + 1] * b[bOff + i + 1];
+        s2 += a[aOff + i + 2] * b[bOff + i + 2];
+        s3 += a[aOff + i + 3] * b[bOff + i + 3];
+      }
+      for (; i < len; i++) s0 += a[aOff + i] * b[bOff + i];
+      return (s0 + s1) + (s2 + s3);
+    }
+
+    @Override
+    public float dot(float[] q, ByteBuffer buf, int off, int len) {
+      float s0 = 0f, s1 = 0f;
+      int i = 0;
+      for (int end = len & ~1; i < end; i += 2) {
+        s0 += q[i] * buf.getFloat(off + 4 * i);
+        s1 += q[i + 1] * buf.getFloat(off + 4 * i + 4);
+      }
+      for (; i < len; i++) s0 += q[i] * buf.getFloat(off + 4 * i);
+      return s0 + s1;
+    }
+
+    @Override
+    public float l2sq(float[] a, int aOff, float[] b, int bOff, int len) {
+      float s0 = 0f, s1 = 0f;
+      int i = 0;
+      for (int end = len & ~1; i < end; i += 2) {
+        float d0 = a[aOff + i] - b[bOff + i];
+        float d1 = a[aOff + i + 1] - b[bOff + i + 1];
+        s0 += d0 * d0;
+        s1 += d1 * d1;
+      }
+      for (; i < len; i++) {
+        float d = a[aOff + i] - b[bOff + i];
+        s0 += d * d;
+      }
+      return s0 + s1;
+    }
+
+    @Override
+    public float dotI8(float[] q, byte[] codes, int off, int len) {
+      float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+      int i = 0;
+      for (int end = len & ~3; i < end; i += 4) {
+        s0 += q[i] * codes[off + i];
+        s1 += q[i + 1] * codes[off + i + 1];
+        s2 += q[i + 2] * codes[off + i + 2];
+        s3 += q[i + 3] * codes[off + i + 3];
+      }
+      for (; i < len; i++) s0 += q[i] * codes[off + i];
+      return (s0 + s1) + (s2 + s3);
+    }
+
+    @Override
+    public String toString() {
+      return "scalar";
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Snapshot directory layout: a MANIFEST naming the current generation's
+ * segments, plus the segment files themselves. A new snapshot writes a new
+ * generation of segments, fsyncs them, then atomically replaces MANIFEST,
+ * so a crash mid-write leaves the previous generation intact.
+ *
+ *   MANIFEST   "cloudguide-vectors 1" / "generation N" / "dim D" / "segment NAME ROWS"...
+ *
+ * @author rachanakeshav
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+final class VectorSnapshot {
+
+  private static final String MANIFEST = "MANIFEST";
+  private static final String HEADER = "cloudguide-vectors 1";
+  private static final long MAX_SEGMENT_BYTES = 1L << 30;
+  private static final int MAX_SEGMENT_ROWS = 262_144;
+
+  final long generation;
+  final int dim;
+  final List<SnapshotSegment> segments;
+
+  private VectorSnapshot(long generation, int dim, List<SnapshotSegment> segments) {
+    this.generation = generation;
+    this.dim = dim;
+    this.segments = segments;
+  }
+
+  /** Opens the current generation in {@code dir}, or returns {@code null} if there is none. */
+  static VectorSnapshot open(Path dir) throws IOException {
+    Path manifest = dir.resolve(MANIFEST);
+    if (!Files.exists(manifest)) return null;
+    List<String> lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+    if (lines.isEmpty() || !HEADER.equals(lines.get(0).trim())) {
+      throw new IOException("unsupported snapshot manifest in " + dir);
+    }
+    long gen = 0;
+    int dim = -1;
+    List<SnapshotSegment> segs = new ArrayList<>();
+    for (String line : lines.subList(1, lines.size())) {
+      String[] f = line.trim().split("\\s+");
+      if (f.length < 2) continue;
+      switch (f[0]) {
+        case "generation": gen = Long.parseLong(f[1]); break;
+        case "dim": dim = Integer.parseInt(f[1]); break;
+        case "segment": {
+          SnapshotSegment s = SnapshotSegment.open(dir, f[1]);
+          if (s.dim != dim) throw new IOException("segment " + f[1] + " dim " + s.dim + " != " + dim);
+          segs.add(s);
+          break;
+        }
+        default: break;
+      }
+    }
+    return new VectorSnapshot(gen, dim, segs);
+  }
+
+  /**
+   * Writes {@code rows} as generation {@code generation} and makes it current.
+   * Segment files of older generations are removed afterwards; on return the new
+   * generation is durable, directory entries included.
+   */
+  static void write(Path dir, long generation, SnapshotSegment.Rows rows) throws IOException {
+    Files.createDirectories(dir);
+    int dim = rows.dim();
+    int perSeg = (int) Math.max(1, Math.min(MAX_SEGMENT_ROWS, MAX_SEGMENT_BYTES / (4L * Math.max(1, dim))));
+
+    StringBuilder manifest = new StringBuilder(HEADER).append('\n')
+        .append("generation ").append(generation).append('\n')
+        .append("dim ").append(dim).append('\n');
+    Set<String> keep = new HashSet<>();
+    for (int from = 0, seg = 0; from < rows.count(); from += perSeg, seg++) {
+      String name = String.format("seg-%06d-%04d", generation, seg);
+      int start = from;
+      int n = Math.min(perSeg, rows.count() - from);
+      SnapshotSegment.write(dir, name, new SnapshotSegment.Rows() {
+        @Override public int dim() { return dim; }
+        @Override public int count() { return n; }
+        @Override public void vector(int i, float[] out) { rows.vector(start + i, out); }
+        @Override public String id(int i) { return rows.id(start + i); }
+        @Override public String docId(int i) { return rows.docId(start + i); }
+        @Override public String text(int i) { return rows.text(start + i); }
+        @Override public long ingestedAt(int i) { return rows.ingestedAt(start + i); }
+      });
+      manifest.append("segment ").append(name).append(' ').append(n).append('\n');
+      keep.add(name + ".vec");
+      keep.add(name + ".meta");
+    }
+
+    Path tmp = dir.resolve(MANIFEST + ".tmp");
+    Files.writeString(tmp, manifest, StandardCharsets.UTF_8);
+    SnapshotSegment.fsync(tmp);
+    Files.move(tmp, dir.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    // The rename (and this generation's new segment and log files) must be on disk
+    // before anything it replaces is deleted, here or by the caller truncating the WAL
+    SnapshotSegment.fsyncDir(dir);
+
+    // old generations: still mapped by this process is fine, the pages stay valid until unmapped
+    try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "seg-*")) {
+      for (Path p : ds) {
+        if (!keep.contains(p.getFileName().toString())) {
+          try {
+            Files.deleteIfExists(p);
+          } catch (IOException ignore) {
+            // e.g. still mapped on Windows; the next snapshot retries
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,347 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Append-only write-ahead log for the memory store, kept next to its snapshot.
+ *
+ *   wal-GGGGGGGGGGGGGGGG.log   records written after snapshot generation G was started
+ *   record = int payloadLen + int crc32c(payload) + payload           (little-endian)
+ *   payload = byte op, then for UPSERT: int n, n * (id, docId, text, int dim, dim * float32)
+ *                               UPSERT_TIMED: as UPSERT with long ingestedAt after text
+ *                               REPLACE_DOC: docId, then an UPSERT_TIMED body (n = 0 deletes)
+ *
+ * Callers enqueue an encoded batch and wait on the returned future; a single
+ * flusher thread writes everything queued so far and fsyncs once, so concurrent
+ * writers share one fsync (group commit). Replay stops at the first torn or
+ * corrupt record and truncates it away.
+ *
+ * A failed write or fsync fails every record of its group and poisons the log:
+ * the file may now end in a partial record, which replay would cut off along
+ * with anything appended after it, so later appends are refused until the
+ * process restarts and replays.
+ *
+ * @author rachanakeshav
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32C;
+
+final class VectorWal implements Closeable {
+
+  static final byte UPSERT = 1;
+  static final byte UPSERT_TIMED = 2;
+  static final byte REPLACE_DOC = 3;
+
+  /** Receives replayed records in log order. */
+  interface Replay {
+    void upsert(List<VectorDB.Doc> docs);
+
+    void replaceDocument(String docId, List<VectorDB.Doc> docs);
+  }
+
+  private static final int RECORD_HEADER = 8;
+  private static final int MAX_RECORD = 1 << 30;
+  private static final int REPLAY_BATCH = 4096;
+
+  private final Path dir;
+  private final Thread flusher;
+
+  // guarded by this
+  private List<Object> pending = new ArrayList<>();   // ByteBuffer records and Rotate markers, in order
+  private List<CompletableFuture<Void>> waiters = new ArrayList<>();
+  private boolean closed;
+  private IOException failed;
+
+  // flusher thread only
+  private FileChannel ch;
+
+  private record Rotate(long generation, CompletableFuture<Void> done) { }
+
+  private VectorWal(Path dir, long generation) throws IOException {
+    this.dir = dir;
+    this.ch = openForAppend(generation);
+    this.flusher = new Thread(this::flushLoop, "cloudguide-wal");
+    this.flusher.setDaemon(true);
+    this.flusher.start();
+  }
+
+  /** Opens (or creates) the log for {@code generation}; call after {@link #replay}. */
+  static VectorWal open(Path dir, long generation) throws IOException {
+    Files.createDirectories(dir);
+    return new VectorWal(dir, generation);
+  }
+
+  private FileChannel openForAppend(long generation) throws IOException {
+    FileChannel c = FileChannel.open(file(dir, generation),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    c.position(c.size());
+    return c;
+  }
+
+  private static Path file(Path dir, long generation) {
+    return dir.resolve(String.format("wal-%016d.log", generation));
+  }
+
+  // ---- encoding ----
+
+  /** Serializes an upsert batch into one framed, checksummed record. */
+  static ByteBuffer encodeUpsert(List<VectorDB.Doc> docs) {
+    return encode(null, docs);
+  }
+
+  /** One record for "drop every chunk of docId, then add docs", so a crash never leaves half a swap. */
+  static ByteBuffer encodeReplace(String docId, List<VectorDB.Doc> docs) {
+    return encode(docId, docs);
+  }
+
+  private static ByteBuffer encode(String replaceDocId, List<VectorDB.Doc> docs) {
+    List<byte[]> strings = new ArrayList<>(docs.size() * 3);
+    byte[] replaced = replaceDocId == null ? null : replaceDocId.getBytes(StandardCharsets.UTF_8);
+    int len = 1 + 4 + (replaced == null ? 0 : 4 + replaced.length);
+    for (var d : docs) {
+      for (String s : new String[]{d.id(), d.docId(), d.text()}) {
+        byte[] b = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        strings.add(b);
+        len += 4 + b.length;
+      }
+      len += 8 + 4 + 4 * (d.embedding() == null ? 0 : d.embedding().length);
+    }
+    ByteBuffer bb = ByteBuffer.allocate(RECORD_HEADER + len).order(ByteOrder.LITTLE_ENDIAN);
+    bb.putInt(len).putInt(0);
+    if (replaced == null) {
+      bb.put(UPSERT_TIMED);
+    } else {
+      bb.put(REPLACE_DOC).putInt(replaced.length).put(replaced);
+    }
+    bb.putInt(docs.size());
+    int s = 0;
+    for (var d : docs) {
+      for (int f = 0; f < 3; f++) {
+        byte[] b = strings.get(s++);
+        bb.putInt(b.length).put(b);
+      }
+      bb.putLong(d.ingestedAt());
+      float[] e = d.embedding() == null ? new float[0] : d.embedding();
+      bb.putInt(e.length);
+      for (float v : e) bb.putFloat(v);
+    }
+    CRC32C crc = new CRC32C();
+    crc.update(bb.array(), RECORD_HEADER, len);
+    bb.putInt(4, (int) crc.getValue());
+    return bb.flip();
+  }
+
+  private static List<VectorDB.Doc> decodeUpsert(ByteBuffer p, boolean timed) {
+    int n = p.getInt();
+    List<VectorDB.Doc> docs = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      String id = string(p), docId = string(p), text = string(p);
+      long ingestedAt = timed ? p.getLong() : 0L;
+      float[] e = new float[p.getInt()];
+      p.asFloatBuffer().get(e);
+      p.position(p.position() + 4 * e.length);
+      docs.add(new VectorDB.Doc(id, docId, text, e, ingestedAt));
+    }
+    return docs;
+  }
+
+  private static String string(ByteBuffer p) {
+    int len = p.getInt();
+    String s = new String(p.array(), p.arrayOffset() + p.position(), len, StandardCharsets.UTF_8);
+    p.position(p.position() + len);
+    return s;
+  }
+
+  // ---- replay ----
+
+  /**
+   * Feeds every intact record from logs of generation {@code >= fromGeneration}
+   * to {@code apply}, oldest first; consecutive upserts are merged into batches.
+   * Older logs are left for {@link #truncateBefore}; a torn tail is cut off so
+   * new appends follow valid data.
+   *
+   * @return number of documents replayed
+   */
+  static long replay(Path dir, long fromGeneration, Replay apply) throws IOException {
+    if (!Files.isDirectory(dir)) return 0;
+    long replayed = 0;
+    List<VectorDB.Doc> batch = new ArrayList<>();
+    for (var e : logs(dir).tailMap(fromGeneration, true).entrySet()) {
+      Path p = e.getValue();
+      long valid = 0;
+      try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(p), 1 << 20))) {
+        byte[] header = new byte[RECORD_HEADER];
+        while (true) {
+          if (in.readNBytes(header, 0, RECORD_HEADER) < RECORD_HEADER) break;
+          ByteBuffer h = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+          int len = h.getInt(0);
+          if (len <= 0 || len > MAX_RECORD) break;
+          byte[] payload = in.readNBytes(len);
+          if (payload.length < len) break;
+          CRC32C crc = new CRC32C();
+          crc.update(payload);
+          if ((int) crc.getValue() != h.getInt(4)) break;
+
+          ByteBuffer pb = ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+          byte op = pb.get();
+          if (op == UPSERT || op == UPSERT_TIMED) {
+            List<VectorDB.Doc> docs = decodeUpsert(pb, op == UPSERT_TIMED);
+            batch.addAll(docs);
+            replayed += docs.size();
+            if (batch.size() >= REPLAY_BATCH) {
+              apply.upsert(batch);
+              batch = new ArrayList<>();
+            }
+          } else if (op == REPLACE_DOC) {
+            String docId = string(pb);
+            List<VectorDB.Doc> docs = decodeUpsert(pb, true);
+            if (!batch.isEmpty()) {
+              apply.upsert(batch);
+              batch = new ArrayList<>();
+            }
+            apply.replaceDocument(docId, docs);
+            replayed += docs.size();
+          }
+          valid += RECORD_HEADER + len;
+        }
+      }
+      if (valid < Files.size(p)) {
+        try (FileChannel c = FileChannel.open(p, StandardOpenOption.WRITE)) {
+          c.truncate(valid);
+          c.force(true);
+        }
+      }
+    }
+    if (!batch.isEmpty()) apply.upsert(batch);
+    return replayed;
+  }
+
+  private static TreeMap<Long, Path> logs(Path dir) throws IOException {
+    TreeMap<Long, Path> logs = new TreeMap<>();
+    try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "wal-*.log")) {
+      for (Path p : ds) {
+        String n = p.getFileName().toString();
+        try {
+          logs.put(Long.parseLong(n.substring(4, n.length() - 4)), p);
+        } catch (NumberFormatException ignore) {
+          // not ours
+        }
+      }
+    }
+    return logs;
+  }
+
+  // ---- group commit ----
+
+  /**
+   * Queues an encoded record. The returned future completes once it (and
+   * everything queued before it) is on disk; call it outside any lock so other
+   * writers can join the same fsync.
+   */
+  CompletableFuture<Void> append(ByteBuffer record) {
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    synchronized (this) {
+      if (closed) throw new IllegalStateException("WAL closed");
+      if (failed != null) throw new UncheckedIOException("Vector WAL failed earlier; writes refused until restart", failed);
+      pending.add(record);
+      waiters.add(done);
+      notifyAll();
+    }
+    return done;
+  }
+
+  /** Directs records queued after this call into the log of {@code generation}. */
+  CompletableFuture<Void> rotate(long generation) {
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    synchronized (this) {
+      if (failed != null) return CompletableFuture.failedFuture(failed);
+      pending.add(new Rotate(generation, done));
+      notifyAll();
+    }
+    return done;
+  }
+
+  /** Deletes logs older than {@code generation}, i.e. those covered by that snapshot. */
+  void truncateBefore(long generation) throws IOException {
+    for (Path p : logs(dir).headMap(generation).values()) Files.deleteIfExists(p);
+  }
+
+  private void flushLoop() {
+    while (true) {
+      List<Object> batch;
+      List<CompletableFuture<Void>> done;
+      synchronized (this) {
+        while (pending.isEmpty() && !closed) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+        if (pending.isEmpty()) return;
+        batch = pending;
+        done = waiters;
+        pending = new ArrayList<>();
+        waiters = new ArrayList<>();
+      }
+      try {
+        boolean written = false;
+        for (Object o : batch) {
+          if (o instanceof ByteBuffer bb) {
+            while (bb.hasRemaining()) ch.write(bb);
+            written = true;
+          } else if (o instanceof Rotate r) {
+            if (written) ch.force(false);
+            written = false;
+            ch.close();
+            ch = openForAppend(r.generation());
+            r.done().complete(null);
+          }
+        }
+        if (written) ch.force(false);
+        for (var f : done) f.complete(null);
+      } catch (IOException | RuntimeException e) {
+        IOException cause = e instanceof IOException io ? io : new IOException(e);
+        synchronized (this) {
+          failed = cause;
+          // queued behind the failed group; they would land after a possibly partial record
+          batch.addAll(pending);
+          done.addAll(waiters);
+          pending = new ArrayList<>();
+          waiters = new ArrayList<>();
+        }
+        for (var f : done) f.completeExceptionally(cause);
+        for (Object o : batch) if (o instanceof Rotate r) r.done().completeExceptionally(cause);
+      }
+    }
+  }
+
+  /** Flushes whatever is queued, then stops the flusher. */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+      notifyAll();
+    }
+    try {
+      flusher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    ch.close();
+  }
+}
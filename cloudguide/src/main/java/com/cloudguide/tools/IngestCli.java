@@ -34,6 +34,8 @@ public class IngestCli {
     int batch = Integer.parseInt(cli.getOrDefault("--batch", "64"));
     int chunkSize = Integer.parseInt(cli.getOrDefault("--chunk", "800"));
     int overlap = Integer.parseInt(cli.getOrDefault("--overlap", "150"));
+    Path sampleOut = cli.containsKey("--sample-out") ? Paths.get(cli.get("--sample-out")) : null;
+    VectorSample sample = new VectorSample(Integer.parseInt(cli.getOrDefault("--sample-size", "100000")));
 
     // ---- config ----
     Config conf = ConfigFactory.load();
@@ -41,8 +43,27 @@ public class IngestCli {
     String embedModel = conf.getString("cloudguide.ollama.embed-model");
 
     String storeKind = conf.getString("cloudguide.rag.store"); // "qdrant" or "memory"
+    // The HNSW graph and the IVF-PQ lists live only in the server's heap: building one
+    // here would embed the whole corpus and lose it on exit
+    if ("hnsw".equalsIgnoreCase(storeKind) || "ivfpq".equalsIgnoreCase(storeKind)) {
+      System.err.println("IngestCli cannot fill store = \"" + storeKind + "\": it is not persisted."
+          + " Ingest through the running server (/api/ingest), or run with -Dcloudguide.rag.store=qdrant"
+          + " (or memory with a snapshot-dir)."
+          + ("ivfpq".equalsIgnoreCase(storeKind)
+              ? " To train the IVF-PQ codebook, add --sample-out <file> to that run, then run tools.TrainIvfPq."
+              : ""));
+      System.exit(2);
+    }
 
-    EmbeddingsProvider emb = new OllamaEmbeddingsProvider(ollamaBase, embedModel);
+    Config oc = conf.getConfig("cloudguide.ollama");
+    EmbeddingsProvider emb = new OllamaEmbeddingsProvider(ollamaBase, embedModel,
+        oc.getInt("embed-batch-size"), oc.getInt("embed-concurrency"), oc.getInt("embed-retries"));
+    if (!oc.getString("embed-cache.dir").isBlank()) {
+      // unchanged chunks come back from disk instead of the model
+      emb = new CachingEmbeddingsProvider(emb, Paths.get(oc.getString("embed-cache.dir")),
+          oc.getInt("embed-cache.heap-entries"), oc.getInt("embed-cache.max-entries"));
+      System.out.println("Embedding cache: " + oc.getString("embed-cache.dir"));
+    }
     VectorDB db;
 
     if ("qdrant".equalsIgnoreCase(storeKind)) {
@@ -62,10 +83,21 @@ public class IngestCli {
       System.out.printf("VectorDB: Qdrant %s:%d collection='%s' dim=%d distance=%s%n",
           host, port, coll, dim, dist);
     } else {
-      db = new InMemoryVectorDB();
-      System.out.println("VectorDB: InMemory");
+      Config mc = conf.getConfig("cloudguide.rag.memory");
+      String spill = mc.getString("spill-dir");
+      db = new InMemoryVectorDB(InMemoryVectorDB.Quantization.parse(mc.getString("quantization")),
+          mc.getInt("rescore-candidates"), spill.isBlank() ? null : Paths.get(spill),
+          mc.getInt("parallelism"), mc.getInt("segment-rows"),
+          mc.getString("snapshot-dir").isBlank() ? null : Paths.get(mc.getString("snapshot-dir")),
+          mc.getBoolean("wal"));
+      System.out.println("VectorDB: InMemory quantization=" + mc.getString("quantization"));
     }
 
+    Config hc = conf.getConfig("cloudguide.rag.hybrid");
+    Path lexicalPath = hc.getBoolean("enabled") && !hc.getString("index-path").isBlank()
+        ? Paths.get(hc.getString("index-path")) : null;
+    Bm25Index lexical = lexicalPath == null ? null : Bm25Index.load(lexicalPath);
+
     // ---- scan + ingest ----
     System.out.printf("Ingesting from %s (chunk=%d overlap=%d batch=%d)%n",
         dir.toAbsolutePath(), chunkSize, overlap, batch);
@@ -90,24 +122,45 @@ public class IngestCli {
       text = normalize(text);
       List<String> chunks = chunk(text, chunkSize, overlap);
 
-      // embed in batches
+      // embed in batches, then swap the whole document so chunks from an older, longer version go away
+      List<VectorDB.Doc> points = new ArrayList<>(chunks.size());
       for (int i = 0; i < chunks.size(); i += batch) {
         List<String> window = chunks.subList(i, Math.min(chunks.size(), i + batch));
         List<float[]> vecs = emb.embedBatch(window).toCompletableFuture().join();
 
-        List<VectorDB.Doc> points = new ArrayList<>(window.size());
         for (int j = 0; j < window.size(); j++) {
           String id = docId + "#" + (i + j);
           points.add(new VectorDB.Doc(id, docId, window.get(j), vecs.get(j)));
+          if (sampleOut != null) sample.offer(vecs.get(j));
         }
-        db.upsertBatch(points);
       }
+      db.replaceDocument(docId, points);
+      if (lexical != null) lexical.replaceDocument(docId, points);
 
       totalChunks += chunks.size();
       System.out.printf("Ingested %d chunks from %s%n", chunks.size(), docId);
     }
 
     System.out.printf("DONE. Total chunks: %d%n", totalChunks);
+
+    if (lexical != null && lexical.save(lexicalPath)) {
+      System.out.printf("Lexical index: %d chunks written to %s%n", lexical.size(), lexicalPath.toAbsolutePath());
+    }
+
+    if (db instanceof InMemoryVectorDB mem) {
+      double deadRatio = conf.getDouble("cloudguide.rag.memory.compact-dead-ratio");
+      if (deadRatio > 0) mem.compactIfNeeded(deadRatio);
+      if (mem.snapshot()) System.out.println("Vector snapshot written (cloudguide.rag.memory.snapshot-dir)");
+      mem.close();
+    }
+
+    if (emb instanceof CachingEmbeddingsProvider cached) cached.close();
+
+    if (sampleOut != null) {
+      sample.write(sampleOut);
+      System.out.printf("Wrote %d sample vectors to %s (train with tools.TrainIvfPq)%n",
+          sample.rows().size(), sampleOut.toAbsolutePath());
+    }
   }
 
   // -------- helpers --------
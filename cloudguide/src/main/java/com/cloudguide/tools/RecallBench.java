@@ -0,0 +1,121 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.tools;
+
+/**
+ *
+ * @author rachanakeshav
+ */
+
+import com.cloudguide.rag.*;
+
+import java.util.*;
+
+/**
+ * Recall / latency report for the in-process stores against the exact float scan.
+ *
+ *   mvn exec:java -Dexec.mainClass=com.cloudguide.tools.RecallBench \
+ *     -Dexec.args="--n 100000 --dim 768 --queries 200 --k 10 --stores int8,binary,hnsw,ivfpq"
+ *
+ * Vectors are synthetic (gaussian clusters), which is a harder case than real
+ * embeddings for the approximate stores.
+ */
+public class RecallBench {
+
+  public static void main(String[] args) throws Exception {
+    Map<String,String> cli = parseArgs(args);
+    int n = Integer.parseInt(cli.getOrDefault("--n", "50000"));
+    int dim = Integer.parseInt(cli.getOrDefault("--dim", "768"));
+    int queries = Integer.parseInt(cli.getOrDefault("--queries", "200"));
+    int k = Integer.parseInt(cli.getOrDefault("--k", "10"));
+    int clusters = Integer.parseInt(cli.getOrDefault("--clusters", "256"));
+    int rescore = Integer.parseInt(cli.getOrDefault("--rescore", "100"));
+    List<String> stores = Arrays.asList(cli.getOrDefault("--stores", "int8,hnsw").split(","));
+
+    Random rnd = new Random(42);
+    float[][] centers = new float[clusters][];
+    for (int c = 0; c < clusters; c++) centers[c] = gaussian(rnd, dim, 1f, null);
+
+    List<VectorDB.Doc> docs = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      float[] v = gaussian(rnd, dim, 0.5f, centers[rnd.nextInt(clusters)]);
+      docs.add(new VectorDB.Doc("bench#" + i, "bench", "chunk " + i, v));
+    }
+    List<float[]> qs = new ArrayList<>(queries);
+    for (int i = 0; i < queries; i++) qs.add(gaussian(rnd, dim, 0.5f, centers[rnd.nextInt(clusters)]));
+
+    System.out.printf("n=%d dim=%d queries=%d k=%d kernel=%s%n", n, dim, queries, k, VectorMath.kernelName());
+
+    InMemoryVectorDB exact = new InMemoryVectorDB();
+    exact.upsertBatch(docs);
+    for (float[] q : qs) exact.topK(q, k); // warm-up
+    List<Set<String>> truth = new ArrayList<>(queries);
+    long t0 = System.nanoTime();
+    for (float[] q : qs) {
+      Set<String> ids = new HashSet<>();
+      for (var h : exact.topK(q, k)) ids.add(h.id());
+      truth.add(ids);
+    }
+    report("float", 1.0, (System.nanoTime() - t0) / queries, exact.vectorBytes() / n);
+
+    for (String s : stores) {
+      VectorDB db;
+      long bytes = -1;
+      switch (s.trim().toLowerCase(Locale.ROOT)) {
+        case "int8": db = new InMemoryVectorDB(InMemoryVectorDB.Quantization.INT8, rescore, null, 1, 16384, null, false); break;
+        case "binary": db = new InMemoryVectorDB(InMemoryVectorDB.Quantization.BINARY, rescore, null, 1, 16384, null, false); break;
+        case "parallel": db = new InMemoryVectorDB(InMemoryVectorDB.Quantization.NONE, 0, null, 0, 4096, null, false); break;
+        case "hnsw": db = new HnswVectorDB(16, 200, Math.max(64, k)); break;
+        case "ivfpq": {
+          List<float[]> train = new ArrayList<>();
+          for (int i = 0; i < Math.min(n, 20000); i++) train.add(docs.get(i).embedding());
+          int nlist = Integer.parseInt(cli.getOrDefault("--nlist", "256"));
+          int m = Integer.parseInt(cli.getOrDefault("--m", String.valueOf(dim / 16)));
+          db = new IvfPqVectorDB(IvfPqCodebook.train(train, nlist, m, 10, 42),
+              Integer.parseInt(cli.getOrDefault("--nprobe", "16")));
+          break;
+        }
+        default:
+          System.out.println("unknown store: " + s);
+          continue;
+      }
+      db.upsertBatch(docs);
+      if (db instanceof InMemoryVectorDB) bytes = ((InMemoryVectorDB) db).vectorBytes() / n;
+
+      for (float[] q : qs) db.topK(q, k); // warm-up
+      long hit = 0, total = 0;
+      t0 = System.nanoTime();
+      for (int i = 0; i < queries; i++) {
+        for (var h : db.topK(qs.get(i), k)) if (truth.get(i).contains(h.id())) hit++;
+        total += truth.get(i).size();
+      }
+      report(s, (double) hit / Math.max(1, total), (System.nanoTime() - t0) / queries, bytes);
+      if (db instanceof AutoCloseable) ((AutoCloseable) db).close();
+    }
+  }
+
+  private static void report(String name, double recall, long nanosPerQuery, long bytesPerVector) {
+    System.out.printf("%-8s recall@k=%.4f  %8.1f us/query  %s%n", name, recall, nanosPerQuery / 1000.0,
+        bytesPerVector < 0 ? "" : bytesPerVector + " heap bytes/vector");
+  }
+
+  private static float[] gaussian(Random rnd, int dim, float sigma, float[] mean) {
+    float[] v = new float[dim];
+    for (int i = 0; i < dim; i++) v[i] = (float) rnd.nextGaussian() * sigma + (mean == null ? 0f : mean[i]);
+    return v;
+  }
+
+  private static Map<String,String> parseArgs(String[] args) {
+    Map<String,String> m = new HashMap<>();
+    for (int i = 0; i < args.length; i++) {
+      String a = args[i];
+      if (a.startsWith("--")) {
+        String v = (i + 1 < args.length && !args[i+1].startsWith("--")) ? args[++i] : "true";
+        m.put(a, v);
+      }
+    }
+    return m;
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.tools;
+
+/**
+ *
+ * @author rachanakeshav
+ */
+
+import com.cloudguide.rag.IvfPqCodebook;
+
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Offline trainer for the IVF-PQ store.
+ *
+ *   1) IngestCli --sample-out ~/cloudguide_docs/sample.f32 --sample-size 100000
+ *   2) TrainIvfPq --sample ~/cloudguide_docs/sample.f32 --out ~/cloudguide_docs/ivfpq.cb
+ *   3) cloudguide.rag.store = "ivfpq", cloudguide.rag.ivfpq.codebook = that file
+ */
+public class TrainIvfPq {
+
+  public static void main(String[] args) throws Exception {
+    Map<String,String> cli = parseArgs(args);
+    if (!cli.containsKey("--sample") || !cli.containsKey("--out")) {
+      System.err.println("usage: TrainIvfPq --sample <file> --out <codebook> [--nlist 1024] [--m 48] [--iters 12]");
+      System.exit(2);
+    }
+    Path sample = Paths.get(cli.get("--sample"));
+    Path out = Paths.get(cli.get("--out"));
+    int nlist = Integer.parseInt(cli.getOrDefault("--nlist", "1024"));
+    int m = Integer.parseInt(cli.getOrDefault("--m", "48"));
+    int iters = Integer.parseInt(cli.getOrDefault("--iters", "12"));
+
+    List<float[]> vecs = VectorSample.read(sample);
+    System.out.printf("Training IVF-PQ on %d vectors (nlist=%d m=%d iters=%d)%n", vecs.size(), nlist, m, iters);
+    long t0 = System.nanoTime();
+    IvfPqCodebook cb = IvfPqCodebook.train(vecs, nlist, m, iters, 42);
+    cb.save(out);
+    System.out.printf("DONE in %.1fs -> %s (dim=%d nlist=%d m=%d, %d bytes/vector)%n",
+        (System.nanoTime() - t0) / 1e9, out.toAbsolutePath(), cb.dim(), cb.nlist(), cb.subquantizers(), cb.subquantizers());
+  }
+
+  private static Map<String,String> parseArgs(String[] args) {
+    Map<String,String> m = new HashMap<>();
+    for (int i = 0; i < args.length; i++) {
+      String a = args[i];
+      if (a.startsWith("--")) {
+        String v = (i + 1 < args.length && !args[i+1].startsWith("--")) ? args[++i] : "true";
+        m.put(a, v);
+      }
+    }
+    return m;
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.tools;
+
+/**
+ *
+ * @author rachanakeshav
+ */
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reservoir sample of embeddings, written by IngestCli (--sample-out) and read
+ * by TrainIvfPq. File layout: magic "CGVS", dim, count, then count*dim floats.
+ */
+public final class VectorSample {
+
+  private static final int MAGIC = 0x43475653; // "CGVS"
+
+  private final int capacity;
+  private final List<float[]> rows;
+  private final Random rnd = new Random(7);
+  private long seen;
+
+  public VectorSample(int capacity) {
+    this.capacity = Math.max(1, capacity);
+    this.rows = new ArrayList<>(Math.min(this.capacity, 1 << 16));
+  }
+
+  public void offer(float[] v) {
+    seen++;
+    if (rows.size() < capacity) {
+      rows.add(v);
+    } else {
+      long j = (long) (rnd.nextDouble() * seen);
+      if (j < capacity) rows.set((int) j, v);
+    }
+  }
+
+  public List<float[]> rows() { return rows; }
+
+  public void write(Path file) throws IOException {
+    if (file.getParent() != null) Files.createDirectories(file.getParent());
+    int dim = rows.isEmpty() ? 0 : rows.get(0).length;
+    try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(dim);
+      out.writeInt(rows.size());
+      for (float[] v : rows) for (float f : v) out.writeFloat(f);
+    }
+  }
+
+  public static List<float[]> read(Path file) throws IOException {
+    try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != MAGIC) throw new IOException("not a vector sample file: " + file);
+      int dim = in.readInt();
+      int n = in.readInt();
+      List<float[]> out = new ArrayList<>(n);
+      for (int i = 0; i < n; i++) {
+        float[] v = new float[dim];
+        for (int j = 0; j < dim; j++) v[j] = in.readFloat();
+        out.add(v);
+      }
+      return out;
+    }
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.actors;
+
+/**
+ * Scatter-gather over retrieval shards in a local actor system: merged hits
+ * match one store holding everything, a stuck shard makes the answer partial
+ * rather than failed (no shard at all does fail it), and a replica joining
+ * mid-traffic catches up to exactly what its peer holds.
+ *
+ * @author rachanakeshav
+ */
+
+import akka.actor.typed.ActorSystem;
+import akka.actor.typed.Props;
+import akka.actor.typed.javadsl.Behaviors;
+import com.cloudguide.rag.InMemoryVectorDB;
+import com.cloudguide.rag.SearchFilter;
+import com.cloudguide.rag.VectorDB;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardedVectorDBTest {
+
+    private ActorSystem<Void> system;
+
+    @BeforeEach
+    void start() {
+        system = ActorSystem.create(Behaviors.empty(), "shards",
+                ConfigFactory.parseString("akka.actor.provider = local\nakka.loglevel = WARNING")
+                        .withFallback(ConfigFactory.load()));
+    }
+
+    @AfterEach
+    void stop() {
+        system.terminate();
+    }
+
+    private static float[] v(int i) {
+        return new float[]{(float) Math.cos(i * 0.01), (float) Math.sin(i * 0.01), 0.1f};
+    }
+
+    private static VectorDB.Doc chunk(String docId, int i) {
+        return new VectorDB.Doc(docId + "#" + i, docId, "t" + i, v(i));
+    }
+
+    private void spawn(int shard, VectorDB store, String name, Duration catchUpDelay) {
+        system.systemActorOf(RetrievalShardActor.create(shard, store, 16, catchUpDelay), name, Props.empty());
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                fail("condition not reached in 10s");
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    // Every shard registered and answering
+    private static boolean whole(ShardedVectorDB db) {
+        try {
+            return !VectorDB.isPartial(db.topKBatch(List.of(v(0)), 1));
+        } catch (IllegalStateException e) {
+            return false;
+        }
+    }
+
+    @Test
+    void mergedHitsMatchOneStoreHoldingEverything() throws Exception {
+        spawn(0, new InMemoryVectorDB(), "s0", Duration.ofMillis(50));
+        spawn(1, new InMemoryVectorDB(), "s1", Duration.ofMillis(50));
+        ShardedVectorDB db = new ShardedVectorDB(system, 2, Duration.ofSeconds(2), Duration.ofSeconds(2));
+        await(() -> whole(db));
+
+        InMemoryVectorDB all = new InMemoryVectorDB();
+        List<VectorDB.Doc> docs = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            docs.add(chunk("d" + (i % 20), i));
+        }
+        db.upsertBatch(docs);
+        all.upsertBatch(docs);
+        assertNotEquals(db.shardOf("d0"), db.shardOf("d1"));   // both shards hold part of it
+
+        for (int q : new int[]{0, 57, 140, 199}) {
+            List<List<VectorDB.SearchHit>> hits = db.topKBatch(List.of(v(q)), 8);
+            assertFalse(VectorDB.isPartial(hits));
+            // ties may come back in either order, so compare the scores
+            assertEquals(scores(all.topK(v(q), 8)), scores(hits.get(0)));
+        }
+        List<VectorDB.SearchHit> only = db.topKBatch(List.of(v(0)), 50, SearchFilter.docIds(Set.of("d3"))).get(0);
+        assertEquals(10, only.size());
+        for (VectorDB.SearchHit h : only) {
+            assertEquals("d3", h.docId());
+        }
+    }
+
+    @Test
+    void stuckShardGivesAPartialAnswer() throws Exception {
+        InMemoryVectorDB healthy = new InMemoryVectorDB();
+        healthy.upsert(chunk("a", 0));
+        spawn(0, healthy, "s0", Duration.ofMillis(50));
+        spawn(1, new InMemoryVectorDB() {
+            @Override
+            public CompletionStage<List<List<SearchHit>>> topKBatchAsync(List<float[]> q, int k, SearchFilter f) {
+                return new CompletableFuture<>();   // never answers
+            }
+        }, "s1", Duration.ofMillis(50));
+        ShardedVectorDB db = new ShardedVectorDB(system, 2, Duration.ofMillis(300), Duration.ofSeconds(2));
+        await(() -> {
+            try {
+                return db.topKBatch(List.of(v(0)), 2).get(0).size() == 1;
+            } catch (IllegalStateException e) {
+                return false;
+            }
+        });
+
+        List<List<VectorDB.SearchHit>> hits = db.topKBatch(List.of(v(0)), 2);
+        assertTrue(VectorDB.isPartial(hits));
+        assertEquals(List.of("a#0"), ids(hits.get(0)));
+
+    }
+
+    @Test
+    void searchFailsWhenNoShardAnswers() {
+        ShardedVectorDB db = new ShardedVectorDB(system, 2, Duration.ofMillis(300), Duration.ofSeconds(2));
+        assertThrows(IllegalStateException.class, () -> db.topKBatch(List.of(v(0)), 2));
+    }
+
+    @Test
+    void joiningReplicaCatchesUpWithWritesMadeDuringTheCopy() throws Exception {
+        InMemoryVectorDB first = new InMemoryVectorDB();
+        for (int i = 0; i < 200; i++) {
+            first.upsert(chunk("d" + (i % 20), i));
+        }
+        spawn(0, first, "r0", Duration.ofMillis(50));
+        ShardedVectorDB db = new ShardedVectorDB(system, 1, Duration.ofSeconds(2), Duration.ofSeconds(5));
+        await(() -> whole(db));
+
+        InMemoryVectorDB second = new InMemoryVectorDB();
+        spawn(0, second, "r1", Duration.ofMillis(200));
+        // live writes before, during and after the copy: replaces, deletes and plain upserts
+        for (int round = 0; round < 30; round++) {
+            db.replaceDocument("d" + (round % 20), List.of(chunk("d" + (round % 20), 1000 + round)));
+            db.upsertBatch(List.of(chunk("x", 2000 + round)));
+            if (round == 25) {
+                db.deleteByDocId("d19");
+            }
+            Thread.sleep(20);
+        }
+
+        await(() -> second.chunkIds().equals(first.chunkIds()));
+        assertEquals(first.chunkIds(), second.chunkIds());
+        assertTrue(second.chunkIds().stream().noneMatch(id -> id.startsWith("d19#")));
+        assertTrue(second.chunkIds().contains("x#2029"));
+        // once searchable, either replica answers in full
+        await(() -> {
+            for (int t = 0; t < 20; t++) {
+                if (!whole(db)) {
+                    return false;
+                }
+            }
+            return true;
+        });
+    }
+
+    private static List<Float> scores(List<VectorDB.SearchHit> hits) {
+        return hits.stream().map(VectorDB.SearchHit::score).toList();
+    }
+
+    private static List<String> ids(List<VectorDB.SearchHit> hits) {
+        return hits.stream().map(VectorDB.SearchHit::id).toList();
+    }
+}
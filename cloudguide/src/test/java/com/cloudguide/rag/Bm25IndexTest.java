@@ -0,0 +1,120 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * BM25 index upkeep: tombstoned rows must not skew scores, compaction (both
+ * automatic and explicit) must not change results, and save/load must bring
+ * back the same index, tombstones included.
+ *
+ * @author rachanakeshav
+ */
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class Bm25IndexTest {
+
+  private static final String[] QUERIES = {"archive grs", "gen39 word3", "d7 storage", "gen5", "nothing here"};
+
+  @TempDir
+  Path dir;
+
+  private static List<VectorDB.Doc> doc(String docId, int gen) {
+    List<VectorDB.Doc> out = new ArrayList<>();
+    for (int c = 0; c < 5; c++) {
+      out.add(new VectorDB.Doc(docId + "#" + c, docId,
+          "archive grs storage " + docId + " gen" + gen + " word" + (c * 7 % 11), new float[]{1}));
+    }
+    return out;
+  }
+
+  private static Bm25Index generations(int docs, int gens) {
+    Bm25Index idx = new Bm25Index();
+    for (int gen = 0; gen < gens; gen++) {
+      for (int d = 0; d < docs; d++) idx.replaceDocument("d" + d, doc("d" + d, gen));
+    }
+    return idx;
+  }
+
+  // Every hit with its score: rows renumbered by compaction reorder ties, nothing else
+  private static Map<String, Float> scores(Bm25Index idx, String query) {
+    Map<String, Float> out = new HashMap<>();
+    for (VectorDB.SearchHit h : idx.search(query, 10_000)) out.put(h.id(), h.score());
+    return out;
+  }
+
+  private static void assertSameResults(Bm25Index expected, Bm25Index actual) {
+    for (String q : QUERIES) assertEquals(scores(expected, q), scores(actual, q), q);
+  }
+
+  @Test
+  void replacedRowsDoNotSkewScores() {
+    Bm25Index churned = generations(100, 40);
+    Bm25Index fresh = new Bm25Index();
+    for (int d = 0; d < 100; d++) fresh.replaceDocument("d" + d, doc("d" + d, 39));
+
+    assertEquals(500, churned.size());
+    // 19,500 rows were replaced: automatic compaction must have kept them in check
+    assertTrue(churned.deadRows() <= 1024 + 500, "dead " + churned.deadRows());
+    assertSameResults(fresh, churned);
+    assertTrue(churned.search("gen5", 5).isEmpty());
+  }
+
+  @Test
+  void compactDropsTombstonesWithoutChangingResults() {
+    Bm25Index idx = generations(20, 3);   // 200 dead rows: below the automatic threshold
+    assertEquals(200, idx.deadRows());
+    List<Map<String, Float>> before = new ArrayList<>();
+    for (String q : QUERIES) before.add(scores(idx, q));
+    long version = idx.version();
+
+    idx.compact();
+    assertEquals(0, idx.deadRows());
+    assertEquals(100, idx.size());
+    assertEquals(version, idx.version());
+    for (int i = 0; i < QUERIES.length; i++) assertEquals(before.get(i), scores(idx, QUERIES[i]), QUERIES[i]);
+
+    // rows were renumbered: later replaces must still find the right ones
+    idx.replaceDocument("d3", List.of());
+    assertEquals(95, idx.size());
+    for (VectorDB.SearchHit h : idx.search("d3 storage", 100)) assertNotEquals("d3", h.docId());
+  }
+
+  @Test
+  void saveAndLoadRoundTripWithTombstones() throws IOException {
+    Path file = dir.resolve("bm25.idx");
+    Bm25Index idx = generations(20, 3);
+    assertTrue(idx.save(file));
+    assertFalse(idx.save(file));   // unchanged since the last save
+
+    Bm25Index back = Bm25Index.load(file);
+    assertEquals(idx.size(), back.size());
+    assertEquals(idx.deadRows(), back.deadRows());
+    assertSameResults(idx, back);
+
+    back.replaceDocument("d1", doc("d1", 40));
+    assertEquals(1, back.search("gen40", 5).stream().map(VectorDB.SearchHit::docId).distinct().count());
+    assertFalse(Files.exists(dir.resolve("other.idx")));
+    assertEquals(0, Bm25Index.load(dir.resolve("other.idx")).size());
+  }
+
+  @Test
+  void foreignFileIsRefused() throws IOException {
+    Path file = dir.resolve("bm25.idx");
+    Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+    assertThrows(IOException.class, () -> Bm25Index.load(file));
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Token budgeting of the prompt context: packed hits and their separators stay
+ * within the budget, a hit too large to fit is skipped for a smaller one, and
+ * an oversized best hit is cut at a word boundary instead of being dropped.
+ *
+ * @author rachanakeshav
+ */
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContextPackerTest {
+
+  private static final String SEP = "\n---\n";
+
+  private static VectorDB.SearchHit hit(String id, String text) {
+    return new VectorDB.SearchHit(id, "d", text, 1f);
+  }
+
+  private static String words(String word, int n) {
+    return String.join(" ", Collections.nCopies(n, word));
+  }
+
+  private static List<String> pack(List<VectorDB.SearchHit> hits, int budget) {
+    return ContextPacker.pack(hits, budget, SEP, VectorDB.SearchHit::text);
+  }
+
+  // What pack() charges for the strings it returned
+  private static int cost(List<String> packed) {
+    int total = 0;
+    for (int i = 0; i < packed.size(); i++) {
+      total += ContextPacker.estimateTokens(packed.get(i)) + (i == 0 ? 0 : ContextPacker.estimateTokens(SEP));
+    }
+    return total;
+  }
+
+  @Test
+  void estimateCountsWordsDigitsAndSymbolsWithTheMargin() {
+    assertEquals(0, ContextPacker.estimateTokens(null));
+    assertEquals(0, ContextPacker.estimateTokens(" \n\t"));
+    assertEquals(2, ContextPacker.estimateTokens("hello"));                  // 1 * 1.15, rounded up
+    assertEquals(3, ContextPacker.estimateTokens("hello world"));            // 2
+    assertEquals(6, ContextPacker.estimateTokens("internationalization"));   // 1 + 4 for the 14 letters past 6
+    assertEquals(3, ContextPacker.estimateTokens("123456"));                 // two groups of three
+    assertEquals(4, ContextPacker.estimateTokens("a.b"));                    // 3
+    assertEquals(3, ContextPacker.estimateTokens("😀"));                   // a supplementary symbol is 2
+    assertEquals(115, ContextPacker.estimateTokens(words("cloud", 100)));
+  }
+
+  @Test
+  void packKeepsRankOrderAndSkipsWhatDoesNotFit() {
+    String best = words("alpha", 20);     // 23 tokens
+    String large = words("bravo", 60);    // 69
+    String small = words("charlie", 10);  // 12
+    String tail = words("delta", 40);     // 46
+    List<VectorDB.SearchHit> hits = List.of(hit("a", best), hit("b", large), hit("c", small), hit("d", tail));
+
+    List<String> packed = pack(hits, 60);
+    assertEquals(List.of(best, small), packed);
+    assertTrue(cost(packed) <= 60, "cost " + cost(packed));
+
+    // everything fits: nothing is reordered or dropped, separators included in the sum
+    List<String> all = pack(hits, 1000);
+    assertEquals(List.of(best, large, small, tail), all);
+    assertTrue(cost(all) <= 1000);
+
+    // the separator counts: exactly the two hits without it would fit, with it they do not
+    int tight = ContextPacker.estimateTokens(best) + ContextPacker.estimateTokens(small);
+    assertEquals(List.of(best), pack(List.of(hit("a", best), hit("c", small)), tight));
+    assertEquals(List.of(best, small),
+        pack(List.of(hit("a", best), hit("c", small)), tight + ContextPacker.estimateTokens(SEP)));
+  }
+
+  @Test
+  void oversizedBestHitIsCutAtAWordBoundary() {
+    String text = "The quick brown fox jumps over the lazy dog while the cat watches from the windowsill";
+    List<String> packed = pack(List.of(hit("a", text), hit("b", words("longword", 50))), 8);
+
+    assertEquals(1, packed.size());
+    String cut = packed.get(0);
+    assertFalse(cut.isEmpty());
+    assertTrue(text.startsWith(cut));
+    assertEquals(' ', text.charAt(cut.length()), "cut mid-word: '" + cut + "'");
+    assertTrue(ContextPacker.estimateTokens(cut) <= 8);
+    // the next word would not have fitted
+    int next = text.indexOf(' ', cut.length() + 1);
+    assertTrue(ContextPacker.estimateTokens(text.substring(0, next < 0 ? text.length() : next)) > 8);
+  }
+
+  @Test
+  void truncateAndEmptyBudgets() {
+    String text = "fits entirely";
+    assertEquals(text, ContextPacker.truncate(text, 100));
+    assertEquals("", ContextPacker.truncate("anything", 0));
+    // a single word longer than the budget still yields a prefix within it
+    String word = "supercalifragilisticexpialidocious";
+    String cut = ContextPacker.truncate(word, 3);
+    assertTrue(word.startsWith(cut));
+    assertTrue(ContextPacker.estimateTokens(cut) <= 3);
+
+    assertEquals(List.of(), pack(List.of(hit("a", text)), 0));
+    assertEquals(List.of(), pack(List.of(), 100));
+  }
+}
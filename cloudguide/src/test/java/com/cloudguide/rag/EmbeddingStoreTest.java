@@ -0,0 +1,142 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * The on-disk embedding cache: entries survive a reopen, a row torn by a crash
+ * reads as a miss until it is written again, and the rewrites for the cap and
+ * for superseded rows keep the right entries.
+ *
+ * @author rachanakeshav
+ */
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EmbeddingStoreTest {
+
+  private static final int DIM = 8;
+
+  @TempDir
+  Path dir;
+
+  private static long hi(int key) {
+    return 0x9E3779B97F4A7C15L * (key + 1);
+  }
+
+  private static long lo(int key) {
+    return key * 31L + 7;
+  }
+
+  private static float[] vec(int key, int version) {
+    float[] v = new float[DIM];
+    for (int j = 0; j < DIM; j++) v[j] = key + version * 0.5f + j * 0.01f;
+    return v;
+  }
+
+  private static void put(EmbeddingStore s, int key, int version) {
+    s.put(hi(key), lo(key), vec(key, version));
+  }
+
+  private static float[] get(EmbeddingStore s, int key) {
+    return s.get(hi(key), lo(key));
+  }
+
+  @Test
+  void entriesSurviveAReopenAndTheLatestPutWins() throws IOException {
+    try (EmbeddingStore s = new EmbeddingStore(dir, 0)) {
+      assertNull(get(s, 0));
+      for (int k = 0; k < 100; k++) put(s, k, 0);
+      put(s, 7, 1);
+      assertEquals(100, s.size());
+    }
+    try (EmbeddingStore s = new EmbeddingStore(dir, 0)) {
+      assertEquals(100, s.size());
+      for (int k = 0; k < 100; k++) assertArrayEquals(vec(k, k == 7 ? 1 : 0), get(s, k), "key " + k);
+      assertNull(get(s, 100));
+      assertThrows(IllegalArgumentException.class, () -> s.put(hi(200), lo(200), new float[DIM + 1]));
+    }
+  }
+
+  @Test
+  void tornRowReadsAsAMissUntilWrittenAgain() throws IOException {
+    try (EmbeddingStore s = new EmbeddingStore(dir, 0)) {
+      for (int k = 0; k < 10; k++) put(s, k, 0);
+    }
+    // row 3's vector half written, and half of an eleventh key after the last whole one
+    try (FileChannel ch = FileChannel.open(dir.resolve("vectors.f32"), StandardOpenOption.WRITE)) {
+      ch.write(ByteBuffer.wrap(new byte[DIM * 2]), 3L * DIM * 4 + DIM * 2);
+    }
+    try (FileChannel ch = FileChannel.open(dir.resolve("keys.bin"), StandardOpenOption.APPEND)) {
+      ch.write(ByteBuffer.wrap(new byte[7]));
+    }
+
+    try (EmbeddingStore s = new EmbeddingStore(dir, 0)) {
+      assertNull(get(s, 3));
+      for (int k = 0; k < 10; k++) {
+        if (k != 3) assertArrayEquals(vec(k, 0), get(s, k), "key " + k);
+      }
+      put(s, 3, 0);
+      put(s, 10, 0);   // lands where the torn key was
+      assertArrayEquals(vec(3, 0), get(s, 3));
+    }
+    try (EmbeddingStore s = new EmbeddingStore(dir, 0)) {
+      assertEquals(11, s.size());
+      assertArrayEquals(vec(3, 0), get(s, 3));
+      assertArrayEquals(vec(10, 0), get(s, 10));
+    }
+  }
+
+  @Test
+  void reachingTheCapKeepsReadEntriesThenTheNewest() throws IOException {
+    try (EmbeddingStore s = new EmbeddingStore(dir, 100)) {
+      for (int k = 0; k < 100; k++) put(s, k, 0);
+      for (int k = 0; k < 10; k++) assertNotNull(get(s, k));
+      put(s, 100, 0);   // rewrites to 50 first: the 10 read, then the 40 newest
+      assertEquals(51, s.size());
+    }
+    assertFalse(Files.exists(dir.resolve("keys.bin.tmp")));
+    assertFalse(Files.exists(dir.resolve("vectors.f32.tmp")));
+    try (EmbeddingStore s = new EmbeddingStore(dir, 100)) {
+      assertEquals(51, s.size());
+      for (int k = 0; k <= 100; k++) {
+        boolean kept = k < 10 || k >= 60;
+        if (kept) assertArrayEquals(vec(k, 0), get(s, k), "key " + k);
+        else assertNull(get(s, k), "key " + k);
+      }
+    }
+  }
+
+  @Test
+  void supersededRowsAreDroppedOnceTheyAreHalfTheFile() throws IOException {
+    try (EmbeddingStore s = new EmbeddingStore(dir, 0)) {
+      for (int version = 0; version < 300; version++) {
+        for (int k = 0; k < 10; k++) put(s, k, version);
+      }
+      assertEquals(10, s.size());
+    }
+    // 3000 rows written, but the file never grew much past the 2048 that trigger the rewrite
+    assertTrue(Files.size(dir.resolve("keys.bin")) <= 10 + 2048L * 20, "keys " + Files.size(dir.resolve("keys.bin")));
+    try (EmbeddingStore s = new EmbeddingStore(dir, 0)) {
+      assertEquals(10, s.size());
+      for (int k = 0; k < 10; k++) assertArrayEquals(vec(k, 299), get(s, k), "key " + k);
+    }
+  }
+
+  @Test
+  void foreignFileIsRefused() throws IOException {
+    Files.write(dir.resolve("keys.bin"), "not a cache at all".getBytes());
+    assertThrows(IOException.class, () -> new EmbeddingStore(dir, 0));
+  }
+}
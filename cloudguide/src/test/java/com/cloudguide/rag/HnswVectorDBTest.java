@@ -0,0 +1,187 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Recall of the HNSW graph against an exact scan, with retired nodes and after
+ * a rebuild; inserts racing rebuilds; and document replacement, where readers
+ * see the old chunks or the new ones, never both or neither.
+ *
+ * @author rachanakeshav
+ */
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HnswVectorDBTest {
+
+  private static final int DIM = 8;
+
+  private static List<VectorDB.Doc> chunks(String docId, int from, int n) {
+    List<VectorDB.Doc> out = new ArrayList<>(n);
+    for (int i = from; i < from + n; i++) {
+      float[] v = new float[DIM];
+      v[i % DIM] = 1;
+      v[(i + 1) % DIM] = 0.5f;
+      out.add(new VectorDB.Doc(docId + "#" + i, docId, docId + " " + i, v));
+    }
+    return out;
+  }
+
+  private static List<String> ids(List<VectorDB.Doc> docs) {
+    return docs.stream().map(VectorDB.Doc::id).toList();
+  }
+
+  private static List<VectorDB.Doc> random(Random r, String prefix, int n, int dim) {
+    List<VectorDB.Doc> out = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      float[] v = new float[dim];
+      for (int j = 0; j < dim; j++) v[j] = (float) r.nextGaussian();
+      out.add(new VectorDB.Doc(prefix + i, "d" + (i % 10), "t" + i, v));
+    }
+    return out;
+  }
+
+  // Share of the exact top-k (by cosine over docs) that the graph returned, over all queries
+  private static double recall(HnswVectorDB db, List<VectorDB.Doc> docs, List<float[]> queries, int k) {
+    int found = 0;
+    for (float[] q : queries) {
+      float[] nq = VectorMath.normalized(q);
+      TopK exact = new TopK(k);
+      for (int i = 0; i < docs.size(); i++) exact.offer(i, VectorMath.dot(nq, VectorMath.normalized(docs.get(i).embedding())));
+      int[] rows = new int[k];
+      exact.drainSorted(rows, new float[k]);
+      Set<String> truth = new HashSet<>();
+      for (int row : rows) truth.add(docs.get(row).id());
+
+      List<VectorDB.SearchHit> hits = db.topK(q, k);
+      assertEquals(k, hits.size());
+      for (VectorDB.SearchHit h : hits) if (truth.contains(h.id())) found++;
+    }
+    return found / (double) (queries.size() * k);
+  }
+
+  @Test
+  void recallHoldsWithRetiredNodesAndAfterRebuild() {
+    Random r = new Random(1);
+    HnswVectorDB db = new HnswVectorDB(8, 64, 32);
+    List<VectorDB.Doc> live = null;
+    for (int round = 0; round < 3; round++) {
+      live = random(r, "c", 500, 16);   // same ids each round: the older nodes are retired
+      db.upsertBatch(live);
+    }
+    assertEquals(1000, db.retiredNodes());
+    List<float[]> queries = new ArrayList<>();
+    for (VectorDB.Doc d : random(r, "q", 50, 16)) queries.add(d.embedding());
+
+    assertTrue(recall(db, live, queries, 10) >= 0.85);
+    assertTrue(db.rebuildIfNeeded(0.5));
+    assertEquals(0, db.retiredNodes());
+    assertEquals(500, db.chunkIds().size());
+    assertTrue(recall(db, live, queries, 10) >= 0.85);
+  }
+
+  @Test
+  void insertsRacingRebuildsAreAllKept() throws Exception {
+    HnswVectorDB db = new HnswVectorDB(8, 64, 32);
+    int writers = 4, perWriter = 300;
+    List<Thread> threads = new ArrayList<>();
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<List<VectorDB.Doc>> written = new ArrayList<>();
+    for (int w = 0; w < writers; w++) {
+      List<VectorDB.Doc> docs = random(new Random(w), "w" + w + "-", perWriter, 16);
+      written.add(docs);
+      Thread t = new Thread(() -> {
+        try {
+          for (VectorDB.Doc d : docs) {
+            db.upsert(d);
+            db.upsert(d);   // re-upsert, so there is always something to rebuild away
+          }
+        } catch (Throwable e) {
+          failure.set(e);
+        }
+      });
+      threads.add(t);
+      t.start();
+    }
+    for (Thread t : threads) {
+      while (t.isAlive()) db.rebuild();
+      t.join();
+    }
+    assertNull(failure.get());
+
+    Set<String> expected = new TreeSet<>();
+    int self = 0;
+    for (List<VectorDB.Doc> docs : written) {
+      for (VectorDB.Doc d : docs) {
+        expected.add(d.id());
+        if (db.topK(d.embedding(), 1).get(0).id().equals(d.id())) self++;
+      }
+    }
+    assertEquals(expected, new TreeSet<>(db.chunkIds()));
+    assertEquals(expected.size(), db.fetch(new ArrayList<>(expected)).size());
+    assertTrue(self >= 0.95 * expected.size(), "self hits " + self);
+  }
+
+  @Test
+  void replaceDocumentSwapsAtomicallyForReaders() throws Exception {
+    HnswVectorDB db = new HnswVectorDB(8, 64, 32);
+    List<VectorDB.Doc> first = chunks("a", 0, 4);
+    List<VectorDB.Doc> second = chunks("a", 4, 4);
+    db.upsertBatch(first);
+    db.upsertBatch(chunks("b", 8, 4));
+
+    List<String> both = new ArrayList<>(ids(first));
+    both.addAll(ids(second));
+    AtomicBoolean done = new AtomicBoolean();
+    AtomicReference<String> failure = new AtomicReference<>();
+    Thread reader = new Thread(() -> {
+      while (!done.get() && failure.get() == null) {
+        List<String> seen = ids(db.fetch(both));
+        if (!seen.equals(ids(first)) && !seen.equals(ids(second))) failure.set("saw " + seen);
+      }
+    });
+    reader.start();
+    try {
+      for (int round = 0; round < 500 && failure.get() == null; round++) {
+        db.replaceDocument("a", round % 2 == 0 ? second : first);
+      }
+    } finally {
+      done.set(true);
+      reader.join();
+    }
+    assertNull(failure.get());
+    assertEquals(Set.of("a#0", "a#1", "a#2", "a#3", "b#8", "b#9", "b#10", "b#11"), db.chunkIds());
+  }
+
+  @Test
+  void deleteByDocIdRetiresEveryChunkOfTheDocument() {
+    HnswVectorDB db = new HnswVectorDB(8, 64, 32);
+    db.upsertBatch(chunks("a", 0, 4));
+    db.upsertBatch(chunks("b", 4, 4));
+    db.upsert(chunks("a", 1, 1).get(0));   // re-upsert: the id moves to a new node
+    db.deleteByDocId("a");
+
+    assertEquals(Set.of("b#4", "b#5", "b#6", "b#7"), db.chunkIds());
+    assertEquals(5, db.retiredNodes());
+    for (VectorDB.SearchHit h : db.topK(chunks("a", 0, 1).get(0).embedding(), 8)) assertEquals("b", h.docId());
+
+    db.rebuild();
+    assertEquals(0, db.retiredNodes());
+    db.deleteByDocId("b");
+    assertTrue(db.chunkIds().isEmpty());
+    assertTrue(db.topK(chunks("b", 4, 1).get(0).embedding(), 4).isEmpty());
+  }
+}
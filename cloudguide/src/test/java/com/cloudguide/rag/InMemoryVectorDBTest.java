@@ -0,0 +1,196 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Compaction of the memory store: tail rows moved down in place, and rows of
+ * the mapped snapshot reclaimed by writing a new one and rebasing onto it.
+ * Either way searches, fetches and a restart must see exactly the live chunks.
+ *
+ * @author rachanakeshav
+ */
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InMemoryVectorDBTest {
+
+  private static final int DIM = 8;
+
+  @TempDir
+  Path dir;
+
+  // One chunk per axis direction (and its negation), so every chunk is its own exact nearest neighbour
+  private static List<VectorDB.Doc> chunks(String docId, int from, int n, String text) {
+    List<VectorDB.Doc> out = new ArrayList<>(n);
+    for (int i = from; i < from + n; i++) {
+      out.add(new VectorDB.Doc(docId + "#" + i, docId, text + " " + i, axis(i), 1_000L + i));
+    }
+    return out;
+  }
+
+  private static float[] axis(int i) {
+    float[] v = new float[DIM];
+    v[i % DIM] = i < DIM ? 1 : -1;
+    return v;
+  }
+
+  private InMemoryVectorDB open(boolean wal) {
+    return new InMemoryVectorDB(InMemoryVectorDB.Quantization.NONE, 0, null, 1, 256, dir, wal);
+  }
+
+  private static void assertServes(InMemoryVectorDB db, List<VectorDB.Doc> live) {
+    Set<String> expected = new TreeSet<>();
+    for (VectorDB.Doc d : live) expected.add(d.id());
+    assertEquals(expected, new TreeSet<>(db.chunkIds()));
+    for (VectorDB.Doc d : live) {
+      List<VectorDB.SearchHit> hits = db.topK(d.embedding(), 1);
+      assertEquals(d.id(), hits.get(0).id());
+      assertEquals(d.text(), hits.get(0).text());
+      VectorDB.Doc f = db.fetch(List.of(d.id())).get(0);
+      assertEquals(d.docId(), f.docId());
+      assertEquals(d.ingestedAt(), f.ingestedAt());
+    }
+  }
+
+  @Test
+  void compactMovesLiveTailRowsDown() throws IOException {
+    InMemoryVectorDB db = new InMemoryVectorDB();
+    db.upsertBatch(chunks("a", 0, 4, "old"));
+    db.upsertBatch(chunks("b", 4, 4, "b"));
+    List<VectorDB.Doc> a = chunks("a", 8, 4, "new");
+    db.replaceDocument("a", a);
+    assertEquals(4, db.deadRows());
+
+    long version = db.version();
+    db.compact();
+    assertEquals(0, db.deadRows());
+    assertEquals(version, db.version());
+
+    List<VectorDB.Doc> live = new ArrayList<>(chunks("b", 4, 4, "b"));
+    live.addAll(a);
+    assertServes(db, live);
+
+    // row numbers were reassigned: later writes must land on the right rows
+    db.deleteByDocId("b");
+    assertServes(db, a);
+    db.close();
+  }
+
+  @Test
+  void compactIfNeededWaitsForTheRatio() throws IOException {
+    InMemoryVectorDB db = new InMemoryVectorDB();
+    db.upsertBatch(chunks("a", 0, 8, "a"));
+    db.upsertBatch(chunks("b", 8, 2, "b"));
+    db.deleteByDocId("b");
+    assertFalse(db.compactIfNeeded(0.5));
+    assertEquals(2, db.deadRows());
+    assertTrue(db.compactIfNeeded(0.2));
+    assertEquals(0, db.deadRows());
+    db.close();
+  }
+
+  @Test
+  void compactRebasesOntoANewSnapshotWhenSnapshotRowsDied() throws IOException {
+    InMemoryVectorDB db = open(false);
+    db.upsertBatch(chunks("a", 0, 6, "a"));
+    db.upsertBatch(chunks("b", 6, 6, "b"));
+    db.close();
+
+    db = open(false);
+    assertEquals(12, db.restoredRows());
+    db.deleteByDocId("a");
+    List<VectorDB.Doc> c = chunks("c", 12, 2, "c");
+    db.upsertBatch(c);
+    assertEquals(6, db.deadRows());
+
+    db.compact();
+    assertEquals(0, db.deadRows());
+    // the live rows of both the old snapshot and the heap tail now come from the new snapshot
+    assertEquals(8, db.restoredRows());
+    List<VectorDB.Doc> live = new ArrayList<>(chunks("b", 6, 6, "b"));
+    live.addAll(c);
+    assertServes(db, live);
+
+    db.upsertBatch(chunks("d", 0, 1, "d"));
+    live.addAll(chunks("d", 0, 1, "d"));
+    assertServes(db, live);
+    db.close();
+
+    db = open(false);
+    assertServes(db, live);
+    db.close();
+  }
+
+  @Test
+  void compactWithTheLogKeepsEveryWriteAcrossARestart() throws IOException {
+    InMemoryVectorDB db = open(true);
+    db.upsertBatch(chunks("a", 0, 6, "a"));
+    db.snapshot();
+    db.close();
+
+    db = open(true);
+    db.replaceDocument("a", chunks("a", 6, 3, "again"));
+    db.compact();
+    assertEquals(0, db.deadRows());
+    assertEquals(3, db.restoredRows());
+    db.upsertBatch(chunks("b", 9, 2, "b"));   // only in the log
+    List<VectorDB.Doc> live = new ArrayList<>(chunks("a", 6, 3, "again"));
+    live.addAll(chunks("b", 9, 2, "b"));
+    assertServes(db, live);
+    db.close();
+
+    db = open(true);
+    assertServes(db, live);
+    db.close();
+  }
+
+  @Test
+  void filteredReadsNeverSeeARebaseHalfDone() throws Exception {
+    InMemoryVectorDB db = open(false);
+    List<VectorDB.Doc> kept = chunks("kept", 0, 4, "kept");
+    db.upsertBatch(kept);
+    db.upsertBatch(chunks("churn", 4, 4, "churn"));
+    db.close();
+    InMemoryVectorDB store = open(false);
+
+    SearchFilter onlyKept = SearchFilter.docIds(Set.of("kept"));
+    List<String> keptIds = kept.stream().map(VectorDB.Doc::id).toList();
+    AtomicBoolean done = new AtomicBoolean();
+    AtomicReference<String> failure = new AtomicReference<>();
+    Thread reader = new Thread(() -> {
+      while (!done.get() && failure.get() == null) {
+        int hits = store.topKBatch(List.of(axis(0)), 4, onlyKept).get(0).size();
+        int fetched = store.fetch(keptIds).size();
+        if (hits != 4 || fetched != 4) failure.set("hits=" + hits + " fetched=" + fetched);
+      }
+    });
+    reader.start();
+    try {
+      // every round kills snapshot rows, so every compact() writes a snapshot and rebases onto it
+      for (int round = 0; round < 200 && failure.get() == null; round++) {
+        store.deleteByDocId("churn");
+        store.upsertBatch(chunks("churn", 4, 4, "churn " + round));
+        store.compact();
+      }
+    } finally {
+      done.set(true);
+      reader.join();
+      store.close();
+    }
+    assertNull(failure.get());
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * IVF-PQ encoding and scoring: codes only address trained centroids, a score
+ * is the query's dot product with the vector the codes reconstruct, codebooks
+ * survive a save/load, and replaced chunks keep serving their own text.
+ *
+ * @author rachanakeshav
+ */
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IvfPqVectorDBTest {
+
+  private static final int DIM = 16;
+
+  @TempDir
+  Path dir;
+
+  private static List<float[]> sample(int n, long seed) {
+    Random r = new Random(seed);
+    List<float[]> out = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      float[] v = new float[DIM];
+      for (int j = 0; j < DIM; j++) v[j] = (float) r.nextGaussian();
+      out.add(v);
+    }
+    return out;
+  }
+
+  // coarse centroid + the PQ centroid each code picks, i.e. what the index "stores"
+  private static float[] reconstruct(IvfPqCodebook cb, float[] v) {
+    float[] n = VectorMath.normalized(v);
+    int list = cb.nearestList(n);
+    byte[] codes = new byte[cb.m];
+    cb.encode(n, list, codes, 0);
+    float[] out = new float[cb.dim];
+    for (int j = 0; j < cb.dim; j++) out[j] = cb.coarse[list * cb.dim + j];
+    for (int s = 0; s < cb.m; s++) {
+      int c = codes[s] & 0xFF;
+      for (int j = 0; j < cb.dsub; j++) out[s * cb.dsub + j] += cb.pq[(s * cb.ksub + c) * cb.dsub + j];
+    }
+    return out;
+  }
+
+  @Test
+  void smallSampleCodesOnlyAddressTrainedCentroids() {
+    List<float[]> s = sample(40, 1);
+    IvfPqCodebook cb = IvfPqCodebook.train(s, 4, 4, 10, 7);
+    assertEquals(40, cb.ksub);
+    assertEquals(cb.m * 40, cb.distanceTable(VectorMath.normalized(s.get(0))).length);
+    byte[] codes = new byte[cb.m];
+    for (float[] v : s) {
+      float[] n = VectorMath.normalized(v);
+      cb.encode(n, cb.nearestList(n), codes, 0);
+      for (byte b : codes) assertTrue((b & 0xFF) < cb.ksub);
+    }
+  }
+
+  @Test
+  void scoreIsTheDotWithTheReconstructedVector() throws IOException {
+    List<float[]> s = sample(600, 2);
+    IvfPqCodebook cb = IvfPqCodebook.train(s, 8, 4, 10, 7);
+    assertEquals(IvfPqCodebook.KSUB, cb.ksub);
+    try (IvfPqVectorDB db = new IvfPqVectorDB(cb, cb.nlist, dir)) {
+      for (int i = 0; i < 100; i++) db.upsert(new VectorDB.Doc("c" + i, "d", "t" + i, s.get(i)));
+
+      float[] q = s.get(500);
+      float[] nq = VectorMath.normalized(q);
+      List<VectorDB.SearchHit> hits = db.topK(q, 100);
+      assertEquals(100, hits.size());   // every list probed: nothing is missed
+      for (VectorDB.SearchHit h : hits) {
+        int i = Integer.parseInt(h.id().substring(1));
+        assertEquals(VectorMath.dot(nq, reconstruct(cb, s.get(i))), h.score(), 1e-4, h.id());
+      }
+      for (int i = 1; i < hits.size(); i++) assertTrue(hits.get(i - 1).score() >= hits.get(i).score());
+      // the stored vector's own codes are its best match more often than not
+      int self = 0;
+      for (int i = 0; i < 100; i++) if (db.topK(s.get(i), 1).get(0).id().equals("c" + i)) self++;
+      assertTrue(self >= 60, "self hits " + self);
+    }
+  }
+
+  @Test
+  void codebookRoundTripsThroughAFile() throws IOException {
+    List<float[]> s = sample(300, 3);
+    IvfPqCodebook cb = IvfPqCodebook.train(s, 8, 4, 10, 7);
+    cb.save(dir.resolve("cb.bin"));
+    IvfPqCodebook back = IvfPqCodebook.load(dir.resolve("cb.bin"));
+
+    assertEquals(cb.ksub, back.ksub);
+    assertArrayEquals(cb.coarse, back.coarse);
+    assertArrayEquals(cb.pq, back.pq);
+    float[] n = VectorMath.normalized(s.get(0));
+    assertArrayEquals(cb.distanceTable(n), back.distanceTable(n));
+  }
+
+  @Test
+  void replacedAndRecycledRowsServeTheirOwnText() throws IOException {
+    List<float[]> s = sample(300, 4);
+    Random r = new Random(5);
+    try (IvfPqVectorDB db = new IvfPqVectorDB(IvfPqCodebook.train(s, 4, 4, 10, 7), 4, dir)) {
+      Map<String, String> expected = new HashMap<>();
+      for (int round = 0; round < 500; round++) {
+        String docId = "d" + r.nextInt(20);
+        expected.keySet().removeIf(id -> id.startsWith(docId + "#"));
+        List<VectorDB.Doc> chunks = new ArrayList<>();
+        for (int i = 0, n = r.nextInt(5); i < n; i++) {
+          String id = docId + "#" + i;
+          String text = id + " round " + round;
+          chunks.add(new VectorDB.Doc(id, docId, text, s.get(r.nextInt(s.size()))));
+          expected.put(id, text);
+        }
+        db.replaceDocument(docId, chunks);
+      }
+
+      Map<String, String> served = new HashMap<>();
+      for (VectorDB.SearchHit h : db.topK(s.get(0), 1000)) assertNull(served.put(h.id(), h.text()), h.id());
+      assertEquals(expected, served);
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Streaming float decoding: every number form an embedding server sends reads
+ * as the float Float.parseFloat would give, arrays longer or shorter than the
+ * expected dimension come back at their real length, vectors survive a write
+ * and read bit for bit, and anything that is not a number array is refused.
+ *
+ * @author rachanakeshav
+ */
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonStreamTest {
+
+  private static float[] read(String json, String field, int expected) throws IOException {
+    try (JsonParser p = JsonStream.object(json.getBytes(StandardCharsets.UTF_8))) {
+      assertTrue(JsonStream.seek(p, field), field);
+      return JsonStream.floats(p, expected);
+    }
+  }
+
+  @Test
+  void numberFormsDecodeLikeParseFloat() throws IOException {
+    String[] forms = {"0", "-0.0", "1", "-17", "0.1", "-0.0234375", "3.4028235E38", "1.4E-45",
+        "1e-3", "2.5E+2", "-7.006492321624085e-46", "0.30000001192092896", "123456789"};
+    float[] v = read("{\"embedding\":[" + String.join(",", forms) + "]}", "embedding", forms.length);
+    assertEquals(forms.length, v.length);
+    for (int i = 0; i < forms.length; i++) {
+      assertEquals(Float.floatToIntBits(Float.parseFloat(forms[i])), Float.floatToIntBits(v[i]), forms[i]);
+    }
+  }
+
+  @Test
+  void resultTakesTheRealLengthWhateverWasExpected() throws IOException {
+    StringBuilder json = new StringBuilder("{\"v\":[");
+    for (int i = 0; i < 1000; i++) json.append(i == 0 ? "" : ",").append(i * 0.5);
+    String body = json.append("]}").toString();
+    for (int expected : new int[]{0, 1, 7, 1000, 4096}) {
+      float[] v = read(body, "v", expected);
+      assertEquals(1000, v.length, "expected " + expected);
+      for (int i = 0; i < 1000; i++) assertEquals(i * 0.5f, v[i]);
+    }
+    assertEquals(0, read("{\"v\":[]}", "v", 768).length);
+  }
+
+  @Test
+  void writtenVectorsReadBackBitForBit() throws IOException {
+    Random r = new Random(11);
+    List<float[]> vectors = new ArrayList<>();
+    for (int n = 0; n < 200; n++) {
+      float[] v = new float[384];
+      for (int j = 0; j < v.length; j++) {
+        // raw bit patterns cover every exponent, not just the usual [-1, 1]
+        float f;
+        do f = Float.intBitsToFloat(r.nextInt()); while (!Float.isFinite(f));
+        v[j] = j % 2 == 0 ? f : (float) r.nextGaussian() * 0.05f;
+      }
+      vectors.add(v);
+    }
+    JsonStream.Buffer buf = new JsonStream.Buffer(1 << 16);
+    try (JsonGenerator g = new JsonFactory().createGenerator(buf)) {
+      g.writeStartObject();
+      g.writeStringField("model", "m");
+      g.writeFieldName("embeddings");
+      g.writeStartArray();
+      for (float[] v : vectors) JsonStream.floats(g, v);
+      g.writeEndArray();
+      g.writeEndObject();
+    }
+
+    try (JsonParser p = JsonStream.object(buf.toByteArray())) {
+      assertTrue(JsonStream.seek(p, "embeddings"));
+      int n = 0;
+      while (p.nextToken() == JsonToken.START_ARRAY) {
+        float[] back = JsonStream.floats(p, 384);
+        float[] v = vectors.get(n++);
+        for (int j = 0; j < v.length; j++) {
+          assertEquals(Float.floatToIntBits(v[j]), Float.floatToIntBits(back[j]), "vector " + n + " at " + j);
+        }
+      }
+      assertEquals(vectors.size(), n);
+    }
+  }
+
+  @Test
+  void seekSkipsOtherFieldsWithoutReadingThem() throws IOException {
+    String body = "{\"model\":\"m\",\"meta\":{\"embedding\":[9,9],\"deep\":[[1],[2,{\"x\":3}]]},"
+        + "\"ids\":[1,2,3],\"embedding\":[1.5,-2.5]}";
+    assertArrayEquals(new float[]{1.5f, -2.5f}, read(body, "embedding", 2));
+
+    try (JsonParser p = JsonStream.object(body.getBytes(StandardCharsets.UTF_8))) {
+      assertFalse(JsonStream.seek(p, "missing"));
+      assertEquals(JsonToken.END_OBJECT, p.currentToken());
+    }
+  }
+
+  @Test
+  void anythingButANumberArrayIsRefused() {
+    assertThrows(IOException.class, () -> read("{\"v\":[1,\"2\",3]}", "v", 3));
+    assertThrows(IOException.class, () -> read("{\"v\":[1,null]}", "v", 2));
+    assertThrows(IOException.class, () -> read("{\"v\":[[1,2]]}", "v", 2));
+    assertThrows(IOException.class, () -> read("{\"v\":{\"0\":1}}", "v", 1));
+    assertThrows(IOException.class, () -> read("{\"v\":1.0}", "v", 1));
+    assertThrows(IOException.class, () -> JsonStream.object("[1,2]".getBytes(StandardCharsets.UTF_8)));
+  }
+}
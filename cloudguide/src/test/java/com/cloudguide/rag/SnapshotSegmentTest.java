@@ -0,0 +1,147 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Round trips of the two snapshot segment layouts: v2 as written today, and v1
+ * (no ingest time) as left behind by older builds.
+ *
+ * @author rachanakeshav
+ */
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotSegmentTest {
+
+  private static final List<VectorDB.Doc> DOCS = List.of(
+      new VectorDB.Doc("aws:pricing#0", "aws-pricing", "On-demand instances", new float[]{1, 0, 0}, 1_700_000_000_000L),
+      new VectorDB.Doc("aws:pricing#1", "aws-pricing", "Réservé · 予約", new float[]{0, 0.6f, 0.8f}, 1_700_000_000_001L),
+      new VectorDB.Doc("azure#0", "azure", null, new float[]{0, 1, 0}, 0L));
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void v2RoundTripKeepsVectorsStringsAndIngestTime() throws IOException {
+    SnapshotSegment.write(dir, "seg-0", rows(DOCS));
+    SnapshotSegment seg = SnapshotSegment.open(dir, "seg-0");
+
+    assertEquals(3, seg.dim);
+    assertEquals(DOCS.size(), seg.rows);
+    float[] v = new float[3];
+    for (int i = 0; i < DOCS.size(); i++) {
+      VectorDB.Doc d = DOCS.get(i);
+      seg.vector(i, v);
+      assertArrayEquals(d.embedding(), v);
+      assertEquals(d.id(), seg.id(i));
+      assertEquals(d.docId(), seg.docId(i));
+      assertEquals(d.text() == null ? "" : d.text(), seg.text(i));
+      assertEquals(d.ingestedAt(), seg.ingestedAt(i));
+      assertEquals(VectorMath.dot(d.embedding(), d.embedding()), seg.dot(d.embedding(), i), 1e-6);
+    }
+  }
+
+  @Test
+  void emptySegmentRoundTrips() throws IOException {
+    SnapshotSegment.write(dir, "empty", rows(List.of()));
+    SnapshotSegment seg = SnapshotSegment.open(dir, "empty");
+    assertEquals(0, seg.rows);
+  }
+
+  @Test
+  void v1SegmentReadsWithZeroIngestTime() throws IOException {
+    writeV1(dir, "old", DOCS);
+    SnapshotSegment seg = SnapshotSegment.open(dir, "old");
+
+    assertEquals(DOCS.size(), seg.rows);
+    float[] v = new float[3];
+    for (int i = 0; i < DOCS.size(); i++) {
+      VectorDB.Doc d = DOCS.get(i);
+      seg.vector(i, v);
+      assertArrayEquals(d.embedding(), v);
+      assertEquals(d.id(), seg.id(i));
+      assertEquals(d.docId(), seg.docId(i));
+      assertEquals(d.text() == null ? "" : d.text(), seg.text(i));
+      assertEquals(0L, seg.ingestedAt(i));
+    }
+  }
+
+  @Test
+  void newerVersionIsRefused() throws IOException {
+    SnapshotSegment.write(dir, "seg-0", rows(DOCS));
+    Path meta = dir.resolve("seg-0.meta");
+    byte[] b = Files.readAllBytes(meta);
+    b[4] = (byte) (SnapshotSegment.VERSION + 1);
+    Files.write(meta, b);
+    assertThrows(IOException.class, () -> SnapshotSegment.open(dir, "seg-0"));
+  }
+
+  @Test
+  void mismatchedRowCountsAreRefused() throws IOException {
+    SnapshotSegment.write(dir, "a", rows(DOCS));
+    SnapshotSegment.write(dir, "b", rows(DOCS.subList(0, 1)));
+    Files.copy(dir.resolve("b.meta"), dir.resolve("a.meta"), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+    assertThrows(IOException.class, () -> SnapshotSegment.open(dir, "a"));
+  }
+
+  private static SnapshotSegment.Rows rows(List<VectorDB.Doc> docs) {
+    return new SnapshotSegment.Rows() {
+      @Override public int dim() { return 3; }
+      @Override public int count() { return docs.size(); }
+      @Override public void vector(int i, float[] out) { System.arraycopy(docs.get(i).embedding(), 0, out, 0, 3); }
+      @Override public String id(int i) { return docs.get(i).id(); }
+      @Override public String docId(int i) { return docs.get(i).docId(); }
+      @Override public String text(int i) { return docs.get(i).text(); }
+      @Override public long ingestedAt(int i) { return docs.get(i).ingestedAt(); }
+    };
+  }
+
+  // The v1 layout: same headers with version 1, records without the leading ingestedAt
+  private static void writeV1(Path dir, String name, List<VectorDB.Doc> docs) throws IOException {
+    int dim = 3;
+    try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(dir.resolve(name + ".vec"))))) {
+      out.writeInt(Integer.reverseBytes(SnapshotSegment.VEC_MAGIC));
+      out.writeInt(Integer.reverseBytes(1));
+      out.writeInt(Integer.reverseBytes(dim));
+      out.writeInt(Integer.reverseBytes(docs.size()));
+      for (VectorDB.Doc d : docs) {
+        for (float f : d.embedding()) out.writeInt(Integer.reverseBytes(Float.floatToRawIntBits(f)));
+      }
+    }
+    var records = new java.io.ByteArrayOutputStream();
+    long[] offsets = new long[docs.size() + 1];
+    try (var out = new DataOutputStream(records)) {
+      for (int i = 0; i < docs.size(); i++) {
+        offsets[i] = out.size();
+        VectorDB.Doc d = docs.get(i);
+        for (String s : new String[]{d.id(), d.docId(), d.text()}) {
+          byte[] b = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+          out.writeInt(Integer.reverseBytes(b.length));
+          out.write(b);
+        }
+      }
+      offsets[docs.size()] = out.size();
+    }
+    try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(dir.resolve(name + ".meta"))))) {
+      out.writeInt(Integer.reverseBytes(SnapshotSegment.META_MAGIC));
+      out.writeInt(Integer.reverseBytes(1));
+      out.writeInt(Integer.reverseBytes(docs.size()));
+      out.writeInt(0);
+      for (long o : offsets) out.writeLong(Long.reverseBytes(o));
+      records.writeTo(out);
+    }
+  }
+}
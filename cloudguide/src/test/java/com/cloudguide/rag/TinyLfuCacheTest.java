@@ -0,0 +1,73 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * W-TinyLFU admission: a scan of one-off keys must not flush the entries that
+ * keep being asked for, while a newcomer asked for often enough gets in.
+ *
+ * @author rachanakeshav
+ */
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TinyLfuCacheTest {
+
+  @Test
+  void scanOfOneOffKeysLeavesHotEntriesAlone() {
+    TinyLfuCache<Integer, Integer> cache = new TinyLfuCache<>(100);
+    for (int round = 0; round < 5; round++) {
+      for (int i = 0; i < 100; i++) {
+        cache.put(i, i);
+        cache.get(i);
+      }
+    }
+    // three times the capacity: plain LRU would keep none of the hot entries
+    for (int i = 1000; i < 1300; i++) cache.put(i, i);
+
+    assertEquals(100, cache.size());
+    int hot = 0;
+    for (int i = 0; i < 100; i++) if (cache.get(i) != null) hot++;
+    assertTrue(hot >= 95, "hot entries kept " + hot);
+    assertTrue(cache.rejections() >= 290, "rejections " + cache.rejections());
+  }
+
+  @Test
+  void frequentlyRequestedNewcomerIsAdmitted() {
+    TinyLfuCache<Integer, Integer> cache = new TinyLfuCache<>(100);
+    for (int i = 0; i < 100; i++) cache.put(i, i);
+    assertEquals(0, cache.evictions());
+
+    for (int i = 0; i < 5; i++) assertNull(cache.get(500));   // misses still count in the sketch
+    cache.put(500, 500);
+    cache.put(501, 501);   // pushes 500 out of the window, against a main-region victim seen once
+
+    assertEquals(500, cache.get(500));
+    assertTrue(cache.evictions() >= 1);
+    assertEquals(100, cache.size());
+  }
+
+  @Test
+  void putUpdatesInPlaceAndInvalidateRemoves() {
+    TinyLfuCache<String, String> cache = new TinyLfuCache<>(10);
+    cache.put("a", "1");
+    cache.put("a", "2");
+    assertEquals("2", cache.get("a"));
+    assertEquals(1, cache.size());
+
+    cache.get("a");   // now promoted out of probation
+    cache.put("a", "3");
+    assertEquals("3", cache.get("a"));
+    cache.invalidate("a");
+    assertNull(cache.get("a"));
+
+    for (int i = 0; i < 50; i++) cache.put("k" + i, "v");
+    assertTrue(cache.size() <= 10);
+    cache.clear();
+    assertEquals(0, cache.size());
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.cloudguide.rag;
+
+/**
+ * Replay of every record kind the write-ahead log has used (UPSERT from older
+ * builds, UPSERT_TIMED and REPLACE_DOC), and recovery from a torn tail.
+ *
+ * @author rachanakeshav
+ */
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VectorWalTest {
+
+  @TempDir
+  Path dir;
+
+  /** Replayed records as "upsert id,id" / "replace docId: id,id" lines; docs kept for field checks. */
+  private static final class Recorder implements VectorWal.Replay {
+    final List<String> events = new ArrayList<>();
+    final List<VectorDB.Doc> docs = new ArrayList<>();
+
+    @Override
+    public void upsert(List<VectorDB.Doc> batch) {
+      events.add("upsert " + ids(batch));
+      docs.addAll(batch);
+    }
+
+    @Override
+    public void replaceDocument(String docId, List<VectorDB.Doc> batch) {
+      events.add("replace " + docId + ": " + ids(batch));
+      docs.addAll(batch);
+    }
+
+    private static String ids(List<VectorDB.Doc> batch) {
+      return String.join(",", batch.stream().map(VectorDB.Doc::id).toList());
+    }
+  }
+
+  private static VectorDB.Doc doc(String id, String docId, long ingestedAt) {
+    return new VectorDB.Doc(id, docId, "text of " + id, new float[]{1, 2, 3}, ingestedAt);
+  }
+
+  @Test
+  void replaysTimedUpsertsAndReplacesInOrder() throws IOException {
+    try (VectorWal wal = VectorWal.open(dir, 1)) {
+      wal.append(VectorWal.encodeUpsert(List.of(doc("a#0", "a", 10), doc("a#1", "a", 11)))).join();
+      wal.append(VectorWal.encodeUpsert(List.of(doc("b#0", "b", 12)))).join();
+      wal.append(VectorWal.encodeReplace("a", List.of(doc("a#0", "a", 20)))).join();
+      wal.append(VectorWal.encodeReplace("b", List.of())).join();
+    }
+
+    Recorder r = new Recorder();
+    assertEquals(4, VectorWal.replay(dir, 1, r));
+    // consecutive upserts are merged; a replace flushes them first
+    assertEquals(List.of("upsert a#0,a#1,b#0", "replace a: a#0", "replace b: "), r.events);
+
+    VectorDB.Doc first = r.docs.get(0);
+    assertEquals("a", first.docId());
+    assertEquals("text of a#0", first.text());
+    assertArrayEquals(new float[]{1, 2, 3}, first.embedding());
+    assertEquals(10, first.ingestedAt());
+    assertEquals(20, r.docs.get(3).ingestedAt());
+  }
+
+  @Test
+  void replaysUntimedUpsertWithZeroIngestTime() throws IOException {
+    Files.write(dir.resolve(String.format("wal-%016d.log", 1)),
+        legacyUpsert(List.of(doc("old#0", "old", 99))).array());
+
+    Recorder r = new Recorder();
+    assertEquals(1, VectorWal.replay(dir, 1, r));
+    assertEquals(List.of("upsert old#0"), r.events);
+    assertEquals("text of old#0", r.docs.get(0).text());
+    assertEquals(0, r.docs.get(0).ingestedAt());
+  }
+
+  @Test
+  void tornTailIsCutOffAndLaterAppendsReplay() throws IOException {
+    Path log = dir.resolve(String.format("wal-%016d.log", 1));
+    try (VectorWal wal = VectorWal.open(dir, 1)) {
+      wal.append(VectorWal.encodeUpsert(List.of(doc("a#0", "a", 1)))).join();
+    }
+    long intact = Files.size(log);
+    // half of a second record, as a crash mid-write would leave it
+    ByteBuffer torn = VectorWal.encodeUpsert(List.of(doc("b#0", "b", 2)));
+    try (FileChannel ch = FileChannel.open(log, StandardOpenOption.APPEND)) {
+      ch.write(ByteBuffer.wrap(torn.array(), 0, torn.remaining() / 2));
+    }
+
+    Recorder r = new Recorder();
+    assertEquals(1, VectorWal.replay(dir, 1, r));
+    assertEquals(List.of("upsert a#0"), r.events);
+    assertEquals(intact, Files.size(log));
+
+    try (VectorWal wal = VectorWal.open(dir, 1)) {
+      wal.append(VectorWal.encodeUpsert(List.of(doc("c#0", "c", 3)))).join();
+    }
+    Recorder again = new Recorder();
+    assertEquals(2, VectorWal.replay(dir, 1, again));
+    assertEquals(List.of("upsert a#0,c#0"), again.events);
+  }
+
+  @Test
+  void replayStopsAtACorruptRecord() throws IOException {
+    Path log = dir.resolve(String.format("wal-%016d.log", 1));
+    try (VectorWal wal = VectorWal.open(dir, 1)) {
+      wal.append(VectorWal.encodeUpsert(List.of(doc("a#0", "a", 1)))).join();
+      wal.append(VectorWal.encodeUpsert(List.of(doc("b#0", "b", 2)))).join();
+      wal.append(VectorWal.encodeUpsert(List.of(doc("c#0", "c", 3)))).join();
+    }
+    int recordLen = VectorWal.encodeUpsert(List.of(doc("a#0", "a", 1))).remaining();
+    byte[] b = Files.readAllBytes(log);
+    b[recordLen + recordLen / 2] ^= 0x5a;   // inside the second record's payload
+    Files.write(log, b);
+
+    Recorder r = new Recorder();
+    assertEquals(1, VectorWal.replay(dir, 1, r));
+    assertEquals(List.of("upsert a#0"), r.events);
+    assertEquals(recordLen, Files.size(log));
+  }
+
+  @Test
+  void olderGenerationsAreSkipped() throws IOException {
+    try (VectorWal wal = VectorWal.open(dir, 1)) {
+      wal.append(VectorWal.encodeUpsert(List.of(doc("a#0", "a", 1)))).join();
+      wal.rotate(2).join();
+      wal.append(VectorWal.encodeUpsert(List.of(doc("b#0", "b", 2)))).join();
+    }
+    Recorder r = new Recorder();
+    assertEquals(1, VectorWal.replay(dir, 2, r));
+    assertEquals(List.of("upsert b#0"), r.events);
+  }
+
+  // An UPSERT record as written before ingest times were logged
+  private static ByteBuffer legacyUpsert(List<VectorDB.Doc> docs) {
+    ByteBuffer p = ByteBuffer.allocate(1 << 12).order(ByteOrder.LITTLE_ENDIAN);
+    p.put(VectorWal.UPSERT).putInt(docs.size());
+    for (VectorDB.Doc d : docs) {
+      for (String s : new String[]{d.id(), d.docId(), d.text()}) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        p.putInt(b.length).put(b);
+      }
+      p.putInt(d.embedding().length);
+      for (float f : d.embedding()) p.putFloat(f);
+    }
+    int len = p.position();
+    CRC32C crc = new CRC32C();
+    crc.update(p.array(), 0, len);
+    ByteBuffer rec = ByteBuffer.allocate(8 + len).order(ByteOrder.LITTLE_ENDIAN);
+    rec.putInt(len).putInt((int) crc.getValue()).put(p.array(), 0, len);
+    return rec.flip();
+  }
+}